@@ -40,7 +40,7 @@ public class ErrorMapping {
     private static Map<Class<Exception>, Short> exceptionToCode = new HashMap() {{
         put(OffsetOutOfRangeException.class, OffsetOutOfRangeCode);
 //        put(InvalidMessageException.class,InvalidMessageCode);
-//        put(UnknownTopicOrPartitionException.class,UnknownTopicOrPartitionCode);
+        put(UnknownTopicOrPartitionException.class, UnknownTopicOrPartitionCode);
         put(InvalidMessageSizeException.class, InvalidFetchSizeCode);
 //        put(NotLeaderForPartitionException.class,NotLeaderForPartitionCode);
 //        put(LeaderNotAvailableException.class,LeaderNotAvailableCode);
@@ -0,0 +1,10 @@
+package kafka.common;
+
+/**
+ * Indicates an unknown topic or a partition id not between 0 and numPartitions-1
+ */
+public class UnknownTopicOrPartitionException extends RuntimeException {
+    public UnknownTopicOrPartitionException(String msg) {
+        super(msg);
+    }
+}
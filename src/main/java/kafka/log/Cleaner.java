@@ -7,9 +7,11 @@ import kafka.common.LogCleaningAbortedException;
 import kafka.func.ActionWithParam;
 import kafka.func.Tuple;
 import kafka.message.ByteBufferMessageSet;
-import kafka.message.Message;
+import kafka.message.CompressionCodec;
+import kafka.message.DecompressingIterator;
 import kafka.message.MessageAndOffset;
 import kafka.message.MessageSet;
+import kafka.message.MessageSetCursor;
 import kafka.utils.Logging;
 import kafka.utils.Prediction;
 import kafka.utils.Throttler;
@@ -18,6 +20,7 @@ import org.apache.commons.collections.CollectionUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Date;
@@ -129,6 +132,7 @@ public class Cleaner extends Logging {
         logFile.delete();
         File indexFile = new File(segments.get(0).index.file.getPath() + Log.CleanedFileSuffix);
         indexFile.delete();
+        Log.timeIndexFileFor(indexFile).delete();
         FileMessageSet messages = new FileMessageSet(logFile);
         OffsetIndex index = new OffsetIndex(indexFile, segments.get(0).baseOffset, segments.get(0).index.maxIndexSize);
         LogSegment cleaned = new LogSegment(messages, index, segments.get(0).baseOffset, segments.get(0).indexIntervalBytes, log.config.randomSegmentJitter, time);
@@ -141,8 +145,17 @@ public class Cleaner extends Logging {
                 cleanInto(log.topicAndPartition, old, cleaned, map, retainDeletes);
             }
 
+            // offsets survive cleaning, so the time index entries of the old segments still hold;
+            for (LogSegment old : segments) {
+                for (int i = 0; i < old.timeIndex.entries(); i++) {
+                    TimestampOffset entry = old.timeIndex.entry(i);
+                    cleaned.timeIndex.maybeAppend(entry.timestamp, entry.offset);
+                }
+            }
+
             // trim excess index;
             index.trimToValidSize();
+            cleaned.timeIndex.trimToValidSize();
 
             // flush new segment to disk before swap;
             cleaned.flush();
@@ -185,22 +198,25 @@ public class Cleaner extends Logging {
             throttler.maybeThrottle((double) messages.sizeInBytes());
             // check each message to see if it is to be retained;
             Integer messagesRead = 0;
-            for (MessageAndOffset entry : messages) {
+            MessageSetCursor cursor = messages.cursor();
+            while (cursor.next()) {
                 messagesRead += 1;
-                Integer size = MessageSet.entrySize(entry.message);
+                int size = cursor.entrySize();
                 position += size;
                 stats.readMessage(size);
-                ByteBuffer key = entry.message.key();
-                Prediction.require(key != null, String.format("Found null key in log segment %s which is marked as dedupe.", source.log.file.getAbsolutePath()));
-                Long foundOffset = map.get(key);
-        /* two cases in which we can get rid of a message:
-         *   1) if there exists a message with the same key but higher offset
-         *   2) if the message is a delete "tombstone" marker and enough time has passed
-         */
-                boolean redundant = foundOffset >= 0 && entry.offset < foundOffset;
-                boolean obsoleteDelete = !retainDeletes && entry.message.isNull();
-                if (!redundant && !obsoleteDelete) {
-                    ByteBufferMessageSet.writeMessage(writeBuffer, entry.message, entry.offset);
+                if (cursor.compressionCodec() != CompressionCodec.NoCompressionCodec) {
+                    // the messages inside a compressed wrapper are checked one by one and retained uncompressed;
+                    try (DecompressingIterator inner = new DecompressingIterator(cursor.message(), cursor.offset())) {
+                        while (inner.hasNext()) {
+                            MessageAndOffset entry = inner.next();
+                            if (shouldRetain(source, map, retainDeletes, entry.message.key(), entry.message.isNull(), entry.offset)) {
+                                ByteBufferMessageSet.writeMessage(writeBuffer, entry.message, entry.offset);
+                                stats.recopyMessage(MessageSet.entrySize(entry.message));
+                            }
+                        }
+                    }
+                } else if (shouldRetain(source, map, retainDeletes, cursor.key(), cursor.isNull(), cursor.offset())) {
+                    cursor.writeTo(writeBuffer, cursor.offset());
                     stats.recopyMessage(size);
                 }
             }
@@ -219,6 +235,19 @@ public class Cleaner extends Logging {
         restoreBuffers();
     }
 
+    /**
+     * Check whether a message is to be retained. There are two cases in which we can get rid of a message:
+     * 1) if there exists a message with the same key but higher offset
+     * 2) if the message is a delete "tombstone" marker and enough time has passed
+     */
+    private boolean shouldRetain(LogSegment source, OffsetMap map, Boolean retainDeletes, ByteBuffer key, boolean isNull, long offset) throws UnsupportedEncodingException {
+        Prediction.require(key != null, String.format("Found null key in log segment %s which is marked as dedupe.", source.log.file.getAbsolutePath()));
+        Long foundOffset = map.get(key);
+        boolean redundant = foundOffset >= 0 && offset < foundOffset;
+        boolean obsoleteDelete = !retainDeletes && isNull;
+        return !redundant && !obsoleteDelete;
+    }
+
     /**
      * Double the I/O buffer capacity
      */
@@ -317,13 +346,24 @@ public class Cleaner extends Logging {
             ByteBufferMessageSet messages = new ByteBufferMessageSet(segment.log.readInto(readBuffer, position));
             throttler.maybeThrottle(new Double(messages.sizeInBytes()));
             Integer startPosition = position;
-            for (MessageAndOffset entry : messages) {
-                Message message = entry.message;
-                Prediction.require(message.hasKey());
-                Integer size = MessageSet.entrySize(message);
+            MessageSetCursor cursor = messages.cursor();
+            while (cursor.next()) {
+                int size = cursor.entrySize();
                 position += size;
-                map.put(message.key(), entry.offset);
-                offset = entry.offset;
+                if (cursor.compressionCodec() != CompressionCodec.NoCompressionCodec) {
+                    try (DecompressingIterator inner = new DecompressingIterator(cursor.message(), cursor.offset())) {
+                        while (inner.hasNext()) {
+                            MessageAndOffset entry = inner.next();
+                            Prediction.require(entry.message.hasKey());
+                            map.put(entry.message.key(), entry.offset);
+                            offset = entry.offset;
+                        }
+                    }
+                } else {
+                    Prediction.require(cursor.hasKey());
+                    map.put(cursor.key(), cursor.offset());
+                    offset = cursor.offset();
+                }
                 stats.indexMessage(size);
             }
             // if we didn't read even one complete message, our read buffer may be too small;
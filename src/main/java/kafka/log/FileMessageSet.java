@@ -5,17 +5,23 @@ import kafka.message.*;
 import kafka.metrics.KafkaMetricsGroup;
 import kafka.metrics.KafkaTimer;
 import kafka.utils.IteratorTemplate;
+import kafka.utils.Logging;
 import kafka.utils.Utils;
+import sun.nio.ch.DirectBuffer;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * An on-disk message set. An optional start and end position can be applied to the message set
@@ -25,11 +31,13 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class FileMessageSet extends MessageSet {
     public volatile File file;
     public FileChannel channel;
-    public Integer start;
-    public Integer end;
-    public Boolean isSlice;
+    public final int start;
+    public final int end;
+    public final boolean isSlice;
     /* the size of the message set in bytes */
     private AtomicInteger _size;
+    /* an optional read-only memory map of the file, shared with the slices of this message set */
+    private MappedView mappedView;
 
     /**
      * @param file    The file name for the underlying log data
@@ -38,7 +46,7 @@ public class FileMessageSet extends MessageSet {
      * @param end     The upper bound on the absolute position in the file at which the message set ends
      * @param isSlice Should the start and end parameters be used for slicing?
      */
-    public FileMessageSet(File file, FileChannel channel, Integer start, Integer end, Boolean isSlice) {
+    public FileMessageSet(File file, FileChannel channel, int start, int end, boolean isSlice) {
         this.file = file;
         this.channel = channel;
         this.start = start;
@@ -53,6 +61,7 @@ public class FileMessageSet extends MessageSet {
                 _size = new AtomicInteger(end - start); // don't check the file size if this is just a slice view
             } else {
                 _size = new AtomicInteger((int) Math.min(channel.size(), end) - start);
+                mappedView = new MappedView();
             }
             /* if this is not a slice, update the file pointer to the end of the file */
             if (!isSlice) {
@@ -88,7 +97,7 @@ public class FileMessageSet extends MessageSet {
     /**
      * Create a slice view of the file message set that begins and ends at the given byte offsets
      */
-    public FileMessageSet(File file, FileChannel channel, Integer start, Integer end) {
+    public FileMessageSet(File file, FileChannel channel, int start, int end) {
         this(file, channel, start, end, true);
     }
 
@@ -103,16 +112,53 @@ public class FileMessageSet extends MessageSet {
      * @param size     The number of bytes after the start position to include
      * @return A sliced wrapper on this message set limited based on the given position and size
      */
-    public FileMessageSet read(Integer position, Integer size) {
+    public FileMessageSet read(int position, int size) {
         if (position < 0) {
             throw new IllegalArgumentException("Invalid position: " + position);
         }
         if (size < 0) {
             throw new IllegalArgumentException("Invalid size: " + size);
         }
-        return new FileMessageSet(file, channel,
+        FileMessageSet slice = new FileMessageSet(file, channel,
                 this.start + position,
                 Math.min(this.start + position + size, sizeInBytes()));
+        slice.mappedView = mappedView;
+        return slice;
+    }
+
+    /**
+     * Memory map the file read-only so that searches and iteration read message headers from memory rather than
+     * with a read call per message. This is only useful once the file no longer grows; anything appended after the
+     * map was made is still read through the channel.
+     */
+    public void map() throws IOException {
+        if (mappedView != null)
+            mappedView.map(channel, sizeInBytes());
+    }
+
+    /**
+     * Release the memory map of the file, if there is one
+     */
+    public void unmap() {
+        if (mappedView != null)
+            mappedView.unmap();
+    }
+
+    /**
+     * Is the file currently memory mapped
+     */
+    public boolean isMapped() {
+        return mappedView != null && mappedView.isMapped();
+    }
+
+    /**
+     * Read into the buffer from the given absolute position in the file, from the memory map when there is one. The part
+     * of the read past the end of the map, which was made before the later appends, is read through the channel.
+     */
+    private void readAt(ByteBuffer buffer, int position) throws IOException {
+        int copied = mappedView == null ? 0 : mappedView.read(buffer, position);
+        if (copied == 0 || buffer.hasRemaining())
+            channel.read(buffer, position + copied);
     }
 
     /**
@@ -122,26 +168,26 @@ public class FileMessageSet extends MessageSet {
      * @param targetOffset     The offset to search for.
      * @param startingPosition The starting position in the file to begin searching from.
      */
-    public OffsetPosition searchFor(Long targetOffset, Integer startingPosition) {
-        Integer position = startingPosition;
+    public OffsetPosition searchFor(long targetOffset, int startingPosition) {
+        int position = startingPosition;
         ByteBuffer buffer = ByteBuffer.allocate(MessageSet.LogOverhead);
-        Integer size = sizeInBytes();
+        int size = sizeInBytes();
         try {
             while (position + MessageSet.LogOverhead < size) {
                 buffer.rewind();
-                channel.read(buffer, position);
+                readAt(buffer, position);
 
                 if (buffer.hasRemaining()) {
                     throw new IllegalStateException(String.format("Failed to read complete buffer for targetOffset %d startPosition %d in %s", targetOffset, startingPosition, file.getAbsolutePath()));
                 }
                 buffer.rewind();
-                Long offset = buffer.getLong();
+                long offset = buffer.getLong();
 
                 if (offset >= targetOffset) {
                     return new OffsetPosition(offset, position);
                 }
 
-                Integer messageSize = buffer.getInt();
+                int messageSize = buffer.getInt();
 
                 if (messageSize < Message.MessageOverhead) {
                     throw new IllegalStateException("Invalid message size: " + messageSize);
@@ -156,7 +202,8 @@ public class FileMessageSet extends MessageSet {
     }
 
     /**
-     * Write some of this set to the given channel.
+     * Write some of this set to the given channel. Sockets and files are written with a zero-copy transfer; any
+     * other channel, such as one that wraps a socket, gets the data copied through a direct buffer kept per thread.
      *
      * @param destChannel   The channel to write to.
      * @param writePosition The position in the message set to begin writing from.
@@ -165,17 +212,58 @@ public class FileMessageSet extends MessageSet {
      */
     public Integer writeTo(GatheringByteChannel destChannel, Long writePosition, Integer size) throws IOException {
         // Ensure that the underlying size has not changed.
-        Integer newSize = Math.min((int) channel.size(), end) - start;
+        int newSize = Math.min((int) channel.size(), end) - start;
         if (newSize < _size.get()) {
-            throw new KafkaException("Size of FileMessageSet %s has been truncated during write: old size %d, new size %d"
-                    .format(file.getAbsolutePath(), _size.get(), newSize));
+            throw new KafkaException(String.format("Size of FileMessageSet %s has been truncated during write: old size %d, new size %d",
+                    file.getAbsolutePath(), _size.get(), newSize));
         }
-        Integer bytesTransferred = (int) channel.transferTo(start + writePosition, Math.min(size, sizeInBytes()), destChannel);
-        trace("FileMessageSet " + file.getAbsolutePath() + " : bytes transferred : " + bytesTransferred
-                + " bytes requested for transfer : " + Math.min(size, sizeInBytes()));
+        int bytesTransferred;
+        if (supportsZeroCopy(destChannel))
+            bytesTransferred = (int) channel.transferTo(start + writePosition, Math.min(size, sizeInBytes()), destChannel);
+        else
+            bytesTransferred = copyTo(destChannel, (int) (start + writePosition), Math.min(size, sizeInBytes() - writePosition.intValue()));
+        if (logger.isTraceEnabled())
+            trace("FileMessageSet " + file.getAbsolutePath() + " : bytes transferred : " + bytesTransferred
+                    + " bytes requested for transfer : " + Math.min(size, sizeInBytes()));
         return bytesTransferred;
     }
 
+    /**
+     * Can data be sent to the channel with FileChannel.transferTo without being copied through user space
+     */
+    public static boolean supportsZeroCopy(GatheringByteChannel channel) {
+        return channel instanceof SocketChannel || channel instanceof FileChannel;
+    }
+
+    /**
+     * Copy up to size bytes from the given absolute position to the channel, stopping early if the channel does not
+     * take a whole buffer
+     */
+    private int copyTo(GatheringByteChannel destChannel, int position, int size) throws IOException {
+        ByteBuffer buffer = TransferBuffer.get();
+        int written = 0;
+        while (written < size) {
+            buffer.clear();
+            buffer.limit(Math.min(buffer.capacity(), size - written));
+            readAt(buffer, position + written);
+            buffer.flip();
+            if (!buffer.hasRemaining())
+                break;
+            int chunk = buffer.remaining();
+            int n = destChannel.write(buffer);
+            written += n;
+            if (n < chunk)
+                break;
+        }
+        return written;
+    }
+
+    /* the size of the chunks a cursor reads the file in */
+    public static final int CursorChunkSize = 64 * 1024;
+
+    /* the buffer used to copy to channels that cannot take a zero-copy transfer */
+    private static final ThreadLocal<ByteBuffer> TransferBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(64 * 1024));
+
     /**
      * Get a shallow iterator over the messages in the set.
      */
@@ -191,9 +279,9 @@ public class FileMessageSet extends MessageSet {
      * @return The iterator.
      */
     @SuppressWarnings("unchecked")
-    public Iterator<MessageAndOffset> iterator(final Integer maxMessageSize) {
+    public Iterator<MessageAndOffset> iterator(final int maxMessageSize) {
         return new IteratorTemplate<MessageAndOffset>() {
-            Integer location = start;
+            int location = start;
             ByteBuffer sizeOffsetBuffer = ByteBuffer.allocate(12);
 
             @Override
@@ -203,24 +291,24 @@ public class FileMessageSet extends MessageSet {
                 try {
                     // read the size of the item
                     sizeOffsetBuffer.rewind();
-                    channel.read(sizeOffsetBuffer, location);
+                    readAt(sizeOffsetBuffer, location);
 
                     if (sizeOffsetBuffer.hasRemaining()) {
                         return allDone();
                     }
 
                     sizeOffsetBuffer.rewind();
-                    Long offset = sizeOffsetBuffer.getLong();
-                    Integer size = sizeOffsetBuffer.getInt();
+                    long offset = sizeOffsetBuffer.getLong();
+                    int size = sizeOffsetBuffer.getInt();
                     if (size < Message.MinHeaderSize)
                         return allDone();
                     if (size > maxMessageSize)
-                        throw new InvalidMessageException("Message size exceeds the largest allowable message size (%d).".format(maxMessageSize.toString()));
+                        throw new InvalidMessageException(String.format("Message size exceeds the largest allowable message size (%d).", maxMessageSize));
 
                     // read the item itself
                     ByteBuffer buffer = ByteBuffer.allocate(size);
 
-                    channel.read(buffer, location + 12);
+                    readAt(buffer, location + 12);
                     if (buffer.hasRemaining())
                         return allDone();
                     buffer.rewind();
@@ -236,10 +324,57 @@ public class FileMessageSet extends MessageSet {
         };
     }
 
+    /**
+     * Get a cursor over the messages in the set that reads the file in chunks into one buffer, reused for the whole
+     * scan, instead of reading every message into a buffer of its own. We only do shallow iteration here.
+     *
+     * @param maxMessageSize A limit on allowable message size to avoid allocating unbounded memory.
+     *                       If we encounter a message larger than this we throw an InvalidMessageException.
+     */
+    public MessageSetCursor cursor(final int maxMessageSize) {
+        ByteBuffer chunk = ByteBuffer.allocate(Math.max(MessageSet.LogOverhead, Math.min(CursorChunkSize, sizeInBytes())));
+        chunk.limit(0);
+        return new MessageSetCursor(chunk, maxMessageSize) {
+            @Override
+            protected boolean fill(int size) {
+                // move the unread bytes to the front of the buffer, or of a larger one if the entry does not fit;
+                int unread = end - nextEntry;
+                ByteBuffer target = buffer.capacity() >= size ? buffer : ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+                ByteBuffer remaining = buffer.duplicate();
+                remaining.limit(end).position(nextEntry);
+                target.clear();
+                target.put(remaining);
+                basePosition += nextEntry;
+                nextEntry = 0;
+                entryStart = -1;
+                if (target != buffer)
+                    setBuffer(target);
+                // then read until the entry is complete or the set ends;
+                int setEnd = start + sizeInBytes();
+                try {
+                    while (target.position() < size) {
+                        int filePosition = start + basePosition + target.position();
+                        if (filePosition >= setEnd)
+                            break;
+                        target.limit(Math.min(target.capacity(), target.position() + setEnd - filePosition));
+                        int before = target.position();
+                        readAt(target, filePosition);
+                        if (target.position() == before)
+                            break;
+                    }
+                } catch (IOException e) {
+                    throw new KafkaException(e);
+                }
+                end = target.position();
+                return end >= size;
+            }
+        };
+    }
+
     /**
      * The number of bytes taken up by this file set
      */
-    public Integer sizeInBytes() {
+    public int sizeInBytes() {
         return _size.get();
     }
 
@@ -255,6 +390,27 @@ public class FileMessageSet extends MessageSet {
         }
     }
 
+    /**
+     * Append several message sets to the message set using a single gathering write
+     */
+    public void append(List<ByteBufferMessageSet> messageSets) {
+        ByteBuffer[] buffers = new ByteBuffer[messageSets.size()];
+        long expected = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = messageSets.get(i).buffer.duplicate();
+            expected += buffers[i].remaining();
+        }
+        try {
+            long written = 0;
+            while (written < expected) {
+                written += channel.write(buffers);
+            }
+            _size.getAndAdd((int) written);
+        } catch (IOException e) {
+            error(e.getMessage(),e);
+        }
+    }
+
     /**
      * Commit all written data to the physical disk
      */
@@ -266,6 +422,7 @@ public class FileMessageSet extends MessageSet {
      * Close this message set
      */
     public void close() throws IOException {
+        unmap();
         flush();
         channel.close();
     }
@@ -276,6 +433,7 @@ public class FileMessageSet extends MessageSet {
      * @return True iff this message set was deleted.
      */
     public Boolean delete() {
+        unmap();
         try {
             channel.close();
         } catch (IOException e) {
@@ -297,6 +455,7 @@ public class FileMessageSet extends MessageSet {
             throw new KafkaException("Attempt to truncate log segment to " + targetSize + " bytes failed, " +
                     " size of this log segment is " + originalSize + " bytes.");
         }
+        unmap();
         channel.truncate(targetSize);
         channel.position(targetSize);
         _size.set(targetSize);
@@ -306,8 +465,8 @@ public class FileMessageSet extends MessageSet {
     /**
      * Read from the underlying file into the buffer starting at the given position
      */
-    public ByteBuffer readInto(ByteBuffer buffer, Integer relativePosition) throws IOException {
-        channel.read(buffer, relativePosition + this.start);
+    public ByteBuffer readInto(ByteBuffer buffer, int relativePosition) throws IOException {
+        readAt(buffer, relativePosition + this.start);
         buffer.flip();
         return buffer;
     }
@@ -324,6 +483,84 @@ public class FileMessageSet extends MessageSet {
     }
 }
 
+/**
+ * A read-only memory map over a whole log file, shared by a file message set and its slices. Readers hold the read
+ * lock while copying out of the map so that it is never released underneath them.
+ */
+class MappedView extends Logging {
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    /* reads up to this many bytes are copied without duplicating the map */
+    private static final int SmallReadSize = 16;
+
+    private volatile MappedByteBuffer mmap = null;
+
+    public void map(FileChannel channel, int size) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (mmap == null)
+                mmap = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void unmap() {
+        lock.writeLock().lock();
+        try {
+            if (mmap != null) {
+                forceUnmap(mmap);
+                mmap = null;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean isMapped() {
+        return mmap != null;
+    }
+
+    /**
+     * Copy as much as fits into the buffer from the given position of the map, the same way a positional channel read
+     * would, but no further than the end of the map. Returns the number of bytes copied, 0 if nothing is mapped at that
+     * position; the caller reads whatever the buffer still has room for through the channel.
+     */
+    public int read(ByteBuffer buffer, int position) {
+        lock.readLock().lock();
+        try {
+            MappedByteBuffer mmap = this.mmap;
+            if (mmap == null || position >= mmap.limit())
+                return 0;
+            int n = Math.min(mmap.limit() - position, buffer.remaining());
+            if (n <= SmallReadSize) {
+                // message headers are read a few bytes at a time, absolute gets save a duplicate per read
+                for (int i = 0; i < n; i++)
+                    buffer.put(mmap.get(position + i));
+                return n;
+            }
+            ByteBuffer src = mmap.duplicate();
+            src.position(position);
+            src.limit(position + n);
+            buffer.put(src);
+            return n;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Forcefully free the buffer's mmap rather than waiting for it to be garbage collected.
+     */
+    private void forceUnmap(MappedByteBuffer m) {
+        try {
+            if (m instanceof sun.nio.ch.DirectBuffer)
+                ((DirectBuffer) m).cleaner().clean();
+        } catch (Exception e) {
+            warn("Error when freeing log buffer", e);
+        }
+    }
+}
+
 class LogFlushStats extends KafkaMetricsGroup {
     public static KafkaTimer logFlushTimer = new KafkaTimer(newTimer("LogFlushRateAndTimeMs", TimeUnit.MILLISECONDS, TimeUnit.SECONDS, null));
 }
\ No newline at end of file
@@ -6,12 +6,14 @@ package kafka.log;/**
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
 import kafka.annotation.threadsafe;
 import kafka.common.*;
 import kafka.func.Action;
 import kafka.func.Handler;
 import kafka.message.*;
 import kafka.metrics.KafkaMetricsGroup;
+import kafka.server.BrokerTopicMetrics;
 import kafka.server.BrokerTopicStats;
 import kafka.server.FetchDataInfo;
 import kafka.server.LogOffsetMetadata;
@@ -19,12 +21,27 @@ import kafka.utils.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.NumberFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 
@@ -43,6 +60,12 @@ public class Log extends KafkaMetricsGroup {
     public volatile Long recoveryPoint = 0L;
     public Scheduler scheduler;
     public Time time;
+    /* the pool unflushed segments are recovered on, shared by the logs loaded together; null recovers them in turn */
+    public ExecutorService recoveryPool;
+    /* the pool message sets are recompressed with the topic's codec on, shared by all logs; null recompresses them on the appending thread */
+    public volatile ExecutorService compressionPool;
+    /* the memory mapped sealed segments, shared by all logs of the log manager; a log of its own keeps its own */
+    public volatile MappedSegments mappedSegments;
 
     /**
      * @param dir           The directory in which log segments are created.
@@ -52,16 +75,43 @@ public class Log extends KafkaMetricsGroup {
      * @param time          The time instance used for checking the clock
      */
     public Log(File dir, LogConfig config, Long recoveryPoint, Scheduler scheduler, Time time) throws IOException {
+        this(dir, config, recoveryPoint, scheduler, time, null);
+    }
+
+    /**
+     * @param recoveryPool The pool to recover unflushed segments on in parallel, or null to recover them in turn
+     */
+    public Log(File dir, LogConfig config, Long recoveryPoint, Scheduler scheduler, Time time, ExecutorService recoveryPool) throws IOException {
         this.dir = dir;
         this.config = config;
         this.recoveryPoint = recoveryPoint;
         this.scheduler = scheduler;
         this.time = time;
+        this.recoveryPool = recoveryPool;
+        this.mappedSegments = new MappedSegments(config.maxMappedSegments);
         init();
     }
 
-    /* A lock that guards all modifications to the log */
-    private Object lock = new Object();
+    /* A lock that guards all modifications to the log, package-private for tests */
+    Object lock = new Object();
+
+    /* appends waiting to be committed by the thread holding the lock when group commit is enabled */
+    private ConcurrentLinkedQueue<PendingAppend> pendingAppends = new ConcurrentLinkedQueue<>();
+
+    /* the number of message sets written by each group commit */
+    private Histogram groupCommitBatchSize;
+
+    /* the time taken by each roll, in microseconds */
+    private Histogram rollLatency;
+
+    /* the compression work done by appends, recorded into the stats of the topic */
+    private CompressionStats compressionStats;
+
+    /* the files of the next segment, created in the background when segment preallocation is enabled */
+    private AtomicReference<SpareSegment> spareSegment = new AtomicReference<>();
+    private AtomicBoolean preparingSpareSegment = new AtomicBoolean(false);
+    /* set under the lock once the log is closed, after which no spare segment is kept */
+    private boolean closed = false;
 
     /* last time it was flushed */
     private AtomicLong lastflushedTime ;
@@ -84,7 +134,7 @@ public class Log extends KafkaMetricsGroup {
         loadSegments();
 
         name = dir.getName();
-        nextOffsetMetadata = new LogOffsetMetadata(activeSegment().nextOffset(), activeSegment().baseOffset, activeSegment().size().intValue());
+        nextOffsetMetadata = new LogOffsetMetadata(activeSegment().nextOffset(), activeSegment().baseOffset, (int) activeSegment().size());
 
         topicAndPartition = Log.parseTopicPartitionName(name);
 
@@ -94,6 +144,11 @@ public class Log extends KafkaMetricsGroup {
         tags.put("topic", topicAndPartition.topic);
         tags.put("partition", topicAndPartition.partition.toString());
         newGuages();
+        groupCommitBatchSize = newHistogram("GroupCommitBatchSize", true, tags);
+        rollLatency = newHistogram("RollLatencyUs", true, tags);
+        compressionStats = BrokerTopicStats.getCompressionStats(topicAndPartition.topic);
+        if (config.preallocateSegments)
+            scheduler.schedule("prepare-segment", () -> prepareSpareSegment(), 0L);
     }
 
 
@@ -111,8 +166,8 @@ public class Log extends KafkaMetricsGroup {
             if (!file.canRead())
                 throw new IOException("Could not read file " + file);
             String filename = file.getName();
-            if (filename.endsWith(DeletedFileSuffix) || filename.endsWith(CleanedFileSuffix)) {
-                // if the file ends in .deleted or .cleaned, delete it;
+            if (filename.endsWith(DeletedFileSuffix) || filename.endsWith(CleanedFileSuffix) || filename.endsWith(SpareFileSuffix)) {
+                // if the file ends in .deleted, .cleaned or .spare, delete it;
                 file.delete();
             } else if (filename.endsWith(SwapFileSuffix)) {
                 // we crashed in the middle of a swap operation, to recover:;
@@ -121,6 +176,11 @@ public class Log extends KafkaMetricsGroup {
                 File baseName = new File(Utils.replaceSuffix(file.getPath(), SwapFileSuffix, ""));
                 if (baseName.getPath().endsWith(IndexFileSuffix)) {
                     file.delete();
+                } else if (baseName.getPath().endsWith(TimeIndexFileSuffix)) {
+                    // the time index can not be rebuilt, so complete its swap as well;
+                    baseName.delete();
+                    if (!file.renameTo(baseName))
+                        throw new KafkaException(String.format("Failed to rename file %s.", file.getPath()));
                 } else if (baseName.getPath().endsWith(LogFileSuffix)) {
                     // delete the index;
                     File index = new File(Utils.replaceSuffix(baseName.getPath(), LogFileSuffix, IndexFileSuffix));
@@ -141,9 +201,10 @@ public class Log extends KafkaMetricsGroup {
                 continue;
             }
             String filename = file.getName();
-            if (filename.endsWith(IndexFileSuffix)) {
+            if (filename.endsWith(IndexFileSuffix) || filename.endsWith(TimeIndexFileSuffix)) {
                 // if it is an index file, make sure it has a corresponding .log file;
-                File logFile = new File(file.getAbsolutePath().replace(IndexFileSuffix, LogFileSuffix));
+                String suffix = filename.endsWith(IndexFileSuffix) ? IndexFileSuffix : TimeIndexFileSuffix;
+                File logFile = new File(Utils.replaceSuffix(file.getAbsolutePath(), suffix, LogFileSuffix));
                 if (!logFile.exists()) {
                     warn(String.format("Found an orphaned index file, %s, with no corresponding log file.", file.getAbsolutePath()));
                     file.delete();
@@ -152,10 +213,15 @@ public class Log extends KafkaMetricsGroup {
                 // if its a log file, load the corresponding log segment;
                 Long start = Long.parseLong(filename.substring(0, filename.length() - LogFileSuffix.length()));
                 boolean hasIndex = Log.indexFilename(dir, start).exists();
+                boolean hasTimeIndex = Log.timeIndexFilename(dir, start).exists();
                 LogSegment segment = new LogSegment(dir, start, config.indexInterval, config.maxIndexSize, config.randomSegmentJitter, time);
                 if (!hasIndex) {
                     error(String.format("Could not find index file corresponding to log file %s, rebuilding index...", segment.log.file.getAbsolutePath()));
                     segment.recover(config.maxMessageSize);
+                } else if (!hasTimeIndex) {
+                    info(String.format("Could not find time index file corresponding to log file %s, using its last modified time.", segment.log.file.getAbsolutePath()));
+                    segment.ensureTimeIndex();
+                    segment.timeIndex.trimToValidSize();
                 }
                 segments.put(start, segment);
             }
@@ -167,15 +233,18 @@ public class Log extends KafkaMetricsGroup {
             recoverLog();
             // reset the index size of the currently active log segment to allow more entries;
             activeSegment().index.resize(config.maxIndexSize);
+            activeSegment().timeIndex.resize(TimeIndex.sizeFor(config.maxIndexSize));
         }
 
         // sanity check the index file of every segment to ensure we don't proceed with a corrupt segment;
-        for (LogSegment s : logSegments())
+        for (LogSegment s : logSegments()) {
             s.index.sanityCheck();
+            s.timeIndex.sanityCheck();
+        }
     }
 
     private void updateLogEndOffset(Long messageOffset) {
-        nextOffsetMetadata = new LogOffsetMetadata(messageOffset, activeSegment().baseOffset, activeSegment().size().intValue());
+        nextOffsetMetadata = new LogOffsetMetadata(messageOffset, activeSegment().baseOffset, (int) activeSegment().size());
     }
 
     private void recoverLog() throws IOException {
@@ -186,25 +255,108 @@ public class Log extends KafkaMetricsGroup {
         }
 
         // okay we need to actually recovery this log;
-        Iterator<LogSegment> unflushed = logSegments(this.recoveryPoint, Long.MAX_VALUE).iterator();
-        while (unflushed.hasNext()) {
-            LogSegment curr = unflushed.next();
-            info(String.format("Recovering unflushed segment %d in log %s.", curr.baseOffset, name));
-            Integer truncatedBytes;
-            try {
-                truncatedBytes = curr.recover(config.maxMessageSize);
-            } catch (InvalidOffsetException e) {
-                Long startOffset = curr.baseOffset;
-                warn("Found invalid offset during recovery for log " + dir.getName() + ". Deleting the corrupt segment and " +
-                        "creating an empty one with starting offset " + startOffset);
-                truncatedBytes = curr.truncateTo(startOffset);
+        // segments are recovered independently, in parallel when a recovery pool is given, and the results are then
+        // applied in order: the first corrupt segment is truncated and everything after it deleted;
+        List<LogSegment> unflushed = Lists.newArrayList(logSegments(this.recoveryPoint, Long.MAX_VALUE));
+        List<Future<Integer>> results = Lists.newArrayList();
+        for (int i = 0; i < unflushed.size(); i++) {
+            LogSegment curr = unflushed.get(i);
+            boolean sealed = i < unflushed.size() - 1;
+            Callable<Integer> job = () -> recoverSegment(curr, sealed);
+            if (recoveryPool != null && unflushed.size() > 1) {
+                results.add(recoveryPool.submit(job));
+            } else {
+                FutureTask<Integer> task = new FutureTask<>(job);
+                task.run();
+                results.add(task);
             }
+        }
+        for (int i = 0; i < unflushed.size(); i++) {
+            LogSegment curr = unflushed.get(i);
+            int truncatedBytes = awaitRecovery(results.get(i));
             if (truncatedBytes > 0) {
                 // we had an invalid message, delete all remaining log;
                 warn(String.format("Corruption found in segment %d of log %s, truncating to offset %d.", curr.baseOffset, name, curr.nextOffset()));
-                unflushed.forEachRemaining(s -> deleteSegment(s));
-                unflushed.forEachRemaining(s -> deleteSegment(s));
+                for (int j = i + 1; j < unflushed.size(); j++) {
+                    awaitRecovery(results.get(j));
+                    deleteSegment(unflushed.get(j));
+                }
+                break;
+            }
+            // remember this segment is valid, a crash before the whole log is recovered will not scan it again;
+            markRecovered(curr);
+        }
+
+        // the log is consistent again, the next recovery starts over from the recovery point;
+        for (File file : dir.listFiles()) {
+            if (file.getName().endsWith(RecoveredFileSuffix))
+                file.delete();
+        }
+    }
+
+    /**
+     * Recover one segment, unless an earlier recovery that was interrupted already validated all of it.
+     *
+     * @return The number of bytes truncated from the segment
+     */
+    private int recoverSegment(LogSegment segment, boolean sealed) throws IOException {
+        File marker = recoveredFilename(dir, segment.baseOffset);
+        if (marker.exists()) {
+            Long validated = readRecoveredMarker(marker);
+            if (validated != null && validated == segment.size()) {
+                info(String.format("Segment %d in log %s was validated by an earlier recovery, skipping it.", segment.baseOffset, name));
+                return 0;
             }
+            marker.delete();
+        }
+        info(String.format("Recovering unflushed segment %d in log %s.", segment.baseOffset, name));
+        // scan sealed segments through a temporary memory map, recovery ends by truncating the file which releases it;
+        if (config.mmapSegments && sealed)
+            segment.log.map();
+        try {
+            return segment.recover(config.maxMessageSize);
+        } catch (InvalidOffsetException e) {
+            Long startOffset = segment.baseOffset;
+            warn("Found invalid offset during recovery for log " + dir.getName() + ". Deleting the corrupt segment and " +
+                    "creating an empty one with starting offset " + startOffset);
+            return segment.truncateTo(startOffset);
+        } finally {
+            segment.log.unmap();
+        }
+    }
+
+    private int awaitRecovery(Future<Integer> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KafkaException("Interrupted while recovering log " + name, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new KafkaException(e.getCause());
+        }
+    }
+
+    /**
+     * Flush a recovered segment and record the number of bytes validated in its marker file
+     */
+    private void markRecovered(LogSegment segment) throws IOException {
+        segment.flush();
+        File marker = recoveredFilename(dir, segment.baseOffset);
+        File tmp = new File(marker.getPath() + CleanedFileSuffix);
+        Files.write(tmp.toPath(), Long.toString(segment.size()).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), marker.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Long readRecoveredMarker(File marker) {
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(marker.toPath()), StandardCharsets.UTF_8).trim());
+        } catch (IOException | NumberFormatException e) {
+            warn(String.format("Ignoring unreadable recovery marker %s: %s", marker.getAbsolutePath(), e.getMessage()));
+            return null;
         }
     }
 
@@ -229,7 +381,14 @@ public class Log extends KafkaMetricsGroup {
     public void close() {
         debug("Closing log " + name);
         synchronized (lock) {
-            logSegments().forEach((seg) -> seg.close());
+            closed = true;
+            SpareSegment spare = spareSegment.getAndSet(null);
+            if (spare != null)
+                spare.delete();
+            logSegments().forEach((seg) -> {
+                mappedSegments.unmap(seg);
+                seg.close();
+            });
         }
     }
 
@@ -249,6 +408,16 @@ public class Log extends KafkaMetricsGroup {
      * @throws KafkaStorageException If the append fails due to an I/O error.
      */
     public LogAppendInfo append(ByteBufferMessageSet messages, boolean assignOffsets) {
+        // record the compression work done for this append into the stats of the topic;
+        CompressionStats previous = CompressionFactory.recordInto(compressionStats);
+        try {
+            return doAppend(messages, assignOffsets);
+        } finally {
+            CompressionFactory.recordInto(previous);
+        }
+    }
+
+    private LogAppendInfo doAppend(ByteBufferMessageSet messages, boolean assignOffsets) {
         LogAppendInfo appendInfo = analyzeAndValidateMessageSet(messages);//生成LogAppendInfo;
 
         // if we have any valid messages, append them to the log;
@@ -258,43 +427,45 @@ public class Log extends KafkaMetricsGroup {
         // trim any invalid bytes or partial messages before appending it to the on-disk log;
         ByteBufferMessageSet validMessages = trimInvalidBytes(messages, appendInfo);//过滤有效字符;
 
-        try {
-            // they are valid, insert them in the log;
-            synchronized (lock) {
-                appendInfo.firstOffset = nextOffsetMetadata.messageOffset;
-
-                if (assignOffsets) {
-                    // assign offsets to the message set;
-                    AtomicLong offset = new AtomicLong(nextOffsetMetadata.messageOffset);
-                    try {
-                        validMessages = validMessages.assignOffsets(offset, appendInfo.codec);
-                    } catch (Exception e) {
-                        throw new KafkaException(String.format("Error in validating messages while appending to log '%s'", name), e);
-                    }
-                    appendInfo.lastOffset = offset.get() - 1;
-                } else {
-                    // we are taking the offsets we are given;
-                    if (!appendInfo.offsetsMonotonic || appendInfo.firstOffset < nextOffsetMetadata.messageOffset)
-                        throw new IllegalArgumentException("Out of order offsets found in " + messages);
+        // store the messages with the topic's codec rather than the producer's if it has one, keeping the magic value of
+        // the producer's messages unless the topic gives them relative offsets. Only a set with relative offsets can be
+        // compressed before its offsets are known; a compressed set without them is recompressed under the lock to
+        // assign its offsets anyway, and an uncompressed one keeps the producer's codec rather than be compressed there;
+        CompressionCodec topicCodec = config.topicCompressionCodec();
+        if (assignOffsets && topicCodec != null && topicCodec != appendInfo.codec) {
+            byte magic = validMessages.shallowIterator().next().message.magic();
+            if (config.compressionRelativeOffsets && magic < Message.RelativeOffsetMagicValue)
+                magic = Message.RelativeOffsetMagicValue;
+            if (topicCodec == CompressionCodec.NoCompressionCodec || magic >= Message.RelativeOffsetMagicValue) {
+                ByteBufferMessageSet transcoded = transcode(validMessages, topicCodec, magic);
+                if (transcoded != null) {
+                    validMessages = transcoded;
+                    appendInfo.codec = topicCodec;
                 }
+            } else if (appendInfo.codec != CompressionCodec.NoCompressionCodec) {
+                appendInfo.codec = topicCodec;
+            }
+        }
 
-                // re-validate message sizes since after re-compression some may exceed the limit;
-                Itor.loop(validMessages.shallowIterator(), messageAndOffset -> {
-                    if (MessageSet.entrySize(messageAndOffset.message) > config.maxMessageSize) {
-                        // we record the original message set size instead of trimmed size;
-                        // to be consistent with pre-compression bytesRejectedRate recording;
-                        BrokerTopicStats.getBrokerTopicStats(topicAndPartition.topic).bytesRejectedRate.mark(messages.sizeInBytes());
-                        BrokerTopicStats.getBrokerAllTopicsStats().bytesRejectedRate.mark(messages.sizeInBytes());
-                        throw new MessageSizeTooLargeException(String.format("Message size is %d bytes which exceeds the maximum configured message size of %d.",
-                                MessageSet.entrySize(messageAndOffset.message), config.maxMessageSize));
-                    }
-                });
+        // do all the per message work before taking the lock so that the lock only covers assigning offsets and writing;
+        PendingAppend pending = new PendingAppend(messages, validMessages, appendInfo);
+        if (assignOffsets && appendInfo.codec != CompressionCodec.NoCompressionCodec) {
+            // wrappers with relative offsets only need their own offset rewritten, anything else is recompressed;
+            if (validMessages.hasRelativeOffsets())
+                pending.innerCounts = validMessages.validateRelativeOffsets();
+            else
+                pending.decompressed = decompress(validMessages);
+        }
 
-                // check messages set size may be exceed config.segmentSize;
-                if (validMessages.sizeInBytes() > config.segmentSize) {
-                    throw new MessageSetSizeTooLargeException(String.format("Message set size is %d bytes which exceeds the maximum configured segment size of %d.",
-                            validMessages.sizeInBytes(), config.segmentSize));
-                }
+        // let whichever thread holds the lock commit this append together with any other waiting appends;
+        if (assignOffsets && config.groupCommit)
+            return groupAppend(pending);
+
+        try {
+            // they are valid, insert them in the log;
+            synchronized (lock) {
+                prepareAppend(pending, assignOffsets, nextOffsetMetadata.messageOffset);
+                validMessages = pending.validMessages;
 
                 // maybe roll the log if this segment is full;
                 LogSegment segment = maybeRoll(validMessages.sizeInBytes());
@@ -305,7 +476,8 @@ public class Log extends KafkaMetricsGroup {
                 // increment the log end offset;
                 updateLogEndOffset(appendInfo.lastOffset + 1);
 
-                trace(String.format("Appended message set to log %s with first offset: %d, next offset: %d, and messages: %s", this.name, appendInfo.firstOffset, nextOffsetMetadata.messageOffset, validMessages));
+                if (logger.isTraceEnabled())
+                    trace(String.format("Appended message set to log %s with first offset: %d, next offset: %d, and messages: %s", this.name, appendInfo.firstOffset, nextOffsetMetadata.messageOffset, validMessages));
 
                 if (unflushedMessages() >= config.flushInterval) {
                     flush();
@@ -317,6 +489,224 @@ public class Log extends KafkaMetricsGroup {
         }
     }
 
+    /**
+     * Crack open a compressed message set so that it only has to be recompressed with the right offsets under the lock
+     */
+    private List<Message> decompress(ByteBufferMessageSet validMessages) {
+        List<Message> list = Lists.newArrayList();
+        try {
+            Itor.loop(validMessages.iterator(), m -> list.add(m.message));
+        } catch (Exception e) {
+            throw new KafkaException(String.format("Error in validating messages while appending to log '%s'", name), e);
+        }
+        return list;
+    }
+
+    /**
+     * Recompress a message set with another codec on the compression pool, or on this thread if the log has none. The
+     * result is either uncompressed or has relative offsets, so only its wrapper offset is rewritten when offsets are
+     * assigned under the lock.
+     *
+     * @param messages    The validated message set
+     * @param targetCodec The codec to store it with
+     * @param magic       The magic value of the wrapper, that of the producer's messages
+     * @return The recompressed message set, or null if its wrapper would exceed the maximum message size, in which
+     * case the producer's codec is kept
+     */
+    private ByteBufferMessageSet transcode(ByteBufferMessageSet messages, CompressionCodec targetCodec, byte magic) {
+        CompressionStats stats = CompressionFactory.stats();
+        long[] cpuTime = new long[1];
+        Callable<ByteBufferMessageSet> job = () -> {
+            CompressionStats previous = CompressionFactory.recordInto(stats);
+            long cpuStart = threadCpuTime();
+            try {
+                return new ByteBufferMessageSet(targetCodec, new AtomicLong(0), magic, decompress(messages));
+            } finally {
+                cpuTime[0] = threadCpuTime() - cpuStart;
+                CompressionFactory.recordInto(previous);
+            }
+        };
+        ByteBufferMessageSet transcoded;
+        try {
+            transcoded = compressionPool == null ? job.call() : compressionPool.submit(job).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new KafkaException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new KafkaException(String.format("Interrupted while recompressing messages for log '%s'", name), e);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new KafkaException(e);
+        }
+        if (targetCodec != CompressionCodec.NoCompressionCodec && transcoded.sizeInBytes() > config.maxMessageSize) {
+            debug(String.format("Not recompressing a message set for log '%s' since it is %d bytes with %s, more than the maximum message size of %d.",
+                    name, transcoded.sizeInBytes(), targetCodec, config.maxMessageSize));
+            return null;
+        }
+        markRecompression(cpuTime[0], messages.sizeInBytes(), transcoded.sizeInBytes());
+        return transcoded;
+    }
+
+    /* mark the cost and the effect of a recompression with the topic's codec that is kept in the stats of the topic */
+    private void markRecompression(long cpuTime, int originalSize, int size) {
+        for (BrokerTopicMetrics stats : Lists.newArrayList(BrokerTopicStats.getBrokerTopicStats(topicAndPartition.topic), BrokerTopicStats.getBrokerAllTopicsStats())) {
+            stats.recompressionRate.mark();
+            stats.recompressionCpuTimeRate.mark(cpuTime);
+            if (size <= originalSize)
+                stats.recompressionBytesSavedRate.mark(originalSize - size);
+            else
+                stats.recompressionBytesLostRate.mark(size - originalSize);
+        }
+    }
+
+    /* the cpu time of the current thread in nanoseconds, or 0 if the jvm does not measure it */
+    private static long threadCpuTime() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0L;
+    }
+
+    /**
+     * Assign offsets to the validated message set (or check the offsets it already has). Every message was already
+     * validated before the lock was taken; only a recompressed wrapper message can have a new size, so that is the only
+     * size that is checked again.
+     * <p>
+     * It is assumed this method is being called from within the lock.
+     *
+     * @param pending       The append to prepare, its message set and first and last offsets are updated in place
+     * @param assignOffsets Should the log assign offsets to this message set or blindly apply what it is given
+     * @param nextOffset    The offset the first message will be appended at
+     */
+    private void prepareAppend(PendingAppend pending, boolean assignOffsets, Long nextOffset) {
+        LogAppendInfo appendInfo = pending.appendInfo;
+        appendInfo.firstOffset = nextOffset;
+
+        if (assignOffsets) {
+            // assign offsets to the message set;
+            AtomicLong offset = new AtomicLong(nextOffset);
+            if (pending.innerCounts != null) {
+                pending.validMessages.assignOffsets(offset, pending.innerCounts);
+            } else if (pending.decompressed == null) {
+                pending.validMessages.assignOffsets(offset, appendInfo.codec);
+            } else {
+                // messages are compressed, recompress them with the correct offsets;
+                compressionStats.recordRecompression(appendInfo.codec);
+                pending.validMessages = new ByteBufferMessageSet(appendInfo.codec, offset, pending.decompressed);
+                // re-validate the message size since after re-compression it may exceed the limit;
+                Integer messageSize = pending.validMessages.sizeInBytes();
+                if (messageSize > config.maxMessageSize) {
+                    // we record the original message set size instead of trimmed size;
+                    // to be consistent with pre-compression bytesRejectedRate recording;
+                    BrokerTopicStats.getBrokerTopicStats(topicAndPartition.topic).bytesRejectedRate.mark(pending.messages.sizeInBytes());
+                    BrokerTopicStats.getBrokerAllTopicsStats().bytesRejectedRate.mark(pending.messages.sizeInBytes());
+                    throw new MessageSizeTooLargeException(String.format("Message size is %d bytes which exceeds the maximum configured message size of %d.",
+                            messageSize, config.maxMessageSize));
+                }
+            }
+            appendInfo.lastOffset = offset.get() - 1;
+        } else {
+            // we are taking the offsets we are given;
+            if (!appendInfo.offsetsMonotonic || appendInfo.firstOffset < nextOffset)
+                throw new IllegalArgumentException("Out of order offsets found in " + pending.messages);
+        }
+
+        // check messages set size may be exceed config.segmentSize;
+        if (pending.validMessages.sizeInBytes() > config.segmentSize) {
+            throw new MessageSetSizeTooLargeException(String.format("Message set size is %d bytes which exceeds the maximum configured segment size of %d.",
+                    pending.validMessages.sizeInBytes(), config.segmentSize));
+        }
+    }
+
+    /**
+     * Queue the append and commit it. The thread that gets the lock first drains every append queued so far, assigns
+     * their offsets in queue order and writes them with one gathering write per segment; threads that get the lock
+     * later find their append already committed and just return its result.
+     */
+    private LogAppendInfo groupAppend(PendingAppend pending) {
+        pendingAppends.add(pending);
+        synchronized (lock) {
+            if (!pending.completed)
+                commitPendingAppends();
+        }
+        return pending.result();
+    }
+
+    /**
+     * Commit all the queued appends. It is assumed this method is being called from within the lock.
+     */
+    private void commitPendingAppends() {
+        List<PendingAppend> batch = Lists.newArrayList();
+        Integer batchBytes = 0;
+        Long nextOffset = nextOffsetMetadata.messageOffset;
+        PendingAppend pending = null;
+        try {
+            while ((pending = pendingAppends.poll()) != null) {
+                try {
+                    prepareAppend(pending, true, nextOffset);
+                } catch (RuntimeException e) {
+                    pending.complete(e);
+                    continue;
+                }
+                Integer size = pending.validMessages.sizeInBytes();
+                try {
+                    // write out what we have if this set no longer fits in the active segment, then check for a roll;
+                    if (!batch.isEmpty() && activeSegment().size() + batchBytes + size > config.segmentSize) {
+                        commitBatch(batch);
+                        batchBytes = 0;
+                    }
+                    if (batch.isEmpty())
+                        maybeRoll(size);
+                } catch (IOException | RuntimeException e) {
+                    RuntimeException error = e instanceof RuntimeException ? (RuntimeException) e
+                            : new KafkaStorageException(String.format("I/O exception in append to log '%s'", name), e);
+                    error(String.format("Failed to append %d message sets to log %s", batch.size() + 1, name), error);
+                    fail(batch, pending, error);
+                    batchBytes = 0;
+                    nextOffset = nextOffsetMetadata.messageOffset;
+                    continue;
+                }
+                batch.add(pending);
+                batchBytes += size;
+                nextOffset = pending.appendInfo.lastOffset + 1;
+            }
+            if (!batch.isEmpty())
+                commitBatch(batch);
+        } catch (RuntimeException e) {
+            // the appends taken off the queue must not look committed to their waiters;
+            fail(batch, pending, e);
+            throw e;
+        } catch (Error e) {
+            fail(batch, pending, new KafkaStorageException(String.format("Error in append to log '%s'", name), e));
+            throw e;
+        }
+
+        if (unflushedMessages() >= config.flushInterval) {
+            flush();
+        }
+    }
+
+    /* complete the appends of the batch and the given one, if any, with the given error */
+    private void fail(List<PendingAppend> batch, PendingAppend pending, RuntimeException error) {
+        batch.forEach(p -> p.complete(error));
+        batch.clear();
+        if (pending != null && !pending.completed)
+            pending.complete(error);
+    }
+
+    /**
+     * Write a batch of prepared appends to the active segment and release their waiters
+     */
+    private void commitBatch(List<PendingAppend> batch) {
+        List<Long> offsets = batch.stream().map(p -> p.appendInfo.firstOffset).collect(Collectors.toList());
+        List<ByteBufferMessageSet> messageSets = batch.stream().map(p -> p.validMessages).collect(Collectors.toList());
+        activeSegment().append(offsets, messageSets);
+        updateLogEndOffset(batch.get(batch.size() - 1).appendInfo.lastOffset + 1);
+        groupCommitBatchSize.update(batch.size());
+        if (logger.isTraceEnabled())
+            trace(String.format("Appended %d message sets to log %s with first offset: %d, next offset: %d", batch.size(), this.name, offsets.get(0), nextOffsetMetadata.messageOffset));
+        batch.forEach(p -> p.complete(null));
+        batch.clear();
+    }
+
     /**
      * Validate the following:
      * <ol>
@@ -335,47 +725,79 @@ public class Log extends KafkaMetricsGroup {
      * </ol>
      */
     private LogAppendInfo analyzeAndValidateMessageSet(ByteBufferMessageSet messages) {
-        Integer shallowMessageCount = 0;
-        Integer validBytesCount = 0;
-        Long firstOffset = 0L, lastOffset = -1L;
+        int shallowMessageCount = 0;
+        int validBytesCount = 0;
+        long firstOffset = 0L, lastOffset = -1L;
         CompressionCodec codec = CompressionCodec.NoCompressionCodec;
         boolean monotonic = true;
 
-        Iterator<MessageAndOffset> it = messages.shallowIterator();
-        while (it.hasNext()) {
-            MessageAndOffset messageAndOffset = it.next();
+        MessageSetCursor cursor = messages.cursor();
+        while (cursor.next()) {
+            long offset = cursor.offset();
             // update the first offset if on the first message;
             if (firstOffset < 0)
-                firstOffset = messageAndOffset.offset;
+                firstOffset = offset;
             // check that offsets are monotonically increasing;
-            if (lastOffset >= messageAndOffset.offset)
+            if (lastOffset >= offset)
                 monotonic = false;
             // update the last offset seen;
-            lastOffset = messageAndOffset.offset;
-
-            Message m = messageAndOffset.message;
+            lastOffset = offset;
 
             // Check if the message sizes are valid.;
-            Integer messageSize = MessageSet.entrySize(m);
+            int messageSize = cursor.entrySize();
             if (messageSize > config.maxMessageSize) {
                 BrokerTopicStats.getBrokerTopicStats(topicAndPartition.topic).bytesRejectedRate.mark(messages.sizeInBytes());
                 BrokerTopicStats.getBrokerAllTopicsStats().bytesRejectedRate.mark(messages.sizeInBytes());
                 throw new MessageSizeTooLargeException(String.format("Message size is %d bytes which exceeds the maximum configured message size of %d.", messageSize, config.maxMessageSize));
             }
 
-            // check the validity of the message by checking CRC;
-            m.ensureValid();
-
             shallowMessageCount += 1;
             validBytesCount += messageSize;
 
-            CompressionCodec messageCodec = m.compressionCodec();
+            CompressionCodec messageCodec = cursor.compressionCodec();
             if (messageCodec != CompressionCodec.NoCompressionCodec)
                 codec = messageCodec;
         }
+
+        // check the validity of the messages by checking CRC, spreading the work over several threads for large sets;
+        if (shallowMessageCount >= ParallelValidationThreshold) {
+            ensureValidInParallel(messages);
+        } else {
+            cursor = messages.cursor();
+            while (cursor.next())
+                cursor.ensureValid();
+        }
+
         return new LogAppendInfo(firstOffset, lastOffset, codec, shallowMessageCount, validBytesCount, monotonic);
     }
 
+    /**
+     * Check the CRC of every message in the set, splitting it into ranges of ParallelValidationThreshold messages that
+     * are each checked with a cursor of their own
+     */
+    private void ensureValidInParallel(ByteBufferMessageSet messages) {
+        List<int[]> ranges = Lists.newArrayList();
+        int rangeStart = 0;
+        int count = 0;
+        MessageSetCursor cursor = messages.cursor();
+        while (cursor.next()) {
+            count += 1;
+            if (count % ParallelValidationThreshold == 0) {
+                ranges.add(new int[]{rangeStart, cursor.position() + cursor.entrySize()});
+                rangeStart = cursor.position() + cursor.entrySize();
+            }
+        }
+        if (count % ParallelValidationThreshold != 0)
+            ranges.add(new int[]{rangeStart, cursor.position() + cursor.entrySize()});
+        ranges.parallelStream().forEach(range -> {
+            ByteBuffer buffer = messages.buffer.duplicate();
+            buffer.limit(buffer.position() + range[1]).position(buffer.position() + range[0]);
+            MessageSetCursor rangeCursor = new MessageSetCursor(buffer);
+            while (rangeCursor.next())
+                rangeCursor.ensureValid();
+        });
+    }
+
     /**
      * Trim any invalid bytes from the end of this message set (if there are any)
      *
@@ -407,7 +829,8 @@ public class Log extends KafkaMetricsGroup {
      * @throws OffsetOutOfRangeException If startOffset is beyond the log end offset or before the base offset of the first segment.
      */
     public FetchDataInfo read(Long startOffset, Integer maxLength, Optional<Long> maxOffset) {
-        trace(String.format("Reading %d bytes from offset %d in log %s of length %d bytes", maxLength, startOffset, name, size()));
+        if (logger.isTraceEnabled())
+            trace(String.format("Reading %d bytes from offset %d in log %s of length %d bytes", maxLength, startOffset, name, size()));
 
         // check if the offset is valid and in range;
         Long next = nextOffsetMetadata.messageOffset;
@@ -426,6 +849,7 @@ public class Log extends KafkaMetricsGroup {
         // but if that segment doesn't contain any messages with an offset greater than that;
         // continue to read from successive segments until we get some messages or we reach the end of the log;
         while (entry != null) {
+            maybeMapSegment(entry.getValue());
             FetchDataInfo fetchInfo = entry.getValue().read(startOffset, maxOffset, maxLength);
             if (fetchInfo == null) {
                 entry = segments.higherEntry(entry.getKey());
@@ -444,6 +868,33 @@ public class Log extends KafkaMetricsGroup {
         return read(startOffset, maxLength, Optional.empty());
     }
 
+    /**
+     * Find an offset that was appended no later than the given time. The segments are binary searched on the time of
+     * their first time index entry and then the time index of the chosen segment is searched, so reading from the
+     * returned offset gets everything appended after the timestamp plus at most an index interval of earlier messages.
+     *
+     * @param timestamp The time to look up, in milliseconds
+     * @return The offset, or null if nothing in the log was appended at or before the timestamp
+     */
+    public Long offsetBefore(Long timestamp) {
+        List<LogSegment> segs = Lists.newArrayList(logSegments());
+        // binary search for the last segment whose first entry is no later than the timestamp;
+        int lo = 0;
+        int hi = segs.size() - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            Long offset = segs.get(mid).offsetBefore(timestamp);
+            if (offset != null) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found < 0 ? null : segs.get(found).offsetBefore(timestamp);
+    }
+
     /**
      * Given a message offset, find its corresponding offset metadata in the log.
      * If the message offset is out of range, return unknown offset metadata
@@ -525,7 +976,7 @@ public class Log extends KafkaMetricsGroup {
      *                     <ol>
      *                     <li> The logSegment is full
      *                     <li> The maxTime has elapsed
-     *                     <li> The index is full
+     *                     <li> The index or the time index is full
      *                     </ol>
      * @return The currently active segment after (perhaps) rolling to a new segment
      */
@@ -533,7 +984,7 @@ public class Log extends KafkaMetricsGroup {
         LogSegment segment = activeSegment();
         if (segment.size() + messagesSize > config.segmentSize
                 || (segment.size() > 0 && time.milliseconds() - segment.created > config.segmentMs - segment.rollJitterMs)
-                || segment.index.isFull()) {
+                || segment.index.isFull() || segment.timeIndex.isFull()) {
             debug(String.format("Rolling new log segment in %s (log_size = %d/%d, index_size = %d/%d, age_ms = %d/%d).",
                     name,
                     segment.size(),
@@ -560,7 +1011,8 @@ public class Log extends KafkaMetricsGroup {
             Long newOffset = logEndOffset();
             File logFile = logFilename(dir, newOffset);
             File indexFile = indexFilename(dir, newOffset);
-            Lists.newArrayList(logFile, indexFile).stream()
+            File timeIndexFile = timeIndexFilename(dir, newOffset);
+            Lists.newArrayList(logFile, indexFile, timeIndexFile).stream()
                     .filter(f -> f.exists())
                     .forEach(f -> {
                                 warn("Newly rolled segment file " + f.getName() + " already exists; deleting it first");
@@ -569,23 +1021,82 @@ public class Log extends KafkaMetricsGroup {
 
             Map.Entry<Long, LogSegment> lastEntry = segments.lastEntry();
             if (lastEntry != null) {
-                lastEntry.getValue().index.trimToValidSize();
+                lastEntry.getValue().trimIndexes();
             }
-            LogSegment segment = new LogSegment(dir, newOffset, config.indexInterval, config.maxIndexSize, config.randomSegmentJitter, time);
+            LogSegment segment = null;
+            SpareSegment spare = spareSegment.getAndSet(null);
+            if (spare != null)
+                segment = rollToSpare(spare, newOffset);
+            if (segment == null)
+                segment = new LogSegment(dir, newOffset, config.indexInterval, config.maxIndexSize, config.randomSegmentJitter, time);
             LogSegment prev = addSegment(segment);
             if (prev != null) {
                 throw new KafkaException(String.format("Trying to roll a new log segment for topic partition %s with start offset %d while it already exists.", name, newOffset));
             }
 
-            // schedule an asynchronous flush of the old segment;
+            // schedule an asynchronous flush of the old segment and the creation of the next one;
             scheduler.schedule("flush-log", () -> flush(newOffset), 0L);
+            if (config.preallocateSegments)
+                scheduler.schedule("prepare-segment", () -> prepareSpareSegment(), 0L);
 
-            info(String.format("Rolled new log segment for '" + name + "' in %.0f ms.", (System.nanoTime() - start) / (1000.0 * 1000.0)));
+            long elapsedNs = time.nanoseconds() - start;
+            rollLatency.update(elapsedNs / 1000);
+            info(String.format("Rolled new log segment for '" + name + "' in %.0f ms.", elapsedNs / (1000.0 * 1000.0)));
 
             return segment;
         }
     }
 
+    /**
+     * Turn the files of a spare segment into the segment starting at the given offset. The files are renamed to the
+     * names of the new segment and opened, which is all that is left to do on the roll.
+     *
+     * @return The new segment, or null if the spare does not match the current configuration or could not be renamed
+     */
+    private LogSegment rollToSpare(SpareSegment spare, Long newOffset) throws IOException {
+        if (!spare.maxIndexSize.equals(config.maxIndexSize)) {
+            spare.delete();
+            return null;
+        }
+        File logFile = logFilename(dir, newOffset);
+        File indexFile = indexFilename(dir, newOffset);
+        File timeIndexFile = timeIndexFilename(dir, newOffset);
+        if (!spare.log.renameTo(logFile) || !spare.index.renameTo(indexFile) || !spare.timeIndex.renameTo(timeIndexFile)) {
+            warn(String.format("Failed to rename the preallocated segment files of log %s, creating the segment instead", name));
+            Lists.newArrayList(logFile, indexFile, timeIndexFile).forEach(f -> f.delete());
+            spare.delete();
+            return null;
+        }
+        return new LogSegment(new FileMessageSet(logFile),
+                new OffsetIndex(indexFile, newOffset, config.maxIndexSize, true),
+                new TimeIndex(timeIndexFile, newOffset, TimeIndex.sizeFor(config.maxIndexSize)),
+                newOffset,
+                config.indexInterval,
+                config.randomSegmentJitter,
+                time);
+    }
+
+    /**
+     * Create the files of the next segment ahead of the roll that will need them. This is run in the background so
+     * the roll, which holds the log lock, only renames and opens them. The files are created outside the lock and only
+     * kept if the log is still open and has no spare by then.
+     */
+    private void prepareSpareSegment() {
+        if (spareSegment.get() != null || !preparingSpareSegment.compareAndSet(false, true))
+            return;
+        try {
+            SpareSegment spare = new SpareSegment(dir, config.maxIndexSize);
+            synchronized (lock) {
+                if (closed || !spareSegment.compareAndSet(null, spare))
+                    spare.delete();
+            }
+        } catch (IOException e) {
+            warn(String.format("Failed to preallocate the next segment of log %s", name), e);
+        } finally {
+            preparingSpareSegment.set(false);
+        }
+    }
+
     /**
      * The number of messages appended to the log since the last flush
      */
@@ -625,7 +1136,10 @@ public class Log extends KafkaMetricsGroup {
      */
     void delete() {
         synchronized (lock) {
-            logSegments().forEach((s) -> s.delete());
+            logSegments().forEach((s) -> {
+                unmapSegment(s);
+                s.delete();
+            });
             segments.clear();
             Utils.rm(dir);
         }
@@ -650,6 +1164,8 @@ public class Log extends KafkaMetricsGroup {
             } else {
                 List<LogSegment> deletable = logSegments().stream().filter(segment -> segment.baseOffset > targetOffset).collect(Collectors.toList());
                 deletable.forEach(s -> deleteSegment(s));
+                // the segment is growing again, reads of what is appended to it must not go through a stale map;
+                unmapSegment(activeSegment());
                 activeSegment().truncateTo(targetOffset);
                 updateLogEndOffset(targetOffset);
                 this.recoveryPoint = Math.min(targetOffset, this.recoveryPoint);
@@ -720,6 +1236,28 @@ public class Log extends KafkaMetricsGroup {
         return "Log(" + dir + ")";
     }
 
+    /**
+     * Memory map the log file of a sealed segment that is about to be read, if that is enabled; the mapped segments
+     * unmap the least recently read ones beyond their bound. The active segment is never mapped since it is still
+     * growing.
+     */
+    private void maybeMapSegment(LogSegment segment) {
+        if (!config.mmapSegments || segment == activeSegment())
+            return;
+        try {
+            mappedSegments.read(segment);
+        } catch (IOException e) {
+            warn(String.format("Failed to memory map segment %d of log %s, reading it through the file channel.", segment.baseOffset, name), e);
+        }
+    }
+
+    /**
+     * Release the memory map of a segment, if it has one
+     */
+    private void unmapSegment(LogSegment segment) {
+        mappedSegments.unmap(segment);
+    }
+
     /**
      * This method performs an asynchronous log segment delete by doing the following:
      * <ol>
@@ -744,6 +1282,7 @@ public class Log extends KafkaMetricsGroup {
      * Perform an asynchronous delete on the given file if it exists (otherwise do nothing)
      */
     private void asyncDeleteSegment(LogSegment segment) {
+        unmapSegment(segment);
         segment.changeFileSuffixes("", Log.DeletedFileSuffix);
         Action deleteSeg = () -> {
             info(String.format("Deleting segment %d from log %s.", segment.baseOffset, name));
@@ -826,6 +1365,36 @@ public class Log extends KafkaMetricsGroup {
         return new File(dir, filenamePrefixFromOffset(offset) + IndexFileSuffix);
     }
 
+    /**
+     * Construct a time index file name in the given dir using the given base offset
+     *
+     * @param dir    The directory in which the log will reside
+     * @param offset The base offset of the log file
+     */
+    public static File timeIndexFilename(File dir, Long offset) {
+        return new File(dir, filenamePrefixFromOffset(offset) + TimeIndexFileSuffix);
+    }
+
+    /**
+     * Construct the name of the marker file recording how much of a segment an interrupted recovery validated
+     *
+     * @param dir    The directory in which the log will reside
+     * @param offset The base offset of the segment
+     */
+    public static File recoveredFilename(File dir, Long offset) {
+        return new File(dir, filenamePrefixFromOffset(offset) + RecoveredFileSuffix);
+    }
+
+    /**
+     * The time index file that goes with the given offset index file, keeping any suffix such as .cleaned
+     */
+    public static File timeIndexFileFor(File indexFile) {
+        String name = indexFile.getName();
+        if (name.contains(IndexFileSuffix))
+            return new File(indexFile.getParentFile(), name.replace(IndexFileSuffix, TimeIndexFileSuffix));
+        return new File(indexFile.getParentFile(), name + TimeIndexFileSuffix);
+    }
+
     /**
      * Parse the topic and partition out of the directory name of a log
      */
@@ -835,6 +1404,11 @@ public class Log extends KafkaMetricsGroup {
     }
 
 
+    /**
+     * The number of messages in a message set above which CRCs are checked in parallel
+     */
+    public static final Integer ParallelValidationThreshold = 64;
+
     /**
      * a log file
      */
@@ -845,6 +1419,11 @@ public class Log extends KafkaMetricsGroup {
      */
     public static final String IndexFileSuffix = ".index";
 
+    /**
+     * a time index file
+     */
+    public static final String TimeIndexFileSuffix = ".timeindex";
+
     /**
      * a file that is scheduled to be deleted
      */
@@ -860,6 +1439,16 @@ public class Log extends KafkaMetricsGroup {
      */
     public static final String SwapFileSuffix = ".swap";
 
+    /**
+     * A file created ahead of time for the next segment of the log
+     */
+    public static final String SpareFileSuffix = ".spare";
+
+    /**
+     * A marker left by recovery for a segment it validated, removed once the whole log is recovered
+     */
+    public static final String RecoveredFileSuffix = ".recovered";
+
 /** Clean shutdown file that indicates the broker was cleanly shutdown in 0.8. This is required to maintain backwards compatibility
  * with 0.8 and avoid unnecessary log recovery when upgrading from 0.8 to 0.8.1 */
     /**
@@ -902,35 +1491,89 @@ public class Log extends KafkaMetricsGroup {
                 tags);
     }
 
-}
+    /**
+     * The files of a segment created before its base offset is known. The index files are written out with zeros at
+     * their full size, so that their blocks are allocated here rather than when the segment is appended to. The log
+     * file is only created: its size is its length, so it cannot be given blocks ahead of the data.
+     * <p>
+     * Each spare gets names of its own, so creating one never touches the files of another that a roll may be taking
+     * over.
+     */
+    private static class SpareSegment {
+        private static final AtomicLong nextId = new AtomicLong(0);
+
+        public File log;
+        public File index;
+        public File timeIndex;
+        public Integer maxIndexSize;
+
+        public SpareSegment(File dir, Integer maxIndexSize) throws IOException {
+            String prefix = "spare-" + nextId.getAndIncrement();
+            this.log = new File(dir, prefix + LogFileSuffix + SpareFileSuffix);
+            this.index = new File(dir, prefix + IndexFileSuffix + SpareFileSuffix);
+            this.timeIndex = new File(dir, prefix + TimeIndexFileSuffix + SpareFileSuffix);
+            this.maxIndexSize = maxIndexSize;
+            try {
+                allocate(log, 0);
+                allocate(index, maxIndexSize / 8 * 8);
+                allocate(timeIndex, TimeIndex.sizeFor(maxIndexSize));
+            } catch (IOException e) {
+                delete();
+                throw e;
+            }
+        }
 
-/**
- * Struct to hold various quantities we compute about each message set before appending to the log
- *
- */
-class LogAppendInfo {
-    public Long firstOffset;
-    public Long lastOffset;
-    public CompressionCodec codec;
-    public Integer shallowCount;
-    public Integer validBytes;
-    public Boolean offsetsMonotonic;
+        private static void allocate(File file, int size) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+                int written = 0;
+                while (written < size) {
+                    zeros.clear();
+                    zeros.limit(Math.min(zeros.capacity(), size - written));
+                    written += channel.write(zeros, written);
+                }
+            } finally {
+                raf.close();
+            }
+        }
+
+        public void delete() {
+            log.delete();
+            index.delete();
+            timeIndex.delete();
+        }
+    }
 
     /**
-     *
-     * @param firstOffset      The first offset in the message set
-     * @param lastOffset       The last offset in the message set
-     * @param shallowCount     The number of shallow messages
-     * @param validBytes       The number of valid bytes
-     * @param codec            The codec used in the message set
-     * @param offsetsMonotonic Are the offsets in this message set monotonically increasing
-     */
-    public LogAppendInfo(Long firstOffset, Long lastOffset, CompressionCodec codec, Integer shallowCount, Integer validBytes, Boolean offsetsMonotonic) {
-        this.firstOffset = firstOffset;
-        this.lastOffset = lastOffset;
-        this.codec = codec;
-        this.shallowCount = shallowCount;
-        this.validBytes = validBytes;
-        this.offsetsMonotonic = offsetsMonotonic;
-    }
-}
\ No newline at end of file
+     * A validated append on its way into the log. Once it is queued for group commit the fields are only written and
+     * read by threads holding the log lock.
+     */
+    private static class PendingAppend {
+        public ByteBufferMessageSet messages;
+        public ByteBufferMessageSet validMessages;
+        public LogAppendInfo appendInfo;
+        public List<Message> decompressed;
+        public int[] innerCounts;
+        public boolean completed = false;
+        public RuntimeException error;
+
+        public PendingAppend(ByteBufferMessageSet messages, ByteBufferMessageSet validMessages, LogAppendInfo appendInfo) {
+            this.messages = messages;
+            this.validMessages = validMessages;
+            this.appendInfo = appendInfo;
+        }
+
+        public void complete(RuntimeException error) {
+            this.error = error;
+            this.completed = true;
+        }
+
+        public LogAppendInfo result() {
+            if (error != null)
+                throw error;
+            return appendInfo;
+        }
+    }
+}
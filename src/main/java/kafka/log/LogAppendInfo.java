@@ -0,0 +1,34 @@
+package kafka.log;
+
+import kafka.message.CompressionCodec;
+
+/**
+ * Struct to hold various quantities we compute about each message set before appending to the log
+ *
+ */
+class LogAppendInfo {
+    public long firstOffset;
+    public long lastOffset;
+    public CompressionCodec codec;
+    public int shallowCount;
+    public int validBytes;
+    public boolean offsetsMonotonic;
+
+    /**
+     *
+     * @param firstOffset      The first offset in the message set
+     * @param lastOffset       The last offset in the message set
+     * @param shallowCount     The number of shallow messages
+     * @param validBytes       The number of valid bytes
+     * @param codec            The codec used in the message set
+     * @param offsetsMonotonic Are the offsets in this message set monotonically increasing
+     */
+    public LogAppendInfo(long firstOffset, long lastOffset, CompressionCodec codec, int shallowCount, int validBytes, boolean offsetsMonotonic) {
+        this.firstOffset = firstOffset;
+        this.lastOffset = lastOffset;
+        this.codec = codec;
+        this.shallowCount = shallowCount;
+        this.validBytes = validBytes;
+        this.offsetsMonotonic = offsetsMonotonic;
+    }
+}
\ No newline at end of file
@@ -4,6 +4,9 @@ package kafka.log;/**
 
 import com.google.common.collect.Sets;
 import kafka.common.InvalidConfigException;
+import kafka.common.UnknownCodecException;
+import kafka.func.Tuple;
+import kafka.message.CompressionCodec;
 import kafka.utils.Prediction;
 
 import java.util.Properties;
@@ -31,6 +34,14 @@ public class LogConfig implements Cloneable{
     public Boolean compact;
     public Boolean uncleanLeaderElectionEnable;
     public Integer minInSyncReplicas;
+    public Boolean groupCommit;
+    public Boolean mmapSegments;
+    public Integer maxMappedSegments;
+    public Boolean preallocateSegments;
+    public String compressionCodec;
+    public Boolean compressionRelativeOffsets;
+    /* the codec parsed from compressionCodec with the name it was parsed from, parsed again only if that changes */
+    private volatile Tuple<String, CompressionCodec> topicCodec = null;
 
 
 
@@ -51,6 +62,12 @@ public class LogConfig implements Cloneable{
         Boolean Compact = false;
         Boolean UncleanLeaderElectionEnable = true;
         Integer MinInSyncReplicas = 1;
+        Boolean GroupCommit = false;
+        Boolean MmapSegments = false;
+        Integer MaxMappedSegments = 4;
+        Boolean PreallocateSegments = false;
+        String CompressionCodec = ProducerCompressionCodec;
+        Boolean CompressionRelativeOffsets = false;
     }
 
     /**
@@ -72,6 +89,14 @@ public class LogConfig implements Cloneable{
      * @param uncleanLeaderElectionEnable Indicates whether unclean leader election is enabled; actually a controller-level property
      *                                    but included here for topic-specific configuration validation purposes
      * @param minInSyncReplicas           If number of insync replicas drops below this number, we stop accepting writes with -1 (or all) required acks
+     * @param groupCommit                 Should concurrent appends be batched so one thread assigns offsets and writes for all of them
+     * @param mmapSegments                Should sealed segments be memory mapped for reads
+     * @param maxMappedSegments           The maximum number of sealed segments memory mapped at once, the least recently read are unmapped first;
+     *                                    the log manager applies the value of its default config to all its logs together
+     * @param preallocateSegments         Should the files of the next segment be created in the background ahead of a roll
+     * @param compressionCodec            The codec the broker compresses the messages it recompresses with, or producer to keep the producer's
+     * @param compressionRelativeOffsets  Should message sets without relative offsets be given them when compressed with the topic's codec,
+     *                                    so that this happens outside the log lock; otherwise they keep the producer's codec
      */
     public LogConfig(Integer segmentSize,
                      Long segmentMs,
@@ -88,7 +113,13 @@ public class LogConfig implements Cloneable{
                      Double minCleanableRatio,
                      Boolean compact,
                      Boolean uncleanLeaderElectionEnable,
-                     Integer minInSyncReplicas) {
+                     Integer minInSyncReplicas,
+                     Boolean groupCommit,
+                     Boolean mmapSegments,
+                     Integer maxMappedSegments,
+                     Boolean preallocateSegments,
+                     String compressionCodec,
+                     Boolean compressionRelativeOffsets) {
         this.segmentSize = segmentSize == null ? Defaults.SegmentSize : segmentSize;
         this.segmentMs = segmentMs == null ? Defaults.SegmentMs : segmentMs;
         this.segmentJitterMs = segmentJitterMs == null ? Defaults.SegmentJitterMs : segmentJitterMs;
@@ -105,11 +136,17 @@ public class LogConfig implements Cloneable{
         this.compact = compact == null ? Defaults.Compact : compact;
         this.uncleanLeaderElectionEnable = uncleanLeaderElectionEnable == null ? Defaults.UncleanLeaderElectionEnable : uncleanLeaderElectionEnable;
         this.minInSyncReplicas = minInSyncReplicas == null ? Defaults.MinInSyncReplicas : minInSyncReplicas;
+        this.groupCommit = groupCommit == null ? Defaults.GroupCommit : groupCommit;
+        this.mmapSegments = mmapSegments == null ? Defaults.MmapSegments : mmapSegments;
+        this.maxMappedSegments = maxMappedSegments == null ? Defaults.MaxMappedSegments : maxMappedSegments;
+        this.preallocateSegments = preallocateSegments == null ? Defaults.PreallocateSegments : preallocateSegments;
+        this.compressionCodec = compressionCodec == null ? Defaults.CompressionCodec : compressionCodec;
+        this.compressionRelativeOffsets = compressionRelativeOffsets == null ? Defaults.CompressionRelativeOffsets : compressionRelativeOffsets;
         init();
     }
 
     public LogConfig() {
-        this(null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null);
+        this(null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null);
     }
 
     /**
@@ -131,7 +168,13 @@ public class LogConfig implements Cloneable{
                 new Boolean(!props.getProperty(CleanupPolicyProp, Defaults.Compact ? "compact" : "delete").trim().toLowerCase().equals("delete")),
                 new Boolean(props.getProperty(UncleanLeaderElectionEnableProp,
                         Defaults.UncleanLeaderElectionEnable.toString())),
-                new Integer(props.getProperty(MinInSyncReplicasProp, Defaults.MinInSyncReplicas.toString())));
+                new Integer(props.getProperty(MinInSyncReplicasProp, Defaults.MinInSyncReplicas.toString())),
+                new Boolean(props.getProperty(GroupCommitEnableProp, Defaults.GroupCommit.toString())),
+                new Boolean(props.getProperty(MmapSegmentsEnableProp, Defaults.MmapSegments.toString())),
+                new Integer(props.getProperty(MaxMappedSegmentsProp, Defaults.MaxMappedSegments.toString())),
+                new Boolean(props.getProperty(PreallocateSegmentsEnableProp, Defaults.PreallocateSegments.toString())),
+                props.getProperty(CompressionCodecProp, Defaults.CompressionCodec).trim().toLowerCase(),
+                new Boolean(props.getProperty(CompressionRelativeOffsetsEnableProp, Defaults.CompressionRelativeOffsets.toString())));
     }
 
 
@@ -153,6 +196,12 @@ public class LogConfig implements Cloneable{
         props.put(CleanupPolicyProp, compact ? "compact" : "delete");
         props.put(UncleanLeaderElectionEnableProp, uncleanLeaderElectionEnable.toString());
         props.put(MinInSyncReplicasProp, minInSyncReplicas.toString());
+        props.put(GroupCommitEnableProp, groupCommit.toString());
+        props.put(MmapSegmentsEnableProp, mmapSegments.toString());
+        props.put(MaxMappedSegmentsProp, maxMappedSegments.toString());
+        props.put(PreallocateSegmentsEnableProp, preallocateSegments.toString());
+        props.put(CompressionCodecProp, compressionCodec);
+        props.put(CompressionRelativeOffsetsEnableProp, compressionRelativeOffsets.toString());
         return props;
     }
 
@@ -182,6 +231,17 @@ public class LogConfig implements Cloneable{
     public static final String CleanupPolicyProp = "cleanup.policy";
     public static final String UncleanLeaderElectionEnableProp = "unclean.leader.election.enable";
     public static final String MinInSyncReplicasProp = "min.insync.replicas";
+    public static final String GroupCommitEnableProp = "group.commit.enable";
+    public static final String MmapSegmentsEnableProp = "segment.mmap.enable";
+    public static final String MaxMappedSegmentsProp = "segment.mmap.max.segments";
+    public static final String PreallocateSegmentsEnableProp = "segment.preallocate.enable";
+    public static final String CompressionCodecProp = "compression.codec";
+    public static final String CompressionRelativeOffsetsEnableProp = "compression.relative.offsets.enable";
+
+    /**
+     * The compression codec setting that keeps the codec the producer used
+     */
+    public static final String ProducerCompressionCodec = "producer";
 
     public static final Set<String> ConfigNames = Sets.newHashSet(SegmentBytesProp,
             SegmentMsProp,
@@ -198,7 +258,13 @@ public class LogConfig implements Cloneable{
             MinCleanableDirtyRatioProp,
             CleanupPolicyProp,
             UncleanLeaderElectionEnableProp,
-            MinInSyncReplicasProp);
+            MinInSyncReplicasProp,
+            GroupCommitEnableProp,
+            MmapSegmentsEnableProp,
+            MaxMappedSegmentsProp,
+            PreallocateSegmentsEnableProp,
+            CompressionCodecProp,
+            CompressionRelativeOffsetsEnableProp);
 
 
     /**
@@ -224,9 +290,51 @@ public class LogConfig implements Cloneable{
     public void validate(Properties props) {
         validateNames(props);
         validateMinInSyncReplicas(props);
+        validateCompressionCodec(props);
+        validateMaxMappedSegments(props);
         LogConfig.fromProps(new LogConfig().toProps(), props); // check that we can parse the values;
     }
 
+    /**
+     * The codec the messages of this log are compressed with when the broker recompresses them, or null to use the
+     * producer's
+     */
+    public CompressionCodec topicCompressionCodec() {
+        Tuple<String, CompressionCodec> parsed = topicCodec;
+        String name = compressionCodec;
+        if (parsed == null || !parsed.v1.equals(name)) {
+            parsed = Tuple.of(name, name.equals(ProducerCompressionCodec) ? null : CompressionCodec.getCompressionCodec(name));
+            topicCodec = parsed;
+        }
+        return parsed.v2;
+    }
+
+    /**
+     * Check that the compression codec is producer or a registered codec
+     */
+    private void validateCompressionCodec(Properties props) {
+        String codec = props.getProperty(CompressionCodecProp);
+        if (codec == null || codec.trim().toLowerCase().equals(ProducerCompressionCodec))
+            return;
+        try {
+            CompressionCodec.getCompressionCodec(codec.trim().toLowerCase());
+        } catch (UnknownCodecException e) {
+            throw new InvalidConfigException("Wrong value " + codec + " of compression.codec in topic configuration; " +
+                    " Valid values are producer or the name of a compression codec");
+        }
+    }
+
+    /**
+     * Check that at least one segment can be memory mapped
+     */
+    private void validateMaxMappedSegments(Properties props) {
+        Object maxMapped = props.getProperty(MaxMappedSegmentsProp);
+        if (maxMapped != null && new Integer(maxMapped.toString()) < 1) {
+            throw new InvalidConfigException("Wrong value " + maxMapped + " of segment.mmap.max.segments in topic configuration; " +
+                    " Valid values are at least 1");
+        }
+    }
+
     /**
      * Check that MinInSyncReplicas is reasonable
      * Unfortunately, we can't validate its smaller than number of replicas
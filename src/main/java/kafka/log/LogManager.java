@@ -6,10 +6,14 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import kafka.annotation.threadsafe;
 import kafka.common.KafkaException;
+import kafka.common.UnknownTopicOrPartitionException;
 import kafka.func.Action;
 import kafka.func.Tuple;
+import kafka.message.ByteBufferMessageSet;
 import kafka.server.BrokerState;
 import kafka.server.BrokerStates;
+import kafka.server.BrokerTopicStats;
+import kafka.server.ProduceResult;
 import kafka.utils.*;
 
 import java.io.File;
@@ -43,6 +47,7 @@ public class LogManager extends Logging {
     public LogConfig defaultConfig;
     public CleanerConfig cleanerConfig;
     public Integer ioThreads;
+    public Integer compressionThreads;
     public Long flushCheckMs;
     public Long flushCheckpointMs;
     public Long retentionCheckMs;
@@ -59,6 +64,12 @@ public class LogManager extends Logging {
 
     private List<FileLock> dirLocks;
     private Map<File, OffsetCheckpoint> recoveryPointCheckpoints;
+    /* recompresses appended message sets with their topic's codec for all logs */
+    private ExecutorService compressionPool;
+    /* appends the partitions of a produce request in parallel */
+    private ForkJoinPool appendPool;
+    /* the memory mapped sealed segments of all logs, bounded by the default config's number of mapped segments */
+    private MappedSegments mappedSegments;
 
     /**
      * The entry point to the kafka log management subsystem. The log manager is responsible for log creation, retrieval, and cleaning.
@@ -76,17 +87,27 @@ public class LogManager extends Logging {
     }
 
     public LogManager(List<File> logDirs, Map<String, LogConfig> topicConfigs, LogConfig defaultConfig, CleanerConfig cleanerConfig, java.lang.Integer ioThreads, Long flushCheckMs, Long flushCheckpointMs, Long retentionCheckMs, Scheduler scheduler, BrokerState brokerState, Time time) throws IOException {
+        this(logDirs, topicConfigs, defaultConfig, cleanerConfig, ioThreads, Runtime.getRuntime().availableProcessors(), flushCheckMs,
+                flushCheckpointMs, retentionCheckMs, scheduler, brokerState, time);
+    }
+
+    /**
+     * @param compressionThreads The number of threads recompressing appended message sets with their topic's codec
+     */
+    public LogManager(List<File> logDirs, Map<String, LogConfig> topicConfigs, LogConfig defaultConfig, CleanerConfig cleanerConfig, java.lang.Integer ioThreads, Integer compressionThreads, Long flushCheckMs, Long flushCheckpointMs, Long retentionCheckMs, Scheduler scheduler, BrokerState brokerState, Time time) throws IOException {
         this.logDirs = logDirs;
         this.topicConfigs = topicConfigs;
         this.defaultConfig = defaultConfig;
         this.cleanerConfig = cleanerConfig;
         this.ioThreads = ioThreads;
+        this.compressionThreads = compressionThreads;
         this.flushCheckMs = flushCheckMs;
         this.flushCheckpointMs = flushCheckpointMs;
         this.retentionCheckMs = retentionCheckMs;
         this.scheduler = scheduler;
         this.brokerState = brokerState;
         this.time = time;
+        this.mappedSegments = new MappedSegments(defaultConfig.maxMappedSegments);
         init();
     }
 
@@ -101,6 +122,8 @@ public class LogManager extends Logging {
             }
             return null;
         }).collect(Collectors.toMap(t -> t.v1, t -> t.v2));
+        compressionPool = Executors.newFixedThreadPool(compressionThreads);
+        appendPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
         loadLogs();
 
         if (cleanerConfig.enableCleaner)
@@ -169,6 +192,10 @@ public class LogManager extends Logging {
         info("Loading logs.");
 
         List<ExecutorService> threadPools = Lists.newArrayList();
+        // the segments of the logs being loaded are recovered on one more pool shared by all of them, a log's own
+        // loading thread only waits for them so the two pools can not starve each other;
+        ExecutorService recoveryPool = Executors.newFixedThreadPool(ioThreads * logDirs.size());
+        threadPools.add(recoveryPool);
         Map<File, Set<Future>> jobs = Maps.newHashMap();
         for (File dir : this.logDirs) {
             ExecutorService pool = Executors.newFixedThreadPool(ioThreads);
@@ -199,7 +226,9 @@ public class LogManager extends Logging {
 
                         Log current = null;
                         try {
-                            current = new Log(logDir, config, logRecoveryPoint, scheduler, time);
+                            current = new Log(logDir, config, logRecoveryPoint, scheduler, time, recoveryPool);
+                            current.compressionPool = compressionPool;
+                            current.mappedSegments = mappedSegments;
                         } catch (IOException e) {
                             error(e.getMessage(), e);
                         }
@@ -334,6 +363,8 @@ public class LogManager extends Logging {
             }
         } finally {
             threadPools.forEach(t -> t.shutdown());
+            compressionPool.shutdown();
+            appendPool.shutdown();
             // regardless of whether the close succeeded, we need to unlock the data directories;
             dirLocks.forEach(lock -> {
                 try {
@@ -412,6 +443,57 @@ public class LogManager extends Logging {
         }
     }
 
+    /**
+     * Append the message sets of a produce request to the logs of their partitions, assigning offsets. The validation,
+     * decompression and recompression of each partition's set happen before its log's lock is taken, so appending the
+     * partitions of a large request on several threads of the append pool uses several cores; the calling thread takes
+     * the first partition itself. Each log gets a single message set, so the order of the appends to it is unchanged.
+     *
+     * @param data The message set of each partition
+     * @return The result of each partition, in the order of the request
+     */
+    public Map<TopicAndPartition, ProduceResult> appendToLocalLogs(Map<TopicAndPartition, ByteBufferMessageSet> data) {
+        List<TopicAndPartition> partitions = Lists.newArrayList(data.keySet());
+        List<ForkJoinTask<ProduceResult>> forked = Lists.newArrayList();
+        for (int i = 1; i < partitions.size(); i++) {
+            TopicAndPartition topicAndPartition = partitions.get(i);
+            forked.add(appendPool.submit(() -> appendToLocalLog(topicAndPartition, data.get(topicAndPartition))));
+        }
+        Map<TopicAndPartition, ProduceResult> results = Maps.newLinkedHashMap();
+        if (!partitions.isEmpty())
+            results.put(partitions.get(0), appendToLocalLog(partitions.get(0), data.get(partitions.get(0))));
+        for (int i = 0; i < forked.size(); i++)
+            results.put(partitions.get(i + 1), forked.get(i).join());
+        return results;
+    }
+
+    private ProduceResult appendToLocalLog(TopicAndPartition topicAndPartition, ByteBufferMessageSet messages) {
+        try {
+            Log log = getLog(topicAndPartition).orElseThrow(() -> new UnknownTopicOrPartitionException(
+                    String.format("Partition %s doesn't exist on this broker", topicAndPartition)));
+            LogAppendInfo info = log.append(messages, true);
+            long numAppendedMessages = info.firstOffset == -1L || info.lastOffset == -1L ? 0 : info.lastOffset - info.firstOffset + 1;
+
+            // update stats for successfully appended bytes and messages as bytesInRate and messageInRate;
+            BrokerTopicStats.getBrokerTopicStats(topicAndPartition.topic).bytesInRate.mark(messages.sizeInBytes());
+            BrokerTopicStats.getBrokerAllTopicsStats().bytesInRate.mark(messages.sizeInBytes());
+            BrokerTopicStats.getBrokerTopicStats(topicAndPartition.topic).messagesInRate.mark(numAppendedMessages);
+            BrokerTopicStats.getBrokerAllTopicsStats().messagesInRate.mark(numAppendedMessages);
+
+            trace(String.format("%d bytes written to log %s beginning at offset %d and ending at offset %d",
+                    messages.sizeInBytes(), topicAndPartition, info.firstOffset, info.lastOffset));
+            return new ProduceResult(topicAndPartition, info.firstOffset, info.lastOffset);
+        } catch (UnknownTopicOrPartitionException e) {
+            warn(String.format("Produce request on partition %s failed due to %s", topicAndPartition, e.getMessage()));
+            return new ProduceResult(topicAndPartition, e);
+        } catch (Throwable e) {
+            BrokerTopicStats.getBrokerTopicStats(topicAndPartition.topic).failedProduceRequestRate.mark();
+            BrokerTopicStats.getBrokerAllTopicsStats().failedProduceRequestRate.mark();
+            error(String.format("Error processing produce request on partition %s", topicAndPartition), e);
+            return new ProduceResult(topicAndPartition, e);
+        }
+    }
+
     /**
      * Get the log if it exists, otherwise return None
      */
@@ -443,6 +525,8 @@ public class LogManager extends Logging {
                     0L,
                     scheduler,
                     time);
+            log.compressionPool = compressionPool;
+            log.mappedSegments = mappedSegments;
             logs.put(topicAndPartition, log);
             info(String.format("Created log for partition <%s,%d> in %s with properties {%s}.", topicAndPartition.topic,
                     topicAndPartition.partition,
@@ -499,7 +583,7 @@ public class LogManager extends Logging {
      */
     private Integer cleanupExpiredSegments(Log log) throws IOException {
         Long startMs = time.milliseconds();
-        return log.deleteOldSegments(l -> startMs - l.lastModified() > log.config.retentionMs);
+        return log.deleteOldSegments(l -> startMs - l.largestTimestamp() > log.config.retentionMs);
     }
 
     /**
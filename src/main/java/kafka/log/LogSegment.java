@@ -13,49 +13,63 @@ import kafka.utils.Utils;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Optional;
 
 /**
  * A segment of the log. Each segment has two a components log and an index. The log is a FileMessageSet containing
  * the actual messages. The index is an OffsetIndex that maps from logical offsets to physical file positions. Each
  * segment has a base offset which is an offset <= the least offset of any message in this segment and > any offset in
- * any previous segment.
+ * any previous segment. A TimeIndex next to the offset index records when message sets were appended.
  */
 @nonthreadsafe
 public class LogSegment extends Logging {
     public FileMessageSet log;
     public OffsetIndex index;
-    public Long baseOffset;
-    public Integer indexIntervalBytes;
-    public Long rollJitterMs;
+    public TimeIndex timeIndex;
+    public long baseOffset;
+    public int indexIntervalBytes;
+    public long rollJitterMs;
     public Time time;
-    public Long created;
+    public long created;
     /* the number of bytes since we last added an entry in the offset index */
-    private Integer bytesSinceLastIndexEntry = 0;
+    private int bytesSinceLastIndexEntry = 0;
+    /* the time of the last append and the offset it started at, this can be ahead of the time index */
+    private volatile TimestampOffset lastAppend;
 
     /**
      * A segment with a base offset of [base_offset] would be stored in two files, a [base_offset].index and a [base_offset].log file.
      *
      * @param log                The message set containing log entries
      * @param index              The offset index
+     * @param timeIndex          The time index
      * @param baseOffset         A lower bound on the offsets in this segment
      * @param indexIntervalBytes The approximate number of bytes between entries in the index
      * @param time               The time instance
      */
-    public LogSegment(FileMessageSet log, OffsetIndex index, Long baseOffset, Integer indexIntervalBytes, Long rollJitterMs, Time time) {
+    public LogSegment(FileMessageSet log, OffsetIndex index, TimeIndex timeIndex, Long baseOffset, Integer indexIntervalBytes, Long rollJitterMs, Time time) {
         this.log = log;
         this.index = index;
+        this.timeIndex = timeIndex;
         this.baseOffset = baseOffset;
         this.indexIntervalBytes = indexIntervalBytes;
         this.rollJitterMs = rollJitterMs;
         this.time = time;
         created = time.milliseconds();
+        lastAppend = timeIndex.lastEntry();
+    }
+
+    /**
+     * Create a segment whose time index sits next to the given offset index
+     */
+    public LogSegment(FileMessageSet log, OffsetIndex index, Long baseOffset, Integer indexIntervalBytes, Long rollJitterMs, Time time) throws IOException {
+        this(log, index, new TimeIndex(Log.timeIndexFileFor(index.file), baseOffset, TimeIndex.sizeFor(index.maxIndexSize)), baseOffset, indexIntervalBytes, rollJitterMs, time);
     }
 
     public LogSegment(File dir, Long startOffset, Integer indexIntervalBytes, Integer maxIndexSize, Long rollJitterMs, Time time) throws IOException {
         this(new FileMessageSet(Log.logFilename(dir, startOffset)),
                 new OffsetIndex(Log.indexFilename(dir, startOffset), startOffset, maxIndexSize),
+                new TimeIndex(Log.timeIndexFilename(dir, startOffset), startOffset, TimeIndex.sizeFor(maxIndexSize)),
                 startOffset,
                 indexIntervalBytes,
                 rollJitterMs,
@@ -63,8 +77,8 @@ public class LogSegment extends Logging {
     }
 
     /* Return the size in bytes of this log segment */
-    public Long size() {
-        return log.sizeInBytes().longValue();
+    public long size() {
+        return log.sizeInBytes();
     }
 
     /**
@@ -77,17 +91,107 @@ public class LogSegment extends Logging {
      * @param messages The messages to append.
      */
     @nonthreadsafe
-    public void append(Long offset, ByteBufferMessageSet messages) {
-        if (messages.sizeInBytes() > 0) {
-            trace(String.format("Inserting %d bytes at offset %d at position %d", messages.sizeInBytes(), offset, log.sizeInBytes()));
+    public void append(long offset, ByteBufferMessageSet messages) {
+        int size = messages.sizeInBytes();
+        if (size > 0) {
+            if (logger.isTraceEnabled())
+                trace(String.format("Inserting %d bytes at offset %d at position %d", size, offset, log.sizeInBytes()));
             // append an entry to the index (if needed);
+            long now = time.milliseconds();
             if (bytesSinceLastIndexEntry > indexIntervalBytes) {
                 index.append(offset, log.sizeInBytes());
+                timeIndex.maybeAppend(now, offset);
                 this.bytesSinceLastIndexEntry = 0;
+            } else if (timeIndex.entries() == 0) {
+                timeIndex.maybeAppend(now, offset);
             }
+            lastAppend = new TimestampOffset(now, offset);
             // append the messages;
             log.append(messages);
-            this.bytesSinceLastIndexEntry += messages.sizeInBytes();
+            this.bytesSinceLastIndexEntry += size;
+        }
+    }
+
+    /**
+     * Append a batch of message sets with a single write to the log file. Index entries are added
+     * for the individual sets exactly as if they had been appended one at a time.
+     * <p>
+     * It is assumed this method is being called from within a lock.
+     *
+     * @param offsets     The first offset of each message set.
+     * @param messageSets The messages to append, in offset order.
+     */
+    @nonthreadsafe
+    public void append(List<Long> offsets, List<ByteBufferMessageSet> messageSets) {
+        int position = log.sizeInBytes();
+        if (logger.isTraceEnabled())
+            trace(String.format("Inserting %d message sets at offset %d at position %d", messageSets.size(), offsets.get(0), position));
+        long now = time.milliseconds();
+        for (int i = 0; i < messageSets.size(); i++) {
+            int size = messageSets.get(i).sizeInBytes();
+            // append an entry to the index (if needed);
+            if (bytesSinceLastIndexEntry > indexIntervalBytes && !index.isFull()) {
+                index.append(offsets.get(i), position);
+                timeIndex.maybeAppend(now, offsets.get(i));
+                this.bytesSinceLastIndexEntry = 0;
+            } else if (timeIndex.entries() == 0) {
+                timeIndex.maybeAppend(now, offsets.get(i));
+            }
+            position += size;
+            this.bytesSinceLastIndexEntry += size;
+        }
+        lastAppend = new TimestampOffset(now, offsets.get(offsets.size() - 1));
+        // append the messages;
+        log.append(messageSets);
+    }
+
+    /**
+     * The time of the last append to this segment. A segment that has never been appended to since it was loaded and
+     * has no time index entries falls back to the last modified time of its log file.
+     */
+    @threadsafe
+    public long largestTimestamp() {
+        long timestamp = Math.max(lastAppend.timestamp, timeIndex.lastEntry().timestamp);
+        return timestamp > 0 ? timestamp : lastModified();
+    }
+
+    /**
+     * Find an offset in this segment that was appended no later than the given time, using the time index.
+     *
+     * @param timestamp The time to look up
+     * @return The greatest indexed offset appended at or before the timestamp, or null if the segment has none
+     */
+    @threadsafe
+    public Long offsetBefore(Long timestamp) {
+        TimestampOffset entry = timeIndex.lookup(timestamp);
+        return entry == null ? null : entry.offset;
+    }
+
+    /**
+     * Record the time of the last append in the time index and trim the indexes to their valid entries. This is done
+     * when the segment stops being the active segment.
+     */
+    @nonthreadsafe
+    public void trimIndexes() {
+        indexLastAppend();
+        index.trimToValidSize();
+        timeIndex.trimToValidSize();
+    }
+
+    private void indexLastAppend() {
+        if (lastAppend.timestamp > 0)
+            timeIndex.maybeAppend(lastAppend.timestamp, lastAppend.offset);
+    }
+
+    /**
+     * Make sure the time index has an entry if the segment has data. A segment whose time index was lost only gets the
+     * time its log file was last modified, since messages do not carry a timestamp.
+     */
+    @nonthreadsafe
+    public void ensureTimeIndex() {
+        if (timeIndex.entries() == 0 && log.sizeInBytes() > 0) {
+            timeIndex.maybeAppend(lastModified(), baseOffset);
+            lastAppend = timeIndex.lastEntry();
         }
     }
 
@@ -103,7 +207,7 @@ public class LogSegment extends Logging {
      * @return The position in the log storing the message with the least offset >= the requested offset or null if no message meets this criteria.
      */
     @threadsafe
-    OffsetPosition translateOffset(Long offset, Integer startingFilePosition) {
+    OffsetPosition translateOffset(long offset, int startingFilePosition) {
         OffsetPosition mapping = index.lookup(offset);
         return log.searchFor(offset, Math.max(mapping.position, startingFilePosition));
     }
@@ -120,12 +224,12 @@ public class LogSegment extends Logging {
      */
 
     @threadsafe
-    public FetchDataInfo read(Long startOffset, Optional<Long> maxOffset, Integer maxSize) {
+    public FetchDataInfo read(long startOffset, Optional<Long> maxOffset, int maxSize) {
         if (maxSize < 0) {
             throw new IllegalArgumentException(String.format("Invalid max size for log read (%d)", maxSize));
         }
 
-        Integer logSize = log.sizeInBytes(); // this may change, need to save a consistent copy;
+        int logSize = log.sizeInBytes(); // this may change, need to save a consistent copy;
         OffsetPosition startPosition = translateOffset(startOffset, 0);
 
         // if the start position is already off the end of the log, return null;
@@ -141,16 +245,16 @@ public class LogSegment extends Logging {
         }
 
         // calculate the length of the message set to read based on whether or not they gave us a maxOffset;
-        Integer length;
+        int length;
         if (!maxOffset.isPresent()) {
             length = maxSize;
         } else {
-            Long maxOffs = maxOffset.get();
+            long maxOffs = maxOffset.get();
             if (maxOffs < startOffset) {
                 throw new IllegalArgumentException(String.format("Attempt to read with a maximum offset (%d) less than the start offset (%d).", maxOffs, startOffset));
             }
             OffsetPosition mapping = translateOffset(maxOffs, startPosition.position);
-            Integer endPosition;
+            int endPosition;
             if (mapping == null) {
                 endPosition = logSize; // the max offset is off the end of the log, use the end of the file;
             } else {
@@ -172,25 +276,27 @@ public class LogSegment extends Logging {
     public Integer recover(Integer maxMessageSize) throws IOException {
         index.truncate();
         index.resize(index.maxIndexSize);
-        Integer validBytes = 0;
-        Integer lastIndexEntry = 0;
-        Iterator<MessageAndOffset> iter = log.iterator(maxMessageSize);
+        int validBytes = 0;
+        int lastIndexEntry = 0;
+        long nextOffset = baseOffset;
+        MessageSetCursor cursor = log.cursor(maxMessageSize);
         try {
-            while (iter.hasNext()) {
-                MessageAndOffset entry = iter.next();
-                entry.message.ensureValid();
+            while (cursor.next()) {
+                cursor.ensureValid();
                 if (validBytes - lastIndexEntry > indexIntervalBytes) {
-                    // we need to decompress the message, if required, to get the offset of the first uncompressed message;
-                    Long startOffset;
-                    if (entry.message.compressionCodec() == CompressionCodec.NoCompressionCodec) {
-                        startOffset = entry.offset;
+                    // a compressed wrapper carries the offset of its last message, but the index only needs an offset
+                    // no greater than its first: the offset following the previous message is one, without decompressing;
+                    long startOffset;
+                    if (cursor.compressionCodec() == CompressionCodec.NoCompressionCodec) {
+                        startOffset = cursor.offset();
                     } else {
-                        startOffset = ByteBufferMessageSet.decompress(entry.message).head().offset;
+                        startOffset = nextOffset;
                     }
                     index.append(startOffset, validBytes);
                     lastIndexEntry = validBytes;
                 }
-                validBytes += MessageSet.entrySize(entry.message);
+                validBytes += cursor.entrySize();
+                nextOffset = cursor.offset() + 1;
             }
         } catch (InvalidMessageException e) {
             logger.warn(String.format("Found invalid messages in log segment %s at byte offset %d: %s.", log.file.getAbsolutePath(), validBytes, e.getMessage()));
@@ -199,6 +305,11 @@ public class LogSegment extends Logging {
         Integer truncated = log.sizeInBytes() - validBytes;
         log.truncateTo(validBytes);
         index.trimToValidSize();
+        // the time index can not be rebuilt from the log, drop the entries for anything that was truncated off;
+        timeIndex.truncateTo(nextOffset);
+        lastAppend = timeIndex.lastEntry();
+        ensureTimeIndex();
+        timeIndex.trimToValidSize();
         return truncated;
     }
 
@@ -221,8 +332,11 @@ public class LogSegment extends Logging {
         if (mapping == null)
             return 0;
         index.truncateTo(offset);
+        timeIndex.truncateTo(offset);
+        lastAppend = timeIndex.lastEntry();
         // after truncation, reset and allocate more space for the (new currently  active) index;
         index.resize(index.maxIndexSize);
+        timeIndex.resize(timeIndex.maxIndexSize);
         Integer bytesTruncated = log.truncateTo(mapping.position);
         if (log.sizeInBytes() == 0) {
             created = time.milliseconds();
@@ -258,6 +372,7 @@ public class LogSegment extends Logging {
             try {
                 log.flush();
                 index.flush();
+                timeIndex.flush();
             } catch (IOException e) {
                 error(e.getMessage(), e);
             }
@@ -276,13 +391,18 @@ public class LogSegment extends Logging {
         Boolean indexRenamed = index.renameTo(new File(Utils.replaceSuffix(index.file.getPath(), oldSuffix, newSuffix)));
         if (!indexRenamed)
             throw new KafkaStorageException(String.format("Failed to change the index file suffix from %s to %s for log segment %d", oldSuffix, newSuffix, baseOffset));
+        Boolean timeIndexRenamed = timeIndex.renameTo(new File(Utils.replaceSuffix(timeIndex.file.getPath(), oldSuffix, newSuffix)));
+        if (!timeIndexRenamed)
+            throw new KafkaStorageException(String.format("Failed to change the time index file suffix from %s to %s for log segment %d", oldSuffix, newSuffix, baseOffset));
     }
 
     /**
      * Close this log segment
      */
     public void close() {
+        Utils.swallow(() -> indexLastAppend(), (e) -> log.debug(e.getMessage(), e));
         Utils.swallow(() -> index.close(), (e) -> log.debug(e.getMessage(), e));
+        Utils.swallow(() -> timeIndex.close(), (e) -> log.debug(e.getMessage(), e));
         // TODO: 2017/3/30 close
         try {
             log.close();
@@ -299,10 +419,13 @@ public class LogSegment extends Logging {
     public void delete() {
         Boolean deletedLog = log.delete();
         Boolean deletedIndex = index.delete();
+        Boolean deletedTimeIndex = timeIndex.delete();
         if (!deletedLog && log.file.exists())
             throw new KafkaStorageException("Delete of log " + log.file.getName() + " failed.");
         if (!deletedIndex && index.file.exists())
             throw new KafkaStorageException("Delete of index " + index.file.getName() + " failed.");
+        if (!deletedTimeIndex && timeIndex.file.exists())
+            throw new KafkaStorageException("Delete of time index " + timeIndex.file.getName() + " failed.");
     }
 
     /**
@@ -318,5 +441,6 @@ public class LogSegment extends Logging {
     public void setLastModified(Long ms) {
         log.file.setLastModified(ms);
         index.file.setLastModified(ms);
+        timeIndex.file.setLastModified(ms);
     }
 }
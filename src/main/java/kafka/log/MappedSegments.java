@@ -0,0 +1,83 @@
+package kafka.log;
+
+import kafka.annotation.threadsafe;
+import kafka.utils.Logging;
+import kafka.utils.Prediction;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The sealed segments whose log file is memory mapped for reads, bounded to a number of segments. The log manager shares
+ * one among all its logs so that the bound holds for the address space of the whole broker.
+ * <p>
+ * A read of a segment that is already mapped only records the time of the read, without taking a lock. Mapping a segment
+ * takes the lock of this object and unmaps the least recently read segments beyond the bound, which is an approximate
+ * LRU order since reads racing with it may record their time a little late.
+ */
+@threadsafe
+public class MappedSegments extends Logging {
+    public final int maxMappedSegments;
+    /* the mapped segments and the time each was last read, in nanoseconds */
+    private final Map<LogSegment, AtomicLong> lastRead = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxMappedSegments The most segments mapped at once
+     */
+    public MappedSegments(int maxMappedSegments) {
+        Prediction.require(maxMappedSegments > 0, "The number of memory mapped segments must be positive.");
+        this.maxMappedSegments = maxMappedSegments;
+    }
+
+    /**
+     * Record a read of the segment, memory mapping its log file first if it is not mapped yet
+     */
+    public void read(LogSegment segment) throws IOException {
+        AtomicLong time = lastRead.get(segment);
+        if (time != null) {
+            time.lazySet(System.nanoTime());
+            return;
+        }
+        synchronized (this) {
+            if (lastRead.containsKey(segment))
+                return;
+            segment.log.map();
+            lastRead.put(segment, new AtomicLong(System.nanoTime()));
+            while (lastRead.size() > maxMappedSegments)
+                evictColdest(segment);
+        }
+    }
+
+    /**
+     * Release the memory map of a segment, if it has one
+     */
+    public void unmap(LogSegment segment) {
+        synchronized (this) {
+            lastRead.remove(segment);
+        }
+        segment.log.unmap();
+    }
+
+    /**
+     * The number of segments currently mapped
+     */
+    public int size() {
+        return lastRead.size();
+    }
+
+    private void evictColdest(LogSegment keep) {
+        LogSegment coldest = null;
+        long coldestTime = Long.MAX_VALUE;
+        for (Map.Entry<LogSegment, AtomicLong> entry : lastRead.entrySet()) {
+            long time = entry.getValue().get();
+            if (entry.getKey() != keep && (coldest == null || time - coldestTime < 0)) {
+                coldest = entry.getKey();
+                coldestTime = time;
+            }
+        }
+        lastRead.remove(coldest);
+        coldest.log.unmap();
+    }
+}
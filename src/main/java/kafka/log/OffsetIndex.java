@@ -1,7 +1,6 @@
 package kafka.log;
 
 import kafka.common.InvalidOffsetException;
-import kafka.func.Fun;
 import kafka.utils.Logging;
 import kafka.utils.Os;
 import kafka.utils.Prediction;
@@ -16,8 +15,8 @@ import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * An index that maps offsets to physical file locations for a particular log segment. This index may be sparse:
@@ -41,36 +40,65 @@ import java.util.concurrent.locks.ReentrantLock;
  * <p>
  * The frequency of entries is up to the user of this class.
  * <p>
+ * Almost all lookups are for offsets near the end of the log, made by followers and consumers that keep up. A lookup
+ * first checks the last few pages of the index, the warm section, which those readers and the appends keep in the
+ * page cache, and only falls back to a binary search over the rest of the index when the target is older than that.
+ * A plain binary search over the whole index would touch pages spread over the file for every lookup.
+ * <p>
+ * Lookups take no lock. An append writes its slot before it publishes the new entry count, so a reader that sees the
+ * count also sees the entry. Only truncation and resizing change entries a reader may already be looking at; they
+ * run as the write side of a seqlock and a reader that overlapped one simply does its lookup again under the read lock.
+ * On Windows, where resizing has to unmap the file underneath readers, lookups take the index lock instead.
+ * <p>
  * All external APIs translate from relative offsets to full offsets, so users of this class do not interact with the internal
  * storage format.
  */
 public class OffsetIndex extends Logging {
     public volatile File file;
-    public Long baseOffset;
-    public Integer maxIndexSize = -1;
+    public final long baseOffset;
+    public int maxIndexSize = -1;
 
-    public OffsetIndex(File file, Long baseOffset) throws IOException {
+    public OffsetIndex(File file, long baseOffset) throws IOException {
         this(file, baseOffset, -1);
     }
 
-    public OffsetIndex(File file, Long baseOffset, Integer maxIndexSize) throws IOException {
+    public OffsetIndex(File file, long baseOffset, int maxIndexSize) throws IOException {
+        this(file, baseOffset, maxIndexSize, false);
+    }
+
+    /**
+     * @param preallocated The file already exists at its full size but holds no entries, it was written out before
+     *                     the base offset of its segment was known
+     */
+    public OffsetIndex(File file, long baseOffset, int maxIndexSize, boolean preallocated) throws IOException {
         this.file = file;
         this.baseOffset = baseOffset;
         this.maxIndexSize = maxIndexSize;
+        this.preallocated = preallocated;
         init();
     }
 
+    private final boolean preallocated;
+
+    /* the size of the tail of the index searched first by lookups */
+    public static final int WarmSectionBytes = 8192;
+
+    /* the number of entries in the warm section, zero disables it */
+    int warmEntries = WarmSectionBytes / 8;
+
     private ReentrantLock lock = new ReentrantLock();
-    private MappedByteBuffer mmap;
-    /* the number of eight-byte entries currently in the index */
+    /* held for writing, inside the lock, while entries that may be read are truncated or the file is remapped */
+    private final StampedLock seqLock = new StampedLock();
+    private volatile MappedByteBuffer mmap;
+    /* the number of eight-byte entries currently in the index, published after the entries themselves are written */
     private AtomicInteger size;
     /**
      * The maximum number of eight-byte entries this index can hold
      */
-    public volatile Integer maxEntries;
+    public volatile int maxEntries;
 
     /* the last offset in the index */
-    public Long lastOffset;
+    public volatile long lastOffset;
 
 
     public void init() throws IOException {
@@ -89,7 +117,7 @@ public class OffsetIndex extends Logging {
             MappedByteBuffer idx = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, len);
 
         /* set the position in the index for the next entry */
-            if (newlyCreated) {
+            if (newlyCreated || preallocated) {
                 idx.position(0);
             } else {
                 // if this is a pre-existing index, assume it is all valid and set position to last entry
@@ -102,8 +130,8 @@ public class OffsetIndex extends Logging {
         size = new AtomicInteger(mmap.position() / 8);
         maxEntries = mmap.limit() / 8;
         lastOffset = readLastEntry().offset;
-        debug("Loaded index file %s with maxEntries = %d, maxIndexSize = %d, entries = %d, lastOffset = %d, file position = %d"
-                .format(file.getAbsolutePath(), maxEntries, maxIndexSize, entries(), lastOffset, mmap.position()));
+        debug(String.format("Loaded index file %s with maxEntries = %d, maxIndexSize = %d, entries = %d, lastOffset = %d, file position = %d",
+                file.getAbsolutePath(), maxEntries, maxIndexSize, entries(), lastOffset, mmap.position()));
     }
 
     /**
@@ -128,43 +156,68 @@ public class OffsetIndex extends Logging {
      * If the target offset is smaller than the least entry in the index (or the index is empty),
      * the pair (baseOffset, 0) is returned.
      */
-    public OffsetPosition lookup(Long targetOffset) {
-        return maybeLock(lock, () -> {
-            ByteBuffer idx = mmap.duplicate();
-            int slot = indexSlotFor(idx, targetOffset);
-            if (slot == -1) {
-                return new OffsetPosition(baseOffset, 0);
-            } else {
-                return new OffsetPosition(baseOffset + relativeOffset(idx, slot), physical(idx, slot));
-            }
-        });
+    public OffsetPosition lookup(long targetOffset) {
+        if (Os.isWindows)
+            return Utils.inLock(lock, () -> lookup(mmap, entries(), targetOffset));
+        long stamp = seqLock.tryOptimisticRead();
+        OffsetPosition found = lookup(mmap, entries(), targetOffset);
+        if (seqLock.validate(stamp))
+            return found;
+        stamp = seqLock.readLock();
+        try {
+            return lookup(mmap, entries(), targetOffset);
+        } finally {
+            seqLock.unlockRead(stamp);
+        }
+    }
+
+    /*
+     * Only absolute reads are done on the buffer, so it can be shared by concurrent lookups without a duplicate. The
+     * entry count is bounded by the buffer since a racing truncate and trim may have shrunk the map since it was read.
+     */
+    private OffsetPosition lookup(ByteBuffer idx, int entries, long targetOffset) {
+        int slot = indexSlotFor(idx, Math.min(entries, idx.limit() / 8), targetOffset);
+        if (slot == -1)
+            return new OffsetPosition(baseOffset, 0);
+        return new OffsetPosition(baseOffset + relativeOffset(idx, slot), physical(idx, slot));
     }
 
     /**
      * Find the slot in which the largest offset less than or equal to the given
-     * target offset is stored.
+     * target offset is stored. The warm section at the end of the index is searched first.
      *
      * @param idx          The index buffer
+     * @param entries      The number of entries to search
      * @param targetOffset The offset to look for
      * @return The slot found or -1 if the least entry in the index is larger than the target offset or the index is empty
      */
-    private Integer indexSlotFor(ByteBuffer idx, Long targetOffset) {
+    private int indexSlotFor(ByteBuffer idx, int entries, long targetOffset) {
         // we only store the difference from the base offset so calculate that
         long relOffset = targetOffset - baseOffset;
 
         // check if the index is empty
-        if (entries() == 0)
+        if (entries == 0)
             return -1;
 
+        // check if the target offset is in the warm section
+        int firstWarmEntry = Math.max(0, entries - warmEntries);
+        if (firstWarmEntry < entries && relativeOffset(idx, firstWarmEntry) <= relOffset)
+            return binarySearch(idx, relOffset, firstWarmEntry, entries - 1);
+
         // check if the target offset is smaller than the least offset
         if (relativeOffset(idx, 0) > relOffset)
             return -1;
 
-        // binary search for the entry
-        int lo = 0;
-        int hi = entries() - 1;
+        return binarySearch(idx, relOffset, 0, Math.min(firstWarmEntry, entries) - 1);
+    }
+
+    /**
+     * Binary search the slots from lo to hi for the largest relative offset less than or equal to the target, which
+     * must be no smaller than the offset at lo.
+     */
+    private int binarySearch(ByteBuffer idx, long relOffset, int lo, int hi) {
         while (lo < hi) {
-            int mid = (int) Math.ceil(hi / 2.0 + lo / 2.0);
+            int mid = (lo + hi + 1) >>> 1;
             int found = relativeOffset(idx, mid);
             if (found == relOffset)
                 return mid;
@@ -177,12 +230,12 @@ public class OffsetIndex extends Logging {
     }
 
     /* return the nth offset relative to the base offset */
-    private Integer relativeOffset(ByteBuffer buffer, Integer n) {
+    private int relativeOffset(ByteBuffer buffer, int n) {
         return buffer.getInt(n * 8);
     }
 
     /* return the nth physical position */
-    private Integer physical(ByteBuffer buffer, Integer n) {
+    private int physical(ByteBuffer buffer, int n) {
         return buffer.getInt(n * 8 + 4);
     }
 
@@ -192,31 +245,46 @@ public class OffsetIndex extends Logging {
      * @param n The entry number in the index
      * @return The offset/position pair at that entry
      */
-    public OffsetPosition entry(Integer n) {
-        return maybeLock(lock, () -> {
-            if (n >= entries())
-                throw new IllegalArgumentException("Attempt to fetch the %dth entry from an index of size %d.".format(n.toString(), entries()));
-            ByteBuffer idx = mmap.duplicate();
-            return new OffsetPosition(relativeOffset(idx, n).longValue(), physical(idx, n));
-        });
+    public OffsetPosition entry(int n) {
+        if (Os.isWindows)
+            return Utils.inLock(lock, () -> readEntry(n));
+        long stamp = seqLock.tryOptimisticRead();
+        OffsetPosition entry = readEntry(n);
+        if (seqLock.validate(stamp))
+            return entry;
+        stamp = seqLock.readLock();
+        try {
+            return readEntry(n);
+        } finally {
+            seqLock.unlockRead(stamp);
+        }
+    }
+
+    private OffsetPosition readEntry(int n) {
+        ByteBuffer idx = mmap;
+        if (n >= entries() || n >= idx.limit() / 8)
+            throw new IllegalArgumentException(String.format("Attempt to fetch the %dth entry from an index of size %d.", n, entries()));
+        return new OffsetPosition(relativeOffset(idx, n), physical(idx, n));
     }
 
     /**
      * Append an entry for the given offset/location pair to the index. This entry must have a larger offset than all subsequent entries.
      */
-    public void append(Long offset, Integer position) {
+    public void append(long offset, int position) {
         Utils.inLock(lock, () -> {
             Prediction.require(!isFull(), "Attempt to append to a full index (size = " + size + ").");
             if (size.get() == 0 || offset > lastOffset) {
-                debug("Adding index entry %d => %d to %s.".format(offset.toString(), position.toString(), file.getName()));
+                if (logger.isDebugEnabled())
+                    debug(String.format("Adding index entry %d => %d to %s.", offset, position, file.getName()));
                 this.mmap.putInt((int) (offset - baseOffset));
                 this.mmap.putInt(position);
-                this.size.incrementAndGet();
+                // an ordered write, so readers that see the new count see the entry written above
+                this.size.lazySet(size.get() + 1);
                 this.lastOffset = offset;
                 Prediction.require(entries() * 8 == mmap.position(), entries() + " entries but file position in index is " + mmap.position() + ".");
             } else {
-                throw new InvalidOffsetException("Attempt to append an offset (%d) to position %d no larger than the last offset appended (%d) to %s."
-                        .format(offset.toString(), entries().toString(), lastOffset, file.getAbsolutePath()));
+                throw new InvalidOffsetException(String.format("Attempt to append an offset (%d) to position %d no larger than the last offset appended (%d) to %s.",
+                        offset, entries(), lastOffset, file.getAbsolutePath()));
             }
         });
     }
@@ -239,10 +307,10 @@ public class OffsetIndex extends Logging {
      * Remove all entries from the index which have an offset greater than or equal to the given offset.
      * Truncating to an offset larger than the largest in the index has no effect.
      */
-    public void truncateTo(Long offset) {
+    public void truncateTo(long offset) {
         Utils.inLock(lock, () -> {
-            ByteBuffer idx = mmap.duplicate();
-            int slot = indexSlotFor(idx, offset);
+            ByteBuffer idx = mmap;
+            int slot = indexSlotFor(idx, entries(), offset);
 
       /* There are 3 cases for choosing the new size
        * 1) if there is no entry in the index <= the offset, delete everything
@@ -264,11 +332,16 @@ public class OffsetIndex extends Logging {
     /**
      * Truncates index to a known number of entries.
      */
-    private void truncateToEntries(Integer entries) {
+    private void truncateToEntries(int entries) {
         Utils.inLock(lock, () -> {
-            this.size.set(entries);
-            mmap.position(this.size.get() * 8);
-            this.lastOffset = readLastEntry().offset;
+            long stamp = seqLock.writeLock();
+            try {
+                this.size.set(entries);
+                mmap.position(this.size.get() * 8);
+                this.lastOffset = readLastEntry().offset;
+            } finally {
+                seqLock.unlockWrite(stamp);
+            }
         });
     }
 
@@ -286,9 +359,10 @@ public class OffsetIndex extends Logging {
      * loading segments from disk or truncating back to an old segment where a new log segment became active;
      * we want to reset the index size to maximum index size to avoid rolling new segment.
      */
-    public void resize(Integer newSize) {
+    public void resize(int newSize) {
         Utils.inLock(lock, () -> {
             final RandomAccessFile raf;
+            long stamp = seqLock.writeLock();
             try {
                 raf = new RandomAccessFile(file, "rws");
 
@@ -315,6 +389,8 @@ public class OffsetIndex extends Logging {
                 }
             } catch (FileNotFoundException e) {
                 error(e.getMessage(),e);
+            } finally {
+                seqLock.unlockWrite(stamp);
             }
         });
     }
@@ -349,14 +425,14 @@ public class OffsetIndex extends Logging {
     /**
      * The number of entries in this index
      */
-    public Integer entries() {
+    public int entries() {
         return size.get();
     }
 
     /**
      * The number of bytes actually used by this index
      */
-    public Integer sizeInBytes() {
+    public int sizeInBytes() {
         return 8 * entries();
     }
 
@@ -385,9 +461,9 @@ public class OffsetIndex extends Logging {
      */
     public void sanityCheck() {
         Prediction.require(entries() == 0 || lastOffset > baseOffset,
-                "Corrupt index found, index file (%s) has non-zero size but the last offset is %d and the base offset is %d"
-                        .format(file.getAbsolutePath(), lastOffset, baseOffset));
-        Long len = file.length();
+                String.format("Corrupt index found, index file (%s) has non-zero size but the last offset is %d and the base offset is %d",
+                        file.getAbsolutePath(), lastOffset, baseOffset));
+        long len = file.length();
         Prediction.require(len % 8 == 0,
                 "Index file " + file.getName() + " is corrupt, found " + len +
                         " bytes which is not positive or not a multiple of 8.");
@@ -397,24 +473,7 @@ public class OffsetIndex extends Logging {
      * Round a number to the greatest exact multiple of the given factor less than the given number.
      * E.g. roundToExactMultiple(67, 8) == 64
      */
-    private Integer roundToExactMultiple(Integer number, Integer factor) {
+    private int roundToExactMultiple(int number, int factor) {
         return factor * (number / factor);
     }
-
-    /**
-     * Execute the given function in a lock only if we are running on windows. We do this
-     * because Windows won't let us resize a file while it is mmapped. As a result we have to force unmap it
-     * and this requires synchronizing reads.
-     */
-    private <T> T maybeLock(Lock lock, Fun<T> process) {
-        if (Os.isWindows)
-            lock.lock();
-        try {
-            return process.invoke();
-        } finally {
-            if (Os.isWindows)
-                lock.unlock();
-        }
-    }
-
-}
\ No newline at end of file
+}
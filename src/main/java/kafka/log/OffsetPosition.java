@@ -4,10 +4,10 @@ package kafka.log;
  * Created by Administrator on 2017/3/27.
  */
 public class OffsetPosition {
-    public Long offset;
-    public Integer position;
+    public final long offset;
+    public final int position;
 
-    public OffsetPosition(Long offset, Integer position) {
+    public OffsetPosition(long offset, int position) {
         this.offset = offset;
         this.position = position;
     }
@@ -16,7 +16,7 @@ public class OffsetPosition {
     public boolean equals(Object obj) {
         if (obj instanceof OffsetPosition) {
             OffsetPosition other = (OffsetPosition) obj;
-            if (position.equals(other.position) && offset.equals(other.offset)) {
+            if (position == other.position && offset == other.offset) {
                 return true;
             }
         }
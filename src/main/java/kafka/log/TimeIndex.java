@@ -0,0 +1,406 @@
+package kafka.log;
+
+import kafka.utils.Logging;
+import kafka.utils.Os;
+import kafka.utils.Prediction;
+import kafka.utils.Utils;
+import sun.nio.ch.DirectBuffer;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * An index that maps the time message sets were appended to a log segment to their offsets. Like the OffsetIndex it
+ * is sparse and lives in a pre-allocated, memory-mapped file that is trimmed when the segment is rolled.
+ * <p>
+ * The file format is a series of 12 byte entries: an 8 byte append timestamp and a 4 byte offset relative to the
+ * base offset of the segment. Both the timestamps and the offsets in the index are strictly increasing, so lookups
+ * by either are binary searches. An entry whose timestamp is not larger than the last one is simply not added.
+ * <p>
+ * Messages carry no timestamp of their own, so unlike the offset index this index cannot be rebuilt from the log. In
+ * the event of a crash the entries beyond the recovered end of the log are dropped; a segment that has no entries at
+ * all is given the time its log file was last modified.
+ */
+public class TimeIndex extends Logging {
+    public static final int EntrySize = 12;
+
+    /**
+     * The size of a time index for a segment whose offset index has the given size: an entry for every offset index
+     * entry, one for the first append to the segment and one for the last, added when the segment is rolled
+     */
+    public static int sizeFor(int maxOffsetIndexSize) {
+        return (int) Math.min((maxOffsetIndexSize / 8 + 2L) * EntrySize, Integer.MAX_VALUE / EntrySize * EntrySize);
+    }
+
+    public volatile File file;
+    public final long baseOffset;
+    public int maxIndexSize = -1;
+
+    public TimeIndex(File file, long baseOffset) throws IOException {
+        this(file, baseOffset, -1);
+    }
+
+    public TimeIndex(File file, long baseOffset, int maxIndexSize) throws IOException {
+        this.file = file;
+        this.baseOffset = baseOffset;
+        this.maxIndexSize = maxIndexSize;
+        init();
+    }
+
+    private ReentrantLock lock = new ReentrantLock();
+    /* held for writing, inside the lock, while entries that may be read are truncated or the file is remapped */
+    private final StampedLock seqLock = new StampedLock();
+    private volatile MappedByteBuffer mmap;
+    /* the number of entries currently in the index, published after the entries themselves are written */
+    private AtomicInteger size;
+    /**
+     * The maximum number of entries this index can hold
+     */
+    public volatile int maxEntries;
+
+    /* the last entry in the index */
+    private volatile TimestampOffset lastEntry;
+
+    public void init() throws IOException {
+        boolean newlyCreated = file.createNewFile();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            /* pre-allocate the file if necessary */
+            if (newlyCreated) {
+                if (maxIndexSize < EntrySize)
+                    throw new IllegalArgumentException("Invalid max index size: " + maxIndexSize);
+                raf.setLength(roundToExactMultiple(maxIndexSize, EntrySize));
+            }
+            /* memory-map the file */
+            long len = raf.length();
+            mmap = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, roundToExactMultiple((int) len, EntrySize));
+        } finally {
+            raf.close();
+        }
+        maxEntries = mmap.limit() / EntrySize;
+        /* a pre-existing index that was not trimmed ends with unwritten entries, which have a zero timestamp */
+        size = new AtomicInteger(newlyCreated ? 0 : firstUnwrittenSlot(mmap));
+        mmap.position(size.get() * EntrySize);
+        lastEntry = readLastEntry();
+        debug(String.format("Loaded time index file %s with maxEntries = %d, maxIndexSize = %d, entries = %d, last entry = %s",
+                file.getAbsolutePath(), maxEntries, maxIndexSize, entries(), lastEntry));
+    }
+
+    /**
+     * The last entry in the index, or a zero timestamp with the base offset if the index is empty
+     */
+    public TimestampOffset lastEntry() {
+        return lastEntry;
+    }
+
+    private TimestampOffset readLastEntry() {
+        return Utils.inLock(lock, () -> {
+            int s = size.get();
+            if (s == 0)
+                return new TimestampOffset(0L, baseOffset);
+            return new TimestampOffset(timestamp(mmap, s - 1), baseOffset + relativeOffset(mmap, s - 1));
+        });
+    }
+
+    /**
+     * Find the entry with the largest timestamp less than or equal to the given timestamp, that is an offset that is
+     * known to have been appended no later than that time.
+     *
+     * @param targetTimestamp The timestamp to look up.
+     * @return The entry found, or null if the index is empty or every entry is later than the target.
+     */
+    public TimestampOffset lookup(long targetTimestamp) {
+        if (Os.isWindows)
+            return Utils.inLock(lock, () -> lookup(mmap, targetTimestamp));
+        long stamp = seqLock.tryOptimisticRead();
+        TimestampOffset found = lookup(mmap, targetTimestamp);
+        if (seqLock.validate(stamp))
+            return found;
+        stamp = seqLock.readLock();
+        try {
+            return lookup(mmap, targetTimestamp);
+        } finally {
+            seqLock.unlockRead(stamp);
+        }
+    }
+
+    /*
+     * Only absolute reads are done on the buffer, so it can be shared by concurrent lookups without a duplicate. The
+     * entry count is bounded by the buffer since a racing truncate and trim may have shrunk the map since it was read.
+     */
+    private TimestampOffset lookup(ByteBuffer idx, long targetTimestamp) {
+        int n = Math.min(entries(), idx.limit() / EntrySize);
+        if (n == 0 || timestamp(idx, 0) > targetTimestamp)
+            return null;
+        // binary search for the last entry with timestamp <= target
+        int lo = 0;
+        int hi = n - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (timestamp(idx, mid) <= targetTimestamp)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return new TimestampOffset(timestamp(idx, lo), baseOffset + relativeOffset(idx, lo));
+    }
+
+    /**
+     * Get the nth entry of the index
+     */
+    public TimestampOffset entry(int n) {
+        if (Os.isWindows)
+            return Utils.inLock(lock, () -> readEntry(n));
+        long stamp = seqLock.tryOptimisticRead();
+        TimestampOffset entry = readEntry(n);
+        if (seqLock.validate(stamp))
+            return entry;
+        stamp = seqLock.readLock();
+        try {
+            return readEntry(n);
+        } finally {
+            seqLock.unlockRead(stamp);
+        }
+    }
+
+    private TimestampOffset readEntry(int n) {
+        ByteBuffer idx = mmap;
+        if (n >= entries() || n >= idx.limit() / EntrySize)
+            throw new IllegalArgumentException(String.format("Attempt to fetch the %dth entry from a time index of size %d.", n, entries()));
+        return new TimestampOffset(timestamp(idx, n), baseOffset + relativeOffset(idx, n));
+    }
+
+    /**
+     * Append an entry if both its timestamp and offset are larger than those of the last entry and there is room
+     * for it; otherwise the index is left as it is.
+     *
+     * @return true iff the entry was added
+     */
+    public boolean maybeAppend(long timestamp, long offset) {
+        return Utils.inLock(lock, () -> {
+            if (isFull())
+                return false;
+            if (size.get() > 0 && (timestamp <= lastEntry.timestamp || offset <= lastEntry.offset))
+                return false;
+            Prediction.require(offset >= baseOffset, String.format("Attempt to add offset %d below the base offset %d to time index %s.", offset, baseOffset, file.getName()));
+            if (logger.isDebugEnabled())
+                debug(String.format("Adding time index entry %d => %d to %s.", timestamp, offset, file.getName()));
+            mmap.putLong(timestamp);
+            mmap.putInt((int) (offset - baseOffset));
+            // an ordered write, so readers that see the new count see the entry written above
+            size.lazySet(size.get() + 1);
+            lastEntry = new TimestampOffset(timestamp, offset);
+            Prediction.require(entries() * EntrySize == mmap.position(), entries() + " entries but file position in time index is " + mmap.position() + ".");
+            return true;
+        });
+    }
+
+    /**
+     * True iff there are no more slots available in this index
+     */
+    public boolean isFull() {
+        return entries() >= this.maxEntries;
+    }
+
+    /**
+     * Truncate the entire index, deleting all entries
+     */
+    public void truncate() {
+        truncateToEntries(0);
+    }
+
+    /**
+     * Remove all entries from the index which have an offset greater than or equal to the given offset.
+     */
+    public void truncateTo(long offset) {
+        Utils.inLock(lock, () -> {
+            ByteBuffer idx = mmap;
+            long relOffset = offset - baseOffset;
+            // binary search for the first entry with an offset >= the given offset
+            int lo = 0;
+            int hi = entries();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (relativeOffset(idx, mid) < relOffset)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            truncateToEntries(lo);
+        });
+    }
+
+    private void truncateToEntries(int entries) {
+        Utils.inLock(lock, () -> {
+            long stamp = seqLock.writeLock();
+            try {
+                this.size.set(entries);
+                mmap.position(entries * EntrySize);
+                this.lastEntry = readLastEntry();
+            } finally {
+                seqLock.unlockWrite(stamp);
+            }
+        });
+    }
+
+    /**
+     * Trim this index to fit just the valid entries, deleting all trailing unwritten bytes from the file.
+     */
+    public void trimToValidSize() {
+        Utils.inLock(lock, () -> resize(entries() * EntrySize));
+    }
+
+    /**
+     * Reset the size of the memory map and the underlying file, see OffsetIndex.resize
+     */
+    public void resize(int newSize) {
+        Utils.inLock(lock, () -> {
+            final RandomAccessFile raf;
+            long stamp = seqLock.writeLock();
+            try {
+                raf = new RandomAccessFile(file, "rws");
+                int roundedNewSize = roundToExactMultiple(newSize, EntrySize);
+                int position = this.mmap.position();
+
+                /* Windows won't let us modify the file length while the file is mmapped :-( */
+                if (Os.isWindows) {
+                    forceUnmap(this.mmap);
+                }
+                try {
+                    raf.setLength(roundedNewSize);
+                    this.mmap = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, roundedNewSize);
+                    this.maxEntries = this.mmap.limit() / EntrySize;
+                    this.mmap.position(position);
+                } catch (IOException e) {
+                    error(e.getMessage(), e);
+                } finally {
+                    try {
+                        raf.close();
+                    } catch (IOException e) {
+                        error(e.getMessage(), e);
+                    }
+                }
+            } catch (FileNotFoundException e) {
+                error(e.getMessage(), e);
+            } finally {
+                seqLock.unlockWrite(stamp);
+            }
+        });
+    }
+
+    /**
+     * Forcefully free the buffer's mmap. We do this only on windows.
+     */
+    private void forceUnmap(MappedByteBuffer m) {
+        try {
+            if (m instanceof sun.nio.ch.DirectBuffer)
+                ((DirectBuffer) m).cleaner().clean();
+        } catch (Exception e) {
+            warn("Error when freeing time index buffer", e);
+        }
+    }
+
+    /**
+     * Flush the data in the index to disk
+     */
+    public void flush() {
+        Utils.inLock(lock, () -> mmap.force());
+    }
+
+    /**
+     * Delete this index file
+     */
+    public Boolean delete() {
+        info("Deleting time index " + this.file.getAbsolutePath());
+        return this.file.delete();
+    }
+
+    /**
+     * The number of entries in this index
+     */
+    public int entries() {
+        return size.get();
+    }
+
+    /**
+     * The number of bytes actually used by this index
+     */
+    public int sizeInBytes() {
+        return EntrySize * entries();
+    }
+
+    /**
+     * Close the index
+     */
+    public void close() {
+        trimToValidSize();
+    }
+
+    /**
+     * Rename the file that backs this time index
+     *
+     * @return true iff the rename was successful
+     */
+    public Boolean renameTo(File f) {
+        Boolean success = this.file.renameTo(f);
+        this.file = f;
+        return success;
+    }
+
+    /**
+     * Do a basic sanity check on this index to detect obvious problems
+     *
+     * @throws IllegalArgumentException if any problems are found
+     */
+    public void sanityCheck() {
+        Prediction.require(entries() == 0 || lastEntry.offset >= baseOffset,
+                String.format("Corrupt time index found, index file (%s) has non-zero size but the last offset is %d and the base offset is %d",
+                        file.getAbsolutePath(), lastEntry.offset, baseOffset));
+        long len = file.length();
+        Prediction.require(len % EntrySize == 0,
+                "Time index file " + file.getName() + " is corrupt, found " + len +
+                        " bytes which is not positive or not a multiple of " + EntrySize + ".");
+    }
+
+    /* return the timestamp of the nth entry */
+    private long timestamp(ByteBuffer buffer, int n) {
+        return buffer.getLong(n * EntrySize);
+    }
+
+    /* return the offset of the nth entry relative to the base offset */
+    private int relativeOffset(ByteBuffer buffer, int n) {
+        return buffer.getInt(n * EntrySize + 8);
+    }
+
+    /**
+     * Binary search for the first entry that was never written. Written entries all have a real, non-zero timestamp
+     * and come before the unwritten ones.
+     */
+    private int firstUnwrittenSlot(ByteBuffer buffer) {
+        int lo = 0;
+        int hi = buffer.limit() / EntrySize;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (timestamp(buffer, mid) > 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Round a number to the greatest exact multiple of the given factor less than the given number.
+     */
+    private int roundToExactMultiple(int number, int factor) {
+        return factor * (number / factor);
+    }
+}
@@ -0,0 +1,35 @@
+package kafka.log;
+
+/**
+ * An entry of the time index: the message set beginning at offset was appended to the log at timestamp.
+ */
+public class TimestampOffset {
+    public final long timestamp;
+    public final long offset;
+
+    public TimestampOffset(long timestamp, long offset) {
+        this.timestamp = timestamp;
+        this.offset = offset;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof TimestampOffset) {
+            TimestampOffset other = (TimestampOffset) obj;
+            if (timestamp == other.timestamp && offset == other.offset) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(timestamp) + Long.hashCode(offset);
+    }
+
+    @Override
+    public String toString() {
+        return "TimestampOffset(timestamp=" + timestamp + ", offset=" + offset + ")";
+    }
+}
@@ -5,6 +5,8 @@ package kafka.log;/**
 import kafka.cluster.Partition;
 import kafka.cluster.Replica;
 
+import java.util.Objects;
+
 /**
  * @author
  * @create 2017-04-01 17:49
@@ -33,6 +35,19 @@ public class TopicAndPartition {
         return new TopicAndPartition(topic, partition);
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        TopicAndPartition that = (TopicAndPartition) o;
+        return Objects.equals(topic, that.topic) && Objects.equals(partition, that.partition);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(topic, partition);
+    }
+
     @Override
     public String toString() {
         return String.format("[%s,%d]", topic, partition);
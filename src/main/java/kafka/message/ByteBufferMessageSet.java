@@ -9,7 +9,6 @@ import kafka.utils.Logging;
 import org.apache.commons.collections.CollectionUtils;
 
 import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
@@ -32,59 +31,32 @@ public class ByteBufferMessageSet extends MessageSet {
     }
 
     private static ByteBuffer create(AtomicLong offsetCounter, CompressionCodec compressionCodec, List<Message> messages) {
-        return _create0(offsetCounter, compressionCodec, messages);
+        return _create0(offsetCounter, compressionCodec, Message.CurrentMagicValue, messages);
     }
 
-    private static ByteBuffer _create0(AtomicLong offsetCounter, CompressionCodec compressionCodec, List<Message> messages) {
-
-        if (CollectionUtils.isEmpty(messages)) {
+    private static ByteBuffer _create0(AtomicLong offsetCounter, CompressionCodec compressionCodec, byte magic, List<Message> messages) {
+        if (CollectionUtils.isEmpty(messages))
             return MessageSet.Empty.buffer;
-        } else if (compressionCodec == CompressionCodec.NoCompressionCodec) {
-            ByteBuffer buffer = ByteBuffer.allocate(MessageSet.messageSetSize(messages));
-            for (Message message : messages) {
-                writeMessage(buffer, message, offsetCounter.getAndIncrement());
-            }
-            buffer.rewind();
-            return buffer;
-        } else {
-            ByteArrayOutputStream byteArrayStream = new ByteArrayOutputStream(MessageSet.messageSetSize(messages));
-            DataOutputStream output = new DataOutputStream(CompressionFactory.apply(compressionCodec, byteArrayStream));
-            long offset = -1L;
-            try {
-                try {
-                    for (Message message : messages) {
-                        offset = offsetCounter.getAndIncrement();
-                        output.writeLong(offset);
-                        output.writeInt(message.size());
-                        output.write(message.buffer.array(), message.buffer.arrayOffset(), message.buffer.limit());
-                    }
-                } catch (IOException e) {
-                    logger.error(e.getMessage(), e);
-                }
-            } finally {
-                try {
-                    output.close();
-                } catch (IOException e) {
-                    logger.error(e.getMessage(),e);
-                }
-            }
-            byte[] bytes = byteArrayStream.toByteArray();
-            Message message = new Message(bytes, compressionCodec);
-            ByteBuffer buffer = ByteBuffer.allocate(message.size() + MessageSet.LogOverhead);
-            writeMessage(buffer, message, offset);
-            buffer.rewind();
-            return buffer;
-        }
+        MessageSetBuilder builder = new MessageSetBuilder(compressionCodec, offsetCounter, magic, messages.size(),
+                MessageSet.messageSetSize(messages), false);
+        for (Message message : messages)
+            builder.append(message);
+        return builder.build().buffer;
     }
 
     private static ByteBuffer create(AtomicLong offsetCounter, CompressionCodec compressionCodec, Message... messages) {
-        return _create0(offsetCounter, compressionCodec, Lists.newArrayList(messages));
+        return _create0(offsetCounter, compressionCodec, Message.CurrentMagicValue, Lists.newArrayList(messages));
     }
 
+    /**
+     * Decompress the whole message set inside a compressed wrapper message. Iterating over a message set decodes the
+     * inner messages as it goes instead, see {@link DecompressingIterator}. Either is recorded into the
+     * {@link CompressionStats} of the calling thread, if it has any.
+     */
     public static ByteBufferMessageSet decompress(Message message) throws IOException {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         InputStream inputStream = new ByteBufferBackedInputStream(message.payload());
-        byte[] intermediateBuffer = new byte[1024];
+        byte[] intermediateBuffer = new byte[8192];
         InputStream compressed = CompressionFactory.apply(message.compressionCodec(), inputStream);
         try {
             int len;
@@ -94,10 +66,7 @@ public class ByteBufferMessageSet extends MessageSet {
         } finally {
             compressed.close();
         }
-        ByteBuffer outputBuffer = ByteBuffer.allocate(outputStream.size());
-        outputBuffer.put(outputStream.toByteArray());
-        outputBuffer.rewind();
-        return new ByteBufferMessageSet(outputBuffer);
+        return new ByteBufferMessageSet(ByteBuffer.wrap(outputStream.toByteArray()));
     }
 
     public static void writeMessage(ByteBuffer buffer, Message message, Long offset) {
@@ -132,6 +101,14 @@ public class ByteBufferMessageSet extends MessageSet {
         this(ByteBufferMessageSet.create(offsetCounter, compressionCodec, messages));
     }
 
+    /**
+     * Create a message set with the given magic value; with {@link Message#RelativeOffsetMagicValue} a compressed
+     * wrapper carries the offsets of its messages relative to its own.
+     */
+    public ByteBufferMessageSet(CompressionCodec compressionCodec, AtomicLong offsetCounter, byte magic, List<Message> messages) {
+        this(ByteBufferMessageSet._create0(offsetCounter, compressionCodec, magic, messages));
+    }
+
     public ByteBufferMessageSet(Message... messages) {
         this(CompressionCodec.NoCompressionCodec, new AtomicLong(0), messages);
     }
@@ -193,6 +170,14 @@ public class ByteBufferMessageSet extends MessageSet {
         return internalIterator(true);
     }
 
+    /**
+     * A cursor over the messages of this set without decompressing, which unlike the iterators allocates nothing per
+     * message
+     */
+    public MessageSetCursor cursor() {
+        return new MessageSetCursor(buffer.duplicate());
+    }
+
     /**
      * When flag isShallow is set to be true, we do a shallow iteration: just traverse the first level of messages.
      **/
@@ -240,19 +225,14 @@ public class ByteBufferMessageSet extends MessageSet {
                 if (isShallow) {
                     return new MessageAndOffset(newMessage, offset);
                 } else {
-                    switch (newMessage.compressionCodec()) {
-                        case NoCompressionCodec:
+                    if (newMessage.compressionCodec() == CompressionCodec.NoCompressionCodec) {
+                        innerIterator = null;
+                        return new MessageAndOffset(newMessage, offset);
+                    } else {
+                        innerIterator = new DecompressingIterator(newMessage, offset);
+                        if (!innerIterator.hasNext())
                             innerIterator = null;
-                            return new MessageAndOffset(newMessage, offset);
-                        default:
-                            try {
-                                innerIterator = ByteBufferMessageSet.decompress(newMessage).internalIterator(false);
-                            } catch (IOException e) {
-                                error(e.getMessage(), e);
-                            }
-                            if (!innerIterator.hasNext())
-                                innerIterator = null;
-                            return makeNext();
+                        return makeNext();
                     }
                 }
             }
@@ -275,8 +255,13 @@ public class ByteBufferMessageSet extends MessageSet {
             }
             buffer.reset();
             return this;
+        } else if (hasRelativeOffsets()) {
+            return assignOffsets(offsetCounter, validateRelativeOffsets());
         } else {
             // messages are compressed, crack open the messageset and recompress with correct offset
+            CompressionStats stats = CompressionFactory.stats();
+            if (stats != null)
+                stats.recordRecompression(codec);
             List<Message> list = Lists.newArrayList();
             Itor.loop(this.internalIterator(false), m -> list.add(m.message));
             return new ByteBufferMessageSet(codec, offsetCounter, list);
@@ -284,11 +269,73 @@ public class ByteBufferMessageSet extends MessageSet {
     }
 
 
+    /**
+     * True if every message in this set is a compressed wrapper with relative offsets, so that offsets can be assigned
+     * without recompressing anything
+     */
+    public boolean hasRelativeOffsets() {
+        Iterator<MessageAndOffset> it = shallowIterator();
+        if (!it.hasNext())
+            return false;
+        while (it.hasNext()) {
+            if (!it.next().message.hasRelativeOffsets())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check the messages inside every relative offset wrapper in this set: each must be valid and their relative
+     * offsets must count up to 0 one at a time.
+     *
+     * @return The number of messages inside each wrapper
+     * @throws InvalidMessageException If an inner message is corrupt or out of sequence
+     */
+    public int[] validateRelativeOffsets() {
+        List<Integer> counts = Lists.newArrayList();
+        Iterator<MessageAndOffset> it = shallowIterator();
+        while (it.hasNext()) {
+            Message wrapper = it.next().message;
+            int count = 0;
+            long expected = Long.MIN_VALUE;
+            try (DecompressingIterator inner = new DecompressingIterator(wrapper)) {
+                while (inner.hasNext()) {
+                    MessageAndOffset entry = inner.next();
+                    entry.message.ensureValid();
+                    if (count > 0 && entry.offset != expected)
+                        throw new InvalidMessageException("Relative offset " + entry.offset + " found where " + expected + " was expected");
+                    expected = entry.offset + 1;
+                    count += 1;
+                }
+            }
+            if (count == 0 || expected != 1)
+                throw new InvalidMessageException("The relative offsets of a compressed message must end at 0");
+            counts.add(count);
+        }
+        return counts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Assign offsets to a set of relative offset wrappers in place: each wrapper gets the offset of the last message
+     * inside it.
+     *
+     * @param offsetCounter The next offset to assign
+     * @param innerCounts   The number of messages inside each wrapper, as returned by {@link #validateRelativeOffsets()}
+     */
+    public ByteBufferMessageSet assignOffsets(AtomicLong offsetCounter, int[] innerCounts) {
+        int position = 0;
+        for (int count : innerCounts) {
+            buffer.putLong(buffer.position() + position, offsetCounter.addAndGet(count) - 1);
+            position += MessageSet.LogOverhead + buffer.getInt(buffer.position() + position + 8);
+        }
+        return this;
+    }
+
     /**
      * The total number of bytes in this message set, including any partial trailing messages
      */
     @Override
-    public Integer sizeInBytes() {
+    public int sizeInBytes() {
         return buffer.limit();
     }
 
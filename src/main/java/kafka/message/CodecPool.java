@@ -0,0 +1,291 @@
+package kafka.message;
+
+import com.google.common.collect.Maps;
+import com.yammer.metrics.core.Meter;
+import kafka.annotation.nonthreadsafe;
+import kafka.metrics.KafkaMetricsGroup;
+import org.xerial.snappy.buffer.BufferAllocator;
+import org.xerial.snappy.buffer.BufferAllocatorFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * The compressors, decompressors and block buffers of the compression streams, kept per thread so that compressing or
+ * decompressing a message set reuses them instead of allocating new ones every time.
+ * <p>
+ * A stream borrows what it needs when it is created and releases it when it is closed, after which it is reset and
+ * can be borrowed by the next stream on the thread that closed it. A thread that has several streams open at once,
+ * such as one decompressing a message set while another recompresses it, gets fresh objects for the ones the pool does
+ * not hold, and the pool keeps only a few of each when they are released.
+ */
+@nonthreadsafe
+public class CodecPool extends KafkaMetricsGroup {
+    /* the size of the buffers between a gzip stream and the deflater or inflater */
+    public static final int GZIPBufferSize = 8 * 1024;
+    /* the block size snappy compresses with, the same as its default */
+    public static final int SnappyBlockSize = 32 * 1024;
+    /* the number of released buffers of each size kept for reuse */
+    public static final int MaxPooledBuffers = 2;
+
+    private static final ThreadLocal<CodecPool> pools = ThreadLocal.withInitial(CodecPool::new);
+
+    /**
+     * The pool of the current thread
+     */
+    public static CodecPool get() {
+        return pools.get();
+    }
+
+    /**
+     * Lets snappy take its buffers from the pool of the thread creating or closing the stream
+     */
+    public static final BufferAllocatorFactory SnappyBuffers = size -> new BufferAllocator() {
+        @Override
+        public byte[] allocate(int size) {
+            return get().borrowBuffer(size);
+        }
+
+        @Override
+        public void release(byte[] buffer) {
+            get().release(buffer);
+        }
+    };
+
+    /* shared by the pools of all threads */
+    public final Meter hits;
+    public final Meter misses;
+
+    private Deflater deflater = null;
+    private Inflater inflater = null;
+    private Map<Integer, ArrayDeque<byte[]>> buffers = Maps.newHashMap();
+
+    private CodecPool() {
+        hits = newMeter("CodecPoolHitsPerSec", "borrows", TimeUnit.SECONDS);
+        misses = newMeter("CodecPoolMissesPerSec", "borrows", TimeUnit.SECONDS);
+    }
+
+    public Deflater borrowDeflater() {
+        Deflater borrowed = deflater;
+        if (borrowed != null) {
+            deflater = null;
+            hits.mark();
+            return borrowed;
+        }
+        misses.mark();
+        return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    }
+
+    public void release(Deflater released) {
+        released.reset();
+        if (deflater == null)
+            deflater = released;
+        else
+            released.end();
+    }
+
+    public Inflater borrowInflater() {
+        Inflater borrowed = inflater;
+        if (borrowed != null) {
+            inflater = null;
+            hits.mark();
+            return borrowed;
+        }
+        misses.mark();
+        return new Inflater(true);
+    }
+
+    public void release(Inflater released) {
+        released.reset();
+        if (inflater == null)
+            inflater = released;
+        else
+            released.end();
+    }
+
+    /**
+     * Borrow a buffer of exactly the given size, its contents are whatever its last user left in it
+     */
+    public byte[] borrowBuffer(int size) {
+        ArrayDeque<byte[]> free = buffers.get(size);
+        if (free != null && !free.isEmpty()) {
+            hits.mark();
+            return free.pop();
+        }
+        misses.mark();
+        return new byte[size];
+    }
+
+    public void release(byte[] buffer) {
+        ArrayDeque<byte[]> free = buffers.computeIfAbsent(buffer.length, size -> new ArrayDeque<>());
+        if (free.size() < MaxPooledBuffers)
+            free.push(buffer);
+    }
+
+    /**
+     * A gzip stream that compresses with a deflater and buffer from the pool
+     */
+    public static class GZIPOutput extends DeflaterOutputStream {
+        private static final byte[] Header = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+        private CRC32 crc = new CRC32();
+        private boolean closed = false;
+
+        public GZIPOutput(OutputStream out) throws IOException {
+            super(out, get().borrowDeflater(), 1);
+            this.buf = get().borrowBuffer(GZIPBufferSize);
+            out.write(Header);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            crc.update(b, off, len);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (!def.finished()) {
+                def.finish();
+                while (!def.finished())
+                    deflate();
+                writeIntLE((int) crc.getValue());
+                writeIntLE((int) def.getBytesRead());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                finish();
+                out.close();
+            } finally {
+                get().release(def);
+                get().release(buf);
+            }
+        }
+
+        private void writeIntLE(int value) throws IOException {
+            out.write(value & 0xff);
+            out.write((value >>> 8) & 0xff);
+            out.write((value >>> 16) & 0xff);
+            out.write((value >>> 24) & 0xff);
+        }
+    }
+
+    /**
+     * A gzip stream that decompresses a single member with an inflater and buffer from the pool
+     */
+    public static class GZIPInput extends InflaterInputStream {
+        private static final int FHCRC = 2;
+        private static final int FEXTRA = 4;
+        private static final int FNAME = 8;
+        private static final int FCOMMENT = 16;
+
+        private CRC32 crc = new CRC32();
+        private boolean eos = false;
+        private boolean closed = false;
+
+        public GZIPInput(InputStream in) throws IOException {
+            super(in, get().borrowInflater(), 1);
+            this.buf = get().borrowBuffer(GZIPBufferSize);
+            try {
+                readHeader();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (eos)
+                return -1;
+            int n = super.read(b, off, len);
+            if (n == -1) {
+                readTrailer();
+                eos = true;
+            } else {
+                crc.update(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                in.close();
+            } finally {
+                get().release(inf);
+                get().release(buf);
+            }
+        }
+
+        private void readHeader() throws IOException {
+            if (readUByte() != 0x1f || readUByte() != 0x8b)
+                throw new ZipException("Not in GZIP format");
+            if (readUByte() != Deflater.DEFLATED)
+                throw new ZipException("Unsupported compression method");
+            int flags = readUByte();
+            // modification time, extra flags and operating system;
+            for (int i = 0; i < 6; i++)
+                readUByte();
+            if ((flags & FEXTRA) != 0) {
+                int length = readUByte() | (readUByte() << 8);
+                for (int i = 0; i < length; i++)
+                    readUByte();
+            }
+            if ((flags & FNAME) != 0) {
+                while (readUByte() != 0) ;
+            }
+            if ((flags & FCOMMENT) != 0) {
+                while (readUByte() != 0) ;
+            }
+            if ((flags & FHCRC) != 0) {
+                readUByte();
+                readUByte();
+            }
+        }
+
+        private void readTrailer() throws IOException {
+            // the inflater may have been handed some or all of the trailer along with the end of the data;
+            byte[] trailer = new byte[8];
+            int remaining = Math.min(inf.getRemaining(), trailer.length);
+            System.arraycopy(buf, len - inf.getRemaining(), trailer, 0, remaining);
+            for (int i = remaining; i < trailer.length; i++)
+                trailer[i] = (byte) readUByte();
+            if (readIntLE(trailer, 0) != (int) crc.getValue())
+                throw new ZipException("Corrupt GZIP trailer");
+            if (readIntLE(trailer, 4) != (int) inf.getBytesWritten())
+                throw new ZipException("Corrupt GZIP trailer");
+        }
+
+        private int readUByte() throws IOException {
+            int b = in.read();
+            if (b == -1)
+                throw new EOFException("Unexpected end of GZIP input stream");
+            return b;
+        }
+
+        private static int readIntLE(byte[] bytes, int offset) {
+            return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+        }
+    }
+}
@@ -2,47 +2,177 @@ package kafka.message;/**
  * Created by zhoulf on 2017/3/22.
  */
 
+import com.github.luben.zstd.RecyclingBufferPool;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStreamNoFinalizer;
+import kafka.common.UnknownCodecException;
+import kafka.utils.Prediction;
+import org.xerial.snappy.SnappyInputStream;
+import org.xerial.snappy.SnappyOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Objects;
+
 /**
  * @author
  * @create 2017-03-22 20:27
+ *
+ * A compression codec, identified in a message's attributes by its id. The built in codecs are registered when this
+ * class is loaded; others, such as zstd with a dictionary trained on a topic's data, can be registered by id with
+ * {@link #register(int, String, StreamFactory)} before any message that uses them is read or written.
  **/
-public enum CompressionCodec {
-    NoCompressionCodec(0, "none"),
-    GZIPCompressionCodec(1, "gzip"),
-    SnappyCompressionCodec(2, "snappy"),
-    LZ4CompressionCodec(3, "none");
-    public int codec;
-    public String name;
+public final class CompressionCodec {
+    /* the largest id that fits in the compression bits of the message attributes */
+    public static final int MaxCodecId = Message.CompressionCodeMask;
+    public static final int ZStdDefaultLevel = 3;
+
+    private static final CompressionCodec[] codecs = new CompressionCodec[MaxCodecId + 1];
+
+    public static final CompressionCodec NoCompressionCodec = register(0, "none", null);
+    public static final CompressionCodec GZIPCompressionCodec = register(1, "gzip", new StreamFactory() {
+        public OutputStream wrapForOutput(OutputStream out) throws IOException {
+            return new CodecPool.GZIPOutput(out);
+        }
+
+        public InputStream wrapForInput(InputStream in) throws IOException {
+            return new CodecPool.GZIPInput(in);
+        }
+    });
+    public static final CompressionCodec SnappyCompressionCodec = register(2, "snappy", new StreamFactory() {
+        public OutputStream wrapForOutput(OutputStream out) throws IOException {
+            return new SnappyOutputStream(out, CodecPool.SnappyBlockSize, CodecPool.SnappyBuffers);
+        }
+
+        public InputStream wrapForInput(InputStream in) throws IOException {
+            return new SnappyInputStream(in);
+        }
+    });
+    public static final CompressionCodec LZ4CompressionCodec = register(3, "lz4", new StreamFactory() {
+        public OutputStream wrapForOutput(OutputStream out) throws IOException {
+            return new KafkaLZ4BlockOutputStream(out);
+        }
+
+        public InputStream wrapForInput(InputStream in) throws IOException {
+            return new KafkaLZ4BlockInputStream(in);
+        }
+    });
+    public static final CompressionCodec ZStdCompressionCodec = register(4, "zstd", zstd(ZStdDefaultLevel, null));
+    public static final CompressionCodec LZ4RawBlockCompressionCodec = register(5, "lz4-block", new StreamFactory() {
+        public OutputStream wrapForOutput(OutputStream out) {
+            return new KafkaLZ4RawBlockOutputStream(out);
+        }
 
-    CompressionCodec(int c, String n) {
-        this.codec = c;
-        this.name = n;
+        public InputStream wrapForInput(InputStream in) {
+            return new KafkaLZ4RawBlockInputStream(in);
+        }
+    });
+
+    public final int codec;
+    public final String name;
+    private final StreamFactory streams;
+
+    private CompressionCodec(int codec, String name, StreamFactory streams) {
+        this.codec = codec;
+        this.name = name;
+        this.streams = streams;
     }
 
-    public static CompressionCodec getCompressionCodec(Integer c) {
-        if (c.equals(NoCompressionCodec.codec))
-            return NoCompressionCodec;
-        if (c.equals(GZIPCompressionCodec.codec))
-            return GZIPCompressionCodec;
-        if (c.equals(SnappyCompressionCodec.codec))
-            return SnappyCompressionCodec;
-        if (c.equals(LZ4CompressionCodec.codec))
-            return LZ4CompressionCodec;
-        throw new kafka.common.UnknownCodecException("%d is an unknown compression codec".format(c.toString()));
-    }
-
-    public static CompressionCodec getCompressionCodec(String name) {
-        if (name.equals(NoCompressionCodec.name))
-            return NoCompressionCodec;
-        if (name.equals(GZIPCompressionCodec.name))
-            return GZIPCompressionCodec;
-        if (name.equals(SnappyCompressionCodec.name))
-            return SnappyCompressionCodec;
-        if (name.equals(LZ4CompressionCodec.name))
-            return LZ4CompressionCodec;
-        throw new kafka.common.UnknownCodecException("%d is an unknown compression codec".format(name));
+    /**
+     * Creates the streams that compress and decompress the message sets of a codec
+     */
+    public interface StreamFactory {
+        OutputStream wrapForOutput(OutputStream out) throws IOException;
+
+        InputStream wrapForInput(InputStream in) throws IOException;
+    }
+
+    public OutputStream wrapForOutput(OutputStream out) throws IOException {
+        if (streams == null)
+            throw new UnknownCodecException("Codec " + name + " does not compress");
+        return streams.wrapForOutput(out);
     }
-}
 
+    public InputStream wrapForInput(InputStream in) throws IOException {
+        if (streams == null)
+            throw new UnknownCodecException("Codec " + name + " does not compress");
+        return streams.wrapForInput(in);
+    }
+
+    /**
+     * Register a codec under an id that is not taken yet
+     *
+     * @param id      The id stored in the attributes of the messages compressed with it, at most {@link #MaxCodecId}
+     * @param name    The name it is configured by
+     * @param streams The streams that compress and decompress with it
+     * @return The codec
+     */
+    public static synchronized CompressionCodec register(int id, String name, StreamFactory streams) {
+        Prediction.require(id >= 0 && id <= MaxCodecId, String.format("Codec id %d is not between 0 and %d.", id, MaxCodecId));
+        Prediction.require(codecs[id] == null, String.format("Codec id %d is already registered for %s.", id, codecs[id]));
+        for (CompressionCodec codec : codecs)
+            Prediction.require(codec == null || !codec.name.equals(name), String.format("Codec name %s is already registered.", name));
+        CompressionCodec codec = new CompressionCodec(id, name, streams);
+        codecs[id] = codec;
+        return codec;
+    }
+
+    /**
+     * The streams of a zstd codec, optionally compressing against a dictionary which is then needed to decompress
+     *
+     * @param level      The compression level
+     * @param dictionary The dictionary, or null to compress without one
+     */
+    public static StreamFactory zstd(int level, byte[] dictionary) {
+        ZstdDictCompress compressDictionary = dictionary == null ? null : new ZstdDictCompress(dictionary, level);
+        ZstdDictDecompress decompressDictionary = dictionary == null ? null : new ZstdDictDecompress(dictionary);
+        return new StreamFactory() {
+            public OutputStream wrapForOutput(OutputStream out) throws IOException {
+                ZstdOutputStreamNoFinalizer stream = new ZstdOutputStreamNoFinalizer(out, RecyclingBufferPool.INSTANCE, level);
+                if (compressDictionary != null)
+                    stream.setDict(compressDictionary);
+                return stream;
+            }
+
+            // iterations over a message set can be abandoned part way through a wrapper, so the decompressing side
+            // keeps the finalizer that frees the native context of a stream nobody closed
+            public InputStream wrapForInput(InputStream in) throws IOException {
+                ZstdInputStream stream = new ZstdInputStream(in, RecyclingBufferPool.INSTANCE);
+                if (decompressDictionary != null)
+                    stream.setDict(decompressDictionary);
+                return stream;
+            }
+        };
+    }
+
+    /**
+     * The registered codecs, in order of their ids
+     */
+    public static synchronized CompressionCodec[] values() {
+        return Arrays.stream(codecs).filter(Objects::nonNull).toArray(CompressionCodec[]::new);
+    }
 
+    public static CompressionCodec getCompressionCodec(Integer c) {
+        CompressionCodec codec = c >= 0 && c <= MaxCodecId ? codecs[c] : null;
+        if (codec == null)
+            throw new UnknownCodecException(String.format("%d is an unknown compression codec", c));
+        return codec;
+    }
 
+    public static synchronized CompressionCodec getCompressionCodec(String name) {
+        for (CompressionCodec codec : codecs) {
+            if (codec != null && codec.name.equals(name))
+                return codec;
+        }
+        throw new UnknownCodecException(String.format("%s is an unknown compression codec", name));
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -3,33 +3,58 @@ package kafka.message;/**
  */
 
 import kafka.utils.Logging;
-import org.xerial.snappy.SnappyInputStream;
-import org.xerial.snappy.SnappyOutputStream;
 
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * @author
  * @create 2017-03-24 11:20
+ *
+ * The streams are created by the codec, see {@link CompressionCodec#register}. Those of the built in codecs reuse the
+ * compressors and buffers kept by the {@link CodecPool} of the calling thread, which get them back when the streams
+ * are closed.
+ * <p>
+ * On a thread that records into {@link CompressionStats} the streams are metered: they count the bytes on both sides of
+ * the codec and the time spent in it, and report them when they are closed. A stream that is never closed reports
+ * nothing. Other threads get the codec's streams as they are.
  **/
 public class CompressionFactory {
     private static final Logging logger = Logging.getLogger(CompressionFactory.class.getName());
+    private static final ThreadLocal<CompressionStats> currentStats = new ThreadLocal<>();
+
+    /**
+     * Record the streams created by this thread into the given stats, or stop recording them if it is null
+     *
+     * @return The stats this thread recorded into before, to be restored when done
+     */
+    public static CompressionStats recordInto(CompressionStats stats) {
+        CompressionStats previous = currentStats.get();
+        if (stats == null)
+            currentStats.remove();
+        else
+            currentStats.set(stats);
+        return previous;
+    }
+
+    /**
+     * The stats this thread records into, or null if it records into none
+     */
+    public static CompressionStats stats() {
+        return currentStats.get();
+    }
+
     public static OutputStream apply(CompressionCodec compressionCodec, OutputStream stream) {
         try {
-            switch (compressionCodec) {
-                case GZIPCompressionCodec:
-                    return new GZIPOutputStream(stream);
-                case SnappyCompressionCodec:
-                    return new SnappyOutputStream(stream);
-                case LZ4CompressionCodec:
-                    return new KafkaLZ4BlockOutputStream(stream);
-                default:
-                    throw new kafka.common.UnknownCodecException("Unknown Codec: " + compressionCodec);
-            }
+            CompressionStats stats = currentStats.get();
+            if (stats == null)
+                return compressionCodec.wrapForOutput(stream);
+            long start = System.nanoTime();
+            CountingOutputStream compressed = new CountingOutputStream(stream);
+            return new MeteredOutputStream(compressionCodec.wrapForOutput(compressed), compressed, compressionCodec, stats, System.nanoTime() - start);
         } catch (IOException e) {
             logger.error(e.getMessage(),e);
         }
@@ -38,19 +63,184 @@ public class CompressionFactory {
 
     public static InputStream apply(CompressionCodec compressionCodec, InputStream stream) {
         try {
-            switch (compressionCodec) {
-                case GZIPCompressionCodec:
-                    return new GZIPInputStream(stream);
-                case SnappyCompressionCodec:
-                    return new SnappyInputStream(stream);
-                case LZ4CompressionCodec:
-                    return new KafkaLZ4BlockInputStream(stream);
-                default:
-                    throw new kafka.common.UnknownCodecException("Unknown Codec: " + compressionCodec);
-            }
+            CompressionStats stats = currentStats.get();
+            if (stats == null)
+                return compressionCodec.wrapForInput(stream);
+            long start = System.nanoTime();
+            CountingInputStream compressed = new CountingInputStream(stream);
+            return new MeteredInputStream(compressionCodec.wrapForInput(compressed), compressed, compressionCodec, stats, System.nanoTime() - start);
         } catch (IOException e) {
             logger.error(e.getMessage(),e);
         }
         return null;
     }
+
+    /**
+     * Counts the compressed bytes the codec writes
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count += 1;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Counts the compressed bytes the codec reads
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0)
+                count += 1;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0)
+                count += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * Times the codec's output stream and counts the bytes written to it
+     */
+    private static class MeteredOutputStream extends FilterOutputStream {
+        private final CountingOutputStream compressed;
+        private final CompressionCodec codec;
+        private final CompressionStats stats;
+        private long uncompressedBytes = 0;
+        private long nanos;
+        private boolean closed = false;
+
+        MeteredOutputStream(OutputStream out, CountingOutputStream compressed, CompressionCodec codec, CompressionStats stats, long nanos) {
+            super(out);
+            this.compressed = compressed;
+            this.codec = codec;
+            this.stats = stats;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long start = System.nanoTime();
+            out.write(b);
+            nanos += System.nanoTime() - start;
+            uncompressedBytes += 1;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            out.write(b, off, len);
+            nanos += System.nanoTime() - start;
+            uncompressedBytes += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            long start = System.nanoTime();
+            out.flush();
+            nanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            long start = System.nanoTime();
+            out.close();
+            nanos += System.nanoTime() - start;
+            stats.recordCompression(codec, uncompressedBytes, compressed.count, nanos);
+        }
+    }
+
+    /**
+     * Times the codec's input stream and counts the bytes read from it
+     */
+    private static class MeteredInputStream extends FilterInputStream {
+        private final CountingInputStream compressed;
+        private final CompressionCodec codec;
+        private final CompressionStats stats;
+        private long uncompressedBytes = 0;
+        private long nanos;
+        private boolean closed = false;
+
+        MeteredInputStream(InputStream in, CountingInputStream compressed, CompressionCodec codec, CompressionStats stats, long nanos) {
+            super(in);
+            this.compressed = compressed;
+            this.codec = codec;
+            this.stats = stats;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = in.read();
+            nanos += System.nanoTime() - start;
+            if (b >= 0)
+                uncompressedBytes += 1;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            int read = in.read(b, off, len);
+            nanos += System.nanoTime() - start;
+            if (read > 0)
+                uncompressedBytes += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long start = System.nanoTime();
+            long skipped = in.skip(n);
+            nanos += System.nanoTime() - start;
+            uncompressedBytes += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            in.close();
+            stats.recordDecompression(codec, compressed.count, uncompressedBytes, nanos);
+        }
+    }
 }
@@ -0,0 +1,31 @@
+package kafka.message;
+
+/**
+ * Receives the cost and outcome of compressing and decompressing message sets. Streams created by the
+ * {@link CompressionFactory} on a thread that records into some stats report to them when they are closed, see
+ * {@link CompressionFactory#recordInto(CompressionStats)}.
+ */
+public interface CompressionStats {
+    /**
+     * A message set was compressed
+     *
+     * @param uncompressedBytes The bytes written to the compression stream
+     * @param compressedBytes   The bytes it wrote after compressing them
+     * @param nanos             The time spent in the compression stream
+     */
+    void recordCompression(CompressionCodec codec, long uncompressedBytes, long compressedBytes, long nanos);
+
+    /**
+     * A message set was decompressed
+     *
+     * @param compressedBytes   The bytes read by the decompression stream
+     * @param uncompressedBytes The bytes read from it after decompressing them
+     * @param nanos             The time spent in the decompression stream
+     */
+    void recordDecompression(CompressionCodec codec, long compressedBytes, long uncompressedBytes, long nanos);
+
+    /**
+     * A compressed message set had to be decompressed and compressed again to assign offsets to its messages
+     */
+    void recordRecompression(CompressionCodec codec);
+}
@@ -0,0 +1,116 @@
+package kafka.message;
+
+import kafka.utils.IteratorTemplate;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An iterator over the messages inside a compressed wrapper message that decodes them as it goes, rather than
+ * decompressing the whole set up front.
+ * <p>
+ * Messages are read straight from the decompression stream into a chunk buffer and handed out as views of it. A chunk
+ * is filled by as many messages as fit and only then replaced, by one large enough for the next message, so the views
+ * already handed out stay valid for as long as the caller keeps them while a batch costs one copy of its
+ * uncompressed size instead of three.
+ */
+public class DecompressingIterator extends IteratorTemplate<MessageAndOffset> implements Closeable {
+    public static final int ChunkSize = 16 * 1024;
+
+    private DataInputStream stream;
+    private ByteBuffer chunk = null;
+    private DecompressingIterator innerIterator = null;
+
+    /* added to the offsets read, the wrapper's offset when its messages carry relative offsets */
+    private long baseOffset;
+
+    /**
+     * Iterate over the messages inside a wrapper with the offsets they are stored with, which are relative if the
+     * wrapper has relative offsets
+     */
+    public DecompressingIterator(Message message) {
+        this(message, 0L, false);
+    }
+
+    /**
+     * Iterate over the messages inside a wrapper found at the given offset, with their absolute offsets
+     */
+    public DecompressingIterator(Message message, long wrapperOffset) {
+        this(message, wrapperOffset, message.hasRelativeOffsets());
+    }
+
+    private DecompressingIterator(Message message, long wrapperOffset, boolean relative) {
+        InputStream compressed = CompressionFactory.apply(message.compressionCodec(), new ByteBufferBackedInputStream(message.payload()));
+        this.stream = new DataInputStream(compressed);
+        this.baseOffset = relative ? wrapperOffset : 0L;
+    }
+
+    @Override
+    protected MessageAndOffset makeNext() {
+        try {
+            if (innerIterator != null) {
+                if (innerIterator.hasNext())
+                    return innerIterator.next();
+                innerIterator = null;
+            }
+            long offset;
+            int size;
+            try {
+                offset = stream.readLong();
+                size = stream.readInt();
+            } catch (EOFException e) {
+                return done();
+            }
+            if (size < Message.MinHeaderSize)
+                throw new InvalidMessageException("Message found with corrupt size (" + size + ")");
+            if (chunk == null || chunk.remaining() < size)
+                chunk = ByteBuffer.allocate(Math.max(ChunkSize, size));
+            try {
+                stream.readFully(chunk.array(), chunk.arrayOffset() + chunk.position(), size);
+            } catch (EOFException e) {
+                // we have an incomplete message
+                return done();
+            }
+            ByteBuffer view = chunk.slice();
+            view.limit(size);
+            chunk.position(chunk.position() + size);
+            Message message = new Message(view);
+            if (message.compressionCodec() == CompressionCodec.NoCompressionCodec)
+                return new MessageAndOffset(message, baseOffset + offset);
+            innerIterator = new DecompressingIterator(message, baseOffset + offset);
+            return makeNext();
+        } catch (IOException e) {
+            close();
+            throw new InvalidMessageException("Failed to decompress message: " + e.getMessage());
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private MessageAndOffset done() {
+        close();
+        return allDone();
+    }
+
+    /**
+     * Release the decompression stream, and that of a nested wrapper being iterated. This is done when the iteration
+     * ends or fails; a caller that stops before the end should close the iterator itself.
+     */
+    @Override
+    public void close() {
+        if (innerIterator != null) {
+            innerIterator.close();
+            innerIterator = null;
+        }
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // nothing is left to read from it;
+        }
+    }
+}
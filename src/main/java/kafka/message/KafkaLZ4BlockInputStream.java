@@ -42,6 +42,7 @@ public final class KafkaLZ4BlockInputStream extends FilterInputStream {
     private int bufferOffset;
     private int bufferSize;
     private boolean finished;
+    private boolean closed = false;
 
     /**
      * Create a new {@link InputStream} that will decompress data using the LZ4 algorithm.
@@ -55,8 +56,9 @@ public final class KafkaLZ4BlockInputStream extends FilterInputStream {
         checksum = XXHashFactory.fastestInstance().hash32();
         readHeader();
         maxBlockSize = bd.getBlockMaximumSize();
-        buffer = new byte[maxBlockSize];
-        compressedBuffer = new byte[maxBlockSize];
+        // the block buffers are returned to the pool when the stream is closed;
+        buffer = CodecPool.get().borrowBuffer(maxBlockSize);
+        compressedBuffer = CodecPool.get().borrowBuffer(maxBlockSize);
         bufferOffset = 0;
         bufferSize = 0;
         finished = false;
@@ -199,7 +201,15 @@ public final class KafkaLZ4BlockInputStream extends FilterInputStream {
 
     @Override
     public void close() throws IOException {
-        in.close();
+        if (closed)
+            return;
+        closed = true;
+        try {
+            in.close();
+        } finally {
+            CodecPool.get().release(buffer);
+            CodecPool.get().release(compressedBuffer);
+        }
     }
 
     @Override
@@ -58,8 +58,9 @@ public final class KafkaLZ4BlockOutputStream extends FilterOutputStream {
         flg = new FLG(blockChecksum);
         bufferOffset = 0;
         maxBlockSize = bd.getBlockMaximumSize();
-        buffer = new byte[maxBlockSize];
-        compressedBuffer = new byte[compressor.maxCompressedLength(maxBlockSize)];
+        // the block buffers are returned to the pool when the stream is closed;
+        buffer = CodecPool.get().borrowBuffer(maxBlockSize);
+        compressedBuffer = CodecPool.get().borrowBuffer(compressor.maxCompressedLength(maxBlockSize));
         finished = false;
         writeHeader();
     }
@@ -204,13 +205,20 @@ public final class KafkaLZ4BlockOutputStream extends FilterOutputStream {
     @Override
     public void close() throws IOException {
         if (!finished) {
+            // the last block has to go out before the end mark;
+            writeBlock();
             writeEndMark();
             flush();
             finished = true;
         }
         if (out != null) {
-            out.close();
-            out = null;
+            try {
+                out.close();
+            } finally {
+                out = null;
+                CodecPool.get().release(buffer);
+                CodecPool.get().release(compressedBuffer);
+            }
         }
     }
 
@@ -0,0 +1,123 @@
+package kafka.message;
+
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An {@link InputStream} that decompresses the blocks written by {@link KafkaLZ4RawBlockOutputStream} until the
+ * underlying stream ends.
+ */
+public final class KafkaLZ4RawBlockInputStream extends InputStream {
+    private final LZ4SafeDecompressor decompressor = LZ4Factory.fastestInstance().safeDecompressor();
+    private final int maxCompressedLength = LZ4Factory.fastestInstance().fastCompressor().maxCompressedLength(KafkaLZ4RawBlockOutputStream.BlockSize);
+    private InputStream in;
+    private byte[] buffer;
+    private byte[] compressedBuffer;
+    private int bufferOffset = 0;
+    private int bufferSize = 0;
+    private boolean finished = false;
+
+    public KafkaLZ4RawBlockInputStream(InputStream in) {
+        this.in = in;
+        // the block buffers are returned to the pool when the stream is closed;
+        this.buffer = CodecPool.get().borrowBuffer(KafkaLZ4RawBlockOutputStream.BlockSize);
+        this.compressedBuffer = CodecPool.get().borrowBuffer(maxCompressedLength);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill())
+            return -1;
+        return buffer[bufferOffset++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!fill())
+            return -1;
+        int n = Math.min(len, bufferSize - bufferOffset);
+        System.arraycopy(buffer, bufferOffset, b, off, n);
+        bufferOffset += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return bufferSize - bufferOffset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in == null)
+            return;
+        try {
+            in.close();
+        } finally {
+            in = null;
+            CodecPool.get().release(buffer);
+            CodecPool.get().release(compressedBuffer);
+        }
+    }
+
+    /**
+     * Make sure there are bytes to read in the buffer, reading the next block if needed
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        if (in == null)
+            throw new IOException("The stream is already closed");
+        while (!finished && bufferOffset == bufferSize)
+            readBlock();
+        return bufferOffset < bufferSize;
+    }
+
+    private void readBlock() throws IOException {
+        int first = in.read();
+        if (first == -1) {
+            finished = true;
+            return;
+        }
+        int header = first << 24 | readUByte() << 16 | readUByte() << 8 | readUByte();
+        boolean stored = (header & KafkaLZ4RawBlockOutputStream.StoredMask) != 0;
+        int length = header & ~KafkaLZ4RawBlockOutputStream.StoredMask;
+        if (length > (stored ? buffer.length : compressedBuffer.length))
+            throw new IOException(String.format("Block size %d exceeded max: %d", length, stored ? buffer.length : compressedBuffer.length));
+        if (stored) {
+            readFully(buffer, length);
+            bufferSize = length;
+        } else {
+            readFully(compressedBuffer, length);
+            try {
+                bufferSize = decompressor.decompress(compressedBuffer, 0, length, buffer, 0, buffer.length);
+            } catch (LZ4Exception e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+        bufferOffset = 0;
+    }
+
+    private void readFully(byte[] into, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(into, read, length - read);
+            if (n < 0)
+                throw new EOFException("Stream ended prematurely");
+            read += n;
+        }
+    }
+
+    private int readUByte() throws IOException {
+        int b = in.read();
+        if (b == -1)
+            throw new EOFException("Stream ended prematurely");
+        return b;
+    }
+}
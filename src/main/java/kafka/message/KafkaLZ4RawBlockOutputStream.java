@@ -0,0 +1,100 @@
+package kafka.message;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An {@link OutputStream} that compresses data as a sequence of LZ4 blocks with none of the frame format's header,
+ * checksums or end mark: the message set around it already carries a CRC and its size. Each block is written as its
+ * length, with the high bit set if it was stored uncompressed, followed by its bytes.
+ */
+public final class KafkaLZ4RawBlockOutputStream extends OutputStream {
+    public static final int BlockSize = 64 * 1024;
+    public static final int StoredMask = 0x80000000;
+
+    private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+    private OutputStream out;
+    private byte[] buffer;
+    private byte[] compressedBuffer;
+    private int bufferOffset = 0;
+
+    public KafkaLZ4RawBlockOutputStream(OutputStream out) {
+        this.out = out;
+        // the block buffers are returned to the pool when the stream is closed;
+        this.buffer = CodecPool.get().borrowBuffer(BlockSize);
+        this.compressedBuffer = CodecPool.get().borrowBuffer(compressor.maxCompressedLength(BlockSize));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (bufferOffset == BlockSize)
+            writeBlock();
+        buffer[bufferOffset++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (bufferOffset == BlockSize)
+                writeBlock();
+            int n = Math.min(len, BlockSize - bufferOffset);
+            System.arraycopy(b, off, buffer, bufferOffset, n);
+            bufferOffset += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        writeBlock();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out == null)
+            return;
+        try {
+            writeBlock();
+            out.close();
+        } finally {
+            out = null;
+            CodecPool.get().release(buffer);
+            CodecPool.get().release(compressedBuffer);
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (bufferOffset == 0)
+            return;
+        int compressedLength = compressor.compress(buffer, 0, bufferOffset, compressedBuffer, 0);
+        if (compressedLength < bufferOffset) {
+            writeInt(compressedLength);
+            out.write(compressedBuffer, 0, compressedLength);
+        } else {
+            // incompressible, store the block as it is;
+            writeInt(bufferOffset | StoredMask);
+            out.write(buffer, 0, bufferOffset);
+        }
+        bufferOffset = 0;
+    }
+
+    private void writeInt(int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private void ensureOpen() {
+        if (out == null)
+            throw new IllegalStateException("The stream is already closed");
+    }
+}
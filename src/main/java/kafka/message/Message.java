@@ -27,6 +27,13 @@ public class Message {
     public static final int MinHeaderSize = CrcLength + MagicLength + AttributesLength + KeySizeLength + ValueSizeLength;
     public static final byte CurrentMagicValue = 0;
 
+    /**
+     * The magic value of messages whose compressed wrapper carries the offsets of the messages inside it relative to
+     * its own offset: the last inner message has relative offset 0 and the ones before it count down from there, so
+     * offsets are assigned by rewriting only the wrapper's offset.
+     */
+    public static final byte RelativeOffsetMagicValue = 1;
+
     public static final int CompressionCodeMask = 0x07;//0111
     public static final int NoCompression = 0;
 
@@ -41,6 +48,15 @@ public class Message {
                    CompressionCodec codec,
                    int payloadOffset,
                    int payloadSize) {
+        this(content, key, codec, payloadOffset, payloadSize, CurrentMagicValue);
+    }
+
+    public Message(byte[] content,
+                   byte[] key,
+                   CompressionCodec codec,
+                   int payloadOffset,
+                   int payloadSize,
+                   byte magic) {
         int _payloadSize;
         if (content == null) {
             _payloadSize = 0;
@@ -57,7 +73,7 @@ public class Message {
                 Message.ValueSizeLength + _payloadSize);
         // skip crc, we will fill that in at the end
         buffer.position(MagicOffset);
-        buffer.put(CurrentMagicValue);
+        buffer.put(magic);
         byte attributes = 0;
         if (codec.codec > 0) {
             attributes = new Integer(attributes | (CompressionCodeMask & codec.codec)).byteValue();
@@ -104,24 +120,25 @@ public class Message {
     }
 
     /**
-     * Compute the checksum of the message from the message contents
+     * Compute the checksum of the message from the message contents. The buffer may be on the heap, direct or a slice
+     * of a memory mapped file.
      */
-    public Long computeChecksum() {
-        return Utils.crc32(buffer.array(), buffer.arrayOffset() + MagicOffset, buffer.limit() - MagicOffset);
+    public long computeChecksum() {
+        return Utils.crc32(buffer, MagicOffset, buffer.limit() - MagicOffset);
     }
 
     /**
      * Retrieve the previously computed CRC for this message
      */
-    public Long checksum() {
-        return Utils.readUnsignedInt(buffer, CrcOffset);
+    public long checksum() {
+        return buffer.getInt(CrcOffset) & 0xffffffffL;
     }
 
     /**
      * Returns true if the crc stored with the message matches the crc computed off the message contents
      */
     public boolean isValid() {
-        return checksum().equals(computeChecksum());
+        return checksum() == computeChecksum();
     }
 
     /**
@@ -184,6 +201,13 @@ public class Message {
     }
 
 
+    /**
+     * True if this is a compressed wrapper whose inner messages carry offsets relative to its own
+     */
+    public boolean hasRelativeOffsets() {
+        return magic() >= RelativeOffsetMagicValue && compressionCodec() != CompressionCodec.NoCompressionCodec;
+    }
+
     /**
      * The attributes stored with this message
      */
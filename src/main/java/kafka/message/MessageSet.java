@@ -83,7 +83,7 @@ public abstract class MessageSet extends Logging implements Iterable<MessageAndO
     /**
      * Gives the total size of this message set in bytes
      */
-    public abstract Integer sizeInBytes();
+    public abstract int sizeInBytes();
 
     /**
      * Print this message set's contents. If the message set has more than 100 messages, just
@@ -0,0 +1,258 @@
+package kafka.message;
+
+import kafka.annotation.nonthreadsafe;
+import kafka.common.KafkaException;
+import kafka.utils.Prediction;
+import kafka.utils.Utils;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds a message set by writing keys and values straight into the buffer of the set, instead of first creating a
+ * {@link Message} with its own buffer for each of them and then copying those into the set.
+ * <p>
+ * Without compression every message is written into the buffer and its checksum computed there. With compression the
+ * buffer holds the wrapper message: each message is assembled in a scratch buffer borrowed from the {@link CodecPool},
+ * checksummed and written through the compression stream, which writes into the buffer after room left for the header
+ * of the wrapper. The header is filled in and the wrapper checksummed when the set is built. The buffer grows as needed,
+ * so sizing it up front only saves copies.
+ * <p>
+ * A builder builds a single message set, after which it can not be appended to.
+ */
+@nonthreadsafe
+public class MessageSetBuilder {
+    public static final int DefaultCapacity = 1024;
+    /* the largest scratch buffer kept in the pool, larger ones for unusually large messages are left to the collector */
+    public static final int MaxPooledScratchSize = 1024 * 1024;
+    /* the size of the wrapper message of a compressed set before its value, it has no key */
+    private static final int WrapperHeaderSize = MessageSet.LogOverhead + Message.MessageOverhead;
+
+    private final CompressionCodec codec;
+    private final AtomicLong offsetCounter;
+    private final byte magic;
+    private final int expectedCount;
+    private final boolean direct;
+    private ByteBuffer buffer;
+    private DataOutputStream compressed = null;
+    private byte[] scratch = null;
+    private int count = 0;
+    private long lastOffset = -1L;
+    private boolean built = false;
+
+    public MessageSetBuilder(CompressionCodec codec) {
+        this(codec, new AtomicLong(0), Message.CurrentMagicValue, -1, DefaultCapacity, false);
+    }
+
+    /**
+     * @param codec         The codec to compress the set with
+     * @param offsetCounter The counter each message takes its offset from
+     * @param magic         The magic value of the wrapper of a compressed set
+     * @param expectedCount The number of messages that will be appended, only needed with
+     *                      {@link Message#RelativeOffsetMagicValue} since the relative offsets count down to the last one
+     * @param capacity      The initial size of the buffer
+     * @param direct        Whether to build the set in a direct buffer
+     */
+    public MessageSetBuilder(CompressionCodec codec, AtomicLong offsetCounter, byte magic, int expectedCount, int capacity, boolean direct) {
+        Prediction.require(magic < Message.RelativeOffsetMagicValue || codec == CompressionCodec.NoCompressionCodec || expectedCount >= 0,
+                "The number of messages must be given to build a compressed set with relative offsets.");
+        this.codec = codec;
+        this.offsetCounter = offsetCounter;
+        this.magic = magic;
+        this.expectedCount = expectedCount;
+        this.direct = direct;
+        this.buffer = allocate(Math.max(capacity, WrapperHeaderSize));
+    }
+
+    /**
+     * Append a message with the given key and value, either of which may be null
+     */
+    public MessageSetBuilder append(byte[] key, byte[] value) {
+        return append(key, 0, key == null ? -1 : key.length, value, 0, value == null ? -1 : value.length);
+    }
+
+    /**
+     * Append a message whose key and value are ranges of the given arrays, a null array is written as a null key or
+     * value whatever its range
+     */
+    public MessageSetBuilder append(byte[] key, int keyOffset, int keySize, byte[] value, int valueOffset, int valueSize) {
+        ensureOpen();
+        int keyLength = key == null ? 0 : keySize;
+        int valueLength = value == null ? 0 : valueSize;
+        int messageSize = Message.MessageOverhead + keyLength + valueLength;
+        long offset = nextOffset();
+        ByteBuffer entry;
+        if (compressed == null) {
+            ensureCapacity(MessageSet.LogOverhead + messageSize);
+            entry = buffer;
+        } else {
+            entry = ByteBuffer.wrap(scratch(MessageSet.LogOverhead + messageSize));
+        }
+        int start = entry.position();
+        entry.putLong(offset);
+        entry.putInt(messageSize);
+        entry.position(start + MessageSet.LogOverhead + Message.MagicOffset);
+        entry.put(Message.CurrentMagicValue);
+        entry.put((byte) 0);
+        entry.putInt(key == null ? -1 : keySize);
+        if (key != null)
+            entry.put(key, keyOffset, keySize);
+        entry.putInt(value == null ? -1 : valueSize);
+        if (value != null)
+            entry.put(value, valueOffset, valueSize);
+        int messageStart = start + MessageSet.LogOverhead;
+        Utils.writeUnsignedInt(entry, messageStart + Message.CrcOffset,
+                Utils.crc32OfView(entry, messageStart + Message.MagicOffset, messageSize - Message.MagicOffset));
+        if (compressed != null)
+            writeCompressed(entry.array(), 0, entry.position());
+        return this;
+    }
+
+    /**
+     * Append a message that has already been created
+     */
+    public MessageSetBuilder append(Message message) {
+        ensureOpen();
+        long offset = nextOffset();
+        ByteBuffer bytes = message.buffer.duplicate();
+        bytes.rewind();
+        if (compressed == null) {
+            ensureCapacity(MessageSet.LogOverhead + bytes.limit());
+            buffer.putLong(offset);
+            buffer.putInt(bytes.limit());
+            buffer.put(bytes);
+        } else {
+            byte[] entry = scratch(MessageSet.LogOverhead + bytes.limit());
+            ByteBuffer.wrap(entry).putLong(offset).putInt(bytes.limit()).put(bytes);
+            writeCompressed(entry, 0, MessageSet.LogOverhead + bytes.limit());
+        }
+        return this;
+    }
+
+    /**
+     * The number of messages appended so far
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Finish the message set, after which nothing more can be appended
+     */
+    public ByteBufferMessageSet build() {
+        ensureOpen();
+        built = true;
+        if (count == 0)
+            return new ByteBufferMessageSet(MessageSet.Empty.buffer);
+        if (codec == CompressionCodec.NoCompressionCodec) {
+            buffer.flip();
+            return new ByteBufferMessageSet(buffer);
+        }
+        Prediction.require(magic < Message.RelativeOffsetMagicValue || count == expectedCount,
+                String.format("%d messages were appended to a set with relative offsets for %d.", count, expectedCount));
+        try {
+            compressed.close();
+        } catch (IOException e) {
+            throw new KafkaException(e);
+        } finally {
+            releaseScratch();
+        }
+        int size = buffer.position();
+        buffer.putLong(0, lastOffset);
+        buffer.putInt(MessageSet.OffsetLength, size - MessageSet.LogOverhead);
+        int wrapperStart = MessageSet.LogOverhead;
+        buffer.put(wrapperStart + Message.MagicOffset, magic);
+        buffer.put(wrapperStart + Message.AttributesOffset, (byte) (Message.CompressionCodeMask & codec.codec));
+        buffer.putInt(wrapperStart + Message.KeySizeOffset, -1);
+        buffer.putInt(wrapperStart + Message.KeyOffset, size - WrapperHeaderSize);
+        Utils.writeUnsignedInt(buffer, wrapperStart + Message.CrcOffset,
+                Utils.crc32OfView(buffer, wrapperStart + Message.MagicOffset, size - wrapperStart - Message.MagicOffset));
+        buffer.flip();
+        return new ByteBufferMessageSet(buffer);
+    }
+
+    /* take the next offset and open the compression stream before the first compressed message */
+    private long nextOffset() {
+        lastOffset = offsetCounter.getAndIncrement();
+        if (codec != CompressionCodec.NoCompressionCodec && compressed == null) {
+            buffer.position(WrapperHeaderSize);
+            scratch = CodecPool.get().borrowBuffer(DefaultCapacity);
+            try {
+                compressed = new DataOutputStream(CompressionFactory.apply(codec, new BufferOutput()));
+            } catch (RuntimeException e) {
+                releaseScratch();
+                throw e;
+            }
+        }
+        long offset = lastOffset;
+        // relative offsets count down to 0 for the last message, which gets the wrapper's offset;
+        if (compressed != null && magic >= Message.RelativeOffsetMagicValue)
+            offset = count - (expectedCount - 1);
+        count += 1;
+        return offset;
+    }
+
+    private void writeCompressed(byte[] bytes, int offset, int length) {
+        try {
+            compressed.write(bytes, offset, length);
+        } catch (IOException e) {
+            throw new KafkaException(e);
+        }
+    }
+
+    /*
+     * a scratch buffer of at least the given size, replacing the current one with a larger one if needed; the sizes are
+     * powers of two so that the pool only ever holds a few sizes of them
+     */
+    private byte[] scratch(int size) {
+        if (scratch.length < size) {
+            releaseScratch();
+            int capacity = Integer.highestOneBit(size - 1) << 1;
+            scratch = capacity <= MaxPooledScratchSize ? CodecPool.get().borrowBuffer(capacity) : new byte[capacity];
+        }
+        return scratch;
+    }
+
+    private void releaseScratch() {
+        if (scratch.length <= MaxPooledScratchSize)
+            CodecPool.get().release(scratch);
+    }
+
+    private void ensureCapacity(int size) {
+        if (buffer.remaining() >= size)
+            return;
+        ByteBuffer grown = allocate(Math.max(buffer.capacity() * 2, buffer.position() + size));
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private void ensureOpen() {
+        if (built)
+            throw new IllegalStateException("The message set has already been built");
+    }
+
+    /**
+     * Receives the output of the compression stream into the buffer of the set
+     */
+    private class BufferOutput extends OutputStream {
+        @Override
+        public void write(int b) {
+            ensureCapacity(1);
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(len);
+            buffer.put(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package kafka.message;
+
+import kafka.annotation.nonthreadsafe;
+import kafka.utils.Utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A shallow cursor over the entries of a message set that reads each entry in place, an alternative to the iterators
+ * for scans that look at every message: the iterators create a slice, a {@link Message} and a {@link MessageAndOffset}
+ * for each entry, the cursor is repositioned over the buffer and allocates nothing.
+ * <p>
+ * The key and payload views returned by the cursor are reused and are only valid until it moves to the next entry.
+ * An entry that has to outlive that can be copied out with {@link #message()} or {@link #writeTo(ByteBuffer, long)}.
+ * <p>
+ * Usage:
+ * <pre>
+ * MessageSetCursor cursor = messages.cursor();
+ * while (cursor.next()) {
+ *     cursor.ensureValid();
+ *     ... cursor.offset(), cursor.key(), cursor.payload() ...
+ * }
+ * </pre>
+ */
+@nonthreadsafe
+public class MessageSetCursor {
+    /* the bytes the entries are read from, the cursor only uses absolute indexes so their position is left alone */
+    protected ByteBuffer buffer;
+    /* the index in the buffer at which the unread entries end */
+    protected int end;
+    /* the position in the message set of the byte at index 0 of the buffer */
+    protected int basePosition;
+    /* the index in the buffer of the current entry and of the one after it */
+    protected int entryStart = -1;
+    protected int nextEntry;
+    private final int maxMessageSize;
+    private long offset;
+    private int size;
+    /* views of the buffer repositioned over the current entry */
+    private ByteBuffer keyView;
+    private ByteBuffer payloadView;
+    private ByteBuffer entryView;
+    /* a view of the buffer of the cursor's own to checksum a direct buffer in place */
+    private ByteBuffer checksumView;
+
+    /**
+     * A cursor over the entries between the position and limit of the buffer
+     */
+    public MessageSetCursor(ByteBuffer buffer) {
+        this(buffer, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxMessageSize A limit on the size of a message, a larger one is taken to be corrupt
+     */
+    public MessageSetCursor(ByteBuffer buffer, int maxMessageSize) {
+        setBuffer(buffer);
+        this.end = buffer.limit();
+        this.basePosition = -buffer.position();
+        this.nextEntry = buffer.position();
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Move to the next complete entry
+     *
+     * @return false if there are no more complete entries
+     * @throws InvalidMessageException If the size of the next entry is corrupt
+     */
+    public boolean next() {
+        if (end - nextEntry < MessageSet.LogOverhead && !fill(MessageSet.LogOverhead))
+            return false;
+        int size = buffer.getInt(nextEntry + MessageSet.OffsetLength);
+        if (size < Message.MinHeaderSize)
+            throw new InvalidMessageException("Message found with corrupt size (" + size + ")");
+        if (size > maxMessageSize)
+            throw new InvalidMessageException(String.format("Message size exceeds the largest allowable message size (%d).", maxMessageSize));
+        // we have an incomplete message;
+        if (end - nextEntry < MessageSet.LogOverhead + size && !fill(MessageSet.LogOverhead + size))
+            return false;
+        this.entryStart = nextEntry;
+        this.offset = buffer.getLong(entryStart);
+        this.size = size;
+        this.nextEntry = entryStart + MessageSet.LogOverhead + size;
+        return true;
+    }
+
+    /**
+     * Make the next entry of at least the given size readable from {@link #nextEntry}, for cursors that read the set in
+     * chunks
+     *
+     * @return false if the set has no more bytes
+     */
+    protected boolean fill(int size) {
+        return false;
+    }
+
+    public long offset() {
+        return offset;
+    }
+
+    /**
+     * The size of the message, without the offset and size in front of it
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The size of the entry in the message set
+     */
+    public int entrySize() {
+        return MessageSet.LogOverhead + size;
+    }
+
+    /**
+     * The position of the entry in the message set
+     */
+    public int position() {
+        return basePosition + entryStart;
+    }
+
+    public byte magic() {
+        return buffer.get(messageStart() + Message.MagicOffset);
+    }
+
+    public byte attributes() {
+        return buffer.get(messageStart() + Message.AttributesOffset);
+    }
+
+    public CompressionCodec compressionCodec() {
+        return CompressionCodec.getCompressionCodec(attributes() & Message.CompressionCodeMask);
+    }
+
+    public int keySize() {
+        return buffer.getInt(messageStart() + Message.KeySizeOffset);
+    }
+
+    public boolean hasKey() {
+        return keySize() >= 0;
+    }
+
+    public int payloadSize() {
+        return buffer.getInt(messageStart() + Message.KeyOffset + Math.max(0, keySize()));
+    }
+
+    public boolean isNull() {
+        return payloadSize() < 0;
+    }
+
+    /**
+     * A view of the key, or null if there is none
+     */
+    public ByteBuffer key() {
+        return view(keyView, messageStart() + Message.KeySizeOffset);
+    }
+
+    /**
+     * A view of the payload, or null if it is null
+     */
+    public ByteBuffer payload() {
+        return view(payloadView, messageStart() + Message.KeyOffset + Math.max(0, keySize()));
+    }
+
+    public long checksum() {
+        return buffer.getInt(messageStart() + Message.CrcOffset) & 0xffffffffL;
+    }
+
+    public long computeChecksum() {
+        return Utils.crc32OfView(checksumView, messageStart() + Message.MagicOffset, size - Message.MagicOffset);
+    }
+
+    public boolean isValid() {
+        return checksum() == computeChecksum();
+    }
+
+    /**
+     * Throw an InvalidMessageException if the checksum of the message does not match its contents
+     */
+    public void ensureValid() {
+        if (!isValid())
+            throw new InvalidMessageException(String.format("Message is corrupt (stored crc = %d, computed crc = %d)", checksum(), computeChecksum()));
+    }
+
+    /**
+     * A copy of the message that stays valid after the cursor moves on
+     */
+    public Message message() {
+        ByteBuffer copy = ByteBuffer.allocate(size);
+        writeMessage(copy);
+        copy.rewind();
+        return new Message(copy);
+    }
+
+    /**
+     * Write the entry at the position of the given buffer with the given offset
+     */
+    public void writeTo(ByteBuffer dest, long offset) {
+        dest.putLong(offset);
+        dest.putInt(size);
+        writeMessage(dest);
+    }
+
+    private void writeMessage(ByteBuffer dest) {
+        int start = messageStart();
+        entryView.limit(nextEntry).position(start);
+        dest.put(entryView);
+    }
+
+    private int messageStart() {
+        if (entryStart < 0)
+            throw new IllegalStateException("The cursor is not on an entry");
+        return entryStart + MessageSet.LogOverhead;
+    }
+
+    /* point the view at the size delimited bytes at the given index */
+    private ByteBuffer view(ByteBuffer view, int sizeIndex) {
+        int length = buffer.getInt(sizeIndex);
+        if (length < 0)
+            return null;
+        view.limit(sizeIndex + 4 + length).position(sizeIndex + 4);
+        return view;
+    }
+
+    /**
+     * Read the entries from the given buffer, for cursors that replace their buffer with a larger one
+     */
+    protected void setBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.keyView = buffer.duplicate();
+        this.payloadView = buffer.duplicate();
+        this.entryView = buffer.duplicate();
+        this.checksumView = buffer.duplicate();
+    }
+}
@@ -17,6 +17,8 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A base class with some helper variables and methods
@@ -27,6 +29,13 @@ public abstract class AbstractServerThread extends Logging implements Runnable {
     private CountDownLatch startupLatch = new CountDownLatch(1);
     private CountDownLatch shutdownLatch = new CountDownLatch(1);
     private AtomicBoolean alive = new AtomicBoolean(true);
+    /* whether the thread is working, working with more work to do, blocked in select or woken up from it, see select */
+    private static final int Working = 0;
+    private static final int WorkPending = 1;
+    private static final int Selecting = 2;
+    private static final int WokenUp = 3;
+    private final AtomicInteger selectState = new AtomicInteger(Working);
+    private final AtomicLong selectorWakeups = new AtomicLong(0);
 
 
     public AbstractServerThread(ConnectionQuotas connectionQuotas) {
@@ -76,10 +85,55 @@ public abstract class AbstractServerThread extends Logging implements Runnable {
     }
 
     /**
-     * Wakeup the thread for selection.
+     * Wakeup the thread for selection. The selector is only woken if the thread is blocked in {@link #select(long)}, a
+     * thread that is working does not block in its next select instead, so any number of wakeups between two selects
+     * cost a single wakeup of the selector at most.
      */
     public void wakeup() {
-        selector.wakeup();
+        while (true) {
+            int state = selectState.get();
+            if (state == Selecting) {
+                if (selectState.compareAndSet(Selecting, WokenUp)) {
+                    selectorWakeups.incrementAndGet();
+                    selector.wakeup();
+                    return;
+                }
+            } else if (state == Working) {
+                if (selectState.compareAndSet(Working, WorkPending))
+                    return;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Mark the start of an iteration of the thread's loop, to be called before it looks for work to do: a wakeup from
+     * then on makes the next {@link #select(long)} return at once
+     */
+    protected void beginIteration() {
+        selectState.set(Working);
+    }
+
+    /**
+     * Select the ready keys, blocking for up to the given time unless there was a wakeup since {@link #beginIteration()}
+     */
+    protected int select(long timeoutMs) throws IOException {
+        if (!selectState.compareAndSet(Working, Selecting))
+            return selector.selectNow();
+        try {
+            return selector.select(timeoutMs);
+        } finally {
+            // the ready keys are handled before the next iteration looks for work, a wakeup meanwhile needs no syscall;
+            selectState.set(Working);
+        }
+    }
+
+    /**
+     * The number of times the selector was woken up by {@link #wakeup()}
+     */
+    public long selectorWakeups() {
+        return selectorWakeups.get();
     }
 
     /**
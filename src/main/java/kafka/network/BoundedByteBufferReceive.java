@@ -15,9 +15,16 @@ import java.nio.channels.ReadableByteChannel;
 public class BoundedByteBufferReceive extends Receive {
 
     public Integer maxSize;
+    /* the pool the content buffer is taken from, or null to allocate it */
+    public RequestBufferPool bufferPool;
 
     public BoundedByteBufferReceive(Integer maxSize) {
+        this(maxSize, null);
+    }
+
+    public BoundedByteBufferReceive(Integer maxSize, RequestBufferPool bufferPool) {
         this.maxSize = maxSize;
+        this.bufferPool = bufferPool;
     }
 
     public BoundedByteBufferReceive() {
@@ -26,6 +33,8 @@ public class BoundedByteBufferReceive extends Receive {
 
     private ByteBuffer sizeBuffer = ByteBuffer.allocate(4);
     private ByteBuffer contentBuffer = null;
+    /* the size of a request that is waiting for the pool to have memory for it, or -1 */
+    private int awaitingSize = -1;
 
 
     public Boolean complete = false;
@@ -63,6 +72,12 @@ public class BoundedByteBufferReceive extends Receive {
                 if (size > maxSize)
                     throw new InvalidRequestException(String.format("Request of length %d is not valid, it is larger than the maximum size of %d bytes.", size, maxSize));
                 contentBuffer = byteBufferAllocate(size);
+                // the pool is out of memory, read the request once some has been released;
+                if (contentBuffer == null) {
+                    awaitingSize = size;
+                    return read;
+                }
+                awaitingSize = -1;
             }
             // if we have a buffer read some stuff into it;
             if (contentBuffer != null) {
@@ -82,7 +97,7 @@ public class BoundedByteBufferReceive extends Receive {
     private ByteBuffer byteBufferAllocate(Integer size) {
         ByteBuffer buffer;
         try {
-            buffer = ByteBuffer.allocate(size);
+            buffer = bufferPool == null ? ByteBuffer.allocate(size) : bufferPool.tryAllocate(size);
         } catch (OutOfMemoryError e) {
             error("OOME with size " + size, e);
             throw e;
@@ -92,6 +107,31 @@ public class BoundedByteBufferReceive extends Receive {
         return buffer;
     }
 
+    /**
+     * True if the size of the request has been read but the pool had no memory for its content
+     */
+    public boolean awaitingMemory() {
+        return awaitingSize >= 0;
+    }
+
+    /**
+     * True if the pool has memory for the content of a request that was waiting for it
+     */
+    public boolean memoryAvailable() {
+        return awaitingSize < 0 || bufferPool.canAllocate(awaitingSize);
+    }
+
+    /**
+     * Give the content buffer back to the pool if this receive is abandoned before it completes; a completed one is
+     * released with the request read from it, see {@link RequestChannel.Request#release()}
+     */
+    public void release() {
+        if (bufferPool != null && contentBuffer != null && !complete) {
+            bufferPool.release(contentBuffer);
+            contentBuffer = null;
+        }
+    }
+
     @Override
     public boolean complete() {
         return complete;
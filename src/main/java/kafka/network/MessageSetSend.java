@@ -0,0 +1,97 @@
+package kafka.network;
+
+import kafka.annotation.nonthreadsafe;
+import kafka.common.KafkaException;
+import kafka.log.FileMessageSet;
+import kafka.message.ByteBufferMessageSet;
+import kafka.message.MessageSet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A send of a message set preceded by its size, as a fetch response sends the messages it read from the log.
+ * <p>
+ * The messages are written in chunks of at most maxTransferSize bytes, as many as the channel takes on each call, so
+ * that one large transfer does not hold on to the socket and one call does not stop at the first chunk. A file
+ * message set written to a socket goes out with a zero-copy transfer; the bytes that had to be copied instead, for
+ * other channels or in-memory message sets, are counted separately so the two can be compared.
+ */
+@nonthreadsafe
+public class MessageSetSend extends Send {
+    public static final Integer DefaultMaxTransferSize = 512 * 1024;
+
+    public MessageSet messages;
+    public Integer maxTransferSize;
+
+    /* the number of bytes of the message set sent with a zero-copy transfer and by copying them */
+    public long zeroCopyBytes = 0;
+    public long copiedBytes = 0;
+
+    private ByteBuffer sizeBuffer = ByteBuffer.allocate(4);
+    private int size;
+    private int sent = 0;
+    private boolean complete = false;
+
+    public MessageSetSend(MessageSet messages) {
+        this(messages, DefaultMaxTransferSize);
+    }
+
+    public MessageSetSend(MessageSet messages, Integer maxTransferSize) {
+        if (maxTransferSize <= 0)
+            throw new IllegalArgumentException("Invalid max transfer size: " + maxTransferSize);
+        this.messages = messages;
+        this.maxTransferSize = maxTransferSize;
+        this.size = messages.sizeInBytes();
+        sizeBuffer.putInt(size);
+        sizeBuffer.rewind();
+    }
+
+    @Override
+    public boolean complete() {
+        return complete;
+    }
+
+    public Integer writeTo(GatheringByteChannel channel) {
+        expectIncomplete();
+        int written = 0;
+        try {
+            if (sizeBuffer.hasRemaining()) {
+                written += channel.write(sizeBuffer);
+                if (sizeBuffer.hasRemaining())
+                    return written;
+            }
+            boolean zeroCopy = messages instanceof FileMessageSet && FileMessageSet.supportsZeroCopy(channel);
+            while (sent < size) {
+                int chunk = Math.min(maxTransferSize, size - sent);
+                int n = writeChunk(channel, chunk);
+                if (zeroCopy)
+                    zeroCopyBytes += n;
+                else
+                    copiedBytes += n;
+                sent += n;
+                written += n;
+                // the channel is full for now, wait until it is writable again;
+                if (n < chunk)
+                    break;
+            }
+        } catch (IOException e) {
+            throw new KafkaException(e);
+        }
+        if (sent >= size)
+            complete = true;
+        return written;
+    }
+
+    private int writeChunk(GatheringByteChannel channel, int chunk) throws IOException {
+        if (messages instanceof ByteBufferMessageSet) {
+            // write the slice directly, ByteBufferMessageSet.writeTo always writes the whole buffer
+            ByteBuffer buffer = ((ByteBufferMessageSet) messages).buffer.duplicate();
+            buffer.position(buffer.position() + sent);
+            buffer.limit(buffer.position() + chunk);
+            return channel.write(buffer);
+        }
+        return messages.writeTo(channel, (long) sent, chunk);
+    }
+}
@@ -0,0 +1,113 @@
+package kafka.network;
+
+import kafka.annotation.nonthreadsafe;
+
+import java.util.ArrayDeque;
+
+/**
+ * The state of a connection the processor keeps reading requests from while earlier ones are being handled, attached to
+ * its selection key in place of the receive or response of a connection that has one request at a time.
+ * <p>
+ * The requests read from the connection are handed to the handlers one at a time in the order they were read, the next
+ * once the response to the previous has come back, so that they are handled in the order the client sent them even
+ * when handlers steal requests from each other's queues. Reading ahead still saves the client waiting for a response
+ * before sending its next request. The responses are written in the same order, and the connection is read from while
+ * fewer than maxInFlight requests have been read and not yet answered.
+ * <p>
+ * Only used by the processor thread of the connection.
+ */
+@nonthreadsafe
+class PipelinedConnection {
+    final int maxInFlight;
+    /* the request being read, or null between requests */
+    BoundedByteBufferReceive receive = null;
+    /* the number of requests of the connection held by the processor because the request queue was full */
+    int awaitingSpace = 0;
+    /* the number of the next request to be read and of the request whose response is to be written next */
+    private long nextSequence = 0;
+    private long nextToSend = 0;
+    /* requests read and not handed to the handlers yet, and whether a request of the connection is with them */
+    private final ArrayDeque<RequestChannel.Request> unhandled = new ArrayDeque<>();
+    private boolean handling = false;
+    /* responses that came back and have not been written yet */
+    private final ArrayDeque<RequestChannel.Response> completed = new ArrayDeque<>();
+    private RequestChannel.Response sending = null;
+
+    PipelinedConnection(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Hold a request that has been read until it is its turn to be handled
+     */
+    void read(RequestChannel.Request request) {
+        nextSequence += 1;
+        unhandled.addLast(request);
+    }
+
+    /**
+     * The next request to hand to the handlers, or null if there is none or the previous one has not been answered yet
+     */
+    RequestChannel.Request nextToHandle() {
+        if (handling)
+            return null;
+        RequestChannel.Request request = unhandled.pollFirst();
+        handling = request != null;
+        return request;
+    }
+
+    /**
+     * Whether another request can be read without going over the requests in flight
+     */
+    boolean canRead() {
+        return awaitingSpace == 0 && nextSequence - nextToSend < maxInFlight;
+    }
+
+    /**
+     * Hold the response to the request of the connection with the handlers, a send or no operation, until the earlier
+     * responses have been written
+     */
+    void complete(RequestChannel.Response response) {
+        completed.addLast(response);
+        handling = false;
+    }
+
+    /**
+     * The response to write next, skipping the requests that need none, or null if the response to the next request has
+     * not come back yet
+     */
+    RequestChannel.Response nextResponse() {
+        while (sending == null) {
+            RequestChannel.Response response = completed.pollFirst();
+            if (response == null)
+                return null;
+            if (response.responseAction == RequestChannel.ResponseAction.SendAction)
+                sending = response;
+            else
+                nextToSend += 1;
+        }
+        return sending;
+    }
+
+    /**
+     * Record that the response from {@link #nextResponse()} has been written
+     */
+    void sent() {
+        sending = null;
+        nextToSend += 1;
+    }
+
+    /**
+     * Give back the buffers of the request being read and of those not handed to the handlers, when the connection is
+     * closed
+     */
+    void release() {
+        if (receive != null) {
+            receive.release();
+            receive = null;
+        }
+        for (RequestChannel.Request request : unhandled)
+            request.release();
+        unhandled.clear();
+    }
+}
@@ -1,6 +1,7 @@
 package kafka.network;
 
 
+import com.google.common.collect.Lists;
 import com.yammer.metrics.core.Meter;
 import kafka.common.KafkaException;
 import kafka.utils.SystemTime;
@@ -13,8 +14,10 @@ import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -29,23 +32,41 @@ public class Processor extends AbstractServerThread {
     public Integer maxRequestSize;
     public Meter aggregateIdleMeter;
     public Meter idleMeter;
+    public Meter zeroCopyMeter;
+    public Meter copyMeter;
     public Integer totalProcessorThreads;
     public RequestChannel requestChannel;
     public Long connectionsMaxIdleMs;
+    /* the pool requests are read into, or null to allocate a buffer for each of them */
+    public RequestBufferPool bufferPool = null;
+    /* the most requests of a connection read and not yet answered, above 1 the connection is a PipelinedConnection */
+    public int maxInFlightRequests = 1;
 
     private ConcurrentLinkedQueue<SocketChannel> newConnections = new ConcurrentLinkedQueue<SocketChannel>();
     private Long connectionsMaxIdleNanos;
     private Long currentTimeNanos = System.nanoTime();
     private LinkedHashMap<SelectionKey, Long> lruConnections = new LinkedHashMap<>();
     private Long nextIdleCloseCheckTime;
+    /* connections that stopped reading because the buffer pool had no memory for their next request */
+    private List<SelectionKey> awaitingMemory = Lists.newArrayList();
+    /* requests read while the request queue was full, in the order they were read */
+    private ArrayDeque<RequestChannel.Request> awaitingSpace = new ArrayDeque<>();
+    /* the connections not read from because of either, for the gauge */
+    private volatile int mutedConnections = 0;
 
-    public Processor(Integer id, Time time, Integer maxRequestSize, Meter aggregateIdleMeter, Meter idleMeter, Integer totalProcessorThreads, RequestChannel requestChannel, ConnectionQuotas connectionQuotas, long connectionsMaxIdleMs) {
+    /**
+     * @param zeroCopyMeter The bytes of message sets this processor sent with a zero-copy transfer
+     * @param copyMeter     The bytes of message sets this processor had to copy to the socket
+     */
+    public Processor(Integer id, Time time, Integer maxRequestSize, Meter aggregateIdleMeter, Meter idleMeter, Meter zeroCopyMeter, Meter copyMeter, Integer totalProcessorThreads, RequestChannel requestChannel, ConnectionQuotas connectionQuotas, long connectionsMaxIdleMs) {
         super(connectionQuotas);
         this.id = id;
         this.time = time;
         this.maxRequestSize = maxRequestSize;
         this.aggregateIdleMeter = aggregateIdleMeter;
         this.idleMeter = idleMeter;
+        this.zeroCopyMeter = zeroCopyMeter;
+        this.copyMeter = copyMeter;
         this.totalProcessorThreads = totalProcessorThreads;
         this.requestChannel = requestChannel;
         this.connectionQuotas = connectionQuotas;
@@ -60,12 +81,17 @@ public class Processor extends AbstractServerThread {
 
         while (isRunning()) {
             try {
+                // a wakeup from here on means there may be more work, so the select below does not block;
+                beginIteration();
                 // setup any new connections that have been queued up;
                 configureNewConnections();
                 // register any new responses for writing;
                 processNewResponses();
+                // queue the requests that did not fit and resume reading from connections there is now memory for;
+                sendAwaitingSpace();
+                resumeAwaitingMemory();
                 Long startSelectTime = time.nanoseconds();
-                int ready = selector.select(300);
+                int ready = select(300);
 
                 currentTimeNanos = time.nanoseconds();
                 Long idleTime = currentTimeNanos - startSelectTime;
@@ -109,6 +135,8 @@ public class Processor extends AbstractServerThread {
             }
         }
         debug("Closing selector.");
+        for (RequestChannel.Request request : awaitingSpace)
+            request.release();
         try {
             closeAll();
         } catch (IOException e) {
@@ -124,14 +152,79 @@ public class Processor extends AbstractServerThread {
     @Override
     public void close(SelectionKey key) {
         lruConnections.remove(key);
+        awaitingMemory.remove(key);
+        if (key.attachment() instanceof BoundedByteBufferReceive)
+            ((BoundedByteBufferReceive) key.attachment()).release();
+        else if (key.attachment() instanceof PipelinedConnection)
+            ((PipelinedConnection) key.attachment()).release();
         super.close(key);
     }
 
+    private void resumeAwaitingMemory() {
+        Iterator<SelectionKey> iter = awaitingMemory.iterator();
+        while (iter.hasNext()) {
+            SelectionKey key = iter.next();
+            if (!key.isValid()) {
+                iter.remove();
+            } else if (receiveFor(key).memoryAvailable()) {
+                iter.remove();
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+        updateMutedConnections();
+    }
+
+    private void sendAwaitingSpace() {
+        if (awaitingSpace.isEmpty())
+            return;
+        while (!awaitingSpace.isEmpty() && requestChannel.trySendRequest(awaitingSpace.peekFirst())) {
+            SelectionKey key = (SelectionKey) awaitingSpace.pollFirst().requestKey;
+            if (key.attachment() instanceof PipelinedConnection && key.isValid()) {
+                ((PipelinedConnection) key.attachment()).awaitingSpace -= 1;
+                updateInterestOps(key);
+            }
+        }
+        if (awaitingSpace.isEmpty())
+            requestChannel.requestSpaceAwaited();
+        updateMutedConnections();
+    }
+
+    private void updateMutedConnections() {
+        mutedConnections = awaitingMemory.size() + awaitingSpace.size();
+    }
+
+    /**
+     * The number of connections not read from because there is no memory or no room in the request queue for their
+     * requests
+     */
+    public int mutedConnections() {
+        return mutedConnections;
+    }
+
+    /**
+     * Wake up the selector if a connection is muted, for the buffer pool to call when memory is released and the request
+     * channel when there is room in the request queue
+     */
+    public void wakeupIfMuted() {
+        if (mutedConnections > 0)
+            wakeup();
+    }
+
     private void processNewResponses() {
         RequestChannel.Response curr = requestChannel.receiveResponse(id);
         while (curr != null) {
             SelectionKey key = (SelectionKey) curr.request.requestKey;
             try {
+                if (key.attachment() instanceof PipelinedConnection && curr.responseAction != RequestChannel.ResponseAction.CloseConnectionAction) {
+                    if (curr.responseAction == RequestChannel.ResponseAction.NoOpAction)
+                        curr.request.updateRequestMetrics();
+                    // written once the responses to the earlier requests of the connection are;
+                    PipelinedConnection connection = (PipelinedConnection) key.attachment();
+                    connection.complete(curr);
+                    handOver(connection);
+                    updateInterestOps(key);
+                    continue;
+                }
                 switch (curr.responseAction) {
                     case NoOpAction:
                         // There is no response to send to the client, we need to read more pipelined requests;
@@ -179,7 +272,7 @@ public class Processor extends AbstractServerThread {
         while (newConnections.size() > 0) {
             SocketChannel channel = newConnections.poll();
             debug("Processor " + id + " listening to new connection from " + channel.socket().getRemoteSocketAddress());
-            channel.register(selector, SelectionKey.OP_READ);
+            channel.register(selector, SelectionKey.OP_READ, maxInFlightRequests > 1 ? new PipelinedConnection(maxInFlightRequests) : null);
         }
     }
 
@@ -187,41 +280,123 @@ public class Processor extends AbstractServerThread {
      * Process reads from ready sockets
      */
     public void read(SelectionKey key) {
-        try {
-            lruConnections.put(key, currentTimeNanos);
-            SocketChannel socketChannel = channelFor(key);
-            Receive receive = (Receive) key.attachment();
-            if (key.attachment() == null) {
-                receive = new BoundedByteBufferReceive(maxRequestSize);
-                key.attach(receive);
-            }
-            Integer read = receive.readFrom(socketChannel);
-            SocketAddress address = socketChannel.socket().getRemoteSocketAddress();
-            trace(read + " bytes read from " + address);
-            if (read < 0) {
-                close(key);
-            } else if (receive.complete()) {
-                RequestChannel.Request req = new RequestChannel.Request(id, key, receive.buffer(), time.milliseconds(), address);
-                requestChannel.sendRequest(req);
-                key.attach(null);
-                // explicitly reset interest ops to not READ, no need to wake up the selector just yet;
-                key.interestOps(key.interestOps() & (~SelectionKey.OP_READ));
-            } else {
-                // more reading to be done;
-                trace("Did not finish reading, registering for read again on connection " + socketChannel.socket().getRemoteSocketAddress());
-                key.interestOps(SelectionKey.OP_READ);
-                wakeup();
+        if (key.attachment() instanceof PipelinedConnection) {
+            readPipelined(key, (PipelinedConnection) key.attachment());
+            return;
+        }
+        lruConnections.put(key, currentTimeNanos);
+        SocketChannel socketChannel = channelFor(key);
+        Receive receive = (Receive) key.attachment();
+        if (key.attachment() == null) {
+            receive = new BoundedByteBufferReceive(maxRequestSize, bufferPool);
+            key.attach(receive);
+        }
+        Integer read = receive.readFrom(socketChannel);
+        SocketAddress address = socketChannel.socket().getRemoteSocketAddress();
+        trace(read + " bytes read from " + address);
+        if (read < 0) {
+            close(key);
+        } else if (receive.complete()) {
+            RequestChannel.Request req = new RequestChannel.Request(id, key, receive.buffer(), time.milliseconds(), address, bufferPool);
+            // rather than block this thread when the queue is full, hold the request until there is room, see sendAwaitingSpace;
+            if (!awaitingSpace.isEmpty() || !requestChannel.trySendRequest(req)) {
+                if (awaitingSpace.isEmpty())
+                    requestChannel.awaitRequestSpace();
+                awaitingSpace.addLast(req);
+                updateMutedConnections();
             }
-        } catch (InterruptedException e) {
-            error(e.getMessage(), e);
+            key.attach(null);
+            // explicitly reset interest ops to not READ, no need to wake up the selector just yet;
+            key.interestOps(key.interestOps() & (~SelectionKey.OP_READ));
+        } else if (((BoundedByteBufferReceive) receive).awaitingMemory()) {
+            // stop reading from the connection until the pool has memory for the request, see resumeAwaitingMemory;
+            trace("No memory for the request, not reading from connection " + socketChannel.socket().getRemoteSocketAddress());
+            key.interestOps(key.interestOps() & (~SelectionKey.OP_READ));
+            awaitingMemory.add(key);
+            updateMutedConnections();
+        } else {
+            // more reading to be done;
+            trace("Did not finish reading, registering for read again on connection " + socketChannel.socket().getRemoteSocketAddress());
+            key.interestOps(SelectionKey.OP_READ);
+            wakeup();
+        }
+    }
+
+
+    /**
+     * Read from a connection that may have several requests in flight, which is read from until it has as many as it
+     * may have rather than until it has one
+     */
+    private void readPipelined(SelectionKey key, PipelinedConnection connection) {
+        lruConnections.put(key, currentTimeNanos);
+        SocketChannel socketChannel = channelFor(key);
+        if (connection.receive == null)
+            connection.receive = new BoundedByteBufferReceive(maxRequestSize, bufferPool);
+        BoundedByteBufferReceive receive = connection.receive;
+        Integer read = receive.readFrom(socketChannel);
+        SocketAddress address = socketChannel.socket().getRemoteSocketAddress();
+        trace(read + " bytes read from " + address);
+        if (read < 0) {
+            close(key);
+        } else if (receive.complete()) {
+            connection.read(new RequestChannel.Request(id, key, receive.buffer(), time.milliseconds(), address, bufferPool));
+            connection.receive = null;
+            handOver(connection);
+            updateInterestOps(key);
+        } else if (receive.awaitingMemory()) {
+            trace("No memory for the request, not reading from connection " + address);
+            awaitingMemory.add(key);
+            updateMutedConnections();
+            updateInterestOps(key);
         }
     }
 
+    /**
+     * Hand the next request of a pipelined connection to the handlers if the previous one has been answered, so that the
+     * requests of a connection are handled one at a time in the order they were read
+     */
+    private void handOver(PipelinedConnection connection) {
+        RequestChannel.Request req = connection.nextToHandle();
+        if (req == null)
+            return;
+        if (!awaitingSpace.isEmpty() || !requestChannel.trySendRequest(req)) {
+            if (awaitingSpace.isEmpty())
+                requestChannel.awaitRequestSpace();
+            awaitingSpace.addLast(req);
+            connection.awaitingSpace += 1;
+            updateMutedConnections();
+        }
+    }
+
+    /**
+     * Read from a pipelined connection while it can have more requests in flight and is not muted, and write to it while
+     * there is a response to write in order
+     */
+    private void updateInterestOps(SelectionKey key) {
+        PipelinedConnection connection = (PipelinedConnection) key.attachment();
+        int ops = 0;
+        if (connection.canRead() && (connection.receive == null || !connection.receive.awaitingMemory()))
+            ops |= SelectionKey.OP_READ;
+        if (connection.nextResponse() != null)
+            ops |= SelectionKey.OP_WRITE;
+        key.interestOps(ops);
+    }
+
+    /* the request being read from the connection of the key */
+    private BoundedByteBufferReceive receiveFor(SelectionKey key) {
+        if (key.attachment() instanceof PipelinedConnection)
+            return ((PipelinedConnection) key.attachment()).receive;
+        return (BoundedByteBufferReceive) key.attachment();
+    }
 
     /*
      * Process writes to ready sockets
      */
     public void write(SelectionKey key) {
+        if (key.attachment() instanceof PipelinedConnection) {
+            writePipelined(key, (PipelinedConnection) key.attachment());
+            return;
+        }
         SocketChannel socketChannel = channelFor(key);
         RequestChannel.Response response = (RequestChannel.Response) key.attachment();
         Send responseSend = response.responseSend;
@@ -230,17 +405,46 @@ public class Processor extends AbstractServerThread {
         Integer written = responseSend.writeTo(socketChannel);
         trace(written + " bytes written to " + socketChannel.socket().getRemoteSocketAddress() + " using key " + key);
         if (responseSend.complete()) {
+            if (responseSend instanceof MessageSetSend) {
+                MessageSetSend messageSetSend = (MessageSetSend) responseSend;
+                zeroCopyMeter.mark(messageSetSend.zeroCopyBytes);
+                copyMeter.mark(messageSetSend.copiedBytes);
+            }
             response.request.updateRequestMetrics();
             key.attach(null);
             trace("Finished writing, registering for read on connection " + socketChannel.socket().getRemoteSocketAddress());
             key.interestOps(SelectionKey.OP_READ);
         } else {
+            // the socket buffer is full, the next select returns when it drains so there is no need for a wakeup;
             trace("Did not finish writing, registering for write again on connection " + socketChannel.socket().getRemoteSocketAddress());
             key.interestOps(SelectionKey.OP_WRITE);
-            wakeup();
         }
     }
 
+    /**
+     * Write the responses of a pipelined connection in the order of its requests, for as long as the socket takes them
+     */
+    private void writePipelined(SelectionKey key, PipelinedConnection connection) {
+        SocketChannel socketChannel = channelFor(key);
+        RequestChannel.Response response = connection.nextResponse();
+        while (response != null) {
+            Send responseSend = response.responseSend;
+            Integer written = responseSend.writeTo(socketChannel);
+            trace(written + " bytes written to " + socketChannel.socket().getRemoteSocketAddress() + " using key " + key);
+            if (!responseSend.complete())
+                break;
+            if (responseSend instanceof MessageSetSend) {
+                MessageSetSend messageSetSend = (MessageSetSend) responseSend;
+                zeroCopyMeter.mark(messageSetSend.zeroCopyBytes);
+                copyMeter.mark(messageSetSend.copiedBytes);
+            }
+            response.request.updateRequestMetrics();
+            connection.sent();
+            response = connection.nextResponse();
+        }
+        updateInterestOps(key);
+    }
+
     private SocketChannel channelFor(SelectionKey key) {
         return (SocketChannel) key.channel();
     }
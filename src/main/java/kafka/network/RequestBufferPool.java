@@ -0,0 +1,183 @@
+package kafka.network;
+
+import com.google.common.collect.Lists;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import kafka.annotation.threadsafe;
+import kafka.metrics.KafkaMetricsGroup;
+import kafka.utils.Prediction;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The buffers requests are read into, shared by the processors that read requests and the handlers that release them
+ * once the request has been handled, so that the body of every request is not a fresh array that lives until its
+ * response is sent.
+ * <p>
+ * Buffers come in size classes of powers of two from {@link #MinPooledSize} to {@link #MaxPooledSize}, a request gets
+ * a buffer of the smallest class that holds it with the limit set to its size. Released buffers are kept for reuse
+ * up to a total of poolBytes; larger requests get a buffer of their exact size that is left to the garbage collector.
+ * <p>
+ * The pool also bounds the memory of the buffers handed out and not yet released, that is the bytes of the requests
+ * in flight across all processors. A request that would take it over the limit gets no buffer, and the processor stops
+ * reading from its connection until a release listener tells it memory was released.
+ */
+@threadsafe
+public class RequestBufferPool extends KafkaMetricsGroup {
+    public static final int MinPooledSize = 1024;
+    public static final int MaxPooledSize = 1024 * 1024;
+    private static final int MinClassShift = Integer.numberOfTrailingZeros(MinPooledSize);
+    private static final int NumClasses = Integer.numberOfTrailingZeros(MaxPooledSize) - MinClassShift + 1;
+
+    public final long maxBytes;
+    public final long poolBytes;
+    public final boolean direct;
+
+    private final List<ArrayDeque<ByteBuffer>> free;
+    /* bytes of the buffers handed out and not yet released, and of the released buffers kept for reuse */
+    private final AtomicLong allocatedBytes = new AtomicLong(0);
+    private final AtomicLong pooledBytes = new AtomicLong(0);
+    public final Meter hits;
+    public final Meter misses;
+    /* run after a buffer is released, to resume connections waiting for memory */
+    private final List<Runnable> releaseListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param maxBytes  The most memory handed out at once, or -1 for no limit
+     * @param poolBytes The most memory kept in released buffers for reuse
+     * @param direct    Whether the buffers are direct
+     */
+    public RequestBufferPool(long maxBytes, long poolBytes, boolean direct) {
+        Prediction.require(maxBytes == -1 || maxBytes > 0, "The memory limit of the request buffers must be positive or -1.");
+        Prediction.require(poolBytes >= 0, "The pooled memory of the request buffers can not be negative.");
+        this.maxBytes = maxBytes;
+        this.poolBytes = poolBytes;
+        this.direct = direct;
+        free = Lists.newArrayListWithCapacity(NumClasses);
+        for (int i = 0; i < NumClasses; i++)
+            free.add(new ArrayDeque<>());
+        hits = newMeter("RequestBufferPoolHitsPerSec", "buffers", TimeUnit.SECONDS);
+        misses = newMeter("RequestBufferPoolMissesPerSec", "buffers", TimeUnit.SECONDS);
+        newGauge("RequestBytesInFlight", new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return allocatedBytes.get();
+            }
+        });
+        newGauge("PooledRequestBufferBytes", new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return pooledBytes.get();
+            }
+        });
+    }
+
+    /**
+     * A buffer with room for a request of the given size, its position at 0 and its limit at the size
+     *
+     * @return The buffer, or null if handing it out would take the memory of the buffers over the limit
+     */
+    public ByteBuffer tryAllocate(int size) {
+        int capacity = capacityFor(size);
+        if (!reserve(capacity))
+            return null;
+        ByteBuffer buffer = null;
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass >= 0) {
+            ArrayDeque<ByteBuffer> buffers = free.get(sizeClass);
+            synchronized (buffers) {
+                buffer = buffers.pollFirst();
+            }
+        }
+        if (buffer != null) {
+            pooledBytes.addAndGet(-capacity);
+            hits.mark();
+        } else {
+            misses.mark();
+            try {
+                buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+            } catch (OutOfMemoryError e) {
+                allocatedBytes.addAndGet(-capacity);
+                throw e;
+            }
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Give back a buffer from {@link #tryAllocate(int)} that is no longer used, whatever its position and limit
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass >= 0 && buffer.isDirect() == direct) {
+            if (pooledBytes.addAndGet(capacity) > poolBytes) {
+                pooledBytes.addAndGet(-capacity);
+            } else {
+                ArrayDeque<ByteBuffer> buffers = free.get(sizeClass);
+                synchronized (buffers) {
+                    buffers.addFirst(buffer);
+                }
+            }
+        }
+        allocatedBytes.addAndGet(-capacity);
+        for (Runnable onRelease : releaseListeners)
+            onRelease.run();
+    }
+
+    /**
+     * Run the given action on the releasing thread every time a buffer is released
+     */
+    public void addReleaseListener(Runnable onRelease) {
+        releaseListeners.add(onRelease);
+    }
+
+    /**
+     * Whether a buffer for a request of the given size would be handed out now
+     */
+    public boolean canAllocate(int size) {
+        long current = allocatedBytes.get();
+        return maxBytes == -1 || current == 0 || current + capacityFor(size) <= maxBytes;
+    }
+
+    /**
+     * The memory of the buffers handed out and not yet released
+     */
+    public long allocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    private boolean reserve(int capacity) {
+        while (true) {
+            long current = allocatedBytes.get();
+            // a request larger than the limit is still let through on its own so that it can not wait forever;
+            if (maxBytes != -1 && current > 0 && current + capacity > maxBytes)
+                return false;
+            if (allocatedBytes.compareAndSet(current, current + capacity))
+                return true;
+        }
+    }
+
+    /* the capacity of the buffer for a request of the given size */
+    static int capacityFor(int size) {
+        if (size > MaxPooledSize)
+            return size;
+        if (size <= MinPooledSize)
+            return MinPooledSize;
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    /* the size class of a buffer of the given capacity, or -1 if buffers of that capacity are not pooled */
+    private static int sizeClass(int capacity) {
+        if (capacity < MinPooledSize || capacity > MaxPooledSize || Integer.bitCount(capacity) != 1)
+            return -1;
+        return Integer.numberOfTrailingZeros(capacity) - MinClassShift;
+    }
+}
@@ -6,14 +6,20 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.yammer.metrics.core.Gauge;
 import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
 import com.yammer.metrics.core.Metric;
 import kafka.api.ProducerRequest;
 import kafka.api.RequestKeys;
 import kafka.api.RequestOrResponse;
+import kafka.common.InvalidConfigException;
 import kafka.func.ActionWithParam;
 import kafka.func.Handler;
+import kafka.log.TopicAndPartition;
+import kafka.message.ByteBufferMessageSet;
 import kafka.metrics.KafkaMetricsGroup;
 import kafka.utils.Logging;
+import kafka.utils.Prediction;
+import kafka.utils.MpscRingBuffer;
 import kafka.utils.Time;
 
 import java.net.InetSocketAddress;
@@ -24,38 +30,83 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.stream.Collectors;
 
 
+/**
+ * The queues between the processors that read requests and send responses and the handlers of the requests.
+ * <p>
+ * Requests go to a single queue shared by all handlers, or, with another {@link Dispatch}, to one of a number of
+ * queues, typically one for each handler, picked by the connection or by the partition the request is mostly about, so
+ * that the same handler tends to see the same connections or partitions. A handler takes requests from its own queue
+ * and, once that is empty, steals them from the others so that no request waits behind a busy handler while another is
+ * idle. Handlers wait on a semaphore that counts the requests in all the queues, so an idle handler wakes as soon as
+ * a request is queued anywhere rather than looking at the other queues from time to time.
+ */
 public class RequestChannel extends KafkaMetricsGroup {
+    /* the least number of responses each processor's queue holds, it holds at least as many as the request queues */
+    public static final int MinResponseQueueSize = 1024;
+    private static final long ResponseQueueFullWaitNs = TimeUnit.MICROSECONDS.toNanos(50);
+
     Integer numProcessors;
     Integer queueSize;
+    public Dispatch dispatch;
+    Integer numQueues;
     private List<ActionWithParam<Integer>> responseListeners = Lists.newArrayList();
-    private ArrayBlockingQueue<Request> requestQueue ;
-    private BlockingQueue<Response>[] responseQueues;
+    /* run when a request is taken off the full queue, while processors hold requests that did not fit */
+    private List<Runnable> requestSpaceListeners = Lists.newArrayList();
+    private AtomicInteger requestsWaitingForSpace = new AtomicInteger(0);
+    private List<ArrayBlockingQueue<Request>> requestQueues;
+    /* a permit for each request in the queues, taken before a request is, when there is more than one queue */
+    private final Semaphore queuedRequests = new Semaphore(0);
+    /* spreads the shutdown requests of the handlers over the queues */
+    private AtomicInteger nextShutdownQueue = new AtomicInteger(0);
+    public Meter stolenRequestRate;
+    private List<MpscRingBuffer<Response>> responseQueues;
+    /* set once the processors are shut down, after which responses are dropped rather than wait for room */
+    private volatile boolean closed = false;
     public static Request AllDone = new Request(1, 2, getShutdownReceive(), 0L);
 
 
     public RequestChannel(Integer numProcessors, Integer queueSize) {
+        this(numProcessors, queueSize, Dispatch.Shared, 1);
+    }
+
+    /**
+     * @param queueSize The number of requests all the queues hold together
+     * @param dispatch  How requests are spread over the queues
+     * @param numQueues The number of queues, unless the dispatch is {@link Dispatch#Shared}
+     */
+    public RequestChannel(Integer numProcessors, Integer queueSize, Dispatch dispatch, Integer numQueues) {
+        Prediction.require(numQueues > 0, "There must be at least one request queue.");
         this.numProcessors = numProcessors;
         this.queueSize = queueSize;
+        this.dispatch = dispatch;
+        this.numQueues = dispatch == Dispatch.Shared ? 1 : numQueues;
         init();
     }
 
     public void init() {
-        requestQueue = new ArrayBlockingQueue<>(queueSize);
-        responseQueues = new BlockingQueue[numProcessors];
-         for (int i = 0; i < numProcessors; i++)
-            responseQueues[i] = new LinkedBlockingQueue<>();
+        requestQueues = Lists.newArrayListWithCapacity(numQueues);
+        for (int i = 0; i < numQueues; i++)
+            requestQueues.add(new ArrayBlockingQueue<>(Math.max(1, (queueSize + numQueues - 1) / numQueues)));
+        stolenRequestRate = newMeter("StolenRequestsPerSec", "requests", TimeUnit.SECONDS);
+        responseQueues = Lists.newArrayListWithCapacity(numProcessors);
+        for (int i = 0; i < numProcessors; i++)
+            responseQueues.add(new MpscRingBuffer<>(Math.max(MinResponseQueueSize, queueSize)));
 
         newGauge("RequestQueueSize",
                 new Gauge<Integer>() {
                     @Override
                     public Integer value() {
-                        return requestQueue.size();
+                        int total = 0;
+                        for (ArrayBlockingQueue<Request> queue : requestQueues)
+                            total += queue.size();
+                        return total;
                     }
                 });
         newGauge("ResponseQueueSize",
@@ -63,7 +114,7 @@ public class RequestChannel extends KafkaMetricsGroup {
                     @Override
                     public Integer value() {
                         int total = 0;
-                        for (BlockingQueue<Response> queue : responseQueues) {
+                        for (MpscRingBuffer<Response> queue : responseQueues) {
                             total += queue.size();
                         }
                         return total;
@@ -87,33 +138,101 @@ public class RequestChannel extends KafkaMetricsGroup {
      */
 
     public void sendRequest(Request request) throws InterruptedException {
-        requestQueue.put(request);
+        queueFor(request).put(request);
+        onEnqueue();
+    }
+
+    /**
+     * Send a request to be handled if there is room in the queue for it
+     *
+     * @return false if the queue is full, in which case the request space listeners are run once there is room, see
+     * {@link #awaitRequestSpace()}
+     */
+    public boolean trySendRequest(Request request) {
+        if (!queueFor(request).offer(request))
+            return false;
+        onEnqueue();
+        return true;
+    }
+
+    private ArrayBlockingQueue<Request> queueFor(Request request) {
+        if (numQueues == 1)
+            return requestQueues.get(0);
+        if (request == AllDone)
+            return requestQueues.get(Math.floorMod(nextShutdownQueue.getAndIncrement(), numQueues));
+        int hash = dispatch == Dispatch.Partition ? request.dominantPartitionHash() : System.identityHashCode(request.requestKey);
+        return requestQueues.get(Math.floorMod(hash, numQueues));
+    }
+
+    /* wake a waiting handler, only once the request is in its queue so that a permit always has a request to take */
+    private void onEnqueue() {
+        if (numQueues > 1)
+            queuedRequests.release();
+    }
+
+    /**
+     * Have the request space listeners run when a request is taken off the queue, until {@link #requestSpaceAwaited()}
+     */
+    public void awaitRequestSpace() {
+        requestsWaitingForSpace.incrementAndGet();
+    }
+
+    public void requestSpaceAwaited() {
+        requestsWaitingForSpace.decrementAndGet();
+    }
+
+    public void addRequestSpaceListener(Runnable onSpace) {
+        requestSpaceListeners.add(onSpace);
+    }
+
+    private Request onDequeue(Request request) {
+        if (request != null && requestsWaitingForSpace.get() > 0) {
+            for (Runnable onSpace : requestSpaceListeners)
+                onSpace.run();
+        }
+        return request;
     }
 
     /**
      * Send a response back to the socket server to be sent over the network
      */
     public void sendResponse(Response response) throws InterruptedException {
-        responseQueues[response.processor].put(response);
-        for (ActionWithParam onResponse : responseListeners)
-            onResponse.invoke(response.processor);
+        response.request.release();
+        enqueueResponse(response);
     }
 
     /**
      * No operation to take for the request, need to read more over the network
      */
     public void noOperation(Integer processor, RequestChannel.Request request) throws InterruptedException {
-        responseQueues[processor].put(new Response(processor, request, null, ResponseAction.NoOpAction));
-        for (ActionWithParam onResponse : responseListeners)
-            onResponse.invoke(processor);
+        request.release();
+        enqueueResponse(new Response(processor, request, null, ResponseAction.NoOpAction));
     }
 
     /**
      * Close the connection for the request
      */
     public void closeConnection(Integer processor, Request request) throws InterruptedException {
-        responseQueues[processor].put(new Response(processor, request, null, ResponseAction.CloseConnectionAction));
-        for (ActionWithParam onResponse : responseListeners)
+        request.release();
+        enqueueResponse(new Response(processor, request, null, ResponseAction.CloseConnectionAction));
+    }
+
+    /* queue the response for its processor, waiting for the processor to make room if its queue is full */
+    private void enqueueResponse(Response response) throws InterruptedException {
+        MpscRingBuffer<Response> queue = responseQueues.get(response.processor);
+        while (!queue.offer(response)) {
+            if (closed)
+                return;
+            notifyResponseListeners(response.processor);
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            LockSupport.parkNanos(ResponseQueueFullWaitNs);
+        }
+        notifyResponseListeners(response.processor);
+    }
+
+    private void notifyResponseListeners(Integer processor) {
+        for (ActionWithParam<Integer> onResponse : responseListeners)
             onResponse.invoke(processor);
     }
 
@@ -121,21 +240,63 @@ public class RequestChannel extends KafkaMetricsGroup {
      * Get the next request or block until specified time has elapsed
      */
     public Request receiveRequest(Long timeout) throws InterruptedException {
-        return requestQueue.poll(timeout, TimeUnit.MILLISECONDS);
+        if (numQueues > 1)
+            return receiveRequest(0, timeout);
+        return onDequeue(requestQueues.get(0).poll(timeout, TimeUnit.MILLISECONDS));
     }
 
     /**
      * Get the next request or block until there is one
      */
     public Request receiveRequest() throws InterruptedException {
-        return requestQueue.take();
+        if (numQueues > 1) {
+            Request request = null;
+            while (request == null)
+                request = receiveRequest(0, Long.MAX_VALUE);
+            return request;
+        }
+        return onDequeue(requestQueues.get(0).take());
+    }
+
+    /**
+     * Get the next request for the given handler from its own queue or, if that is empty, from any other, or block until
+     * specified time has elapsed
+     */
+    public Request receiveRequest(Integer handler, Long timeout) throws InterruptedException {
+        if (numQueues == 1)
+            return receiveRequest(timeout);
+        if (!queuedRequests.tryAcquire(Math.min(timeout, TimeUnit.DAYS.toMillis(1)), TimeUnit.MILLISECONDS))
+            return null;
+        // the permit stands for a request in one of the queues, which a handler holding another permit may take first
+        // while this one looks at the other queues, but then the request of that handler's permit is still there;
+        int own = Math.floorMod(handler, numQueues);
+        while (true) {
+            Request request = requestQueues.get(own).poll();
+            if (request == null)
+                request = steal(own);
+            if (request != null)
+                return onDequeue(request);
+            Thread.yield();
+        }
+    }
+
+    /* take a request from the first of the other queues that has one */
+    private Request steal(int own) {
+        for (int i = 1; i < numQueues; i++) {
+            Request request = requestQueues.get((own + i) % numQueues).poll();
+            if (request != null) {
+                stolenRequestRate.mark();
+                return request;
+            }
+        }
+        return null;
     }
 
     /**
      * Get a response for the given processor if there is one
      */
     public Response receiveResponse(Integer processor) {
-        Response response = responseQueues[processor].poll();
+        Response response = responseQueues.get(processor).poll();
         if (response != null)
             response.request.responseDequeueTimeMs = Time.get().milliseconds();
         return response;
@@ -145,8 +306,53 @@ public class RequestChannel extends KafkaMetricsGroup {
         responseListeners.add(onResponse);
     }
 
+    /**
+     * Whether there are responses the given processor has not taken yet
+     */
+    public boolean hasResponses(Integer processor) {
+        return !responseQueues.get(processor).isEmpty();
+    }
+
     public void shutdown() {
-        requestQueue.clear();
+        closed = true;
+        if (numQueues == 1) {
+            requestQueues.get(0).clear();
+            return;
+        }
+        // drop each request with its permit, so that the requests sent afterwards, such as the shutdown requests of the
+        // handlers, still each have a permit and a handler holding one always finds a request;
+        while (queuedRequests.tryAcquire()) {
+            boolean dropped = false;
+            while (!dropped) {
+                for (ArrayBlockingQueue<Request> queue : requestQueues) {
+                    if (queue.poll() != null) {
+                        dropped = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * How requests are spread over the request queues
+     */
+    public enum Dispatch {
+        /* a single queue for all handlers */
+        Shared,
+        /* requests from the same connection go to the same queue */
+        Connection,
+        /* requests about the same partition go to the same queue, by the partition with the most data in a produce
+           request, other requests go by connection */
+        Partition;
+
+        public static Dispatch forName(String name) {
+            for (Dispatch dispatch : values()) {
+                if (dispatch.name().equalsIgnoreCase(name))
+                    return dispatch;
+            }
+            throw new InvalidConfigException(String.format("Unknown request dispatch %s, expected one of shared, connection or partition.", name));
+        }
     }
 
     public static class Request {
@@ -155,6 +361,9 @@ public class RequestChannel extends KafkaMetricsGroup {
         private ByteBuffer buffer;
         public Long startTimeMs;
         public SocketAddress remoteAddress = new InetSocketAddress(0);
+        /* the pooled buffer the request was read into, which its deserialized form may still refer to */
+        private RequestBufferPool bufferPool;
+        private ByteBuffer pooledBuffer;
 
         public Request(Integer processor, Object requestKey, ByteBuffer buffer, Long startTimeMs) {
             this(processor, requestKey, buffer, startTimeMs, new InetSocketAddress(0));
@@ -162,7 +371,17 @@ public class RequestChannel extends KafkaMetricsGroup {
 
         public Request(Integer processor, Object requestKey, ByteBuffer buffer, Long startTimeMs, SocketAddress
                 remoteAddress) {
+            this(processor, requestKey, buffer, startTimeMs, remoteAddress, null);
+        }
+
+        /**
+         * @param bufferPool The pool the buffer was taken from, it gets the buffer back when the request is released
+         */
+        public Request(Integer processor, Object requestKey, ByteBuffer buffer, Long startTimeMs, SocketAddress
+                remoteAddress, RequestBufferPool bufferPool) {
             this.processor = processor;
+            this.bufferPool = bufferPool;
+            this.pooledBuffer = bufferPool == null ? null : buffer;
             this.requestKey = requestKey;
             this.buffer = buffer;
             this.startTimeMs = startTimeMs;
@@ -182,6 +401,36 @@ public class RequestChannel extends KafkaMetricsGroup {
             requestLogger.trace(String.format("Processor %d received request : %s", processor, requestObj));
         }
 
+        /**
+         * Give the buffer the request was read into back to its pool once the request has been handled, which the
+         * request channel does when the response is queued. The request object must not be used after that.
+         */
+        public synchronized void release() {
+            if (pooledBuffer != null) {
+                bufferPool.release(pooledBuffer);
+                pooledBuffer = null;
+            }
+        }
+
+        /**
+         * A hash of the partition of a produce request with the most data, or of the connection for any other request
+         */
+        public int dominantPartitionHash() {
+            if (requestObj instanceof ProducerRequest) {
+                TopicAndPartition dominant = null;
+                int largest = -1;
+                for (Map.Entry<TopicAndPartition, ByteBufferMessageSet> entry : ((ProducerRequest) requestObj).data.entrySet()) {
+                    if (entry.getValue().sizeInBytes() > largest) {
+                        dominant = entry.getKey();
+                        largest = entry.getValue().sizeInBytes();
+                    }
+                }
+                if (dominant != null)
+                    return dominant.hashCode();
+            }
+            return System.identityHashCode(requestKey);
+        }
+
         public Short requestId;
         public RequestOrResponse requestObj;
         private Logging requestLogger = Logging.getLogger("kafka.request.logger");
@@ -4,6 +4,7 @@ import com.google.common.collect.ImmutableMap;
 import com.yammer.metrics.core.Gauge;
 import com.yammer.metrics.core.Meter;
 import kafka.metrics.KafkaMetricsGroup;
+import kafka.utils.Prediction;
 import kafka.utils.Time;
 import kafka.utils.Utils;
 
@@ -32,8 +33,45 @@ public class SocketServer extends KafkaMetricsGroup {
     Integer maxConnectionsPerIp = Integer.MAX_VALUE;
     Long connectionsMaxIdleMs;
     Map<String, Integer> maxConnectionsPerIpOverrides;
+    Integer maxInFlightRequestsPerConnection = 1;
 
     public SocketServer(Integer brokerId, String host, Integer port, Integer numProcessorThreads, Integer maxQueuedRequests, Integer sendBufferSize, Integer recvBufferSize, Integer maxRequestSize, Integer maxConnectionsPerIp, Long connectionsMaxIdleMs, Map<String, Integer> maxConnectionsPerIpOverrides) {
+        this(brokerId, host, port, numProcessorThreads, maxQueuedRequests, sendBufferSize, recvBufferSize, maxRequestSize, maxConnectionsPerIp, connectionsMaxIdleMs, maxConnectionsPerIpOverrides,
+                -1L, DefaultRequestBufferPoolBytes, false);
+    }
+
+    /**
+     * @param maxQueuedRequestBytes     The most memory the buffers of requests being read or handled can take, or -1
+     *                                  for no limit
+     * @param requestBufferPoolBytes    The memory kept in released request buffers for reuse
+     * @param requestBuffersDirect      Whether requests are read into direct buffers
+     */
+    public SocketServer(Integer brokerId, String host, Integer port, Integer numProcessorThreads, Integer maxQueuedRequests, Integer sendBufferSize, Integer recvBufferSize, Integer maxRequestSize, Integer maxConnectionsPerIp, Long connectionsMaxIdleMs, Map<String, Integer> maxConnectionsPerIpOverrides,
+                        Long maxQueuedRequestBytes, Long requestBufferPoolBytes, Boolean requestBuffersDirect) {
+        this(brokerId, host, port, numProcessorThreads, maxQueuedRequests, sendBufferSize, recvBufferSize, maxRequestSize, maxConnectionsPerIp, connectionsMaxIdleMs, maxConnectionsPerIpOverrides,
+                maxQueuedRequestBytes, requestBufferPoolBytes, requestBuffersDirect, RequestChannel.Dispatch.Shared, 1);
+    }
+
+    /**
+     * @param dispatch                  How requests are spread over the request queues
+     * @param numRequestQueues          The number of request queues, usually the number of handler threads, unless the
+     *                                  dispatch is {@link RequestChannel.Dispatch#Shared}
+     */
+    public SocketServer(Integer brokerId, String host, Integer port, Integer numProcessorThreads, Integer maxQueuedRequests, Integer sendBufferSize, Integer recvBufferSize, Integer maxRequestSize, Integer maxConnectionsPerIp, Long connectionsMaxIdleMs, Map<String, Integer> maxConnectionsPerIpOverrides,
+                        Long maxQueuedRequestBytes, Long requestBufferPoolBytes, Boolean requestBuffersDirect, RequestChannel.Dispatch dispatch, Integer numRequestQueues) {
+        this(brokerId, host, port, numProcessorThreads, maxQueuedRequests, sendBufferSize, recvBufferSize, maxRequestSize, maxConnectionsPerIp, connectionsMaxIdleMs, maxConnectionsPerIpOverrides,
+                maxQueuedRequestBytes, requestBufferPoolBytes, requestBuffersDirect, dispatch, numRequestQueues, 1);
+    }
+
+    /**
+     * @param maxInFlightRequestsPerConnection The most requests read from a connection and not yet answered, 1 to read
+     *                                         the next request of a connection only once the response to the previous
+     *                                         one has been written
+     */
+    public SocketServer(Integer brokerId, String host, Integer port, Integer numProcessorThreads, Integer maxQueuedRequests, Integer sendBufferSize, Integer recvBufferSize, Integer maxRequestSize, Integer maxConnectionsPerIp, Long connectionsMaxIdleMs, Map<String, Integer> maxConnectionsPerIpOverrides,
+                        Long maxQueuedRequestBytes, Long requestBufferPoolBytes, Boolean requestBuffersDirect, RequestChannel.Dispatch dispatch, Integer numRequestQueues,
+                        Integer maxInFlightRequestsPerConnection) {
+        Prediction.require(maxInFlightRequestsPerConnection > 0, "A connection must be able to have a request in flight.");
         this.brokerId = brokerId;
         this.host = host;
         this.port = port;
@@ -45,15 +83,20 @@ public class SocketServer extends KafkaMetricsGroup {
         this.maxConnectionsPerIp = maxConnectionsPerIp;
         this.connectionsMaxIdleMs = connectionsMaxIdleMs;
         this.maxConnectionsPerIpOverrides = maxConnectionsPerIpOverrides;
+        this.maxInFlightRequestsPerConnection = maxInFlightRequestsPerConnection;
         loggerName("[Socket Server on Broker " + brokerId + "], ");
         processors =  new Processor[numProcessorThreads];
-        requestChannel = new RequestChannel(numProcessorThreads, maxQueuedRequests);
+        requestChannel = new RequestChannel(numProcessorThreads, maxQueuedRequests, dispatch, numRequestQueues);
+        bufferPool = new RequestBufferPool(maxQueuedRequestBytes, requestBufferPoolBytes, requestBuffersDirect);
     }
 
+    public static final Long DefaultRequestBufferPoolBytes = 32 * 1024 * 1024L;
+
     private Time time = Time.get();
     private Processor[] processors;
     private volatile Acceptor acceptor = null;
     public RequestChannel requestChannel ;
+    public RequestBufferPool bufferPool;
 
     /* a meter to track the average free capacity of the network processors */
     private Meter aggregateIdleMeter = newMeter("NetworkProcessorAvgIdlePercent", "percent", TimeUnit.NANOSECONDS);
@@ -69,10 +112,14 @@ public class SocketServer extends KafkaMetricsGroup {
                     maxRequestSize,
                     aggregateIdleMeter,
                     newMeter("IdlePercent", "percent", TimeUnit.NANOSECONDS, ImmutableMap.of("networkProcessor", "" + i)),
+                    newMeter("ZeroCopyBytesPerSec", "bytes", TimeUnit.SECONDS, ImmutableMap.of("networkProcessor", "" + i)),
+                    newMeter("CopiedBytesPerSec", "bytes", TimeUnit.SECONDS, ImmutableMap.of("networkProcessor", "" + i)),
                     numProcessorThreads,
                     requestChannel,
                     quotas,
                     connectionsMaxIdleMs);
+            processors[i].bufferPool = bufferPool;
+            processors[i].maxInFlightRequests = maxInFlightRequestsPerConnection;
             Utils.newThread(String.format("kafka-network-thread-%d-%d", port, i), processors[i], false).start();
         }
 
@@ -87,6 +134,19 @@ public class SocketServer extends KafkaMetricsGroup {
 
         // register the processor threads for notification of responses;
         requestChannel.addResponseListener(id -> processors[id].wakeup());
+        // and for notification of memory or queue space for the requests of muted connections;
+        Runnable wakeupMuted = () -> {
+            for (Processor processor : processors)
+                processor.wakeupIfMuted();
+        };
+        bufferPool.addReleaseListener(wakeupMuted);
+        requestChannel.addRequestSpaceListener(wakeupMuted);
+        newGauge("MutedConnections", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return mutedConnections();
+            }
+        });
 
         // start accepting connections;
         this.acceptor = new Acceptor(host, port, processors, sendBufferSize, recvBufferSize, quotas);
@@ -95,6 +155,22 @@ public class SocketServer extends KafkaMetricsGroup {
         info("Started");
     }
 
+    /**
+     * The number of connections not read from because there is no memory or no room in the request queue for their
+     * requests
+     */
+    public int mutedConnections() {
+        return Arrays.stream(processors).mapToInt(Processor::mutedConnections).sum();
+    }
+
+    /**
+     * The number of times the selectors of the processors were woken up for new connections, responses or muted
+     * connections
+     */
+    public long selectorWakeups() {
+        return Arrays.stream(processors).mapToLong(Processor::selectorWakeups).sum();
+    }
+
     /**
      * Shutdown the socket server
      */
@@ -104,6 +180,8 @@ public class SocketServer extends KafkaMetricsGroup {
             acceptor.shutdown();
         for (Processor processor : processors)
             processor.shutdown();
+        // there is no one to take the responses of the requests still being handled;
+        requestChannel.shutdown();
         info("Shutdown completed");
     }
 }
@@ -1,14 +1,17 @@
 package kafka.server;
 
 import com.google.common.collect.Maps;
+import com.yammer.metrics.core.Histogram;
 import com.yammer.metrics.core.Meter;
+import kafka.message.CompressionCodec;
+import kafka.message.CompressionStats;
 import kafka.metrics.KafkaMetricsGroup;
 
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 
-public class BrokerTopicMetrics extends KafkaMetricsGroup {
+public class BrokerTopicMetrics extends KafkaMetricsGroup implements CompressionStats {
     public Optional<String> name;
     public Meter messagesInRate;
     public Meter bytesInRate;
@@ -16,6 +19,21 @@ public class BrokerTopicMetrics extends KafkaMetricsGroup {
     public Meter bytesRejectedRate;
     public Meter failedProduceRequestRate;
     public Meter failedFetchRequestRate;
+    public Meter recompressionRate;
+    /* cpu time spent recompressing with the topic's codec, in nanoseconds */
+    public Meter recompressionCpuTimeRate;
+    /* bytes saved by recompressing with the topic's codec, and bytes added when the topic's codec compresses less */
+    public Meter recompressionBytesSavedRate;
+    public Meter recompressionBytesLostRate;
+    /* compressed message sets that were recompressed to assign offsets to their messages */
+    public Meter offsetRecompressionRate;
+    /* the size of each message set compressed or decompressed, on either side of the codec */
+    public Histogram compressedSizeHist;
+    public Histogram uncompressedSizeHist;
+    /* the compressed size of each message set as a percentage of its uncompressed size */
+    public Histogram compressionRatioHist;
+    public Histogram compressionTimeHist;
+    public Histogram decompressionTimeHist;
 
     public Map<String, String> tags = Maps.newHashMap();
 
@@ -30,6 +48,40 @@ public class BrokerTopicMetrics extends KafkaMetricsGroup {
         bytesRejectedRate = newMeter("BytesRejectedPerSec", "bytes", TimeUnit.SECONDS, tags);
         failedProduceRequestRate = newMeter("FailedProduceRequestsPerSec", "requests", TimeUnit.SECONDS, tags);
         failedFetchRequestRate = newMeter("FailedFetchRequestsPerSec", "requests", TimeUnit.SECONDS, tags);
+        recompressionRate = newMeter("RecompressionsPerSec", "message sets", TimeUnit.SECONDS, tags);
+        recompressionCpuTimeRate = newMeter("RecompressionCpuTimeNsPerSec", "nanoseconds", TimeUnit.SECONDS, tags);
+        recompressionBytesSavedRate = newMeter("RecompressionBytesSavedPerSec", "bytes", TimeUnit.SECONDS, tags);
+        recompressionBytesLostRate = newMeter("RecompressionBytesLostPerSec", "bytes", TimeUnit.SECONDS, tags);
+        offsetRecompressionRate = newMeter("OffsetRecompressionsPerSec", "message sets", TimeUnit.SECONDS, tags);
+        compressedSizeHist = newHistogram("CompressedBytes", true, tags);
+        uncompressedSizeHist = newHistogram("UncompressedBytes", true, tags);
+        compressionRatioHist = newHistogram("CompressionRatioPercent", true, tags);
+        compressionTimeHist = newHistogram("CompressionTimeNs", true, tags);
+        decompressionTimeHist = newHistogram("DecompressionTimeNs", true, tags);
+    }
+
+    @Override
+    public void recordCompression(CompressionCodec codec, long uncompressedBytes, long compressedBytes, long nanos) {
+        recordSizes(uncompressedBytes, compressedBytes);
+        compressionTimeHist.update(nanos);
+    }
+
+    @Override
+    public void recordDecompression(CompressionCodec codec, long compressedBytes, long uncompressedBytes, long nanos) {
+        recordSizes(uncompressedBytes, compressedBytes);
+        decompressionTimeHist.update(nanos);
+    }
+
+    @Override
+    public void recordRecompression(CompressionCodec codec) {
+        offsetRecompressionRate.mark();
+    }
+
+    private void recordSizes(long uncompressedBytes, long compressedBytes) {
+        compressedSizeHist.update(compressedBytes);
+        uncompressedSizeHist.update(uncompressedBytes);
+        if (uncompressedBytes > 0)
+            compressionRatioHist.update(compressedBytes * 100 / uncompressedBytes);
     }
 
 }
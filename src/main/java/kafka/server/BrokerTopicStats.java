@@ -1,6 +1,8 @@
 package kafka.server;
 
 import kafka.func.Handler;
+import kafka.message.CompressionCodec;
+import kafka.message.CompressionStats;
 import kafka.utils.Pool;
 
 import java.util.Optional;
@@ -20,4 +22,30 @@ public class BrokerTopicStats {
     public static BrokerTopicMetrics getBrokerTopicStats(String topic ){
         return stats.getAndMaybePut(topic);
     }
+
+    /**
+     * Compression stats that record into both the stats of the topic and those of all topics
+     */
+    public static CompressionStats getCompressionStats(String topic) {
+        BrokerTopicMetrics topicStats = getBrokerTopicStats(topic);
+        return new CompressionStats() {
+            @Override
+            public void recordCompression(CompressionCodec codec, long uncompressedBytes, long compressedBytes, long nanos) {
+                topicStats.recordCompression(codec, uncompressedBytes, compressedBytes, nanos);
+                allTopicsStats.recordCompression(codec, uncompressedBytes, compressedBytes, nanos);
+            }
+
+            @Override
+            public void recordDecompression(CompressionCodec codec, long compressedBytes, long uncompressedBytes, long nanos) {
+                topicStats.recordDecompression(codec, compressedBytes, uncompressedBytes, nanos);
+                allTopicsStats.recordDecompression(codec, compressedBytes, uncompressedBytes, nanos);
+            }
+
+            @Override
+            public void recordRecompression(CompressionCodec codec) {
+                topicStats.recordRecompression(codec);
+                allTopicsStats.recordRecompression(codec);
+            }
+        };
+    }
 }
@@ -5,6 +5,8 @@ import kafka.func.Tuple;
 import kafka.message.CompressionCodec;
 import kafka.message.Message;
 import kafka.message.MessageSet;
+import kafka.network.RequestChannel;
+import kafka.network.SocketServer;
 import kafka.utils.*;
 
 import java.util.*;
@@ -36,6 +38,8 @@ public class KafkaConfig extends ZKConfig {
         numIoThreads = props.getIntInRange("num.io.threads", 8, Tuple.of(1, Integer.MAX_VALUE));
         backgroundThreads = props.getIntInRange("background.threads", 10, Tuple.of(1, Integer.MAX_VALUE));
         queuedMaxRequests = props.getIntInRange("queued.max.requests", 500, Tuple.of(1, Integer.MAX_VALUE));
+        queuedMaxRequestBytes = props.getLongInRange("queued.max.request.bytes", -1L, Tuple.of(-1L, Long.MAX_VALUE));
+        requestDispatch = RequestChannel.Dispatch.forName(props.getString("request.dispatch", "shared"));
      /* Socket Server Configuration***********/
         port = props.getInt("port", 9092);
         hostName = props.getString("host.name", null);
@@ -44,6 +48,9 @@ public class KafkaConfig extends ZKConfig {
         socketSendBufferBytes = props.getInt("socket.send.buffer.bytes", 100 * 1024);
         socketReceiveBufferBytes = props.getInt("socket.receive.buffer.bytes", 100 * 1024);
         socketRequestMaxBytes = props.getIntInRange("socket.request.max.bytes", 100 * 1024 * 1024, Tuple.of(1, Integer.MAX_VALUE));
+        socketRequestBufferPoolBytes = props.getLongInRange("socket.request.buffer.pool.bytes", SocketServer.DefaultRequestBufferPoolBytes, Tuple.of(0L, Long.MAX_VALUE));
+        socketRequestBufferDirect = props.getBoolean("socket.request.buffer.direct", false);
+        maxInFlightRequestsPerConnection = props.getIntInRange("max.inflight.requests.per.connection", 1, Tuple.of(1, Integer.MAX_VALUE));
         maxConnectionsPerIp = props.getIntInRange("max.connections.per.ip", Integer.MAX_VALUE, Tuple.of(1, Integer.MAX_VALUE));
         maxConnectionsPerIpOverrides = props.getMap("max.connections.per.ip.overrides");
         connectionsMaxIdleMs = props.getLong("connections.max.idle.ms", 10 * 60 * 1000L);
@@ -74,6 +81,7 @@ public class KafkaConfig extends ZKConfig {
         logFlushIntervalMs = props.getLong("log.flush.interval.ms", logFlushSchedulerIntervalMs);
         logFlushOffsetCheckpointIntervalMs = props.getIntInRange("log.flush.offset.checkpoint.interval.ms", 60000, Tuple.of(0, Integer.MAX_VALUE));
         numRecoveryThreadsPerDataDir = props.getIntInRange("num.recovery.threads.per.data.dir", 1, Tuple.of(1, Integer.MAX_VALUE));
+        logCompressionThreads = props.getIntInRange("log.compression.threads", Runtime.getRuntime().availableProcessors(), Tuple.of(1, Integer.MAX_VALUE));
         autoCreateTopicsEnable = props.getBoolean("auto.create.topics.enable", true);
         minInSyncReplicas = props.getIntInRange("min.insync.replicas", 1, Tuple.of(1, Integer.MAX_VALUE));
     /* Replication configuration***********/
@@ -179,9 +187,16 @@ public class KafkaConfig extends ZKConfig {
     /* the number of threads to use for various background processing tasks */
     public Integer backgroundThreads ;
 
-    /* the number of queued requests allowed before blocking the network threads */
+    /* the number of queued requests allowed before the network threads stop reading requests */
     public Integer queuedMaxRequests ;
 
+    /* the most memory the requests being read or handled can take before the network threads stop reading, -1 for no limit */
+    public Long queuedMaxRequestBytes ;
+
+    /* how requests are spread over the io threads: shared for a single queue they all take from, connection or partition
+       for a queue per thread picked by the connection or by the partition of the request, from which idle threads steal */
+    public RequestChannel.Dispatch requestDispatch ;
+
     /***********
      * Socket Server Configuration
      ***********/
@@ -213,6 +228,16 @@ public class KafkaConfig extends ZKConfig {
     /* the maximum number of bytes in a socket request */
     public Integer socketRequestMaxBytes ;
 
+    /* the memory kept in the buffers of handled requests for reading the next ones into */
+    public Long socketRequestBufferPoolBytes ;
+
+    /* whether requests are read into direct buffers rather than heap buffers */
+    public Boolean socketRequestBufferDirect ;
+
+    /* the most requests read from a connection that have not been answered yet, the requests of a connection are
+       still handled one at a time in the order they were sent and their responses written in that order */
+    public Integer maxInFlightRequestsPerConnection ;
+
     /* the maximum number of connections we allow from each ip address */
     public Integer maxConnectionsPerIp ;
 
@@ -305,6 +330,9 @@ public class KafkaConfig extends ZKConfig {
     /* the number of threads per data directory to be used for log recovery at startup and flushing at shutdown */
     public Integer numRecoveryThreadsPerDataDir ;
 
+    /* the number of threads recompressing appended messages with the compression.codec of their topic */
+    public Integer logCompressionThreads ;
+
     /* enable auto creation of topic on the server */
     public Boolean autoCreateTopicsEnable ;
 
@@ -38,7 +38,7 @@ public class KafkaRequestHandler extends Logging implements Runnable {
                     // time_window is independent of the number of threads, each recorded idle;
                     // time should be discounted by # threads.;
                     long startSelectTime = Time.get().nanoseconds();
-                    req = requestChannel.receiveRequest(300L);
+                    req = requestChannel.receiveRequest(id, 300L);
                     long idleTime = Time.get().nanoseconds() - startSelectTime;
                     aggregateIdleMeter.mark(idleTime / totalHandlerThreads);
                 }
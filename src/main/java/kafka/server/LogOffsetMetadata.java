@@ -4,15 +4,15 @@ package kafka.server;
  * Created by Administrator on 2017/3/29.
  */
 public class LogOffsetMetadata {
-    public static final Long UnknownSegBaseOffset = -1L;
-    public static final Integer UnknownFilePosition = -1;
+    public static final long UnknownSegBaseOffset = -1L;
+    public static final int UnknownFilePosition = -1;
     public static final LogOffsetMetadata UnknownOffsetMetadata = new LogOffsetMetadata(-1L, 0L, 0);
 
-    public Long messageOffset;
-    public Long segmentBaseOffset = LogOffsetMetadata.UnknownSegBaseOffset;
-    public Integer relativePositionInSegment = LogOffsetMetadata.UnknownFilePosition;
+    public long messageOffset;
+    public long segmentBaseOffset = LogOffsetMetadata.UnknownSegBaseOffset;
+    public int relativePositionInSegment = LogOffsetMetadata.UnknownFilePosition;
 
-    public LogOffsetMetadata(Long messageOffset, Long segmentBaseOffset, Integer positionInSegment) {
+    public LogOffsetMetadata(long messageOffset, long segmentBaseOffset, int positionInSegment) {
         this.messageOffset = messageOffset;
         this.segmentBaseOffset = segmentBaseOffset;
         this.relativePositionInSegment = positionInSegment;
@@ -24,11 +24,11 @@ public class LogOffsetMetadata {
 //    }
 
 
-    public LogOffsetMetadata(Long messageOffset) {
+    public LogOffsetMetadata(long messageOffset) {
         this(messageOffset, LogOffsetMetadata.UnknownSegBaseOffset, LogOffsetMetadata.UnknownFilePosition);
     }
 
-    public LogOffsetMetadata(Long messageOffset, Long segmentBaseOffset) {
+    public LogOffsetMetadata(long messageOffset, long segmentBaseOffset) {
         this(messageOffset, segmentBaseOffset, LogOffsetMetadata.UnknownFilePosition);
     }
 
@@ -0,0 +1,35 @@
+package kafka.server;
+
+import kafka.common.ErrorMapping;
+import kafka.log.TopicAndPartition;
+
+import java.util.Optional;
+
+/**
+ * The outcome of appending the messages of a produce request to the log of one partition
+ */
+public class ProduceResult {
+    public TopicAndPartition key;
+    public Long start;
+    public Long end;
+    public Optional<Throwable> error;
+
+    public ProduceResult(TopicAndPartition key, Long start, Long end) {
+        this.key = key;
+        this.start = start;
+        this.end = end;
+        this.error = Optional.empty();
+    }
+
+    public ProduceResult(TopicAndPartition key, Throwable throwable) {
+        this(key, -1L, -1L);
+        this.error = Optional.of(throwable);
+    }
+
+    public Short errorCode() {
+        if (!error.isPresent())
+            return ErrorMapping.NoError;
+        Short code = ErrorMapping.codeFor(error.get().getClass());
+        return code == null ? ErrorMapping.UnknownCode : code;
+    }
+}
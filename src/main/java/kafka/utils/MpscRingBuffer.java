@@ -0,0 +1,106 @@
+package kafka.utils;
+
+import kafka.annotation.threadsafe;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded queue for any number of threads to offer to and a single thread to poll from, without locks and without
+ * allocating for each element.
+ * <p>
+ * The elements are kept in an array whose size is a power of two. Each slot has a sequence number that tells the
+ * producers when it is free for the element with a given position and the consumer when that element has been written:
+ * a producer claims a position by advancing the tail, writes the element to its slot and then publishes it by advancing
+ * the sequence of the slot, the consumer takes the element at the head once its slot is published and frees the slot
+ * for the position a lap ahead.
+ * <p>
+ * Only {@link #poll()} is restricted to a single thread at a time, the other methods can be called by any thread.
+ */
+@threadsafe
+public class MpscRingBuffer<T> {
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<T> elements;
+    private final AtomicLongArray sequences;
+    /* the position of the next element to offer, advanced by the producers */
+    private final AtomicLong tail = new AtomicLong(0);
+    /* the position of the next element to poll, only written by the consumer */
+    private volatile long head = 0;
+
+    /**
+     * @param capacity The most elements the queue holds, rounded up to a power of two
+     */
+    public MpscRingBuffer(int capacity) {
+        Prediction.require(capacity > 0 && capacity <= 1 << 30, "The capacity of the ring buffer must be between 1 and 2^30.");
+        this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.elements = new AtomicReferenceArray<>(this.capacity);
+        this.sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++)
+            sequences.set(i, i);
+    }
+
+    /**
+     * Add the element at the tail of the queue if there is room
+     *
+     * @return false if the queue is full
+     */
+    public boolean offer(T element) {
+        if (element == null)
+            throw new NullPointerException();
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long available = sequences.get(index) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, element);
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+            } else if (available < 0) {
+                // the slot still holds the element from the previous lap;
+                return false;
+            }
+            // another producer claimed the position, try the next one;
+        }
+    }
+
+    /**
+     * Take the element at the head of the queue, only to be called by the consumer
+     *
+     * @return The element or null if the queue is empty or the element at the head is still being written
+     */
+    public T poll() {
+        long position = head;
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1)
+            return null;
+        T element = elements.get(index);
+        elements.lazySet(index, null);
+        sequences.lazySet(index, position + capacity);
+        head = position + 1;
+        return element;
+    }
+
+    /**
+     * Whether no element has been offered that has not been polled yet
+     */
+    public boolean isEmpty() {
+        return tail.get() == head;
+    }
+
+    /**
+     * The number of elements offered and not polled yet, only a snapshot when other threads use the queue
+     */
+    public int size() {
+        long currentHead = head;
+        return (int) Math.max(0, Math.min(capacity, tail.get() - currentHead));
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
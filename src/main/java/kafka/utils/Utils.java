@@ -371,11 +371,73 @@ public class Utils {
      * @return The CRC32
      */
     public static Long crc32(byte[] bytes, int offset, int size) {
-        CRC32 crc = new CRC32();
+        CRC32 crc = threadCrc32.get();
+        crc.reset();
         crc.update(bytes, offset, size);
         return crc.getValue();
     }
 
+    /**
+     * Compute the CRC32 of the bytes of a buffer between the given absolute indexes, whether the buffer is on the heap,
+     * direct or memory mapped. The buffer is only read, so it may be shared with other threads; the bytes of a direct
+     * buffer are copied through a buffer of the thread in chunks, see {@link #crc32OfView(ByteBuffer, int, int)} for a
+     * buffer the caller has to itself.
+     *
+     * @param buffer The buffer to checksum
+     * @param offset The index in the buffer at which to begin checksumming
+     * @param size   The number of bytes to checksum
+     * @return The CRC32
+     */
+    public static long crc32(ByteBuffer buffer, int offset, int size) {
+        CRC32 crc = threadCrc32.get();
+        crc.reset();
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset() + offset, size);
+        } else {
+            byte[] chunk = threadCrc32Chunk.get();
+            for (int start = offset; start < offset + size; start += chunk.length) {
+                int length = Math.min(chunk.length, offset + size - start);
+                for (int i = 0; i < length; i++)
+                    chunk[i] = buffer.get(start + i);
+                crc.update(chunk, 0, length);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Compute the CRC32 of the bytes of a buffer between the given absolute indexes, checksumming a direct buffer in
+     * place. The position and limit of a direct buffer are moved while it is checksummed and restored before returning,
+     * so it must be a view that no other thread uses, such as a duplicate owned by a cursor.
+     *
+     * @param view   The buffer to checksum, only used by the calling thread
+     * @param offset The index in the buffer at which to begin checksumming
+     * @param size   The number of bytes to checksum
+     * @return The CRC32
+     */
+    public static long crc32OfView(ByteBuffer view, int offset, int size) {
+        if (view.hasArray())
+            return crc32(view, offset, size);
+        CRC32 crc = threadCrc32.get();
+        crc.reset();
+        int position = view.position();
+        int limit = view.limit();
+        try {
+            view.limit(offset + size);
+            view.position(offset);
+            crc.update(view);
+        } finally {
+            view.limit(limit);
+            view.position(position);
+        }
+        return crc.getValue();
+    }
+
+    /* a checksum engine per thread, so checksumming a message does not allocate */
+    private static final ThreadLocal<CRC32> threadCrc32 = ThreadLocal.withInitial(CRC32::new);
+    /* the bytes of a shared direct buffer are copied to this to be checksummed */
+    private static final ThreadLocal<byte[]> threadCrc32Chunk = ThreadLocal.withInitial(() -> new byte[4096]);
+
     /**
      * Compute the hash code for the given items
      */
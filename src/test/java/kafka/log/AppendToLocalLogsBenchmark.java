@@ -0,0 +1,97 @@
+package kafka.log;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import kafka.message.ByteBufferMessageSet;
+import kafka.message.CompressionCodec;
+import kafka.message.Message;
+import kafka.server.BrokerState;
+import kafka.utils.MockTime;
+import kafka.utils.TestUtils;
+import kafka.utils.Utils;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A benchmark of the latency of appending a produce request that spans many partitions, appending the partitions one
+ * after the other on the request thread and fanned out by {@link LogManager#appendToLocalLogs(Map)}.
+ * <p>
+ * Usage: AppendToLocalLogsBenchmark [partitions] [messages per partition] [message size in bytes] [requests] [codec]
+ */
+public class AppendToLocalLogsBenchmark {
+    public static void main(String[] args) throws Throwable {
+        int partitions = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int size = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+        int requests = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+        CompressionCodec codec = CompressionCodec.getCompressionCodec(args.length > 4 ? args[4] : "gzip");
+
+        MockTime time = new MockTime();
+        File dir = TestUtils.tempDir();
+        LogConfig config = new LogConfig();
+        config.segmentSize = 512 * 1024 * 1024;
+        LogManager logManager = new LogManager(Lists.newArrayList(dir), Maps.newHashMap(), config, new CleanerConfig(false),
+                1, 1000000L, 1000000L, 1000000L, time.scheduler, new BrokerState(), time);
+        logManager.startup();
+        try {
+            Random random = new Random(42);
+            Map<TopicAndPartition, ByteBufferMessageSet> request = Maps.newLinkedHashMap();
+            for (int i = 0; i < partitions; i++) {
+                TopicAndPartition topicAndPartition = new TopicAndPartition("benchmark", i);
+                logManager.createLog(topicAndPartition, config);
+                List<Message> messages = Lists.newArrayList();
+                for (int j = 0; j < count; j++) {
+                    byte[] bytes = new byte[size];
+                    // half random, half zeros so that the sets compress
+                    for (int k = 0; k < size / 2; k++)
+                        bytes[k] = (byte) random.nextInt(16);
+                    messages.add(new Message(bytes));
+                }
+                request.put(topicAndPartition, new ByteBufferMessageSet(codec, messages));
+            }
+
+            System.out.println(String.format("%d partitions of %d messages of %d bytes with %s, %d requests",
+                    partitions, count, size, codec, requests));
+            System.out.println(String.format("%-10s %10s %10s %10s", "mode", "p50 ms", "p99 ms", "max ms"));
+            for (int round = 0; round < 2; round++) {
+                // the first round warms up
+                long[] serial = measure(requests, () -> {
+                    for (Map.Entry<TopicAndPartition, ByteBufferMessageSet> entry : request.entrySet())
+                        logManager.getLog(entry.getKey()).get().append(entry.getValue());
+                });
+                long[] parallel = measure(requests, () -> logManager.appendToLocalLogs(request));
+                if (round > 0) {
+                    print("serial", serial);
+                    print("parallel", parallel);
+                }
+            }
+        } finally {
+            logManager.shutdown();
+            Utils.rm(dir);
+        }
+    }
+
+    private static long[] measure(int requests, Runnable append) {
+        long[] latencies = new long[requests];
+        for (int i = 0; i < requests; i++) {
+            long start = System.nanoTime();
+            append.run();
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static void print(String mode, long[] latencies) {
+        System.out.println(String.format("%-10s %10.3f %10.3f %10.3f", mode, percentile(latencies, 0.5),
+                percentile(latencies, 0.99), latencies[latencies.length - 1] / 1e6));
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))] / 1e6;
+    }
+}
@@ -217,11 +217,11 @@ public class CleanerTest {
         Iterable<Long> offsets = writeToLog(log, list);
         List<LogSegment> segments = Lists.newArrayList(log.logSegments());
 
-        checkRange(cleaner, log, map, 0, segments.get(1).baseOffset.intValue());
+        checkRange(cleaner, log, map, 0, (int) segments.get(1).baseOffset);
 
-        checkRange(cleaner, log, map, segments.get(1).baseOffset.intValue(), segments.get(3).baseOffset.intValue());
+        checkRange(cleaner, log, map, (int) segments.get(1).baseOffset, (int) segments.get(3).baseOffset);
 
-        checkRange(cleaner, log, map, segments.get(3).baseOffset.intValue(), log.logEndOffset().intValue());
+        checkRange(cleaner, log, map, (int) segments.get(3).baseOffset, log.logEndOffset().intValue());
     }
 
     public void checkRange(Cleaner cleaner, Log log, FakeOffsetMap map, Integer start, Integer end) throws IOException, InterruptedException {
@@ -38,10 +38,10 @@ public class FileMessageSetTest extends BaseMessageSetTest {
      */
     @Test
     public void testFileSize() throws IOException {
-        Assert.assertEquals(messageSet.channel.size(), messageSet.sizeInBytes().longValue());
+        Assert.assertEquals(messageSet.channel.size(), messageSet.sizeInBytes());
         for (int i = 0; i < 20; i++) {
             messageSet.append(TestUtils.singleMessageSet("abcd".getBytes()));
-            Assert.assertEquals(messageSet.channel.size(), messageSet.sizeInBytes().longValue());
+            Assert.assertEquals(messageSet.channel.size(), messageSet.sizeInBytes());
         }
     }
 
@@ -68,6 +68,33 @@ public class FileMessageSetTest extends BaseMessageSetTest {
         TestUtils.checkEquals(messages.iterator(), messageSet.toMessageList().iterator());
     }
 
+    /**
+     * A cursor over the file sees the same messages as the iterator, across chunk boundaries and for messages larger
+     * than a chunk, and stops at a partial message
+     */
+    @Test
+    public void testCursor() throws IOException {
+        List<Message> list = Lists.newArrayList();
+        for (int i = 0; i < 500; i++)
+            list.add(new Message(TestUtils.randomBytes(i == 250 ? 2 * FileMessageSet.CursorChunkSize : 1000)));
+        FileMessageSet written = createMessageSet(list);
+        written.channel.write(ByteBuffer.allocate(6));
+        FileMessageSet set = new FileMessageSet(written.file);
+        Iterator<MessageAndOffset> expected = set.iterator();
+        MessageSetCursor cursor = set.cursor(Integer.MAX_VALUE);
+        int position = 0;
+        while (cursor.next()) {
+            MessageAndOffset entry = expected.next();
+            Assert.assertEquals((long) entry.offset, cursor.offset());
+            Assert.assertEquals(position, cursor.position());
+            Assert.assertEquals(entry.message, cursor.message());
+            cursor.ensureValid();
+            position += cursor.entrySize();
+        }
+        Assert.assertFalse(expected.hasNext());
+        Assert.assertEquals(set.sizeInBytes() - 6, position);
+    }
+
     /**
      * Iterating over the file does file reads but shouldn't change the position of the underlying FileChannel.
      */
@@ -123,6 +150,23 @@ public class FileMessageSetTest extends BaseMessageSetTest {
                 messageSet.searchFor(50L, position));
     }
 
+    /**
+     * Test that a search does not allocate for each message it skips over, read through the channel or the map
+     */
+    @Test
+    public void testSearchAllocation() throws Exception {
+        List<Message> many = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++)
+            many.add(new Message(("message-" + i).getBytes()));
+        FileMessageSet set = createMessageSet(many);
+        long allocated = TestUtils.allocatedBytes(() -> set.searchFor(999L, 0));
+        Assert.assertTrue("Allocated " + allocated + " bytes searching 1000 messages", allocated < many.size());
+        set.map();
+        allocated = TestUtils.allocatedBytes(() -> set.searchFor(999L, 0));
+        Assert.assertTrue("Allocated " + allocated + " bytes searching 1000 mapped messages", allocated < many.size());
+        set.delete();
+    }
+
     /**
      * Test that the message set iterator obeys start and end slicing
      */
@@ -148,6 +192,53 @@ public class FileMessageSetTest extends BaseMessageSetTest {
             e.printStackTrace();
         }
         Assert.assertEquals(Lists.newArrayList(message.message), messageSet.toMessageList());
-        Assert.assertEquals(MessageSet.entrySize(message.message), messageSet.sizeInBytes());
+        Assert.assertEquals((int) MessageSet.entrySize(message.message), messageSet.sizeInBytes());
+    }
+
+    /**
+     * Test that searches, iteration and slices read the same messages through the memory map, including messages
+     * appended after the map was made
+     */
+    @Test
+    public void testMappedReads() throws IOException {
+        Integer position = messageSet.searchFor(1L, 0).position;
+        messageSet.map();
+        Assert.assertTrue(messageSet.isMapped());
+        Assert.assertEquals(new OffsetPosition(1L, position), messageSet.searchFor(1L, 0));
+        TestUtils.checkEquals(messages.iterator(), messageSet.toMessageList().iterator());
+        Assert.assertEquals(Lists.newArrayList(messageSet.tail().next().message), messageSet.read(position, messageSet.tail().next().message.size()).toMessageList());
+
+        Message lastMessage = new Message("test".getBytes());
+        messageSet.append(new ByteBufferMessageSet(CompressionCodec.NoCompressionCodec, new AtomicLong(50), lastMessage));
+        Assert.assertEquals(50, messageSet.searchFor(50L, 0).offset);
+        Assert.assertEquals(lastMessage, messageSet.toMessageAndOffsetList().get(messages.size()).message);
+        messageSet.unmap();
+        Assert.assertFalse(messageSet.isMapped());
+    }
+
+    /**
+     * Test that a read spanning the end of the memory map reads the bytes appended after the map through the channel
+     */
+    @Test
+    public void testReadAcrossEndOfMap() throws IOException {
+        int mappedSize = messageSet.sizeInBytes();
+        messageSet.map();
+        messageSet.append(TestUtils.singleMessageSet("appended after the map".getBytes()));
+        int position = mappedSize - 20;
+        ByteBuffer expected = ByteBuffer.allocate(messageSet.sizeInBytes() - position);
+        messageSet.channel.read(expected, position);
+        expected.flip();
+        Assert.assertEquals(expected, messageSet.readInto(ByteBuffer.allocate(expected.limit()), position));
+    }
+
+    /**
+     * Test that truncation releases the memory map
+     */
+    @Test
+    public void testTruncateUnmaps() throws IOException {
+        messageSet.map();
+        messageSet.truncateTo(messageSet.searchFor(1L, 0).position);
+        Assert.assertFalse("Truncation should release the map", messageSet.isMapped());
+        Assert.assertEquals(1, messageSet.toMessageList().size());
     }
 }
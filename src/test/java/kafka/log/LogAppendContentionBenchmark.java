@@ -0,0 +1,100 @@
+package kafka.log;
+
+import com.google.common.collect.Lists;
+import kafka.message.ByteBufferMessageSet;
+import kafka.message.CompressionCodec;
+import kafka.message.Message;
+import kafka.utils.MockTime;
+import kafka.utils.TestUtils;
+import kafka.utils.Utils;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A contention benchmark for Log.append. Several threads append to the same log and the time they spend blocked on
+ * the log lock is read from the ThreadMXBean, so the cost of the work done while holding the lock shows up directly.
+ * <p>
+ * Usage: LogAppendContentionBenchmark [threads] [appends per thread] [messages per set] [message size] [codec]
+ */
+public class LogAppendContentionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Integer numThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        Integer appendsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        Integer messagesPerSet = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        Integer messageSize = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+        CompressionCodec codec = args.length > 4 ? CompressionCodec.getCompressionCodec(args[4]) : CompressionCodec.NoCompressionCodec;
+
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        threadBean.setThreadContentionMonitoringEnabled(true);
+
+        File dir = TestUtils.tempDir();
+        LogConfig config = new LogConfig();
+        config.segmentSize = 256 * 1024 * 1024;
+        config.maxMessageSize = Integer.MAX_VALUE;
+        MockTime time = new MockTime();
+        Log log = new Log(dir, config, 0L, time.scheduler, time);
+
+        List<ByteBufferMessageSet> sets = Lists.newArrayList();
+        Random random = new Random(42);
+        for (int t = 0; t < numThreads; t++) {
+            List<Message> messages = Lists.newArrayList();
+            for (int i = 0; i < messagesPerSet; i++) {
+                byte[] payload = new byte[messageSize];
+                random.nextBytes(payload);
+                messages.add(new Message(payload));
+            }
+            sets.add(new ByteBufferMessageSet(codec, messages));
+        }
+
+        AtomicLong blockedMs = new AtomicLong(0);
+        AtomicLong blockedCount = new AtomicLong(0);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = Lists.newArrayList();
+        for (int t = 0; t < numThreads; t++) {
+            ByteBufferMessageSet set = sets.get(t);
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < appendsPerThread; i++)
+                    log.append(new ByteBufferMessageSet(copy(set.buffer)));
+                // read the counters before the thread exits, they are gone afterwards;
+                ThreadInfo info = threadBean.getThreadInfo(Thread.currentThread().getId());
+                blockedMs.addAndGet(info.getBlockedTime());
+                blockedCount.addAndGet(info.getBlockedCount());
+            }, "appender-" + t));
+        }
+        threads.forEach(Thread::start);
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        long elapsedNs = System.nanoTime() - begin;
+
+        long appends = (long) numThreads * appendsPerThread;
+        double seconds = elapsedNs / 1000.0 / 1000.0 / 1000.0;
+        System.out.println(String.format("%d threads, %d appends of %d x %d byte messages, codec %s", numThreads, appends, messagesPerSet, messageSize, codec.name));
+        System.out.println(String.format("throughput: %.1f appends/sec, %.1f MB/sec", appends / seconds, appends * sets.get(0).sizeInBytes() / seconds / 1024 / 1024));
+        System.out.println(String.format("blocked on monitors: %d times, %d ms total, %.3f ms per append", blockedCount.get(), blockedMs.get(), (double) blockedMs.get() / appends));
+        log.close();
+        Utils.rm(dir);
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.limit());
+        copy.put(buffer.duplicate());
+        copy.rewind();
+        return copy;
+    }
+}
@@ -2,10 +2,14 @@ package kafka.log;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import kafka.common.ErrorMapping;
 import kafka.common.KafkaException;
 import kafka.common.OffsetOutOfRangeException;
 import kafka.message.ByteBufferMessageSet;
+import kafka.message.CompressionCodec;
+import kafka.message.Message;
 import kafka.server.BrokerState;
+import kafka.server.ProduceResult;
 import kafka.utils.MockTime;
 import kafka.utils.TestUtils;
 import kafka.utils.Utils;
@@ -80,6 +84,36 @@ public class LogManagerTest {
         Assert.assertTrue(!logFile.exists());
     }
 
+    /**
+     * Test that the partitions of a produce request are appended in parallel with the results in the order of the
+     * request, and that a missing log fails only its own partition.
+     */
+    @Test
+    public void testAppendToLocalLogs() throws IOException {
+        Map<TopicAndPartition, ByteBufferMessageSet> data = Maps.newLinkedHashMap();
+        for (int i = 0; i < 20; i++) {
+            TopicAndPartition topicAndPartition = new TopicAndPartition(name, i);
+            if (i != 7)
+                logManager.createLog(topicAndPartition, logConfig);
+            data.put(topicAndPartition, new ByteBufferMessageSet(CompressionCodec.GZIPCompressionCodec,
+                    Lists.newArrayList(new Message("a".getBytes()), new Message("b".getBytes()))));
+        }
+        for (int round = 0; round < 3; round++) {
+            Map<TopicAndPartition, ProduceResult> results = logManager.appendToLocalLogs(data);
+            Assert.assertEquals(Lists.newArrayList(data.keySet()), Lists.newArrayList(results.keySet()));
+            for (ProduceResult result : results.values()) {
+                if (result.key.partition == 7) {
+                    Assert.assertEquals(ErrorMapping.UnknownTopicOrPartitionCode, result.errorCode());
+                } else {
+                    Assert.assertEquals(ErrorMapping.NoError, result.errorCode());
+                    Assert.assertEquals(2L * round, (long) result.start);
+                    Assert.assertEquals(2L * round + 1, (long) result.end);
+                }
+            }
+        }
+        Assert.assertEquals(6L, (long) logManager.getLog(new TopicAndPartition(name, 19)).get().logEndOffset());
+    }
+
     /**
      * Test time-based log cleanup. First append messages, then set the time into the future and run cleanup.
      */
@@ -99,8 +133,8 @@ public class LogManagerTest {
         time.sleep(maxLogAgeMs + 1);
         Assert.assertEquals("Now there should only be only one segment in the index.", new Integer(1), log.numberOfSegments());
         time.sleep(log.config.fileDeleteDelayMs + 1);
-        Assert.assertEquals("Files should have been deleted", log.numberOfSegments() * 2, log.dir.list().length);
-        Assert.assertEquals("Should get empty fetch off new log.", new Integer(0), log.read(offset + 1, 1024).messageSet.sizeInBytes());
+        Assert.assertEquals("Files should have been deleted", log.numberOfSegments() * 3, log.dir.list().length);
+        Assert.assertEquals("Should get empty fetch off new log.", 0, log.read(offset + 1, 1024).messageSet.sizeInBytes());
 
         try {
             log.read(0L, 1024);
@@ -144,8 +178,8 @@ public class LogManagerTest {
         time.sleep(logManager.InitialTaskDelayMs);
         Assert.assertEquals("Now there should be exactly 6 segments", new Integer(6), log.numberOfSegments());
         time.sleep(log.config.fileDeleteDelayMs + 1);
-        Assert.assertEquals("Files should have been deleted", log.numberOfSegments() * 2, log.dir.list().length);
-        Assert.assertEquals("Should get empty fetch off new log.", new Integer(0), log.read(offset + 1, 1024).messageSet.sizeInBytes());
+        Assert.assertEquals("Files should have been deleted", log.numberOfSegments() * 3, log.dir.list().length);
+        Assert.assertEquals("Should get empty fetch off new log.", 0, log.read(offset + 1, 1024).messageSet.sizeInBytes());
 
         try {
             log.read(0L, 1024);
@@ -49,6 +49,7 @@ public class LogSegmentTest {
     public void teardown() {
         for (LogSegment seg : segments) {
             seg.index.delete();
+            seg.timeIndex.delete();
             seg.log.delete();
         }
     }
@@ -64,6 +65,29 @@ public class LogSegmentTest {
         Assert.assertNull("Read beyond the last offset in the segment should be null", read);
     }
 
+    /**
+     * Appending to a segment should not allocate for each message in the set; appending ten times as many messages
+     * should allocate about the same
+     */
+    @Test
+    public void testAppendAllocation() throws Exception {
+        LogSegment seg = createSegment(0L);
+        List<String> few = Lists.newArrayList();
+        List<String> many = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            if (i < 100)
+                few.add("message-" + i);
+            many.add("message-" + i);
+        }
+        AtomicLong offset = new AtomicLong(0);
+        ByteBufferMessageSet fewSet = messages(0L, few);
+        ByteBufferMessageSet manySet = messages(0L, many);
+        long fewAllocated = TestUtils.allocatedBytes(() -> seg.append(offset.getAndAdd(few.size()), fewSet));
+        long manyAllocated = TestUtils.allocatedBytes(() -> seg.append(offset.getAndAdd(many.size()), manySet));
+        Assert.assertTrue(String.format("Allocated %d bytes appending %d messages and %d bytes appending %d", fewAllocated, few.size(), manyAllocated, many.size()),
+                manyAllocated - fewAllocated < many.size() - few.size());
+    }
+
     /**
      * Reading from before the first offset in the segment should return messages
      * beginning with the first message in the segment
@@ -1,14 +1,19 @@
 package kafka.log;
 
 import com.google.common.collect.Lists;
+import kafka.common.InvalidConfigException;
 import kafka.common.MessageSetSizeTooLargeException;
 import kafka.common.MessageSizeTooLargeException;
 import kafka.common.OffsetOutOfRangeException;
 import kafka.message.*;
+import kafka.server.BrokerTopicMetrics;
+import kafka.server.BrokerTopicStats;
 import kafka.server.FetchDataInfo;
+import kafka.func.Action;
 import kafka.utils.Logging;
 import kafka.utils.TestUtils;
 import kafka.server.KafkaConfig;
+import kafka.utils.MockScheduler;
 import kafka.utils.MockTime;
 import kafka.utils.Utils;
 import org.junit.After;
@@ -18,9 +23,18 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -125,7 +139,7 @@ public class LogTest {
     public void testReadOutOfRange() throws IOException {
         createEmptyLogs(logDir, 1024);
         Log log = new Log(logDir, getLogConfig(1024), 0L, time.scheduler, time);
-        Assert.assertEquals("Reading just beyond end of log should produce 0 byte read.", new Integer(0), log.read(1024L, 1000).messageSet.sizeInBytes());
+        Assert.assertEquals("Reading just beyond end of log should produce 0 byte read.", 0, log.read(1024L, 1000).messageSet.sizeInBytes());
         try {
             log.read(0L, 1024);
             Assert.fail("Expected exception on invalid read.");
@@ -216,6 +230,189 @@ public class LogTest {
         Assert.assertEquals("Read at offset 3 should produce 2", new Long(2), read(log, 3L).head().offset);
     }
 
+    /**
+     * Compressed message sets with relative offsets are appended as they are, with only the wrapper offsets assigned
+     */
+    @Test
+    public void testRelativeOffsetMessages() throws IOException {
+        Log log = new Log(logDir, getLogConfig(10000), 0L, time.scheduler, time);
+        List<Message> list = Lists.newArrayList(new Message("a".getBytes()), new Message("b".getBytes()), new Message("c".getBytes()));
+        for (int i = 0; i < 2; i++) {
+            ByteBufferMessageSet set = new ByteBufferMessageSet(CompressionCodec.GZIPCompressionCodec, new AtomicLong(0), Message.RelativeOffsetMagicValue, list);
+            ByteBuffer payload = set.shallowIterator().next().message.payload();
+            LogAppendInfo info = log.append(set);
+            Assert.assertEquals(3L * i, (long) info.firstOffset);
+            Assert.assertEquals(3L * i + 2, (long) info.lastOffset);
+            MessageAndOffset wrapper = log.read(3L * i, 4096).messageSet.head();
+            Assert.assertEquals(3L * i + 2, (long) wrapper.offset);
+            Assert.assertEquals("The wrapper should not be recompressed", payload, wrapper.message.payload());
+        }
+        Assert.assertEquals(new Long(6), log.logEndOffset());
+
+        long expected = 0;
+        for (MessageAndOffset wrapper : log.activeSegment().log.toMessageAndOffsetList()) {
+            DecompressingIterator inner = new DecompressingIterator(wrapper.message, wrapper.offset);
+            while (inner.hasNext())
+                Assert.assertEquals(expected++, (long) inner.next().offset);
+        }
+        Assert.assertEquals(6, expected);
+        log.close();
+    }
+
+    /**
+     * Messages the broker recompresses are written with the topic's codec when it has one
+     */
+    @Test
+    public void testTopicCompressionCodec() throws IOException {
+        LogConfig config = getLogConfig(10000);
+        config.compressionCodec = CompressionCodec.ZStdCompressionCodec.name;
+        Log log = new Log(logDir, config, 0L, time.scheduler, time);
+        List<Message> list = Lists.newArrayList(new Message("a".getBytes()), new Message("b".getBytes()));
+        log.append(new ByteBufferMessageSet(CompressionCodec.GZIPCompressionCodec, list));
+        MessageAndOffset wrapper = log.read(0L, 4096).messageSet.head();
+        Assert.assertEquals(CompressionCodec.ZStdCompressionCodec, wrapper.message.compressionCodec());
+        TestUtils.checkEquals(list.iterator(), ByteBufferMessageSet.decompress(wrapper.message).toMessageList().iterator());
+        log.close();
+    }
+
+    /**
+     * Uncompressed messages keep the producer's codec unless the topic gives them relative offsets, in which case they
+     * are compressed with the topic's codec off the lock, and a topic that stores messages uncompressed decompresses
+     * what the producer compressed
+     */
+    @Test
+    public void testTranscodeOnAppend() throws IOException {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        LogConfig config = getLogConfig(10000);
+        config.compressionCodec = CompressionCodec.GZIPCompressionCodec.name;
+        Log log = new Log(logDir, config, 0L, time.scheduler, time);
+        log.compressionPool = pool;
+        List<Message> list = Lists.newArrayList();
+        for (int i = 0; i < 10; i++)
+            list.add(new Message(("message " + i).getBytes()));
+        BrokerTopicMetrics stats = BrokerTopicStats.getBrokerTopicStats(log.topicAndPartition.topic);
+        long recompressions = stats.recompressionRate.count();
+        long lost = stats.recompressionBytesLostRate.count();
+        ByteBufferMessageSet set = new ByteBufferMessageSet(CompressionCodec.NoCompressionCodec, list);
+        log.append(set);
+        Assert.assertEquals("Uncompressed messages without relative offsets should not be compressed under the lock",
+                CompressionCodec.NoCompressionCodec, log.read(0L, 4096).messageSet.head().message.compressionCodec());
+        Assert.assertEquals(recompressions, stats.recompressionRate.count());
+        log.truncateFullyAndStartAt(0L);
+
+        config.compressionRelativeOffsets = true;
+        long saved = stats.recompressionBytesSavedRate.count();
+        LogAppendInfo info = log.append(set);
+        Assert.assertEquals(0L, info.firstOffset);
+        Assert.assertEquals(9L, info.lastOffset);
+        MessageAndOffset wrapper = log.read(0L, 4096).messageSet.head();
+        Assert.assertEquals(CompressionCodec.GZIPCompressionCodec, wrapper.message.compressionCodec());
+        Assert.assertTrue("The wrapper should have relative offsets", wrapper.message.hasRelativeOffsets());
+        Assert.assertEquals(9L, (long) wrapper.offset);
+        Assert.assertEquals(stats.recompressionBytesSavedRate.count() - saved, (long) set.sizeInBytes() - log.size());
+        Assert.assertEquals(lost, stats.recompressionBytesLostRate.count());
+        config.compressionRelativeOffsets = false;
+
+        // a set with relative offsets is recompressed off the lock and keeps them;
+        log.append(new ByteBufferMessageSet(CompressionCodec.SnappyCompressionCodec, new AtomicLong(0), Message.RelativeOffsetMagicValue, list));
+        wrapper = log.read(10L, 4096).messageSet.head();
+        Assert.assertEquals(CompressionCodec.GZIPCompressionCodec, wrapper.message.compressionCodec());
+        Assert.assertTrue("The wrapper should have relative offsets", wrapper.message.hasRelativeOffsets());
+        Assert.assertEquals(19L, (long) wrapper.offset);
+
+        config.compressionCodec = CompressionCodec.NoCompressionCodec.name;
+        log.append(new ByteBufferMessageSet(CompressionCodec.SnappyCompressionCodec, list));
+        List<MessageAndOffset> appended = log.read(20L, 4096).messageSet.toMessageAndOffsetList();
+        Assert.assertEquals(10, appended.size());
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(CompressionCodec.NoCompressionCodec, appended.get(i).message.compressionCodec());
+            Assert.assertEquals(20L + i, (long) appended.get(i).offset);
+            Assert.assertEquals(list.get(i), appended.get(i).message);
+        }
+        Assert.assertTrue("Decompressing should be recorded as bytes lost", stats.recompressionBytesLostRate.count() > lost);
+        log.close();
+        pool.shutdown();
+    }
+
+    /**
+     * A set the topic's codec would compress beyond the maximum message size keeps the producer's codec, and is not
+     * counted as recompressed
+     */
+    @Test
+    public void testTranscodeOverMaxMessageSize() throws IOException {
+        LogConfig config = getLogConfig(10000);
+        config.compressionCodec = CompressionCodec.GZIPCompressionCodec.name;
+        config.compressionRelativeOffsets = true;
+        config.maxMessageSize = 300;
+        Log log = new Log(logDir, config, 0L, time.scheduler, time);
+        List<Message> list = Lists.newArrayList();
+        for (int i = 0; i < 3; i++)
+            list.add(new Message(TestUtils.randomBytes(200)));
+        BrokerTopicMetrics stats = BrokerTopicStats.getBrokerTopicStats(log.topicAndPartition.topic);
+        long recompressions = stats.recompressionRate.count();
+        long saved = stats.recompressionBytesSavedRate.count();
+        long lost = stats.recompressionBytesLostRate.count();
+        log.append(new ByteBufferMessageSet(CompressionCodec.NoCompressionCodec, list));
+        List<MessageAndOffset> appended = log.read(0L, 4096).messageSet.toMessageAndOffsetList();
+        Assert.assertEquals(3, appended.size());
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(CompressionCodec.NoCompressionCodec, appended.get(i).message.compressionCodec());
+            Assert.assertEquals((long) i, (long) appended.get(i).offset);
+        }
+        Assert.assertEquals(recompressions, stats.recompressionRate.count());
+        Assert.assertEquals(saved, stats.recompressionBytesSavedRate.count());
+        Assert.assertEquals(lost, stats.recompressionBytesLostRate.count());
+        log.close();
+    }
+
+    /**
+     * Appending an uncompressed set validates, assigns offsets to and writes its messages in place, so appending ten
+     * times as many messages allocates about the same rather than an object for each message
+     */
+    @Test
+    public void testAppendAllocation() throws Exception {
+        Log log = new Log(logDir, getLogConfig(100 * 1024 * 1024), 0L, time.scheduler, time);
+        List<Message> few = Lists.newArrayList();
+        List<Message> many = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            if (i < 100)
+                few.add(new Message(("message-" + i).getBytes()));
+            many.add(new Message(("message-" + i).getBytes()));
+        }
+        ByteBufferMessageSet fewSet = new ByteBufferMessageSet(CompressionCodec.NoCompressionCodec, few);
+        ByteBufferMessageSet manySet = new ByteBufferMessageSet(CompressionCodec.NoCompressionCodec, many);
+        long fewAllocated = TestUtils.allocatedBytes(() -> log.append(fewSet));
+        long manyAllocated = TestUtils.allocatedBytes(() -> log.append(manySet));
+        // the larger set is checked in more ranges of ParallelValidationThreshold messages, each a task of its own, which
+        // comes to a few bytes for each message while an object for each message would take at least 16;
+        Assert.assertTrue(String.format("Allocated %d bytes appending %d messages and %d bytes appending %d", fewAllocated, few.size(), manyAllocated, many.size()),
+                manyAllocated - fewAllocated < 16 * (many.size() - few.size()));
+        log.close();
+    }
+
+    /**
+     * Appending a compressed set records its decompression, and its recompression to assign offsets, into the stats of
+     * the topic
+     */
+    @Test
+    public void testCompressionStats() throws IOException {
+        Log log = new Log(logDir, getLogConfig(10000), 0L, time.scheduler, time);
+        List<Message> list = Lists.newArrayList();
+        for (int i = 0; i < 10; i++)
+            list.add(new Message(("message " + i).getBytes()));
+        BrokerTopicMetrics stats = BrokerTopicStats.getBrokerTopicStats(log.topicAndPartition.topic);
+        long decompressions = stats.decompressionTimeHist.count();
+        long compressions = stats.compressionTimeHist.count();
+        long recompressions = stats.offsetRecompressionRate.count();
+        log.append(new ByteBufferMessageSet(CompressionCodec.GZIPCompressionCodec, list));
+        Assert.assertEquals(1L, stats.offsetRecompressionRate.count() - recompressions);
+        Assert.assertEquals(1L, stats.compressionTimeHist.count() - compressions);
+        Assert.assertTrue(stats.decompressionTimeHist.count() > decompressions);
+        Assert.assertTrue(stats.uncompressedSizeHist.max() >= MessageSet.messageSetSize(list));
+        Assert.assertNull("The stats should not leak to the appending thread", CompressionFactory.stats());
+        log.close();
+    }
+
     public ByteBufferMessageSet read(Log log, Long offset) throws IOException {
         FetchDataInfo fetchDataInfo = log.read(offset, 4096);
         fetchDataInfo.messageSet.printAll();
@@ -246,7 +443,7 @@ public class LogTest {
             Assert.assertEquals("Further collection shouldn't delete anything", new Integer(0), log.deleteOldSegments((s) -> true));
             Assert.assertEquals("Still no change in the logEndOffset", currOffset, log.logEndOffset());
             Assert.assertEquals("Should still be able to append and should get the logEndOffset assigned to the new append",
-                    currOffset,log.append(TestUtils.singleMessageSet("hello".toString().getBytes())).firstOffset);
+                    (long) currOffset, log.append(TestUtils.singleMessageSet("hello".toString().getBytes())).firstOffset);
 
             // cleanup the log;
             log.delete();
@@ -314,8 +511,8 @@ public class LogTest {
         for (int i = 0; i < numMessages; i++)
             log.append(TestUtils.singleMessageSet(TestUtils.randomBytes(messageSize)));
         Assert.assertEquals(String.format("After appending %d messages to an empty log, the log end offset should be %d", numMessages, numMessages), new Long(numMessages), log.logEndOffset());
-        Long lastIndexOffset = log.activeSegment().index.lastOffset;
-        Integer numIndexEntries = log.activeSegment().index.entries();
+        long lastIndexOffset = log.activeSegment().index.lastOffset;
+        int numIndexEntries = log.activeSegment().index.entries();
         Long lastOffset = log.logEndOffset();
         log.close();
 
@@ -431,7 +628,7 @@ public class LogTest {
             log.append(set);
         Assert.assertEquals("There should be exactly 2 segment.", new Integer(2), log.numberOfSegments());
         //为什么为0，因为之前就没到indexInterval 插入就为0
-        Assert.assertEquals("The index of the first segment should be trimmed to empty", new Integer(0), log.logSegments().stream().findFirst().get().index.maxEntries);
+        Assert.assertEquals("The index of the first segment should be trimmed to empty", 0, log.logSegments().stream().findFirst().get().index.maxEntries);
         log.truncateTo(0L);
         Assert.assertEquals("There should be exactly 1 segment.", new Integer(1), log.numberOfSegments());
         Assert.assertEquals("The index of segment 1 should be resized to maxIndexSize", new Long(log.config.maxIndexSize / 8), new Long(log.logSegments().stream().findFirst().get().index.maxEntries));
@@ -575,6 +772,97 @@ public class LogTest {
         }
     }
 
+    /**
+     * Segments recovered in parallel are still applied in order: the log ends at the first corrupt message
+     */
+    @Test
+    public void testParallelRecovery() throws IOException {
+        LogConfig config = getLogConfig(1000);
+        config.indexInterval = 1;
+        List<LogSegment> segments = createSegments(config, 100);
+        Assert.assertTrue("There should be several segments", segments.size() > 3);
+        corruptLastByte(segments.get(1));
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            Log log = new Log(logDir, config, 0L, time.scheduler, time, pool);
+            Assert.assertEquals("The last message of the corrupt segment and everything after it should be gone",
+                    segments.get(2).baseOffset - 1, (long) log.logEndOffset());
+            Assert.assertEquals(new Integer(2), log.numberOfSegments());
+            Assert.assertEquals("Markers should be removed once the log is recovered", 0, recoveryMarkers().length);
+            log.close();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * A segment an interrupted recovery already validated is not scanned again
+     */
+    @Test
+    public void testRecoveryMarkers() throws IOException {
+        LogConfig config = getLogConfig(1000);
+        config.indexInterval = 1;
+        List<LogSegment> segments = createSegments(config, 100);
+        LogSegment first = segments.get(0);
+        Files.write(Log.recoveredFilename(logDir, first.baseOffset).toPath(), Long.toString(first.size()).getBytes());
+        corruptLastByte(first);
+
+        Log log = new Log(logDir, config, 0L, time.scheduler, time);
+        Assert.assertEquals("The marked segment should not have been scanned", new Long(100), log.logEndOffset());
+        Assert.assertEquals(0, recoveryMarkers().length);
+        log.close();
+
+        // without its marker the corruption is found;
+        log = new Log(logDir, config, 0L, time.scheduler, time);
+        Assert.assertEquals(segments.get(1).baseOffset - 1, (long) log.logEndOffset());
+        log.close();
+    }
+
+    /**
+     * Recovery indexes a compressed wrapper at the offset following the previous message, the first offset inside it
+     */
+    @Test
+    public void testRecoveryIndexesCompressedMessages() throws IOException {
+        LogConfig config = getLogConfig(10000);
+        config.indexInterval = 1;
+        Log log = new Log(logDir, config, 0L, time.scheduler, time);
+        for (int i = 0; i < 20; i++)
+            log.append(new ByteBufferMessageSet(CompressionCodec.GZIPCompressionCodec, new Message("a".getBytes()), new Message("b".getBytes()), new Message("c".getBytes())));
+        log.close();
+
+        log = new Log(logDir, config, 0L, time.scheduler, time);
+        OffsetIndex index = log.activeSegment().index;
+        Assert.assertEquals(19, index.entries());
+        for (int i = 0; i < index.entries(); i++)
+            Assert.assertEquals(3L * (i + 1), index.entry(i).offset);
+        for (long offset = 0; offset < 60; offset++)
+            Assert.assertEquals((long) (offset / 3 * 3), (long) read(log, offset).head().offset);
+        log.close();
+    }
+
+    private List<LogSegment> createSegments(LogConfig config, int numMessages) throws IOException {
+        Log log = new Log(logDir, config, 0L, time.scheduler, time);
+        for (int i = 0; i < numMessages; i++)
+            log.append(TestUtils.singleMessageSet("test".getBytes()));
+        List<LogSegment> segments = Lists.newArrayList(log.logSegments());
+        log.close();
+        return segments;
+    }
+
+    private void corruptLastByte(LogSegment segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment.log.file, "rw");
+        file.seek(file.length() - 1);
+        byte b = file.readByte();
+        file.seek(file.length() - 1);
+        file.writeByte(b + 1);
+        file.close();
+    }
+
+    private File[] recoveryMarkers() {
+        return logDir.listFiles((dir, name) -> name.endsWith(Log.RecoveredFileSuffix));
+    }
+
     @Test
     public void testCleanShutdownFile() throws IOException {
         // append some messages to create some segments;
@@ -713,4 +1001,287 @@ public class LogTest {
         TestUtils.retry(1000L, () -> Assert.assertTrue("Log role should have forced flush", log.recoveryPoint >= log.activeSegment().baseOffset));
     }
 
+    /**
+     * Test that concurrent appends with group commit enabled all get distinct, contiguous offsets and
+     * can be read back, including across segment rolls.
+     */
+    @Test
+    public void testGroupCommitConcurrentAppends() throws Exception {
+        LogConfig copy = copy();
+        copy.groupCommit = true;
+        copy.segmentSize = 1000;
+        Log log = new Log(logDir, copy, 0L, time.scheduler, time);
+        Integer numThreads = 4;
+        Integer messagesPerThread = 100;
+        List<Thread> threads = Lists.newArrayList();
+        for (int t = 0; t < numThreads; t++) {
+            final int id = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < messagesPerThread; i++)
+                    log.append(TestUtils.singleMessageSet((id + "-" + i).getBytes()));
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads)
+            thread.join();
+
+        Integer total = numThreads * messagesPerThread;
+        Assert.assertEquals("Log end offset should count every message", new Long(total), log.logEndOffset());
+        Assert.assertTrue("The log should have rolled", log.numberOfSegments() > 1);
+        Set<String> payloads = new HashSet<>();
+        for (long offset = 0; offset < total; offset++) {
+            MessageAndOffset head = log.read(offset, 1024).messageSet.head();
+            Assert.assertEquals("Offsets should be contiguous", offset, head.offset.longValue());
+            payloads.add(new String(Utils.readBytes(head.message.payload())));
+        }
+        Assert.assertEquals("Every message should be read back exactly once", total.intValue(), payloads.size());
+    }
+
+    /**
+     * Test that when a roll fails under group commit the appends committed with it get the error, rather than offsets
+     * that were never written, and the others are appended
+     */
+    @Test
+    public void testGroupCommitRollFailure() throws Exception {
+        LogConfig copy = copy();
+        copy.groupCommit = true;
+        copy.segmentSize = TestUtils.singleMessageSet("message-0".getBytes()).sizeInBytes();
+        // every roll fails once it has added the new segment, as with a scheduler that has been shut down;
+        MockScheduler scheduler = new MockScheduler(time) {
+            @Override
+            public void schedule(String name, Action action, Long delay) {
+                throw new RejectedExecutionException("The scheduler is shut down");
+            }
+        };
+        Log log = new Log(logDir, copy, 0L, scheduler, time);
+
+        Integer numThreads = 4;
+        List<Throwable> errors = new CopyOnWriteArrayList<>();
+        List<Thread> threads = Lists.newArrayList();
+        for (int t = 0; t < numThreads; t++) {
+            String payload = "message-" + t;
+            threads.add(new Thread(() -> {
+                try {
+                    long offset = log.append(TestUtils.singleMessageSet(payload.getBytes())).firstOffset;
+                    MessageAndOffset read = log.read(offset, 1024).messageSet.head();
+                    Assert.assertEquals("An append that did not fail should be in the log at its offset",
+                            payload, new String(Utils.readBytes(read.message.payload())));
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+        // queue all the appends before any of them is committed, so that one thread commits them all;
+        synchronized (log.lock) {
+            threads.forEach(Thread::start);
+            TestUtils.waitUntilTrue(() -> threads.stream().allMatch(t -> t.getState() == Thread.State.BLOCKED),
+                    "The appends should wait for the lock");
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        // every other append rolls: the first to the empty segment, the next into it and so on;
+        Assert.assertEquals("The appends that rolled should fail", 2, errors.size());
+        for (Throwable error : errors)
+            Assert.assertTrue("Unexpected error " + error, error instanceof RejectedExecutionException);
+        Assert.assertEquals("The other appends should be in the log", new Long(2L), log.logEndOffset());
+    }
+
+    /**
+     * Test that reads map sealed segments, never the active one, and that only the most recently read segments stay mapped
+     */
+    @Test
+    public void testMappedSegmentEviction() throws IOException {
+        LogConfig copy = copy();
+        copy.segmentSize = 100;
+        copy.mmapSegments = true;
+        copy.maxMappedSegments = 2;
+        Log log = new Log(logDir, copy, 0L, time.scheduler, time);
+        for (int i = 0; i < 50; i++)
+            log.append(TestUtils.singleMessageSet(("message-" + i).getBytes()));
+        List<LogSegment> segments = Lists.newArrayList(log.logSegments());
+        Assert.assertTrue("There should be several segments", segments.size() > 3);
+
+        for (LogSegment segment : segments) {
+            MessageSet read = log.read(segment.baseOffset, 1024).messageSet;
+            Assert.assertEquals(segment.baseOffset, (long) read.head().offset);
+        }
+        List<LogSegment> mapped = segments.stream().filter(s -> s.log.isMapped()).collect(Collectors.toList());
+        Assert.assertEquals("Only the most recently read sealed segments should be mapped",
+                segments.subList(segments.size() - 3, segments.size() - 1), mapped);
+        Assert.assertFalse("The active segment should never be mapped", log.activeSegment().log.isMapped());
+
+        log.close();
+        Assert.assertTrue(segments.stream().noneMatch(s -> s.log.isMapped()));
+    }
+
+    /**
+     * Test that logs sharing their mapped segments keep to one bound between them, and that a sealed segment that
+     * becomes the active one again by truncation is unmapped
+     */
+    @Test
+    public void testSharedMappedSegments() throws IOException {
+        LogConfig copy = copy();
+        copy.segmentSize = 100;
+        copy.mmapSegments = true;
+        MappedSegments mappedSegments = new MappedSegments(3);
+        List<Log> logs = Lists.newArrayList(new Log(logDir, copy, 0L, time.scheduler, time),
+                new Log(TestUtils.tempDir(), copy, 0L, time.scheduler, time));
+        for (Log log : logs) {
+            log.mappedSegments = mappedSegments;
+            for (int i = 0; i < 20; i++)
+                log.append(TestUtils.singleMessageSet(("message-" + i).getBytes()));
+            for (LogSegment segment : log.logSegments())
+                log.read(segment.baseOffset, 1024);
+        }
+        Assert.assertEquals(3, mappedSegments.size());
+        Assert.assertEquals(3, logs.stream().flatMap(log -> log.logSegments().stream()).filter(s -> s.log.isMapped()).count());
+
+        Log log = logs.get(1);
+        List<LogSegment> segments = Lists.newArrayList(log.logSegments());
+        LogSegment sealed = segments.get(segments.size() - 2);
+        Assert.assertTrue(sealed.log.isMapped());
+        log.truncateTo(sealed.nextOffset() - 1);
+        Assert.assertSame(sealed, log.activeSegment());
+        Assert.assertFalse("A segment that is active again should not be mapped", sealed.log.isMapped());
+        Assert.assertEquals(2, mappedSegments.size());
+        long mappedInOther = logs.get(0).logSegments().stream().filter(s -> s.log.isMapped()).count();
+        log.delete();
+        Assert.assertEquals("The segments of a deleted log should be unmapped", mappedInOther, mappedSegments.size());
+        logs.get(0).close();
+        Assert.assertEquals(0, mappedSegments.size());
+    }
+
+    @Test(expected = InvalidConfigException.class)
+    public void testValidateMaxMappedSegments() {
+        Properties props = new Properties();
+        props.setProperty(LogConfig.MaxMappedSegmentsProp, "0");
+        new LogConfig().validate(props);
+    }
+
+    /**
+     * Test that rolls take over the preallocated segment files, that the new segments index and read like any other,
+     * and that spare files are cleaned up on close and on load
+     */
+    @Test
+    public void testPreallocatedSegments() throws IOException {
+        LogConfig copy = copy();
+        copy.segmentSize = 100;
+        copy.indexInterval = 1;
+        copy.preallocateSegments = true;
+        Log log = new Log(logDir, copy, 0L, time.scheduler, time);
+        Assert.assertEquals("A spare segment should be prepared when the log is opened", 3, spareFiles().length);
+        File[] first = spareFiles();
+        for (int i = 0; i < 50; i++)
+            log.append(TestUtils.singleMessageSet(("message-" + i).getBytes()));
+        Assert.assertTrue("There should be several segments", log.numberOfSegments() > 3);
+        Assert.assertEquals("A spare segment should be prepared after each roll", 3, spareFiles().length);
+        Assert.assertTrue("Each spare segment should have files of its own", Stream.of(first).noneMatch(File::exists));
+
+        for (LogSegment segment : log.logSegments()) {
+            Assert.assertEquals(Log.logFilename(logDir, segment.baseOffset), segment.log.file);
+            Assert.assertEquals(Log.indexFilename(logDir, segment.baseOffset), segment.index.file);
+            Assert.assertEquals(segment.baseOffset, (long) log.read(segment.baseOffset, 1024).messageSet.head().offset);
+            Assert.assertEquals(segment.baseOffset + 1, (long) log.read(segment.baseOffset + 1, 1024).messageSet.head().offset);
+        }
+        LogSegment active = log.activeSegment();
+        Assert.assertEquals("The preallocated index of the active segment should start out empty", 1, active.index.entries());
+        Assert.assertEquals(copy.maxIndexSize / 8, (int) active.index.maxEntries);
+
+        Long logEndOffset = log.logEndOffset();
+        log.close();
+        Assert.assertEquals("Closing should remove the spare segment", 0, spareFiles().length);
+
+        new File(logDir, "spare" + Log.IndexFileSuffix + Log.SpareFileSuffix).createNewFile();
+        copy.preallocateSegments = false;
+        log = new Log(logDir, copy, 0L, time.scheduler, time);
+        Assert.assertEquals(logEndOffset, log.logEndOffset());
+        Assert.assertEquals(0, spareFiles().length);
+        log.close();
+    }
+
+    /**
+     * Test that a spare segment prepared after the log is closed is not kept
+     */
+    @Test
+    public void testSpareSegmentAfterClose() throws IOException {
+        LogConfig copy = copy();
+        copy.segmentSize = 100;
+        copy.preallocateSegments = true;
+        List<Action> prepares = new CopyOnWriteArrayList<>();
+        MockScheduler scheduler = new MockScheduler(time) {
+            @Override
+            public void schedule(String name, Action fun, Long delay) {
+                if (name.equals("prepare-segment"))
+                    prepares.add(fun);
+                else
+                    super.schedule(name, fun, delay);
+            }
+        };
+        Log log = new Log(logDir, copy, 0L, scheduler, time);
+        log.close();
+        Assert.assertFalse("Preparing the spare segment should have been scheduled", prepares.isEmpty());
+        for (Action prepare : prepares)
+            prepare.invoke();
+        Assert.assertEquals("A closed log should not keep a spare segment", 0, spareFiles().length);
+    }
+
+    private File[] spareFiles() {
+        return logDir.listFiles((d, n) -> n.endsWith(Log.SpareFileSuffix));
+    }
+
+    /**
+     * Test that offsets can be looked up by append time across segments and after the log is reopened
+     */
+    @Test
+    public void testOffsetBeforeTime() throws IOException {
+        LogConfig copy = copy();
+        copy.segmentSize = 200;
+        copy.indexInterval = 1;
+        Log log = new Log(logDir, copy, 0L, time.scheduler, time);
+        Long start = time.milliseconds();
+        for (int i = 0; i < 30; i++) {
+            log.append(TestUtils.singleMessageSet(("message-" + i).getBytes()));
+            time.sleep(10L);
+        }
+        Assert.assertTrue("There should be several segments", log.numberOfSegments() > 2);
+
+        Assert.assertNull("Nothing was appended before the first message", log.offsetBefore(start - 1));
+        for (int i = 0; i < 30; i++)
+            Assert.assertEquals("Should find the message appended at that time", new Long(i), log.offsetBefore(start + 10 * i + 5));
+        Assert.assertEquals("The last segment should reflect its last append", start + 290, log.activeSegment().largestTimestamp());
+
+        log.close();
+        log = new Log(logDir, copy, 0L, time.scheduler, time);
+        for (int i = 0; i < 30; i++)
+            Assert.assertEquals("The time index should survive a restart", new Long(i), log.offsetBefore(start + 10 * i + 5));
+        for (LogSegment segment : log.logSegments())
+            Assert.assertEquals("Each segment should know the time of its last append", start + 10 * (segment.nextOffset() - 1), segment.largestTimestamp());
+    }
+
+    /**
+     * Test that the time index of a segment rolled because its offset index is full still has room for the time of
+     * its last append
+     */
+    @Test
+    public void testTimeIndexOfSegmentWithFullIndex() throws IOException {
+        LogConfig copy = copy();
+        copy.indexInterval = 1;
+        copy.maxIndexSize = 4 * 8;
+        Log log = new Log(logDir, copy, 0L, time.scheduler, time);
+        Long start = time.milliseconds();
+        for (int i = 0; i < 20; i++) {
+            log.append(TestUtils.singleMessageSet(("message-" + i).getBytes()));
+            time.sleep(10L);
+        }
+        Assert.assertTrue("There should be several segments", log.numberOfSegments() > 2);
+        for (LogSegment segment : log.logSegments()) {
+            if (segment == log.activeSegment())
+                continue;
+            Assert.assertTrue("The segment should have been rolled for a full index", segment.index.isFull());
+            Assert.assertEquals(new TimestampOffset(start + 10 * (segment.nextOffset() - 1), segment.nextOffset() - 1), segment.timeIndex.lastEntry());
+        }
+        log.close();
+    }
+
 }
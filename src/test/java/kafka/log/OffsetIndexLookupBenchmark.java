@@ -0,0 +1,104 @@
+package kafka.log;
+
+import kafka.utils.TestUtils;
+
+import java.io.File;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * A benchmark of OffsetIndex.lookup on a full index, comparing the warm section search with a plain binary search
+ * over the whole index, for readers at the tail of the log and for lagging readers.
+ * <p>
+ * Latency is measured on the real index. The page touch counts come from replaying the probes of both searches over
+ * the same entries, counting the distinct 4KB pages of the index file each lookup reads.
+ * <p>
+ * Usage: OffsetIndexLookupBenchmark [index size in bytes] [lookups] [tail distance in entries]
+ */
+public class OffsetIndexLookupBenchmark {
+    private static final int PageSize = 4096;
+
+    public static void main(String[] args) throws Exception {
+        int indexSize = args.length > 0 ? Integer.parseInt(args[0]) : 10 * 1024 * 1024;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+        int tailDistance = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        File file = TestUtils.tempFile();
+        file.delete();
+        OffsetIndex index = new OffsetIndex(file, 0L, indexSize);
+        for (int i = 0; i < index.maxEntries; i++)
+            index.append(2L * i + 1, i);
+        int entries = index.entries();
+        int warmEntries = index.warmEntries;
+        System.out.println(String.format("%d entries (%d KB), warm section of %d entries", entries, indexSize / 1024, warmEntries));
+
+        Random random = new Random(42);
+        long[] tail = new long[lookups];
+        long[] lagging = new long[lookups];
+        for (int i = 0; i < lookups; i++) {
+            tail[i] = 2L * (entries - 1 - random.nextInt(tailDistance)) + 1;
+            lagging[i] = 2L * random.nextInt(entries) + 1;
+        }
+
+        for (String reader : new String[]{"tail", "lagging"}) {
+            long[] targets = reader.equals("tail") ? tail : lagging;
+            for (int warm : new int[]{0, warmEntries}) {
+                index.warmEntries = warm;
+                // once to warm up, then measured
+                run(index, targets);
+                long ns = run(index, targets);
+                System.out.println(String.format("%-8s %-12s %7.1f ns/lookup, %.2f pages touched per lookup",
+                        reader, warm == 0 ? "full search" : "warm section", (double) ns / lookups, pagesTouched(entries, warm, targets)));
+            }
+        }
+        index.file.delete();
+    }
+
+    private static long run(OffsetIndex index, long[] targets) {
+        long sum = 0;
+        long start = System.nanoTime();
+        for (long target : targets)
+            sum += index.lookup(target).position;
+        long elapsed = System.nanoTime() - start;
+        if (sum == 42)
+            System.out.println();
+        return elapsed;
+    }
+
+    /* the mean number of distinct index pages read per lookup, replaying the searches in OffsetIndex.indexSlotFor */
+    private static double pagesTouched(int entries, int warmEntries, long[] targets) {
+        long touched = 0;
+        int samples = Math.min(targets.length, 100000);
+        for (int i = 0; i < samples; i++) {
+            BitSet pages = new BitSet();
+            long rel = targets[i];
+            int firstWarmEntry = Math.max(0, entries - warmEntries);
+            int lo = 0;
+            int hi = entries - 1;
+            if (firstWarmEntry < entries && touch(pages, firstWarmEntry) <= rel) {
+                lo = firstWarmEntry;
+            } else {
+                touch(pages, 0);
+                hi = Math.min(firstWarmEntry, entries) - 1;
+            }
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                long found = touch(pages, mid);
+                if (found == rel)
+                    break;
+                else if (found < rel)
+                    lo = mid;
+                else
+                    hi = mid - 1;
+            }
+            touched += pages.cardinality();
+        }
+        return (double) touched / samples;
+    }
+
+    /* record the page of the slot and return the relative offset the benchmark stored in it */
+    private static long touch(BitSet pages, int slot) {
+        pages.set(slot * 8 / PageSize);
+        return 2L * slot + 1;
+    }
+}
@@ -13,6 +13,8 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -40,7 +42,7 @@ public class OffsetIndexTest {
         Assert.assertEquals("Not present value should return physical offset 0.", new OffsetPosition(idx.baseOffset, 0), idx.lookup(92L));
 
         // append some random values;
-        Integer base = idx.baseOffset.intValue() + 1;
+        Integer base = (int) idx.baseOffset + 1;
         Integer size = idx.maxEntries;
         List<Long> vals = monotonicList(base, size).stream().map((n) -> (long) n).collect(Collectors.toList());
         List<Integer> vals2 = (monotonicList(0, size));
@@ -85,6 +87,80 @@ public class OffsetIndexTest {
         Assert.assertEquals(new OffsetPosition(idx.baseOffset + idx.maxEntries, idx.maxEntries - 1), idx.lookup(idx.baseOffset + idx.maxEntries));
     }
 
+    /**
+     * Lookups should allocate nothing but the position they return, however many are done
+     */
+    @Test
+    public void testLookupAllocation() throws Exception {
+        for (int i = 0; i < idx.maxEntries; i++)
+            idx.append(idx.baseOffset + 2 * i + 1, 10 * i);
+        int lookups = 10000;
+        long allocated = TestUtils.allocatedBytes(() -> {
+            for (int i = 0; i < lookups; i++)
+                idx.lookup(idx.baseOffset + i % (2 * idx.maxEntries));
+        });
+        Assert.assertTrue("Allocated " + allocated + " bytes for " + lookups + " lookups", allocated <= 32L * lookups);
+    }
+
+    /**
+     * Lookups run without the index lock while the index is appended to, truncated and resized and should only ever
+     * see entries that were really written
+     */
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        OffsetIndex idx = new OffsetIndex(nonExistantTempFile(), 0L, 1000 * 8);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<String> failure = new AtomicReference<>();
+        List<Thread> readers = Lists.newArrayList();
+        for (int t = 0; t < 4; t++) {
+            readers.add(new Thread(() -> {
+                Random random = new Random();
+                while (running.get() && failure.get() == null) {
+                    long target = random.nextInt(1100);
+                    OffsetPosition found = idx.lookup(target);
+                    if (found.offset > target || found.position != found.offset * 10)
+                        failure.set("Lookup of " + target + " found " + found);
+                }
+            }));
+        }
+        readers.forEach(Thread::start);
+        Random random = new Random();
+        for (int round = 0; round < 200 && failure.get() == null; round++) {
+            for (long offset = idx.lastOffset + 1; !idx.isFull(); offset++)
+                idx.append(offset, (int) offset * 10);
+            idx.truncateTo((long) random.nextInt(1000));
+            if (round % 20 == 0) {
+                idx.trimToValidSize();
+                idx.resize(1000 * 8);
+            }
+        }
+        running.set(false);
+        for (Thread reader : readers)
+            reader.join();
+        idx.file.delete();
+        Assert.assertNull(failure.get());
+    }
+
+    /**
+     * Lookups on either side of the warm section boundary, whatever its size, should find the same entries
+     */
+    @Test
+    public void testWarmSectionLookups() throws IOException {
+        OffsetIndex idx = new OffsetIndex(nonExistantTempFile(), 100L, 5000 * 8);
+        for (int i = 0; i < idx.maxEntries; i++)
+            idx.append(idx.baseOffset + 3 * i + 1, i);
+        for (int warmEntries : new int[]{0, 1, 16, OffsetIndex.WarmSectionBytes / 8, 5000, 10000}) {
+            idx.warmEntries = warmEntries;
+            for (long target = idx.baseOffset - 1; target < idx.lastOffset + 3; target++) {
+                long rel = target - idx.baseOffset - 1;
+                OffsetPosition expected = rel < 0 ? new OffsetPosition(idx.baseOffset, 0)
+                        : new OffsetPosition(idx.baseOffset + 3 * Math.min(rel / 3, 4999) + 1, (int) Math.min(rel / 3, 4999));
+                Assert.assertEquals("Lookup of " + target + " with " + warmEntries + " warm entries", expected, idx.lookup(target));
+            }
+        }
+        idx.file.delete();
+    }
+
     @Test
     public void appendTooMany() {
         for (int i = 0; i < idx.maxEntries; i++) {
@@ -111,7 +187,7 @@ public class OffsetIndexTest {
         Assert.assertEquals(first, idxRo.lookup(first.offset));
         Assert.assertEquals(sec, idxRo.lookup(sec.offset));
         Assert.assertEquals(sec.offset, idxRo.lastOffset);
-        Assert.assertEquals(new Integer(2), idxRo.entries());
+        Assert.assertEquals(2, idxRo.entries());
         assertWriteFails("Append should fail on read-only index", idxRo, 53, IllegalArgumentException.class);
     }
 
@@ -125,26 +201,26 @@ public class OffsetIndexTest {
         // now check the last offset after various truncate points and validate that we can still append to the index.;
         idx.truncateTo(12L);
         Assert.assertEquals("Index should be unchanged by truncate past the end", new OffsetPosition(9L, 9), idx.lookup(10L));
-        Assert.assertEquals("9 should be the last entry in the index", new Long(9), idx.lastOffset);
+        Assert.assertEquals("9 should be the last entry in the index", 9, idx.lastOffset);
 
         idx.append(10L, 10);
         idx.truncateTo(10L);
         Assert.assertEquals("Index should be unchanged by truncate at the end", new OffsetPosition(9L, 9), idx.lookup(10L));
-        Assert.assertEquals("9 should be the last entry in the index", new Long(9), idx.lastOffset);
+        Assert.assertEquals("9 should be the last entry in the index", 9, idx.lastOffset);
         idx.append(10L, 10);
 
         idx.truncateTo(9L);
         Assert.assertEquals("Index should truncate off last entry", new OffsetPosition(8l, 8), idx.lookup(10L));
-        Assert.assertEquals("8 should be the last entry in the index", new Long(8), idx.lastOffset);
+        Assert.assertEquals("8 should be the last entry in the index", 8, idx.lastOffset);
         idx.append(9L, 9);
 
         idx.truncateTo(5L);
         Assert.assertEquals("4 should be the last entry in the index", new OffsetPosition(4L, 4), idx.lookup(10l));
-        Assert.assertEquals("4 should be the last entry in the index", new Long(4), idx.lastOffset);
+        Assert.assertEquals("4 should be the last entry in the index", 4, idx.lastOffset);
         idx.append(5L, 5);
 
         idx.truncate();
-        Assert.assertEquals("Full truncation should leave no entries", new Integer(0), idx.entries());
+        Assert.assertEquals("Full truncation should leave no entries", 0, idx.entries());
         idx.append(0L, 0);
     }
 
@@ -0,0 +1,108 @@
+package kafka.log;
+
+import kafka.utils.TestUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+public class TimeIndexTest {
+    TimeIndex idx = null;
+    Long baseOffset = 45L;
+
+    @Before
+    public void setup() throws IOException {
+        this.idx = new TimeIndex(nonExistantTempFile(), baseOffset, 30 * TimeIndex.EntrySize);
+    }
+
+    @After
+    public void teardown() {
+        if (this.idx != null)
+            this.idx.file.delete();
+    }
+
+    @Test
+    public void testLookup() {
+        Assert.assertNull("An empty index should find nothing", idx.lookup(1000L));
+        for (int i = 0; i < idx.maxEntries; i++)
+            idx.maybeAppend(100L + 10 * i, baseOffset + 2 * i);
+        Assert.assertTrue(idx.isFull());
+
+        Assert.assertNull("Nothing was appended before the first entry", idx.lookup(99L));
+        for (int i = 0; i < idx.maxEntries; i++) {
+            TimestampOffset expected = new TimestampOffset(100L + 10 * i, baseOffset + 2 * i);
+            Assert.assertEquals("Should find entries that are present", expected, idx.lookup(100L + 10 * i));
+            Assert.assertEquals("Should find the largest earlier entry", expected, idx.lookup(100L + 10 * i + 5));
+        }
+        Assert.assertFalse("Appending to a full index should be ignored", idx.maybeAppend(10000L, 10000L));
+    }
+
+    @Test
+    public void testAppendIgnoresEntriesThatDoNotMoveForward() {
+        Assert.assertTrue(idx.maybeAppend(100L, 50L));
+        Assert.assertFalse("Same timestamp", idx.maybeAppend(100L, 51L));
+        Assert.assertFalse("Earlier timestamp", idx.maybeAppend(90L, 52L));
+        Assert.assertFalse("Same offset", idx.maybeAppend(110L, 50L));
+        Assert.assertTrue(idx.maybeAppend(110L, 51L));
+        Assert.assertEquals(2, idx.entries());
+        Assert.assertEquals(new TimestampOffset(110L, 51L), idx.lastEntry());
+    }
+
+    @Test
+    public void testTruncate() {
+        for (int i = 1; i < 10; i++)
+            idx.maybeAppend(100L * i, baseOffset + i);
+        idx.truncateTo(baseOffset + 20);
+        Assert.assertEquals("Truncating past the end should change nothing", 9, idx.entries());
+        idx.truncateTo(baseOffset + 5);
+        Assert.assertEquals("Entries at and past the offset should be removed", 4, idx.entries());
+        Assert.assertEquals(new TimestampOffset(400L, baseOffset + 4), idx.lastEntry());
+        Assert.assertTrue("Should be able to append after truncation", idx.maybeAppend(450L, baseOffset + 5));
+        idx.truncate();
+        Assert.assertEquals(0, idx.entries());
+        Assert.assertNull(idx.lookup(1000L));
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        idx.maybeAppend(100L, 46L);
+        idx.maybeAppend(200L, 47L);
+        // reopen without trimming, as after a crash, the unwritten slots should not be taken as entries;
+        idx.flush();
+        TimeIndex untrimmed = new TimeIndex(idx.file, idx.baseOffset);
+        Assert.assertEquals(2, untrimmed.entries());
+        Assert.assertEquals(new TimestampOffset(200L, 47L), untrimmed.lastEntry());
+
+        idx.close();
+        TimeIndex reopened = new TimeIndex(idx.file, idx.baseOffset);
+        Assert.assertEquals(2, reopened.entries());
+        Assert.assertEquals(new TimestampOffset(100L, 46L), reopened.lookup(150L));
+        reopened.sanityCheck();
+    }
+
+    @Test
+    public void testSizeFor() {
+        Assert.assertEquals(12 * TimeIndex.EntrySize, TimeIndex.sizeFor(10 * 8));
+        Assert.assertEquals(12 * TimeIndex.EntrySize, TimeIndex.sizeFor(10 * 8 + 7));
+        Assert.assertEquals(0, TimeIndex.sizeFor(Integer.MAX_VALUE) % TimeIndex.EntrySize);
+    }
+
+    @Test
+    public void testEntriesAsKeys() {
+        Set<TimestampOffset> entries = new HashSet<>();
+        entries.add(new TimestampOffset(100L, 46L));
+        Assert.assertTrue(entries.contains(new TimestampOffset(100L, 46L)));
+        Assert.assertFalse(entries.contains(new TimestampOffset(100L, 47L)));
+    }
+
+    public File nonExistantTempFile() {
+        File file = TestUtils.tempFile();
+        file.delete();
+        return file;
+    }
+}
@@ -48,10 +48,10 @@ public abstract class BaseMessageSetTest {
     @Test
     public void testSizeInBytes() {
         Assert.assertEquals("Empty message set should have 0 bytes.",
-                new Integer(0),
+                0,
                 createMessageSet(Lists.newArrayList()).sizeInBytes());
         Assert.assertEquals("Predicted size should equal actual size.",
-                MessageSet.messageSetSize(messages),
+                (int) MessageSet.messageSetSize(messages),
                 createMessageSet(messages).sizeInBytes());
     }
 
@@ -70,7 +70,7 @@ public abstract class BaseMessageSetTest {
                 FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
 
                 Integer written = set.writeTo(channel, 0L, 1024);
-                Assert.assertEquals("Expect to write the number of bytes in the set.", set.sizeInBytes(), written);
+                Assert.assertEquals("Expect to write the number of bytes in the set.", set.sizeInBytes(), (int) written);
                 FileMessageSet newSet = new FileMessageSet(file, channel);
                 checkEquals(set.iterator(), newSet.iterator());
             }
@@ -2,6 +2,7 @@ package kafka.message;
 
 import com.google.common.collect.Lists;
 import kafka.utils.TestUtils;
+import kafka.utils.Utils;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -147,6 +148,43 @@ public class ByteBufferMessageSetTest extends BaseMessageSetTest {
         checkOffsets(compressedMessages.assignOffsets(new AtomicLong(offset), CompressionCodec.GZIPCompressionCodec), offset);
     }
 
+    @Test
+    public void testRelativeOffsetAssignment() {
+        List<Message> list = Lists.newArrayList(new Message("hello".getBytes()), new Message("there".getBytes()), new Message("beautiful".getBytes()));
+        ByteBufferMessageSet first = new ByteBufferMessageSet(CompressionCodec.GZIPCompressionCodec, new AtomicLong(0), Message.RelativeOffsetMagicValue, list);
+        ByteBufferMessageSet second = new ByteBufferMessageSet(CompressionCodec.GZIPCompressionCodec, new AtomicLong(0), Message.RelativeOffsetMagicValue, list);
+        ByteBuffer buffer = ByteBuffer.allocate(first.sizeInBytes() + second.sizeInBytes());
+        buffer.put(first.buffer.duplicate());
+        buffer.put(second.buffer.duplicate());
+        buffer.rewind();
+        ByteBufferMessageSet messages = new ByteBufferMessageSet(buffer);
+        Assert.assertTrue(messages.hasRelativeOffsets());
+        Assert.assertArrayEquals(new int[]{3, 3}, messages.validateRelativeOffsets());
+        checkOffsets(first, 0L);
+
+        long offset = 1234567;
+        ByteBuffer payload = first.shallowIterator().next().message.payload();
+        ByteBufferMessageSet assigned = messages.assignOffsets(new AtomicLong(offset), CompressionCodec.GZIPCompressionCodec);
+        Assert.assertSame("Relative offsets should be assigned in place", messages, assigned);
+        checkOffsets(assigned, offset);
+        Iterator<MessageAndOffset> shallow = assigned.shallowIterator();
+        Assert.assertEquals(new Long(offset + 2), shallow.next().offset);
+        Assert.assertEquals(new Long(offset + 5), shallow.next().offset);
+        Assert.assertEquals("The wrapper should not be recompressed", payload, assigned.shallowIterator().next().message.payload());
+    }
+
+    @Test(expected = InvalidMessageException.class)
+    public void testInvalidRelativeOffsets() {
+        // a wrapper with absolute offsets inside, marked as having relative ones;
+        ByteBufferMessageSet messages = new ByteBufferMessageSet(CompressionCodec.GZIPCompressionCodec,
+                new Message("hello".getBytes()), new Message("there".getBytes()));
+        Message wrapper = messages.shallowIterator().next().message;
+        wrapper.buffer.put(Message.MagicOffset, Message.RelativeOffsetMagicValue);
+        Utils.writeUnsignedInt(wrapper.buffer, Message.CrcOffset, wrapper.computeChecksum());
+        Assert.assertTrue(messages.hasRelativeOffsets());
+        messages.validateRelativeOffsets();
+    }
+
     /* check that offsets are assigned based on byte offset from the given base offset */
     public void checkOffsets(ByteBufferMessageSet messages, Long baseOffset) {
         Long offset = baseOffset;
@@ -0,0 +1,102 @@
+package kafka.message;
+
+import com.google.common.collect.Lists;
+import kafka.utils.TestUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class CodecPoolTest {
+    private static final List<CompressionCodec> codecs = Lists.newArrayList(
+            CompressionCodec.GZIPCompressionCodec, CompressionCodec.SnappyCompressionCodec, CompressionCodec.LZ4CompressionCodec);
+
+    /**
+     * Once a thread has compressed and decompressed a message set, doing it again only borrows from its pool
+     */
+    @Test
+    public void testReuse() throws IOException {
+        List<Message> messages = Lists.newArrayList();
+        for (int i = 0; i < 50; i++)
+            messages.add(new Message(("message " + i).getBytes()));
+        for (CompressionCodec codec : codecs) {
+            roundTrip(codec, messages);
+            long misses = CodecPool.get().misses.count();
+            long hits = CodecPool.get().hits.count();
+            roundTrip(codec, messages);
+            Assert.assertEquals("Nothing new should be allocated for " + codec, misses, CodecPool.get().misses.count());
+            Assert.assertTrue("The pool should have been used for " + codec, CodecPool.get().hits.count() > hits);
+        }
+    }
+
+    /**
+     * Streams open at the same time on one thread do not share what they borrowed
+     */
+    @Test
+    public void testNestedStreams() throws IOException {
+        for (CompressionCodec codec : codecs) {
+            byte[] first = TestUtils.randomBytes(100 * 1024);
+            byte[] second = TestUtils.randomBytes(100 * 1024);
+            ByteArrayOutputStream firstOut = new ByteArrayOutputStream();
+            ByteArrayOutputStream secondOut = new ByteArrayOutputStream();
+            OutputStream firstCompressed = CompressionFactory.apply(codec, firstOut);
+            OutputStream secondCompressed = CompressionFactory.apply(codec, secondOut);
+            for (int i = 0; i < first.length; i += 1000) {
+                firstCompressed.write(first, i, Math.min(1000, first.length - i));
+                secondCompressed.write(second, i, Math.min(1000, second.length - i));
+            }
+            firstCompressed.close();
+            secondCompressed.close();
+            Assert.assertArrayEquals(first, decompress(CompressionFactory.apply(codec, new ByteArrayInputStream(firstOut.toByteArray()))));
+            Assert.assertArrayEquals(second, decompress(CompressionFactory.apply(codec, new ByteArrayInputStream(secondOut.toByteArray()))));
+        }
+    }
+
+    /**
+     * The pooled gzip streams read and write the standard format
+     */
+    @Test
+    public void testGZIPCompatibility() throws IOException {
+        byte[] bytes = TestUtils.randomBytes(50 * 1024);
+        ByteArrayOutputStream pooled = new ByteArrayOutputStream();
+        OutputStream out = CompressionFactory.apply(CompressionCodec.GZIPCompressionCodec, pooled);
+        out.write(bytes);
+        out.close();
+        Assert.assertArrayEquals(bytes, decompress(new GZIPInputStream(new ByteArrayInputStream(pooled.toByteArray()))));
+
+        ByteArrayOutputStream standard = new ByteArrayOutputStream();
+        out = new GZIPOutputStream(standard);
+        out.write(bytes);
+        out.close();
+        Assert.assertArrayEquals(bytes, decompress(CompressionFactory.apply(CompressionCodec.GZIPCompressionCodec, new ByteArrayInputStream(standard.toByteArray()))));
+    }
+
+    @Test
+    public void testLZ4CompressionAllocation() throws Exception {
+        List<Message> messages = Lists.newArrayList(new Message("hello".getBytes()), new Message("there".getBytes()));
+        long allocated = TestUtils.allocatedBytes(() -> new ByteBufferMessageSet(CompressionCodec.LZ4CompressionCodec, messages));
+        Assert.assertTrue("The 64KB block buffers should come from the pool, allocated " + allocated, allocated < 16 * 1024);
+    }
+
+    private void roundTrip(CompressionCodec codec, List<Message> messages) {
+        ByteBufferMessageSet set = new ByteBufferMessageSet(codec, messages);
+        TestUtils.checkEquals(messages.iterator(), set.toMessageList().iterator());
+    }
+
+    private byte[] decompress(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0)
+            out.write(buffer, 0, n);
+        in.close();
+        return out.toByteArray();
+    }
+}
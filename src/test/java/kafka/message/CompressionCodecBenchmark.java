@@ -0,0 +1,111 @@
+package kafka.message;
+
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+/**
+ * A benchmark of the registered codecs over representative payloads, reporting the compression ratio and the
+ * throughput of compressing a message set and of iterating its decompressed messages, in MB/s of message payload.
+ * <p>
+ * Usage: CompressionCodecBenchmark [messages per set] [message size in bytes] [iterations]
+ */
+public class CompressionCodecBenchmark {
+    private static final String[] Words = {"kafka", "broker", "topic", "partition", "offset", "leader", "replica",
+            "consumer", "producer", "fetch", "request", "response", "segment", "index", "log", "message"};
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+
+        String[] payloads = {"json", "log-lines", "random", "repetitive"};
+        System.out.println(String.format("%d messages of %d bytes per set, %d iterations", count, size, iterations));
+        System.out.println(String.format("%-12s %-10s %8s %14s %16s", "payload", "codec", "ratio", "compress MB/s", "decompress MB/s"));
+        for (String payload : payloads) {
+            List<Message> messages = messages(payload, count, size, new Random(42));
+            long payloadBytes = (long) count * size;
+            for (CompressionCodec codec : CompressionCodec.values()) {
+                if (codec == CompressionCodec.NoCompressionCodec)
+                    continue;
+                ByteBufferMessageSet set = new ByteBufferMessageSet(codec, messages);
+                double ratio = (double) payloadBytes / set.sizeInBytes();
+                // once to warm up, then measured
+                compress(codec, messages, iterations);
+                long compressNs = compress(codec, messages, iterations);
+                decompress(set, iterations);
+                long decompressNs = decompress(set, iterations);
+                System.out.println(String.format("%-12s %-10s %8.2f %14.1f %16.1f", payload, codec, ratio,
+                        mbPerSecond(payloadBytes * iterations, compressNs), mbPerSecond(payloadBytes * iterations, decompressNs)));
+            }
+        }
+    }
+
+    private static long compress(CompressionCodec codec, List<Message> messages, int iterations) {
+        long sum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            sum += new ByteBufferMessageSet(codec, messages).sizeInBytes();
+        long elapsed = System.nanoTime() - start;
+        if (sum == 42)
+            System.out.println();
+        return elapsed;
+    }
+
+    private static long decompress(ByteBufferMessageSet set, int iterations) {
+        long sum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (MessageAndOffset messageAndOffset : set)
+                sum += messageAndOffset.message.payloadSize();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sum == 42)
+            System.out.println();
+        return elapsed;
+    }
+
+    private static double mbPerSecond(long bytes, long ns) {
+        return bytes / (1024.0 * 1024.0) / (ns / 1e9);
+    }
+
+    private static List<Message> messages(String payload, int count, int size, Random random) {
+        List<Message> messages = Lists.newArrayList();
+        byte[] repeated = new byte[size];
+        random.nextBytes(repeated);
+        for (int i = 0; i < count; i++) {
+            byte[] bytes;
+            switch (payload) {
+                case "json":
+                    bytes = fill(size, n -> String.format("{\"id\": %d, \"user\": \"user%d\", \"event\": \"%s\", \"ts\": %d}, ",
+                            n, random.nextInt(1000), Words[random.nextInt(Words.length)], 1490000000000L + random.nextInt(1000000)));
+                    break;
+                case "log-lines":
+                    bytes = fill(size, n -> String.format("[2017-03-22 20:27:%02d,%03d] INFO [%s %d] %s %s %d (kafka.server.%s)\n",
+                            random.nextInt(60), random.nextInt(1000), Words[random.nextInt(Words.length)], random.nextInt(16),
+                            Words[random.nextInt(Words.length)], Words[random.nextInt(Words.length)], random.nextInt(100000),
+                            Words[random.nextInt(Words.length)]));
+                    break;
+                case "random":
+                    bytes = new byte[size];
+                    random.nextBytes(bytes);
+                    break;
+                default:
+                    bytes = repeated;
+            }
+            messages.add(new Message(bytes));
+        }
+        return messages;
+    }
+
+    /* repeat generated records until they fill exactly size bytes */
+    private static byte[] fill(int size, IntFunction<String> record) {
+        StringBuilder builder = new StringBuilder();
+        for (int n = 0; builder.length() < size; n++)
+            builder.append(record.apply(n));
+        builder.setLength(size);
+        return builder.toString().getBytes();
+    }
+}
@@ -0,0 +1,104 @@
+package kafka.message;
+
+import com.google.common.collect.Lists;
+import kafka.common.UnknownCodecException;
+import kafka.utils.TestUtils;
+import kafka.utils.Utils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+public class CompressionCodecTest {
+    /* registered once when the class is loaded, the registry can not forget a codec */
+    private static final CompressionCodec dictionaryCodec = CompressionCodec.register(6, "zstd-dictionary-test",
+            CompressionCodec.zstd(CompressionCodec.ZStdDefaultLevel, "{\"user\": \"name\", \"event\": \"click\", \"page\": \"/index.html\"}".getBytes()));
+
+    @Test
+    public void testRoundTrip() {
+        List<Message> messages = Lists.newArrayList();
+        for (int i = 0; i < 100; i++)
+            messages.add(new Message(String.format("{\"user\": \"user%d\", \"event\": \"click\", \"page\": \"/index.html\"}", i).getBytes()));
+        messages.add(new Message(TestUtils.randomBytes(200 * 1024)));
+        for (CompressionCodec codec : CompressionCodec.values()) {
+            ByteBufferMessageSet set = new ByteBufferMessageSet(codec, messages);
+            TestUtils.checkEquals(messages.iterator(), set.toMessageList().iterator());
+            if (codec != CompressionCodec.NoCompressionCodec)
+                Assert.assertEquals(codec, set.shallowIterator().next().message.compressionCodec());
+        }
+    }
+
+    @Test
+    public void testEmptyStreams() throws IOException {
+        for (CompressionCodec codec : CompressionCodec.values()) {
+            if (codec == CompressionCodec.NoCompressionCodec)
+                continue;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            codec.wrapForOutput(bytes).close();
+            InputStream in = codec.wrapForInput(new ByteArrayInputStream(bytes.toByteArray()));
+            Assert.assertEquals("Codec " + codec + " should read an empty stream", -1, in.read());
+            in.close();
+        }
+    }
+
+    @Test
+    public void testLookup() {
+        for (CompressionCodec codec : CompressionCodec.values()) {
+            Assert.assertSame(codec, CompressionCodec.getCompressionCodec(codec.codec));
+            Assert.assertSame(codec, CompressionCodec.getCompressionCodec(codec.name));
+        }
+        Assert.assertEquals("lz4", CompressionCodec.LZ4CompressionCodec.name);
+        Assert.assertSame(dictionaryCodec, CompressionCodec.getCompressionCodec(6));
+    }
+
+    @Test(expected = UnknownCodecException.class)
+    public void testUnknownId() {
+        CompressionCodec.getCompressionCodec(7);
+    }
+
+    @Test(expected = UnknownCodecException.class)
+    public void testUnknownName() {
+        CompressionCodec.getCompressionCodec("brotli");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateId() {
+        CompressionCodec.register(CompressionCodec.ZStdCompressionCodec.codec, "zstd-9", CompressionCodec.zstd(9, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateName() {
+        CompressionCodec.register(7, CompressionCodec.GZIPCompressionCodec.name, CompressionCodec.zstd(9, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIdOutOfRange() {
+        CompressionCodec.register(CompressionCodec.MaxCodecId + 1, "zstd-9", CompressionCodec.zstd(9, null));
+    }
+
+    /**
+     * Data compressed against a dictionary can only be read with it
+     */
+    @Test
+    public void testDictionary() throws IOException {
+        byte[] payload = "{\"user\": \"user1\", \"event\": \"click\", \"page\": \"/index.html\"}".getBytes();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = dictionaryCodec.wrapForOutput(bytes);
+        out.write(payload);
+        out.close();
+        ByteBufferMessageSet set = new ByteBufferMessageSet(dictionaryCodec, Lists.newArrayList(new Message(payload)));
+        Assert.assertArrayEquals(payload, Utils.readBytes(set.toMessageList().get(0).payload()));
+        try {
+            InputStream in = CompressionCodec.ZStdCompressionCodec.wrapForInput(new ByteArrayInputStream(bytes.toByteArray()));
+            in.read(new byte[payload.length]);
+            Assert.fail("Reading without the dictionary should fail");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
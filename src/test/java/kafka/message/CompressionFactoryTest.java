@@ -0,0 +1,113 @@
+package kafka.message;
+
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CompressionFactoryTest {
+    private final List<Message> messages = Lists.newArrayList();
+    private final RecordingStats stats = new RecordingStats();
+
+    {
+        for (int i = 0; i < 100; i++)
+            messages.add(new Message(String.format("{\"user\": \"user%d\", \"event\": \"click\"}", i % 5).getBytes()));
+    }
+
+    @After
+    public void tearDown() {
+        CompressionFactory.recordInto(null);
+    }
+
+    @Test
+    public void testRecordsCompressionAndDecompression() throws Exception {
+        Assert.assertNull(CompressionFactory.recordInto(stats));
+        ByteBufferMessageSet set = new ByteBufferMessageSet(CompressionCodec.GZIPCompressionCodec, messages);
+        Assert.assertEquals(1, stats.compressions);
+        Assert.assertEquals((long) MessageSet.messageSetSize(messages), stats.uncompressedBytes);
+        Message wrapper = set.shallowIterator().next().message;
+        Assert.assertEquals((long) wrapper.payloadSize(), stats.compressedBytes);
+        Assert.assertTrue(stats.compressedBytes < stats.uncompressedBytes);
+
+        stats.reset();
+        Assert.assertEquals(100, set.toMessageList().size());
+        Assert.assertEquals(1, stats.decompressions);
+        Assert.assertEquals((long) MessageSet.messageSetSize(messages), stats.uncompressedBytes);
+        Assert.assertEquals((long) wrapper.payloadSize(), stats.compressedBytes);
+
+        stats.reset();
+        ByteBufferMessageSet.decompress(wrapper);
+        Assert.assertEquals(1, stats.decompressions);
+        Assert.assertEquals((long) MessageSet.messageSetSize(messages), stats.uncompressedBytes);
+    }
+
+    @Test
+    public void testRecordsRecompression() {
+        ByteBufferMessageSet set = new ByteBufferMessageSet(CompressionCodec.SnappyCompressionCodec, messages);
+        CompressionFactory.recordInto(stats);
+        set.assignOffsets(new AtomicLong(10), CompressionCodec.SnappyCompressionCodec);
+        Assert.assertEquals(1, stats.recompressions);
+        Assert.assertEquals(1, stats.decompressions);
+        Assert.assertEquals(1, stats.compressions);
+
+        // relative offsets are assigned in place;
+        ByteBufferMessageSet relative = new ByteBufferMessageSet(CompressionCodec.SnappyCompressionCodec, new AtomicLong(0), Message.RelativeOffsetMagicValue, messages);
+        stats.reset();
+        relative.assignOffsets(new AtomicLong(10), CompressionCodec.SnappyCompressionCodec);
+        Assert.assertEquals(0, stats.recompressions);
+        Assert.assertEquals(0, stats.compressions);
+    }
+
+    @Test
+    public void testNotRecordingByDefault() {
+        new ByteBufferMessageSet(CompressionCodec.GZIPCompressionCodec, messages).toMessageList();
+        Assert.assertEquals(0, stats.compressions + stats.decompressions);
+        Assert.assertNull(CompressionFactory.stats());
+    }
+
+    @Test
+    public void testRestoresPrevious() {
+        RecordingStats inner = new RecordingStats();
+        CompressionFactory.recordInto(stats);
+        CompressionStats previous = CompressionFactory.recordInto(inner);
+        new ByteBufferMessageSet(CompressionCodec.LZ4CompressionCodec, messages);
+        Assert.assertSame(stats, previous);
+        Assert.assertSame(inner, CompressionFactory.recordInto(previous));
+        Assert.assertSame(stats, CompressionFactory.stats());
+        new ByteBufferMessageSet(CompressionCodec.LZ4CompressionCodec, messages);
+        Assert.assertEquals(1, inner.compressions);
+        Assert.assertEquals(1, stats.compressions);
+    }
+
+    private static class RecordingStats implements CompressionStats {
+        int compressions, decompressions, recompressions;
+        long uncompressedBytes, compressedBytes;
+
+        @Override
+        public void recordCompression(CompressionCodec codec, long uncompressedBytes, long compressedBytes, long nanos) {
+            compressions += 1;
+            this.uncompressedBytes += uncompressedBytes;
+            this.compressedBytes += compressedBytes;
+        }
+
+        @Override
+        public void recordDecompression(CompressionCodec codec, long compressedBytes, long uncompressedBytes, long nanos) {
+            decompressions += 1;
+            this.uncompressedBytes += uncompressedBytes;
+            this.compressedBytes += compressedBytes;
+        }
+
+        @Override
+        public void recordRecompression(CompressionCodec codec) {
+            recompressions += 1;
+        }
+
+        void reset() {
+            compressions = decompressions = recompressions = 0;
+            uncompressedBytes = compressedBytes = 0;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package kafka.message;
+
+import com.google.common.collect.Lists;
+import kafka.utils.TestUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DecompressingIteratorTest {
+    /* the number of decompression streams of the closing codec that are open */
+    private static final AtomicInteger openStreams = new AtomicInteger(0);
+    /* gzip whose decompression streams count themselves open until closed, registered once when the class is loaded */
+    private static final CompressionCodec closingCodec = CompressionCodec.register(7, "gzip-closing-test", new CompressionCodec.StreamFactory() {
+        public OutputStream wrapForOutput(OutputStream out) throws IOException {
+            return CompressionCodec.GZIPCompressionCodec.wrapForOutput(out);
+        }
+
+        public InputStream wrapForInput(InputStream in) throws IOException {
+            openStreams.incrementAndGet();
+            return new FilterInputStream(CompressionCodec.GZIPCompressionCodec.wrapForInput(in)) {
+                private boolean closed = false;
+
+                @Override
+                public void close() throws IOException {
+                    if (!closed)
+                        openStreams.decrementAndGet();
+                    closed = true;
+                    super.close();
+                }
+            };
+        }
+    });
+
+    /**
+     * Messages kept from earlier in the iteration stay intact while later ones are decoded into new chunks
+     */
+    @Test
+    public void testMessagesSpanningChunks() throws IOException {
+        List<Message> messages = Lists.newArrayList();
+        for (int i = 0; i < 100; i++)
+            messages.add(new Message(TestUtils.randomBytes(1000)));
+        for (CompressionCodec codec : Lists.newArrayList(CompressionCodec.GZIPCompressionCodec, CompressionCodec.SnappyCompressionCodec, CompressionCodec.LZ4CompressionCodec)) {
+            Message wrapper = wrapper(codec, messages);
+            List<MessageAndOffset> decoded = Lists.newArrayList();
+            DecompressingIterator iter = new DecompressingIterator(wrapper);
+            while (iter.hasNext())
+                decoded.add(iter.next());
+            Assert.assertEquals(messages.size(), decoded.size());
+            for (int i = 0; i < messages.size(); i++) {
+                Assert.assertEquals((long) (10 + i), (long) decoded.get(i).offset);
+                Assert.assertEquals(messages.get(i), decoded.get(i).message);
+                Assert.assertTrue(decoded.get(i).message.isValid());
+            }
+            TestUtils.checkEquals(ByteBufferMessageSet.decompress(wrapper).iterator(), new DecompressingIterator(wrapper));
+        }
+    }
+
+    /**
+     * A message larger than a chunk gets a chunk of its own size
+     */
+    @Test
+    public void testMessageLargerThanChunk() {
+        List<Message> messages = Lists.newArrayList(
+                new Message("small".getBytes()),
+                new Message(TestUtils.randomBytes(3 * DecompressingIterator.ChunkSize)),
+                new Message("small again".getBytes()));
+        DecompressingIterator iter = new DecompressingIterator(wrapper(CompressionCodec.GZIPCompressionCodec, messages));
+        for (Message message : messages)
+            Assert.assertEquals(message, iter.next().message);
+        Assert.assertFalse(iter.hasNext());
+    }
+
+    /**
+     * The decompression stream is released when the iteration ends, fails or is closed part way through
+     */
+    @Test
+    public void testStreamsClosed() throws IOException {
+        List<Message> messages = Lists.newArrayList(new Message("a".getBytes()), new Message("b".getBytes()));
+        DecompressingIterator iter = new DecompressingIterator(wrapper(closingCodec, messages));
+        while (iter.hasNext())
+            iter.next();
+        Assert.assertEquals("A finished iteration should close its stream", 0, openStreams.get());
+
+        iter = new DecompressingIterator(wrapper(closingCodec, messages));
+        iter.next();
+        Assert.assertEquals(1, openStreams.get());
+        iter.close();
+        Assert.assertEquals("Closing part way should close the stream", 0, openStreams.get());
+
+        ByteArrayOutputStream corrupt = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(closingCodec.wrapForOutput(corrupt))) {
+            out.writeLong(0L);
+            out.writeInt(1);
+        }
+        iter = new DecompressingIterator(new Message(corrupt.toByteArray(), closingCodec));
+        try {
+            iter.hasNext();
+            Assert.fail("A message with a corrupt size should fail the iteration");
+        } catch (InvalidMessageException e) {
+            // this is good;
+        }
+        Assert.assertEquals("A failed iteration should close its stream", 0, openStreams.get());
+    }
+
+    private Message wrapper(CompressionCodec codec, List<Message> messages) {
+        ByteBufferMessageSet set = new ByteBufferMessageSet(codec, new AtomicLong(10), messages);
+        return set.shallowIterator().next().message;
+    }
+}
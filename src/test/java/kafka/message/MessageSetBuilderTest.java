@@ -0,0 +1,126 @@
+package kafka.message;
+
+import com.google.common.collect.Lists;
+import kafka.utils.TestUtils;
+import kafka.utils.Utils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MessageSetBuilderTest {
+    private final List<Message> messages = Lists.newArrayList(
+            new Message("value".getBytes(), "key".getBytes()),
+            new Message("no key".getBytes()),
+            new Message(null, "tombstone".getBytes()),
+            new Message(new byte[0], new byte[0]));
+
+    /**
+     * Messages appended as keys and values are the same as messages created first
+     */
+    @Test
+    public void testSameAsMessages() {
+        for (CompressionCodec codec : CompressionCodec.values()) {
+            for (boolean direct : new boolean[]{false, true}) {
+                MessageSetBuilder builder = new MessageSetBuilder(codec, new AtomicLong(10), Message.CurrentMagicValue, -1, 16, direct);
+                for (Message message : messages)
+                    builder.append(bytes(message.key()), bytes(message.payload()));
+                ByteBufferMessageSet built = builder.build();
+                ByteBufferMessageSet expected = new ByteBufferMessageSet(codec, new AtomicLong(10), messages);
+                Assert.assertEquals(4, builder.count());
+                if (codec == CompressionCodec.NoCompressionCodec)
+                    Assert.assertEquals(expected.buffer, built.buffer);
+                TestUtils.checkEquals(expected.iterator(), built.iterator());
+                Iterator<MessageAndOffset> shallow = built.shallowIterator();
+                while (shallow.hasNext())
+                    Assert.assertTrue("Message should be valid for " + codec, shallow.next().message.isValid());
+            }
+        }
+    }
+
+    /**
+     * Scratch buffers for messages of different sizes come from a few size classes, so the pool reuses them rather than
+     * keeping one for every size
+     */
+    @Test
+    public void testScratchSizeClasses() {
+        for (int size = 5000; size < 5010; size++)
+            buildCompressed(size);
+        long misses = CodecPool.get().misses.count();
+        for (int size = 6000; size < 6010; size++)
+            buildCompressed(size);
+        Assert.assertEquals("Messages of the same size class should reuse the pooled scratch buffer", misses, CodecPool.get().misses.count());
+        // a scratch buffer beyond the largest pooled size is not borrowed from the pool;
+        buildCompressed(MessageSetBuilder.MaxPooledScratchSize + 1);
+        misses = CodecPool.get().misses.count();
+        buildCompressed(MessageSetBuilder.MaxPooledScratchSize + 1);
+        Assert.assertEquals(misses, CodecPool.get().misses.count());
+    }
+
+    private void buildCompressed(int size) {
+        new MessageSetBuilder(CompressionCodec.GZIPCompressionCodec).append(new Message(new byte[size])).build();
+    }
+
+    @Test
+    public void testRanges() {
+        byte[] bytes = "keyvalue".getBytes();
+        ByteBufferMessageSet built = new MessageSetBuilder(CompressionCodec.NoCompressionCodec).append(bytes, 0, 3, bytes, 3, 5).build();
+        Assert.assertEquals(new Message("value".getBytes(), "key".getBytes()), built.iterator().next().message);
+    }
+
+    @Test
+    public void testRelativeOffsets() {
+        MessageSetBuilder builder = new MessageSetBuilder(CompressionCodec.GZIPCompressionCodec, new AtomicLong(0), Message.RelativeOffsetMagicValue, 4, 16, false);
+        for (Message message : messages)
+            builder.append(message);
+        ByteBufferMessageSet built = builder.build();
+        Assert.assertTrue(built.hasRelativeOffsets());
+        Assert.assertArrayEquals(new int[]{4}, built.validateRelativeOffsets());
+        ByteBufferMessageSet expected = new ByteBufferMessageSet(CompressionCodec.GZIPCompressionCodec, new AtomicLong(0), Message.RelativeOffsetMagicValue, messages);
+        Assert.assertEquals(expected.buffer, built.buffer);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRelativeOffsetsCount() {
+        MessageSetBuilder builder = new MessageSetBuilder(CompressionCodec.GZIPCompressionCodec, new AtomicLong(0), Message.RelativeOffsetMagicValue, 5, 16, false);
+        for (Message message : messages)
+            builder.append(message);
+        builder.build();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAppendAfterBuild() {
+        MessageSetBuilder builder = new MessageSetBuilder(CompressionCodec.NoCompressionCodec);
+        builder.build();
+        builder.append(null, "value".getBytes());
+    }
+
+    @Test
+    public void testEmpty() {
+        Assert.assertEquals(0, (int) new MessageSetBuilder(CompressionCodec.SnappyCompressionCodec).build().sizeInBytes());
+    }
+
+    /**
+     * Building a set allocates its buffer and nothing per message
+     */
+    @Test
+    public void testAllocation() throws Exception {
+        byte[] key = "key".getBytes();
+        byte[] value = new byte[100];
+        int size = 1000 * (MessageSet.LogOverhead + Message.MessageOverhead + key.length + value.length);
+        long allocated = TestUtils.allocatedBytes(() -> {
+            MessageSetBuilder builder = new MessageSetBuilder(CompressionCodec.NoCompressionCodec, new AtomicLong(0), Message.CurrentMagicValue, -1, size, false);
+            for (int i = 0; i < 1000; i++)
+                builder.append(key, value);
+            builder.build();
+        });
+        Assert.assertTrue("Only the buffer of the set should be allocated, allocated " + allocated, allocated < size + 4 * 1024);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        return buffer == null ? null : Utils.readBytes(buffer);
+    }
+}
@@ -0,0 +1,132 @@
+package kafka.message;
+
+import com.google.common.collect.Lists;
+import kafka.utils.TestUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MessageSetCursorTest {
+    private final List<Message> messages = Lists.newArrayList(
+            new Message("value".getBytes(), "key".getBytes()),
+            new Message("no key".getBytes()),
+            new Message(null, "tombstone".getBytes()),
+            new Message(new byte[0], new byte[0]));
+
+    /**
+     * The cursor sees the same entries as the shallow iterator
+     */
+    @Test
+    public void testSameAsIterator() {
+        for (CompressionCodec codec : Lists.newArrayList(CompressionCodec.NoCompressionCodec, CompressionCodec.GZIPCompressionCodec)) {
+            ByteBufferMessageSet set = new ByteBufferMessageSet(codec, new AtomicLong(7), messages);
+            Iterator<MessageAndOffset> expected = set.shallowIterator();
+            MessageSetCursor cursor = set.cursor();
+            int position = 0;
+            while (cursor.next()) {
+                MessageAndOffset entry = expected.next();
+                Message message = entry.message;
+                Assert.assertEquals((long) entry.offset, cursor.offset());
+                Assert.assertEquals(position, cursor.position());
+                Assert.assertEquals((int) MessageSet.entrySize(message), cursor.entrySize());
+                Assert.assertEquals(message.compressionCodec(), cursor.compressionCodec());
+                Assert.assertEquals(message.hasKey(), cursor.hasKey());
+                Assert.assertEquals(message.isNull(), cursor.isNull());
+                Assert.assertEquals(message.key(), cursor.key());
+                Assert.assertEquals(message.payload(), cursor.payload());
+                Assert.assertEquals(message.checksum(), cursor.checksum());
+                Assert.assertTrue(cursor.isValid());
+                Assert.assertEquals(message, cursor.message());
+                position += cursor.entrySize();
+            }
+            Assert.assertFalse(expected.hasNext());
+            Assert.assertEquals(set.sizeInBytes(), position);
+        }
+    }
+
+    @Test
+    public void testWriteTo() {
+        ByteBufferMessageSet set = new ByteBufferMessageSet(messages);
+        ByteBuffer copy = ByteBuffer.allocate(set.sizeInBytes());
+        MessageSetCursor cursor = set.cursor();
+        while (cursor.next())
+            cursor.writeTo(copy, cursor.offset() + 10);
+        copy.flip();
+        Iterator<MessageAndOffset> copied = new ByteBufferMessageSet(copy).iterator();
+        for (int i = 0; i < messages.size(); i++) {
+            MessageAndOffset entry = copied.next();
+            Assert.assertEquals(10L + i, (long) entry.offset);
+            Assert.assertEquals(messages.get(i), entry.message);
+        }
+    }
+
+    @Test
+    public void testPartialMessage() {
+        ByteBufferMessageSet set = new ByteBufferMessageSet(messages);
+        ByteBuffer buffer = set.buffer.duplicate();
+        buffer.limit(buffer.limit() - 1);
+        MessageSetCursor cursor = new MessageSetCursor(buffer);
+        int count = 0;
+        while (cursor.next())
+            count += 1;
+        Assert.assertEquals(messages.size() - 1, count);
+    }
+
+    @Test(expected = InvalidMessageException.class)
+    public void testCorruptSize() {
+        ByteBufferMessageSet set = new ByteBufferMessageSet(messages);
+        set.buffer.putInt(MessageSet.OffsetLength, 3);
+        set.cursor().next();
+    }
+
+    @Test(expected = InvalidMessageException.class)
+    public void testCorruptMessage() {
+        ByteBufferMessageSet set = new ByteBufferMessageSet(messages);
+        set.buffer.put(set.sizeInBytes() - 1, (byte) 42);
+        MessageSetCursor cursor = set.cursor();
+        while (cursor.next())
+            cursor.ensureValid();
+    }
+
+    /**
+     * A cursor over a direct buffer reads the same entries
+     */
+    @Test
+    public void testDirectBuffer() {
+        ByteBufferMessageSet set = new ByteBufferMessageSet(messages);
+        ByteBuffer direct = ByteBuffer.allocateDirect(set.sizeInBytes());
+        direct.put(set.buffer.duplicate());
+        direct.flip();
+        MessageSetCursor cursor = new MessageSetCursor(direct);
+        for (Message message : messages) {
+            Assert.assertTrue(cursor.next());
+            cursor.ensureValid();
+            Assert.assertEquals(message.payload(), cursor.payload());
+        }
+        Assert.assertFalse(cursor.next());
+    }
+
+    /**
+     * Scanning and validating a set with a cursor allocates nothing per message
+     */
+    @Test
+    public void testScanDoesNotAllocate() throws Exception {
+        List<Message> list = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++)
+            list.add(new Message(("value " + i).getBytes(), ("key " + i).getBytes()));
+        ByteBufferMessageSet set = new ByteBufferMessageSet(list);
+        long[] sum = {0};
+        long allocated = TestUtils.allocatedBytes(() -> {
+            MessageSetCursor cursor = set.cursor();
+            while (cursor.next()) {
+                cursor.ensureValid();
+                sum[0] += cursor.offset() + cursor.key().remaining() + cursor.payload().remaining();
+            }
+        });
+        Assert.assertTrue("Scanning should not allocate per message, allocated " + allocated, allocated < 1024);
+    }
+}
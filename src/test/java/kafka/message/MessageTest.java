@@ -8,6 +8,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -67,6 +68,64 @@ public class MessageTest {
         }
     }
 
+    @Test
+    public void testChecksumOfDirectBuffer() {
+        for (MessageTestVal v : messages) {
+            ByteBuffer direct = ByteBuffer.allocateDirect(v.message.size() + 10);
+            direct.position(10);
+            direct.put(v.message.buffer.duplicate());
+            direct.position(10);
+            Message message = new Message(direct.slice());
+            message.buffer.position(3);
+            Assert.assertEquals(v.message.checksum(), message.computeChecksum());
+            Assert.assertTrue("A message in a direct buffer should be valid", message.isValid());
+            Assert.assertEquals("The position should be restored", 3, message.buffer.position());
+            Assert.assertEquals("The limit should be restored", v.message.size(), message.buffer.limit());
+            message.buffer.put(message.size() - 1, (byte) (message.buffer.get(message.size() - 1) + 1));
+            Assert.assertFalse("A changed message should be invalid", message.isValid());
+        }
+    }
+
+    @Test
+    public void testValidationDoesNotAllocate() throws Exception {
+        Message heap = new Message(new byte[1024], "key".getBytes());
+        ByteBuffer direct = ByteBuffer.allocateDirect(heap.size());
+        direct.put(heap.buffer.duplicate());
+        direct.flip();
+        Message offHeap = new Message(direct);
+        Assert.assertEquals(0, TestUtils.allocatedBytes(() -> heap.ensureValid()));
+        Assert.assertEquals(0, TestUtils.allocatedBytes(() -> offHeap.ensureValid()));
+    }
+
+    /**
+     * Threads checksumming the same message in a direct buffer, larger than the chunk it is copied through, do not
+     * disturb each other
+     */
+    @Test
+    public void testConcurrentChecksumOfDirectBuffer() throws InterruptedException {
+        Message heap = new Message(new byte[10000], "key".getBytes());
+        ByteBuffer direct = ByteBuffer.allocateDirect(heap.size());
+        direct.put(heap.buffer.duplicate());
+        direct.flip();
+        Message offHeap = new Message(direct);
+        AtomicInteger failures = new AtomicInteger(0);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    if (offHeap.computeChecksum() != heap.checksum())
+                        failures.incrementAndGet();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        Assert.assertEquals(0, failures.get());
+        Assert.assertEquals(0, offHeap.buffer.position());
+        Assert.assertEquals(heap.size(), offHeap.buffer.limit());
+    }
+
     @Test
     public void testEquality() {
         for (MessageTestVal v : messages) {
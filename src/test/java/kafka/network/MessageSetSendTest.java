@@ -0,0 +1,148 @@
+package kafka.network;
+
+import com.google.common.collect.Lists;
+import kafka.log.FileMessageSet;
+import kafka.message.ByteBufferMessageSet;
+import kafka.message.CompressionCodec;
+import kafka.message.Message;
+import kafka.utils.TestUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.List;
+
+public class MessageSetSendTest {
+    ByteBufferMessageSet messages;
+    FileMessageSet fileMessages;
+
+    @Before
+    public void setup() throws IOException {
+        List<Message> list = Lists.newArrayList();
+        for (int i = 0; i < 100; i++)
+            list.add(new Message(("message-" + i).getBytes()));
+        messages = new ByteBufferMessageSet(CompressionCodec.NoCompressionCodec, list);
+        fileMessages = new FileMessageSet(TestUtils.tempFile());
+        fileMessages.append(messages);
+        fileMessages.flush();
+    }
+
+    @After
+    public void teardown() {
+        fileMessages.delete();
+    }
+
+    /**
+     * A file message set written to a file goes out with zero-copy transfers, all chunks in one call
+     */
+    @Test
+    public void testZeroCopyToFile() throws IOException {
+        File file = TestUtils.tempFile();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel();
+        MessageSetSend send = new MessageSetSend(fileMessages, 100);
+        int written = send.writeTo(channel);
+        Assert.assertTrue(send.complete());
+        Assert.assertEquals(4 + messages.sizeInBytes(), written);
+        Assert.assertEquals(messages.sizeInBytes(), send.zeroCopyBytes);
+        Assert.assertEquals(0, send.copiedBytes);
+
+        ByteBuffer read = ByteBuffer.allocate(written);
+        channel.read(read, 0);
+        read.flip();
+        checkSent(read);
+        raf.close();
+        file.delete();
+    }
+
+    /**
+     * A channel that is not a socket or a file gets the file copied to it, resuming where it stopped taking bytes
+     */
+    @Test
+    public void testCopyToOtherChannel() {
+        ThrottledChannel channel = new ThrottledChannel(250);
+        MessageSetSend send = new MessageSetSend(fileMessages, 100);
+        int calls = 0;
+        while (!send.complete()) {
+            channel.drain();
+            send.writeTo(channel);
+            calls++;
+        }
+        Assert.assertTrue("Each call should stop when the channel is full", calls > 1);
+        Assert.assertEquals(0, send.zeroCopyBytes);
+        Assert.assertEquals(messages.sizeInBytes(), send.copiedBytes);
+        checkSent(ByteBuffer.wrap(channel.out.toByteArray()));
+    }
+
+    /**
+     * An in-memory message set is sent in slices, not written whole on every call
+     */
+    @Test
+    public void testByteBufferMessageSet() {
+        ThrottledChannel channel = new ThrottledChannel(250);
+        MessageSetSend send = new MessageSetSend(messages, 100);
+        while (!send.complete()) {
+            channel.drain();
+            send.writeTo(channel);
+        }
+        Assert.assertEquals(messages.sizeInBytes(), send.copiedBytes);
+        checkSent(ByteBuffer.wrap(channel.out.toByteArray()));
+    }
+
+    private void checkSent(ByteBuffer sent) {
+        Assert.assertEquals(messages.sizeInBytes(), sent.getInt());
+        TestUtils.checkEquals(messages.iterator(), new ByteBufferMessageSet(sent.slice()).iterator());
+    }
+
+    /**
+     * A channel that takes a fixed number of bytes each time it is drained, like a non-blocking socket with a small
+     * send buffer
+     */
+    private static class ThrottledChannel implements GatheringByteChannel {
+        public ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int bufferSize;
+        private int free = 0;
+
+        public ThrottledChannel(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+
+        public void drain() {
+            free = bufferSize;
+        }
+
+        public int write(ByteBuffer src) {
+            int n = Math.min(free, src.remaining());
+            for (int i = 0; i < n; i++)
+                out.write(src.get());
+            free -= n;
+            return n;
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long written = 0;
+            for (int i = offset; i < offset + length; i++)
+                written += write(srcs[i]);
+            return written;
+        }
+
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+}
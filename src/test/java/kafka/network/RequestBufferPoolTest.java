@@ -0,0 +1,84 @@
+package kafka.network;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class RequestBufferPoolTest {
+
+    @Test
+    public void testSizeClasses() {
+        Assert.assertEquals(RequestBufferPool.MinPooledSize, RequestBufferPool.capacityFor(1));
+        Assert.assertEquals(RequestBufferPool.MinPooledSize, RequestBufferPool.capacityFor(RequestBufferPool.MinPooledSize));
+        Assert.assertEquals(2 * RequestBufferPool.MinPooledSize, RequestBufferPool.capacityFor(RequestBufferPool.MinPooledSize + 1));
+        Assert.assertEquals(RequestBufferPool.MaxPooledSize, RequestBufferPool.capacityFor(RequestBufferPool.MaxPooledSize));
+        Assert.assertEquals(RequestBufferPool.MaxPooledSize + 1, RequestBufferPool.capacityFor(RequestBufferPool.MaxPooledSize + 1));
+    }
+
+    @Test
+    public void testReuse() {
+        RequestBufferPool pool = new RequestBufferPool(-1, 1024 * 1024, false);
+        ByteBuffer buffer = pool.tryAllocate(3000);
+        Assert.assertEquals(0, buffer.position());
+        Assert.assertEquals(3000, buffer.limit());
+        Assert.assertEquals(4096, buffer.capacity());
+        buffer.position(100);
+        pool.release(buffer);
+        Assert.assertEquals(0L, pool.allocatedBytes());
+
+        ByteBuffer reused = pool.tryAllocate(2500);
+        Assert.assertSame(buffer, reused);
+        Assert.assertEquals(0, reused.position());
+        Assert.assertEquals(2500, reused.limit());
+        Assert.assertNotSame(buffer, pool.tryAllocate(100));
+    }
+
+    @Test
+    public void testLargeBuffersAreNotPooled() {
+        RequestBufferPool pool = new RequestBufferPool(-1, 64 * 1024 * 1024, true);
+        ByteBuffer buffer = pool.tryAllocate(RequestBufferPool.MaxPooledSize + 1);
+        Assert.assertTrue(buffer.isDirect());
+        Assert.assertEquals(RequestBufferPool.MaxPooledSize + 1, buffer.capacity());
+        pool.release(buffer);
+        Assert.assertNotSame(buffer, pool.tryAllocate(RequestBufferPool.MaxPooledSize + 1));
+    }
+
+    @Test
+    public void testPoolBytes() {
+        RequestBufferPool pool = new RequestBufferPool(-1, 1024, false);
+        ByteBuffer first = pool.tryAllocate(1024);
+        ByteBuffer second = pool.tryAllocate(1024);
+        pool.release(first);
+        pool.release(second);
+        // only one buffer fits in the pooled memory;
+        Assert.assertSame(first, pool.tryAllocate(1024));
+        Assert.assertNotSame(second, pool.tryAllocate(1024));
+    }
+
+    @Test
+    public void testMemoryLimit() {
+        RequestBufferPool pool = new RequestBufferPool(4096, 0, false);
+        ByteBuffer first = pool.tryAllocate(2048);
+        ByteBuffer second = pool.tryAllocate(2048);
+        Assert.assertNotNull(second);
+        Assert.assertFalse(pool.canAllocate(1));
+        Assert.assertNull(pool.tryAllocate(1));
+        pool.release(first);
+        Assert.assertTrue(pool.canAllocate(1));
+        Assert.assertNotNull(pool.tryAllocate(1));
+    }
+
+    /**
+     * A request larger than the limit is read when nothing else holds memory, so that it does not wait forever
+     */
+    @Test
+    public void testRequestLargerThanLimit() {
+        RequestBufferPool pool = new RequestBufferPool(4096, 0, false);
+        ByteBuffer large = pool.tryAllocate(10000);
+        Assert.assertNotNull(large);
+        Assert.assertNull(pool.tryAllocate(1));
+        pool.release(large);
+        Assert.assertEquals(0L, pool.allocatedBytes());
+    }
+}
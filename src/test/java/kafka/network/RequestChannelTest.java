@@ -0,0 +1,224 @@
+package kafka.network;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import kafka.api.ProducerRequest;
+import kafka.api.RequestKeys;
+import kafka.common.InvalidConfigException;
+import kafka.log.TopicAndPartition;
+import kafka.message.ByteBufferMessageSet;
+import kafka.message.CompressionCodec;
+import kafka.message.Message;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RequestChannelTest {
+
+    @Test
+    public void testSharedDispatch() throws InterruptedException {
+        RequestChannel channel = new RequestChannel(1, 10, RequestChannel.Dispatch.Shared, 4);
+        RequestChannel.Request first = request(new Object(), Maps.newHashMap());
+        RequestChannel.Request second = request(new Object(), Maps.newHashMap());
+        channel.sendRequest(first);
+        channel.sendRequest(second);
+        Assert.assertSame(first, channel.receiveRequest(3, 10L));
+        Assert.assertSame(second, channel.receiveRequest(10L));
+        Assert.assertNull(channel.receiveRequest(1, 10L));
+    }
+
+    /**
+     * A handler takes the requests of its own queue before those sent earlier to the queues of other handlers
+     */
+    @Test
+    public void testPartitionDispatch() throws InterruptedException {
+        int numQueues = 4;
+        RequestChannel channel = new RequestChannel(1, 100, RequestChannel.Dispatch.Partition, numQueues);
+        TopicAndPartition small = new TopicAndPartition("topic", 0);
+        RequestChannel.Request other = null;
+        for (int partition = 1; other == null; partition++) {
+            TopicAndPartition large = new TopicAndPartition("topic", partition);
+            RequestChannel.Request request = request(new Object(), ImmutableMap.of(small, messages(1), large, messages(10)));
+            if (queue(request, numQueues) != Math.floorMod(large.hashCode(), numQueues))
+                Assert.fail("A produce request should go to the queue of the partition with the most data");
+            if (queue(request, numQueues) != Math.floorMod(small.hashCode(), numQueues))
+                other = request;
+        }
+        RequestChannel.Request own = request(new Object(), ImmutableMap.of(small, messages(1)));
+        channel.sendRequest(other);
+        channel.sendRequest(own);
+        Assert.assertSame(own, channel.receiveRequest(queue(own, numQueues), 10L));
+        Assert.assertSame(other, channel.receiveRequest(queue(own, numQueues), 10L));
+    }
+
+    @Test
+    public void testConnectionDispatch() throws InterruptedException {
+        int numQueues = 4;
+        RequestChannel channel = new RequestChannel(1, 100, RequestChannel.Dispatch.Connection, numQueues);
+        Object connection = new Object();
+        Object other = new Object();
+        while (connectionQueue(other, numQueues) == connectionQueue(connection, numQueues))
+            other = new Object();
+        RequestChannel.Request earlier = request(other, Maps.newHashMap());
+        channel.sendRequest(earlier);
+        // a produce request still goes by its connection;
+        RequestChannel.Request own = request(connection, ImmutableMap.of(new TopicAndPartition("topic", 0), messages(1)));
+        channel.sendRequest(own);
+        Assert.assertSame(own, channel.receiveRequest(connectionQueue(connection, numQueues), 10L));
+        Assert.assertSame(earlier, channel.receiveRequest(connectionQueue(connection, numQueues), 10L));
+    }
+
+    /**
+     * An idle handler steals the requests queued for another
+     */
+    @Test
+    public void testStealing() throws InterruptedException {
+        int numQueues = 4;
+        RequestChannel channel = new RequestChannel(1, 100, RequestChannel.Dispatch.Connection, numQueues);
+        Object connection = new Object();
+        int thief = (connectionQueue(connection, numQueues) + 1) % numQueues;
+        for (int i = 0; i < 3; i++)
+            channel.sendRequest(request(connection, Maps.newHashMap()));
+        for (int i = 0; i < 3; i++)
+            Assert.assertNotNull(channel.receiveRequest(thief, 10L));
+        Assert.assertNull(channel.receiveRequest(thief, 10L));
+    }
+
+    /**
+     * A handler waiting on its own empty queue still sees a request sent to another queue
+     */
+    @Test
+    public void testStealingWhileWaiting() throws InterruptedException {
+        int numQueues = 2;
+        RequestChannel channel = new RequestChannel(1, 100, RequestChannel.Dispatch.Connection, numQueues);
+        Object connection = new Object();
+        int thief = (connectionQueue(connection, numQueues) + 1) % numQueues;
+        RequestChannel.Request request = request(connection, Maps.newHashMap());
+        Thread sender = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+                channel.sendRequest(request);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        sender.start();
+        Assert.assertSame(request, channel.receiveRequest(thief, 5000L));
+        sender.join();
+    }
+
+    /**
+     * Every request sent to any of the queues is taken by exactly one of the handlers waiting on them
+     */
+    @Test
+    public void testWaitingHandlers() throws InterruptedException {
+        int numQueues = 4;
+        int count = 1000;
+        RequestChannel channel = new RequestChannel(1, 100, RequestChannel.Dispatch.Connection, numQueues);
+        Set<RequestChannel.Request> received = ConcurrentHashMap.newKeySet();
+        AtomicInteger duplicates = new AtomicInteger(0);
+        Thread[] handlers = new Thread[numQueues];
+        for (int i = 0; i < numQueues; i++) {
+            int id = i;
+            handlers[i] = new Thread(() -> {
+                try {
+                    while (true) {
+                        RequestChannel.Request request = channel.receiveRequest(id, 5000L);
+                        if (request == null || request == RequestChannel.AllDone)
+                            return;
+                        if (!received.add(request))
+                            duplicates.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            handlers[i].start();
+        }
+        for (int i = 0; i < count; i++)
+            channel.sendRequest(request(new Object(), Maps.newHashMap()));
+        for (int i = 0; i < numQueues; i++)
+            channel.sendRequest(RequestChannel.AllDone);
+        for (Thread handler : handlers)
+            handler.join();
+        Assert.assertEquals(count, received.size());
+        Assert.assertEquals(0, duplicates.get());
+        Assert.assertNull(channel.receiveRequest(0, 10L));
+    }
+
+    /**
+     * The requests queued when the channel is shut down are dropped, and the handlers still get the shutdown requests
+     * sent afterwards
+     */
+    @Test
+    public void testShutdown() throws InterruptedException {
+        int numQueues = 4;
+        for (RequestChannel.Dispatch dispatch : new RequestChannel.Dispatch[]{RequestChannel.Dispatch.Connection, RequestChannel.Dispatch.Partition}) {
+            RequestChannel channel = new RequestChannel(1, 100, dispatch, numQueues);
+            for (int i = 0; i < 3; i++)
+                channel.sendRequest(request(new Object(), Maps.newHashMap()));
+            channel.shutdown();
+            Assert.assertNull(channel.receiveRequest(0, 10L));
+            for (int i = 0; i < numQueues; i++)
+                channel.sendRequest(RequestChannel.AllDone);
+            for (int i = 0; i < numQueues; i++)
+                Assert.assertSame("Handler " + i + " should get its shutdown request with " + dispatch, RequestChannel.AllDone, channel.receiveRequest(i, 1000L));
+            Assert.assertNull(channel.receiveRequest(0, 10L));
+        }
+    }
+
+    /**
+     * Every handler gets one of the shutdown requests sent for each of them
+     */
+    @Test
+    public void testAllDone() throws InterruptedException {
+        int numQueues = 4;
+        RequestChannel channel = new RequestChannel(1, 100, RequestChannel.Dispatch.Partition, numQueues);
+        for (int i = 0; i < numQueues; i++)
+            channel.sendRequest(RequestChannel.AllDone);
+        for (int i = 0; i < numQueues; i++)
+            Assert.assertSame(RequestChannel.AllDone, channel.receiveRequest(i, 10L));
+        Assert.assertNull(channel.receiveRequest(0, 10L));
+    }
+
+    @Test
+    public void testForName() {
+        Assert.assertEquals(RequestChannel.Dispatch.Shared, RequestChannel.Dispatch.forName("shared"));
+        Assert.assertEquals(RequestChannel.Dispatch.Partition, RequestChannel.Dispatch.forName("Partition"));
+        try {
+            RequestChannel.Dispatch.forName("random");
+            Assert.fail("An unknown dispatch should be rejected");
+        } catch (InvalidConfigException e) {
+            // this is good;
+        }
+    }
+
+    private static int queue(RequestChannel.Request request, int numQueues) {
+        return Math.floorMod(request.dominantPartitionHash(), numQueues);
+    }
+
+    private static int connectionQueue(Object connection, int numQueues) {
+        return Math.floorMod(System.identityHashCode(connection), numQueues);
+    }
+
+    private static ByteBufferMessageSet messages(int count) {
+        Message[] messages = new Message[count];
+        for (int i = 0; i < count; i++)
+            messages[i] = new Message(new byte[100]);
+        return new ByteBufferMessageSet(CompressionCodec.NoCompressionCodec, messages);
+    }
+
+    private static RequestChannel.Request request(Object connection, Map<TopicAndPartition, ByteBufferMessageSet> data) {
+        ProducerRequest producerRequest = new ProducerRequest(1, "client", (short) 1, 1000, data);
+        ByteBuffer buffer = ByteBuffer.allocate(2 + producerRequest.sizeInBytes());
+        buffer.putShort(RequestKeys.ProduceKey);
+        producerRequest.writeTo(buffer);
+        buffer.rewind();
+        return new RequestChannel.Request(0, connection, buffer, 0L);
+    }
+}
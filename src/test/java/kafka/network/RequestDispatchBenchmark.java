@@ -0,0 +1,153 @@
+package kafka.network;
+
+import com.google.common.collect.ImmutableMap;
+import kafka.api.ProducerRequest;
+import kafka.api.RequestKeys;
+import kafka.log.TopicAndPartition;
+import kafka.message.ByteBufferMessageSet;
+import kafka.message.CompressionCodec;
+import kafka.message.Message;
+import kafka.message.MessageAndOffset;
+import kafka.utils.TestUtils;
+import kafka.utils.Utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A benchmark of the socket server with many handler threads, reporting the throughput and latency of produce requests
+ * with a single request queue shared by the handlers and with a queue per handler picked by connection or by partition.
+ * <p>
+ * Each client sends its requests over its own connection to a few partitions of its own. A handler holds a lock on the
+ * partition while it checksums the messages of a request, as appending to the log of the partition would, so handlers
+ * that take requests for the same partition wait on each other.
+ * <p>
+ * Usage: RequestDispatchBenchmark [handlers] [clients] [partitions] [requests per client] [message size in bytes]
+ */
+public class RequestDispatchBenchmark {
+    public static void main(String[] args) throws Throwable {
+        int handlers = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int partitions = args.length > 2 ? Integer.parseInt(args[2]) : 128;
+        int requests = args.length > 3 ? Integer.parseInt(args[3]) : 2000;
+        int size = args.length > 4 ? Integer.parseInt(args[4]) : 1024;
+
+        System.out.println(String.format("%d handlers, %d clients, %d partitions, %d requests of %d bytes per client",
+                handlers, clients, partitions, requests, size));
+        System.out.println(String.format("%-12s %12s %10s %10s %12s", "dispatch", "requests/s", "p50 ms", "p99 ms", "stolen"));
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up
+            for (RequestChannel.Dispatch dispatch : RequestChannel.Dispatch.values())
+                run(dispatch, handlers, clients, partitions, requests, size, round > 0);
+        }
+    }
+
+    private static void run(RequestChannel.Dispatch dispatch, int handlers, int clients, int partitions, int requests,
+                            int size, boolean print) throws Throwable {
+        SocketServer server = new SocketServer(0, null, TestUtils.choosePort(), 4, 500, 300000, 300000,
+                10 * 1024 * 1024, Integer.MAX_VALUE, 60 * 1000L, Collections.emptyMap(),
+                -1L, SocketServer.DefaultRequestBufferPoolBytes, false, dispatch, handlers);
+        server.startup();
+        Map<TopicAndPartition, Object> locks = new ConcurrentHashMap<>();
+        Thread[] handlerThreads = new Thread[handlers];
+        for (int i = 0; i < handlers; i++) {
+            int id = i;
+            handlerThreads[i] = Utils.newThread("benchmark-handler-" + i, () -> handle(server.requestChannel, id, locks), false);
+            handlerThreads[i].start();
+        }
+
+        long stolenBefore = server.requestChannel.stolenRequestRate.count();
+        long[][] latencies = new long[clients][requests];
+        CountDownLatch done = new CountDownLatch(clients);
+        Throwable[] failure = new Throwable[1];
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            int client = i;
+            Utils.newThread("benchmark-client-" + i, () -> {
+                try {
+                    send(server, client, partitions, size, latencies[client]);
+                } catch (Throwable e) {
+                    failure[0] = e;
+                } finally {
+                    done.countDown();
+                }
+            }, false).start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        for (int i = 0; i < handlers; i++)
+            server.requestChannel.sendRequest(RequestChannel.AllDone);
+        for (Thread thread : handlerThreads)
+            thread.join();
+        long stolen = server.requestChannel.stolenRequestRate.count() - stolenBefore;
+        server.shutdown();
+        if (failure[0] != null)
+            throw failure[0];
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        if (print)
+            System.out.println(String.format("%-12s %12.0f %10.2f %10.2f %12d", dispatch, all.length / (elapsed / 1e9),
+                    all[all.length / 2] / 1e6, all[(int) (all.length * 0.99)] / 1e6, stolen));
+    }
+
+    /* send requests one after the other over a single connection, each to one of the client's partitions */
+    private static void send(SocketServer server, int client, int partitions, int size, long[] latencies) throws Exception {
+        ByteBuffer[] requests = new ByteBuffer[4];
+        for (int i = 0; i < requests.length; i++) {
+            TopicAndPartition partition = new TopicAndPartition("benchmark", (client * requests.length + i) % partitions);
+            Message[] messages = new Message[16];
+            for (int j = 0; j < messages.length; j++)
+                messages[j] = new Message(new byte[size]);
+            ProducerRequest request = new ProducerRequest(client, "benchmark", (short) 1, 1000,
+                    ImmutableMap.of(partition, new ByteBufferMessageSet(CompressionCodec.NoCompressionCodec, messages)));
+            requests[i] = ByteBuffer.allocate(2 + request.sizeInBytes());
+            requests[i].putShort(RequestKeys.ProduceKey);
+            request.writeTo(requests[i]);
+        }
+        try (Socket socket = new Socket("localhost", server.port)) {
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            for (int i = 0; i < latencies.length; i++) {
+                byte[] request = requests[i % requests.length].array();
+                long start = System.nanoTime();
+                out.writeInt(request.length);
+                out.write(request);
+                out.flush();
+                in.readFully(new byte[in.readInt()]);
+                latencies[i] = System.nanoTime() - start;
+            }
+        }
+    }
+
+    private static void handle(RequestChannel channel, int id, Map<TopicAndPartition, Object> locks) {
+        try {
+            while (true) {
+                RequestChannel.Request request = channel.receiveRequest(id, 300L);
+                if (request == null)
+                    continue;
+                if (request == RequestChannel.AllDone)
+                    return;
+                long checksum = 0;
+                for (Map.Entry<TopicAndPartition, ByteBufferMessageSet> entry : ((ProducerRequest) request.requestObj).data.entrySet()) {
+                    synchronized (locks.computeIfAbsent(entry.getKey(), k -> new Object())) {
+                        for (MessageAndOffset messageAndOffset : entry.getValue())
+                            checksum += messageAndOffset.message.computeChecksum();
+                    }
+                }
+                ByteBuffer response = ByteBuffer.allocate(8).putLong(0, checksum);
+                channel.sendResponse(new RequestChannel.Response(request.processor, request, new BoundedByteBufferSend(response)));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package kafka.network;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import kafka.api.ProducerRequest;
 import kafka.producer.SyncProducerConfig;
@@ -16,6 +17,7 @@ import java.io.IOException;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -143,6 +145,31 @@ public class SocketServerTest {
                 "Socket key should be available for read");
     }
 
+    /**
+     * Responses sent together reach every client and wake the processor's selector at most once each
+     */
+    @Test
+    public void testResponsesWakeupSelectorAtMostOnce() throws IOException, InterruptedException {
+        List<Socket> sockets = Lists.newArrayList();
+        for (int i = 0; i < server.maxConnectionsPerIp; i++) {
+            Socket socket = connect();
+            socket.setSoTimeout(5000);
+            sendRequest(socket, (short) 0, new byte[40]);
+            sockets.add(socket);
+        }
+        List<RequestChannel.Request> requests = Lists.newArrayList();
+        for (int i = 0; i < sockets.size(); i++)
+            requests.add(server.requestChannel.receiveRequest(5000L));
+        long wakeups = server.selectorWakeups();
+        for (RequestChannel.Request request : requests) {
+            BoundedByteBufferSend send = new BoundedByteBufferSend(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+            server.requestChannel.sendResponse(new RequestChannel.Response(request.processor, request, send));
+        }
+        for (Socket socket : sockets)
+            Assert.assertArrayEquals(new byte[]{1, 2, 3}, receiveResponse(socket));
+        Assert.assertTrue("Each response should wake the selector at most once", server.selectorWakeups() - wakeups <= requests.size());
+    }
+
     /**
      * shutdown后 发送请求报错
      */
@@ -217,4 +244,140 @@ public class SocketServerTest {
         overrideServer.shutdown();
     }
 
+    /**
+     * Once the request buffers reach the memory limit the next request is only read after a handled one releases its
+     * buffer
+     */
+    @Test
+    public void testRequestMemoryLimit() throws IOException, InterruptedException {
+        SocketServer limitedServer = new SocketServer(0,
+                null,
+                kafka.utils.TestUtils.choosePort(),
+                1,
+                50,
+                300000,
+                300000,
+                50,
+                5,
+                60 * 1000L,
+                Collections.emptyMap(),
+                2L * RequestBufferPool.MinPooledSize,
+                SocketServer.DefaultRequestBufferPoolBytes,
+                false);
+        limitedServer.startup();
+        try {
+            byte[] bytes = new byte[40];
+            List<Socket> sockets = Lists.newArrayList(connect(limitedServer), connect(limitedServer), connect(limitedServer));
+            for (Socket socket : sockets)
+                sendRequest(socket, (short) 0, bytes);
+            RequestChannel.Request first = limitedServer.requestChannel.receiveRequest();
+            Assert.assertNotNull(limitedServer.requestChannel.receiveRequest(5000L));
+            Assert.assertNull("The third request should wait for memory", limitedServer.requestChannel.receiveRequest(500L));
+            Assert.assertEquals(2L * RequestBufferPool.MinPooledSize, limitedServer.bufferPool.allocatedBytes());
+
+            limitedServer.requestChannel.sendResponse(new RequestChannel.Response(0, first, null));
+            Assert.assertNotNull("The third request should be read once memory is released", limitedServer.requestChannel.receiveRequest(5000L));
+        } finally {
+            limitedServer.shutdown();
+        }
+    }
+
+    /**
+     * A full request queue holds the requests that do not fit in the processor instead of blocking it, so it keeps
+     * sending responses
+     */
+    @Test
+    public void testFullRequestQueueDoesNotBlockProcessor() throws IOException, InterruptedException {
+        SocketServer smallQueueServer = new SocketServer(0,
+                null,
+                kafka.utils.TestUtils.choosePort(),
+                1,
+                1,
+                300000,
+                300000,
+                50,
+                5,
+                60 * 1000L,
+                Collections.emptyMap());
+        smallQueueServer.startup();
+        try {
+            byte[] bytes = new byte[40];
+            List<Socket> sockets = Lists.newArrayList(connect(smallQueueServer), connect(smallQueueServer), connect(smallQueueServer));
+            for (Socket socket : sockets) {
+                socket.setSoTimeout(5000);
+                sendRequest(socket, (short) 0, bytes);
+            }
+            TestUtils.waitUntilTrue(() -> smallQueueServer.mutedConnections() == 2, "Two requests should wait for the queue");
+
+            // the queue has room for one more once the first request is taken, the processor still writes its response;
+            RequestChannel.Request first = smallQueueServer.requestChannel.receiveRequest();
+            BoundedByteBufferSend send = new BoundedByteBufferSend(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+            smallQueueServer.requestChannel.sendResponse(new RequestChannel.Response(first.processor, first, send));
+            int clientPort = ((SocketChannel) ((SelectionKey) first.requestKey).channel()).socket().getPort();
+            Socket client = sockets.stream().filter(socket -> socket.getLocalPort() == clientPort).findFirst().get();
+            Assert.assertArrayEquals(new byte[]{1, 2, 3}, receiveResponse(client));
+
+            Assert.assertNotNull(smallQueueServer.requestChannel.receiveRequest(5000L));
+            Assert.assertNotNull(smallQueueServer.requestChannel.receiveRequest(5000L));
+            TestUtils.waitUntilTrue(() -> smallQueueServer.mutedConnections() == 0, "No request should wait for the queue");
+        } finally {
+            smallQueueServer.shutdown();
+        }
+    }
+
+    /**
+     * The requests of a pipelined connection are read ahead but handed to the handlers one at a time in the order they
+     * were sent, each once the previous has been answered
+     */
+    @Test
+    public void testPipelinedResponsesInOrder() throws IOException, InterruptedException {
+        SocketServer pipelinedServer = new SocketServer(0,
+                null,
+                kafka.utils.TestUtils.choosePort(),
+                1,
+                50,
+                300000,
+                300000,
+                1000,
+                5,
+                60 * 1000L,
+                Collections.emptyMap(),
+                -1L,
+                SocketServer.DefaultRequestBufferPoolBytes,
+                false,
+                RequestChannel.Dispatch.Shared,
+                1,
+                3);
+        pipelinedServer.startup();
+        try {
+            Socket socket = connect(pipelinedServer);
+            socket.setSoTimeout(5000);
+            for (int correlationId = 0; correlationId < 4; correlationId++)
+                sendRequest(socket, (short) 0, producerRequest(correlationId));
+
+            for (int correlationId = 0; correlationId < 4; correlationId++) {
+                RequestChannel.Request request = pipelinedServer.requestChannel.receiveRequest(5000L);
+                Assert.assertNotNull("Request " + correlationId + " should be handed over once the previous is answered", request);
+                Assert.assertNull("The next request should wait for this one to be answered", pipelinedServer.requestChannel.receiveRequest(200L));
+                respond(pipelinedServer.requestChannel, request);
+                Assert.assertArrayEquals(new byte[]{(byte) correlationId}, receiveResponse(socket));
+            }
+        } finally {
+            pipelinedServer.shutdown();
+        }
+    }
+
+    private static byte[] producerRequest(int correlationId) {
+        ProducerRequest request = new ProducerRequest(correlationId, SyncProducerConfig.DefaultClientId,
+                SyncProducerConfig.DefaultRequiredAcks, SyncProducerConfig.DefaultAckTimeoutMs, Maps.newHashMap());
+        ByteBuffer buffer = ByteBuffer.allocate(request.sizeInBytes());
+        request.writeTo(buffer);
+        return buffer.array();
+    }
+
+    /* answer with the correlation id of the request */
+    private static void respond(RequestChannel channel, RequestChannel.Request request) throws InterruptedException {
+        byte[] correlationId = {(byte) (int) ((ProducerRequest) request.requestObj).correlationId};
+        channel.sendResponse(new RequestChannel.Response(request.processor, request, new BoundedByteBufferSend(ByteBuffer.wrap(correlationId))));
+    }
 }
@@ -0,0 +1,97 @@
+package kafka.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+public class MpscRingBufferTest {
+
+    @Test
+    public void testOfferAndPoll() {
+        MpscRingBuffer<Integer> ring = new MpscRingBuffer<>(4);
+        Assert.assertTrue(ring.isEmpty());
+        Assert.assertNull(ring.poll());
+        // go around the ring a few times;
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(ring.offer(i));
+            Assert.assertTrue(ring.offer(i + 100));
+            Assert.assertEquals(2, ring.size());
+            Assert.assertEquals(Integer.valueOf(i), ring.poll());
+            Assert.assertEquals(Integer.valueOf(i + 100), ring.poll());
+            Assert.assertTrue(ring.isEmpty());
+        }
+    }
+
+    @Test
+    public void testFull() {
+        MpscRingBuffer<Integer> ring = new MpscRingBuffer<>(3);
+        Assert.assertEquals(4, ring.capacity());
+        for (int i = 0; i < 4; i++)
+            Assert.assertTrue(ring.offer(i));
+        Assert.assertFalse("A full ring should refuse more", ring.offer(4));
+        Assert.assertEquals(4, ring.size());
+        Assert.assertEquals(Integer.valueOf(0), ring.poll());
+        Assert.assertTrue(ring.offer(4));
+        for (int i = 1; i < 5; i++)
+            Assert.assertEquals(Integer.valueOf(i), ring.poll());
+        Assert.assertNull(ring.poll());
+    }
+
+    @Test
+    public void testCapacity() {
+        Assert.assertEquals(1, new MpscRingBuffer<>(1).capacity());
+        Assert.assertEquals(1024, new MpscRingBuffer<>(1000).capacity());
+        Assert.assertEquals(1024, new MpscRingBuffer<>(1024).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroCapacity() {
+        new MpscRingBuffer<>(0);
+    }
+
+    /**
+     * Elements offered concurrently are all polled once, each producer's in the order it offered them
+     */
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+        int producers = 4;
+        int count = 100000;
+        MpscRingBuffer<long[]> ring = new MpscRingBuffer<>(64);
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            long producer = p;
+            threads[p] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                for (long i = 0; i < count; i++) {
+                    long[] element = {producer, i};
+                    while (!ring.offer(element))
+                        Thread.yield();
+                }
+            });
+            threads[p].start();
+        }
+        start.countDown();
+        long[] next = new long[producers];
+        for (int received = 0; received < producers * count; ) {
+            long[] element = ring.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            Assert.assertEquals(next[(int) element[0]], element[1]);
+            next[(int) element[0]] += 1;
+            received += 1;
+        }
+        for (Thread thread : threads)
+            thread.join();
+        Assert.assertTrue(ring.isEmpty());
+        for (int p = 0; p < producers; p++)
+            Assert.assertEquals(count, next[p]);
+    }
+}
@@ -3,6 +3,7 @@ package kafka.utils;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import kafka.func.Action;
+import kafka.func.ActionWithThrow;
 import kafka.func.Fun;
 import kafka.log.LogConfig;
 import kafka.log.LogManager;
@@ -12,8 +13,10 @@ import kafka.message.Message;
 import kafka.message.MessageAndOffset;
 import kafka.server.BrokerState;
 import org.junit.Assert;
+import org.junit.Assume;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.nio.ByteBuffer;
 import java.util.*;
@@ -693,6 +696,24 @@ public class TestUtils {
 //        throw new RuntimeException("unexpected error");
     }
 
+    /**
+     * The number of bytes the given action allocates on the heap when run on the current thread. The action is run
+     * a few times first so that it is measured after it has been compiled.
+     */
+    public static long allocatedBytes(ActionWithThrow action) throws Exception {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("Allocation measurement is not supported", threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        for (int i = 0; i < 5; i++)
+            action.invoke();
+        long threadId = Thread.currentThread().getId();
+        // the first call allocates the result array, call twice so only the second one is measured
+        threadBean.getThreadAllocatedBytes(threadId);
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        action.invoke();
+        return threadBean.getThreadAllocatedBytes(threadId) - before;
+    }
+
     //
 //    public void  isLeaderLocalOnBroker(String topic, Integer partitionId, KafkaServer server): Boolean = {
 //        val partitionOpt = server.replicaManager.getPartition(topic, partitionId);